@@ -37,11 +37,18 @@ object Dependencies {
   
   private val awsJavaSdk = "com.amazonaws" % "aws-java-sdk" % "1.7.5" % "compile" intransitive()
   private val commonsLang3 = "org.apache.commons" % "commons-lang3" % "3.1" % "compile" 
+  
+  // Test dependencies.
+  
+  private val junit = "junit" % "junit" % "4.11" % "test"
+  private val junitInterface = "com.novocode" % "junit-interface" % "0.10" % "test"
 
   val deps = Seq(
     kolichHttpClient4Closure,
     awsJavaSdk,
-    commonsLang3
+    commonsLang3,
+    junit,
+    junitInterface
   )
 
 }
@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.concurrent;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.util.concurrent.Futures.addCallback;
+import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+
+/**
+ * Submits tasks to an underlying {@link ListeningExecutorService} while
+ * never allowing more than a fixed number of them to be in flight at once.
+ * Callers that submit past the limit block until a running task finishes,
+ * which gives any producer (say, a paginated S3 listing) natural
+ * back-pressure without an unbounded work queue.
+ */
+public final class BoundedExecutor {
+	
+	private static final String DEFAULT_THREAD_NAME_FORMAT = "kolich-aws-%d";
+	
+	/**
+	 * Lazily created, shared pool of daemon threads used by clients that
+	 * are not handed an executor of their own.  Idle threads die off after
+	 * a minute, so this costs nothing when no batch work is running.
+	 */
+	private static final class DefaultExecutorHolder {
+		private static final ListeningExecutorService executor__ =
+			listeningDecorator(newCachedThreadPool(new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat(DEFAULT_THREAD_NAME_FORMAT)
+				.build()));
+	}
+	
+	private final ListeningExecutorService executor_;
+	private final Semaphore permits_;
+	
+	public BoundedExecutor(final ListeningExecutorService executor,
+                           final int maxInFlight) {
+		checkArgument(maxInFlight > 0, "Max in-flight tasks must be " +
+			"greater than zero.");
+		executor_ = checkNotNull(executor, "Executor cannot be null.");
+		permits_ = new Semaphore(maxInFlight);
+	}
+	
+	/**
+	 * Submits the given task, blocking the calling thread until a slot
+	 * is available.  The task runs under the calling thread's
+	 * {@link Deadline}, if it has one.
+	 */
+	public <T> ListenableFuture<T> submit(final Callable<T> task)
+		throws InterruptedException {
+		checkNotNull(task, "Task cannot be null.");
+		permits_.acquire();
+		return submitWithPermit(task);
+	}
+	
+	/**
+	 * Submits the given task if a slot is available right away, without
+	 * blocking.  For callers that would rather do the work themselves than
+	 * wait, say a task that would otherwise block on work it submitted to
+	 * the same, possibly exhausted, pool.
+	 * @return the task's future, or null if it was not submitted
+	 */
+	public <T> ListenableFuture<T> trySubmit(final Callable<T> task) {
+		checkNotNull(task, "Task cannot be null.");
+		if(!permits_.tryAcquire()) {
+			return null;
+		}
+		return submitWithPermit(task);
+	}
+	
+	/**
+	 * Returns the shared daemon executor used by default when a client
+	 * is not constructed with one of its own.
+	 */
+	public static final ListeningExecutorService getDefaultExecutor() {
+		return DefaultExecutorHolder.executor__;
+	}
+	
+	private final <T> ListenableFuture<T> submitWithPermit(final Callable<T> task) {
+		final ListenableFuture<T> future;
+		try {
+			future = executor_.submit(Deadline.propagate(task));
+		} catch (RuntimeException e) {
+			permits_.release();
+			throw e;
+		}
+		addCallback(future, new FutureCallback<T>() {
+			@Override
+			public void onSuccess(final T result) {
+				permits_.release();
+			}
+			@Override
+			public void onFailure(final Throwable t) {
+				permits_.release();
+			}
+		});
+		return future;
+	}
+
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * A point in time by which some piece of work has to be done.
+ * 
+ * A deadline is entered on a thread, and every AWS request made from
+ * that thread until the scope is closed is held to it: requests are not
+ * sent once it has passed, their timeouts are cut to the time left, and
+ * queueing, hedging and paginated listings all stop when it runs out.
+ * Work handed to a {@link BoundedExecutor} carries the deadline of the
+ * thread that handed it off.
+ * 
+ * <pre>
+ * try(final Deadline.Scope scope = Deadline.after(2L, SECONDS).enter()) {
+ *   s3.walkObjects(bucket, prefix, visitor);
+ * }
+ * </pre>
+ */
+public final class Deadline {
+	
+	private static final ThreadLocal<Deadline> current__ =
+		new ThreadLocal<Deadline>();
+	
+	/**
+	 * Puts the thread's previous deadline back when closed.
+	 */
+	public static final class Scope implements AutoCloseable {
+		private final Deadline previous_;
+		private boolean closed_;
+		private Scope(final Deadline previous) {
+			previous_ = previous;
+		}
+		@Override
+		public void close() {
+			if(!closed_) {
+				closed_ = true;
+				if(previous_ == null) {
+					current__.remove();
+				} else {
+					current__.set(previous_);
+				}
+			}
+		}
+	}
+	
+	private final long deadlineNanos_;
+	
+	private Deadline(final long deadlineNanos) {
+		deadlineNanos_ = deadlineNanos;
+	}
+	
+	/**
+	 * A deadline the given amount of time from now.
+	 */
+	public static final Deadline after(final long duration,
+		final TimeUnit unit) {
+		checkArgument(duration >= 0L, "Duration cannot be negative.");
+		checkNotNull(unit, "Unit cannot be null.");
+		return new Deadline(System.nanoTime() + unit.toNanos(duration));
+	}
+	
+	/**
+	 * The time left until this deadline, zero or less once it has passed.
+	 */
+	public long remaining(final TimeUnit unit) {
+		return unit.convert(deadlineNanos_ - System.nanoTime(), NANOSECONDS);
+	}
+	
+	public boolean isExpired() {
+		return deadlineNanos_ - System.nanoTime() <= 0L;
+	}
+	
+	/**
+	 * Makes this the deadline of the calling thread until the returned
+	 * scope is closed.  If the thread is already held to a sooner
+	 * deadline, that one stays in effect: a deadline can only ever be
+	 * tightened, never extended, by the code it was handed to.
+	 */
+	public Scope enter() {
+		final Deadline previous = current__.get();
+		if(previous == null || deadlineNanos_ - previous.deadlineNanos_ < 0L) {
+			current__.set(this);
+		}
+		return new Scope(previous);
+	}
+	
+	@Override
+	public String toString() {
+		return "Deadline[" + remaining(TimeUnit.MILLISECONDS) + "ms]";
+	}
+	
+	/**
+	 * The deadline of the calling thread, null if it has none.
+	 */
+	public static final Deadline current() {
+		return current__.get();
+	}
+	
+	/**
+	 * The lesser of the given wait and the time left until the calling
+	 * thread's deadline, never negative.  For bounding how long to block
+	 * on something that has a timeout of its own.
+	 */
+	public static final long cap(final long wait, final TimeUnit unit) {
+		final Deadline deadline = current__.get();
+		if(deadline == null) {
+			return wait;
+		}
+		return Math.max(0L, Math.min(wait, deadline.remaining(unit)));
+	}
+	
+	/**
+	 * True if the calling thread has a deadline and it has passed.
+	 */
+	public static final boolean isCurrentExpired() {
+		final Deadline deadline = current__.get();
+		return deadline != null && deadline.isExpired();
+	}
+	
+	/**
+	 * Wraps the given task so that it runs under the calling thread's
+	 * deadline, wherever it ends up running.
+	 */
+	public static final <T> Callable<T> propagate(final Callable<T> task) {
+		checkNotNull(task, "Task cannot be null.");
+		final Deadline deadline = current__.get();
+		if(deadline == null) {
+			return task;
+		}
+		return new Callable<T>() {
+			@Override
+			@SuppressWarnings("try") // The scope is only ever closed.
+			public T call() throws Exception {
+				try(final Scope scope = deadline.enter()) {
+					return task.call();
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Wraps the given task so that it runs under the calling thread's
+	 * deadline, wherever it ends up running.
+	 */
+	public static final Runnable propagate(final Runnable task) {
+		checkNotNull(task, "Task cannot be null.");
+		final Deadline deadline = current__.get();
+		if(deadline == null) {
+			return task;
+		}
+		return new Runnable() {
+			@Override
+			@SuppressWarnings("try") // The scope is only ever closed.
+			public void run() {
+				try(final Scope scope = deadline.enter()) {
+					task.run();
+				}
+			}
+		};
+	}
+
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.concurrent;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Collapses concurrent calls for the same key into a single execution.
+ * The first caller for a key runs the task on its own thread; any caller
+ * that arrives for the same key while that task is still running simply
+ * waits for, and shares, its result.  Once the task finishes the key is
+ * forgotten, so the next caller runs the task again.
+ */
+public final class SingleFlight<K,V> {
+	
+	private final ConcurrentMap<K,SettableFuture<V>> inFlight_;
+	
+	public SingleFlight() {
+		inFlight_ = new ConcurrentHashMap<K,SettableFuture<V>>();
+	}
+	
+	/**
+	 * Runs the given task, or waits for the one already running for the
+	 * same key.  Any exception thrown by the task is thrown to every
+	 * caller that shared it.
+	 */
+	public V execute(final K key, final Callable<V> task) throws Exception {
+		checkNotNull(key, "Key cannot be null.");
+		checkNotNull(task, "Task cannot be null.");
+		final SettableFuture<V> future = SettableFuture.create();
+		final SettableFuture<V> existing = inFlight_.putIfAbsent(key, future);
+		if(existing != null) {
+			return await(existing);
+		}
+		try {
+			final V result = task.call();
+			future.set(result);
+			return result;
+		} catch (Exception e) {
+			future.setException(e);
+			throw e;
+		} catch (Error e) {
+			future.setException(e);
+			throw e;
+		} finally {
+			inFlight_.remove(key, future);
+		}
+	}
+	
+	/**
+	 * The number of keys with a task currently running.
+	 */
+	public int size() {
+		return inFlight_.size();
+	}
+	
+	private static final <V> V await(final SettableFuture<V> future)
+		throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if(cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw (Exception)cause;
+		}
+	}
+
+}
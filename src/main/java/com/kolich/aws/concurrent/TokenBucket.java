@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.concurrent;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * A token bucket that refills at a fixed rate up to a maximum burst.
+ * 
+ * Rather than counting tokens, the bucket tracks the time at which it
+ * will next be full again, and taking permits pushes that time into the
+ * future.  That one number lives in an {@link AtomicLong}, so taking
+ * permits is a single compare-and-set with no locking.  A request for
+ * more permits than the burst is let through when the bucket is full,
+ * and leaves it in debt that later callers wait off.
+ */
+public final class TokenBucket {
+	
+	private static final String TIMER_THREAD_NAME = "kolich-aws-token-bucket";
+	
+	/**
+	 * Lazily created, shared daemon thread used to complete the futures
+	 * returned by {@link #acquireAsync(long)} once their permits are due.
+	 */
+	private static final class TimerHolder {
+		private static final ScheduledExecutorService timer__ =
+			newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat(TIMER_THREAD_NAME)
+				.build());
+	}
+	
+	/**
+	 * The refill rate and burst, swapped as one so a reservation never
+	 * sees one rate's cost against another's burst.
+	 */
+	private static final class Rate {
+		private final double permitsPerSecond_;
+		private final double nanosPerPermit_;
+		private final long burstNanos_;
+		private Rate(final double permitsPerSecond, final long burst) {
+			permitsPerSecond_ = permitsPerSecond;
+			nanosPerPermit_ = SECONDS.toNanos(1L) / permitsPerSecond;
+			burstNanos_ = toNanos(burst);
+		}
+		private final long toNanos(final long permits) {
+			return (long)Math.ceil(permits * nanosPerPermit_);
+		}
+	}
+	
+	private final long burst_;
+	private volatile Rate rate_;
+	
+	/**
+	 * The time, in {@link System#nanoTime()} terms, at which every permit
+	 * handed out so far will have been paid for.  The bucket is full when
+	 * this is at or before now minus the burst.
+	 */
+	private final AtomicLong paidUntil_;
+	
+	/**
+	 * @param permitsPerSecond the rate at which the bucket refills
+	 * @param burst the most permits the bucket holds when full
+	 */
+	public TokenBucket(final double permitsPerSecond,
+                       final long burst) {
+		checkArgument(permitsPerSecond > 0d, "Permits per second must be " +
+			"greater than zero.");
+		checkArgument(burst > 0L, "Burst must be greater than zero.");
+		burst_ = burst;
+		rate_ = new Rate(permitsPerSecond, burst);
+		// Start out full.
+		paidUntil_ = new AtomicLong(System.nanoTime() - rate_.burstNanos_);
+	}
+	
+	/**
+	 * A bucket that holds one second's worth of permits.
+	 */
+	public TokenBucket(final double permitsPerSecond) {
+		this(permitsPerSecond, Math.max(1L, (long)Math.ceil(permitsPerSecond)));
+	}
+	
+	public double getRate() {
+		return rate_.permitsPerSecond_;
+	}
+	
+	/**
+	 * Changes the rate the bucket refills at, keeping its burst in
+	 * permits.  Permits already reserved stay paid for at the old rate.
+	 */
+	public void setRate(final double permitsPerSecond) {
+		checkArgument(permitsPerSecond > 0d, "Permits per second must be " +
+			"greater than zero.");
+		rate_ = new Rate(permitsPerSecond, burst_);
+	}
+	
+	/**
+	 * Takes the given number of permits, blocking until they are
+	 * available.
+	 */
+	public void acquire(final long permits) throws InterruptedException {
+		NANOSECONDS.sleep(reserve(permits, Long.MAX_VALUE));
+	}
+	
+	/**
+	 * Takes the given number of permits if they are available right now,
+	 * never blocking.
+	 */
+	public boolean tryAcquire(final long permits) {
+		return reserve(permits, 0L) == 0L;
+	}
+	
+	/**
+	 * Takes the given number of permits if they will be available within
+	 * the timeout, blocking until they are.  Returns false right away,
+	 * having taken nothing, if they will not.
+	 */
+	public boolean tryAcquire(final long permits, final long timeout,
+		final TimeUnit unit) throws InterruptedException {
+		final long wait = reserve(permits, unit.toNanos(timeout));
+		if(wait < 0L) {
+			return false;
+		}
+		NANOSECONDS.sleep(wait);
+		return true;
+	}
+	
+	/**
+	 * Takes the given number of permits, returning a future that
+	 * completes once they are available.  The calling thread never
+	 * blocks.
+	 */
+	public ListenableFuture<Void> acquireAsync(final long permits) {
+		final long wait = reserve(permits, Long.MAX_VALUE);
+		if(wait == 0L) {
+			return immediateFuture(null);
+		}
+		final SettableFuture<Void> future = SettableFuture.create();
+		TimerHolder.timer__.schedule(new Runnable() {
+			@Override
+			public void run() {
+				future.set(null);
+			}
+		}, wait, NANOSECONDS);
+		return future;
+	}
+	
+	/**
+	 * Takes the given number of permits right away whether they are
+	 * available or not, for charging after the fact for work that has
+	 * already been done.  Any debt is waited off by later callers.
+	 */
+	public void consume(final long permits) {
+		reserve(permits, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Reserves the given number of permits if they will be available
+	 * within the given number of nanoseconds, returning how long the
+	 * caller has to wait before using them, or -1 if they will not be
+	 * available in time and nothing was reserved.
+	 */
+	private final long reserve(final long permits, final long maxWaitNanos) {
+		checkArgument(permits >= 0L, "Permits cannot be negative.");
+		final Rate rate = rate_;
+		final long burstNanos = rate.burstNanos_;
+		final long cost = rate.toNanos(permits);
+		while(true) {
+			final long now = System.nanoTime();
+			final long paidUntil = paidUntil_.get();
+			// A full bucket does not keep filling up.
+			final long from = Math.max(paidUntil, now - burstNanos);
+			// Requests bigger than the burst go through once the bucket
+			// is full, instead of never.
+			final long wait = Math.max(0L,
+				from + Math.min(cost, burstNanos) - now);
+			if(wait > maxWaitNanos) {
+				return -1L;
+			}
+			if(paidUntil_.compareAndSet(paidUntil, from + cost)) {
+				return wait;
+			}
+		}
+	}
+
+}
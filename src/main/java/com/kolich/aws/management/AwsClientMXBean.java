@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.management;
+
+import java.util.Map;
+
+/**
+ * The live state of one client, as seen over JMX.  Rates, error rates
+ * and latencies cover about the last minute, counts are since the
+ * client was registered.  Latencies are in milliseconds and measured on
+ * the wire, from when a request leaves any other interceptors until its
+ * response headers come back.
+ * 
+ * Pool attributes read -1 when the client was registered without its
+ * {@link com.kolich.aws.transport.AwsConnectionPool}, and limits read -1
+ * when the client has no interceptor enforcing them, in which case
+ * setting them fails.
+ */
+public interface AwsClientMXBean {
+	
+	String getServiceName();
+	
+	String getEndpoint();
+	
+	/**
+	 * Requests sent whose response body has not yet been read to the end
+	 * or closed.
+	 */
+	int getInFlightRequests();
+	
+	long getRequestCount();
+	
+	/**
+	 * Requests that got a 4xx or 5xx response, or none at all.
+	 */
+	long getErrorCount();
+	
+	/**
+	 * The number of responses with each status, where zero counts
+	 * requests that got no response.
+	 */
+	Map<Integer,Long> getStatusCounts();
+	
+	double getRequestsPerSecond();
+	
+	/**
+	 * The fraction of requests that failed, between 0 and 1.
+	 */
+	double getErrorRate();
+	
+	double getLatencyMeanMs();
+	
+	double getLatency50thPercentileMs();
+	
+	double getLatency90thPercentileMs();
+	
+	double getLatency99thPercentileMs();
+	
+	double getLatency999thPercentileMs();
+	
+	double getLatencyMaxMs();
+	
+	int getPoolLeased();
+	
+	int getPoolAvailable();
+	
+	/**
+	 * Requests waiting on a connection from the pool.
+	 */
+	int getPoolPending();
+	
+	int getPoolMax();
+	
+	long getPoolMaxLeaseWaitMs();
+	
+	/**
+	 * The concurrency limit learned for each endpoint, see
+	 * {@link com.kolich.aws.transport.interceptors.AdaptiveConcurrencyInterceptor}.
+	 */
+	Map<String,Integer> getConcurrencyLimits();
+	
+	int getMaxConcurrencyLimit();
+	
+	void setMaxConcurrencyLimit(final int maxLimit);
+	
+	/**
+	 * See {@link com.kolich.aws.transport.interceptors.RateLimitingInterceptor}.
+	 */
+	double getRequestRateLimit();
+	
+	void setRequestRateLimit(final double requestsPerSecond);
+	
+	long getByteRateLimit();
+	
+	void setByteRateLimit(final long bytesPerSecond);
+	
+	/**
+	 * See {@link com.kolich.aws.transport.interceptors.RequestSchedulingInterceptor}.
+	 */
+	int getMaxScheduledRequests();
+	
+	void setMaxScheduledRequests(final int maxConcurrent);
+	
+	int getScheduledQueueLength();
+
+}
@@ -0,0 +1,464 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.management;
+
+import com.kolich.aws.KolichAwsException;
+import com.kolich.aws.metrics.LatencyHistogram;
+import com.kolich.aws.services.AbstractAwsService;
+import com.kolich.aws.transport.AwsConnectionPool;
+import com.kolich.aws.transport.AwsRequestChain;
+import com.kolich.aws.transport.AwsRequestInterceptor;
+import com.kolich.aws.transport.interceptors.AdaptiveConcurrencyInterceptor;
+import com.kolich.aws.transport.interceptors.RateLimitingInterceptor;
+import com.kolich.aws.transport.interceptors.RequestSchedulingInterceptor;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Watches every request a client sends, as its innermost interceptor,
+ * and exposes what it sees along with the client's connection pool and
+ * runtime limits as an {@link AwsClientMXBean}.  Limits are looked up
+ * among the client's interceptors each time they are read or set, so
+ * ones added after registering are picked up too.  A request is in
+ * flight, and its latency runs, until its response body has been read
+ * to the end or closed.
+ * 
+ * Opt-in, see
+ * {@link com.kolich.aws.services.AbstractAwsService#registerMBean}.
+ */
+public final class AwsClientMonitor implements AwsRequestInterceptor,
+	AwsClientMXBean {
+	
+	/**
+	 * The JMX domain every client is registered under.
+	 */
+	public static final String DOMAIN = "com.kolich.aws";
+	
+	/**
+	 * One past the highest HTTP status there is.
+	 */
+	private static final int STATUSES = 600;
+	
+	private static final AtomicInteger ids__ = new AtomicInteger();
+	
+	private final AbstractAwsService client_;
+	private final String serviceName_;
+	private final String endpoint_;
+	private final AwsConnectionPool pool_;
+	private final ObjectName name_;
+	
+	private final AtomicInteger inFlight_;
+	private final AtomicLong errors_;
+	private final AtomicLongArray statuses_;
+	private final RollingWindow window_;
+	
+	/**
+	 * @param client the client to watch, whose interceptors hold its limits
+	 * @param serviceName the client's service, for example "s3"
+	 * @param endpoint the authority of the client's endpoint
+	 * @param pool the pool the client leases connections from, or null
+	 */
+	public AwsClientMonitor(final AbstractAwsService client,
+                            final String serviceName,
+                            final String endpoint,
+                            final AwsConnectionPool pool) {
+		client_ = checkNotNull(client, "Client cannot be null.");
+		serviceName_ = checkNotNull(serviceName, "Service name cannot " +
+			"be null.");
+		endpoint_ = endpoint;
+		pool_ = pool;
+		try {
+			name_ = new ObjectName(DOMAIN + ":type=AwsClient,service=" +
+				serviceName + ",id=" + ids__.incrementAndGet());
+		} catch (JMException e) {
+			throw new KolichAwsException("Invalid MBean name for " +
+				serviceName + " client.", e);
+		}
+		inFlight_ = new AtomicInteger();
+		errors_ = new AtomicLong();
+		statuses_ = new AtomicLongArray(STATUSES);
+		window_ = new RollingWindow();
+	}
+	
+	public ObjectName getObjectName() {
+		return name_;
+	}
+	
+	/**
+	 * Registers this monitor with the platform MBean server.
+	 */
+	public void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer()
+				.registerMBean(this, name_);
+		} catch (JMException e) {
+			throw new KolichAwsException("Failed to register MBean " +
+				name_ + ".", e);
+		}
+	}
+	
+	/**
+	 * Unregisters this monitor from the platform MBean server, if it is
+	 * registered there.
+	 */
+	public void unregister() {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if(server.isRegistered(name_)) {
+				server.unregisterMBean(name_);
+			}
+		} catch (JMException e) {
+			throw new KolichAwsException("Failed to unregister MBean " +
+				name_ + ".", e);
+		}
+	}
+	
+	@Override
+	public HttpResponse intercept(final AwsRequestChain chain)
+		throws IOException {
+		inFlight_.incrementAndGet();
+		final long start = System.nanoTime();
+		final HttpResponse response;
+		try {
+			response = chain.proceed();
+		} catch (IOException | RuntimeException e) {
+			complete(0, start);
+			throw e;
+		}
+		final int status = response.getStatusLine().getStatusCode();
+		final HttpEntity entity = response.getEntity();
+		if(entity == null || !entity.isStreaming()) {
+			complete(status, start);
+		} else {
+			response.setEntity(new CompletingEntity(entity, status, start));
+		}
+		return response;
+	}
+	
+	/**
+	 * A response body that completes its request once it has been read
+	 * to the end or closed, whichever comes first.
+	 */
+	private final class CompletingEntity extends HttpEntityWrapper {
+		private final int status_;
+		private final long start_;
+		private final AtomicBoolean completed_;
+		private CompletingEntity(final HttpEntity entity, final int status,
+			final long start) {
+			super(entity);
+			status_ = status;
+			start_ = start;
+			completed_ = new AtomicBoolean();
+		}
+		private void completeOnce() {
+			if(completed_.compareAndSet(false, true)) {
+				complete(status_, start_);
+			}
+		}
+		@Override
+		public InputStream getContent() throws IOException {
+			return new FilterInputStream(super.getContent()) {
+				@Override
+				public int read() throws IOException {
+					final int b = super.read();
+					if(b < 0) {
+						completeOnce();
+					}
+					return b;
+				}
+				@Override
+				public int read(final byte[] b, final int off,
+					final int len) throws IOException {
+					final int read = super.read(b, off, len);
+					if(read < 0) {
+						completeOnce();
+					}
+					return read;
+				}
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						completeOnce();
+					}
+				}
+			};
+		}
+		@Override
+		public void writeTo(final OutputStream out) throws IOException {
+			try {
+				super.writeTo(out);
+			} finally {
+				completeOnce();
+			}
+		}
+	}
+	
+	private final void complete(final int status, final long start) {
+		inFlight_.decrementAndGet();
+		record(status, System.nanoTime() - start);
+	}
+	
+	private final void record(final int status, final long elapsedNanos) {
+		// Anything out of range is counted as no response at all.
+		final boolean responded = status > 0 && status < STATUSES;
+		statuses_.incrementAndGet(responded ? status : 0);
+		final boolean error = !responded || status >= 400;
+		if(error) {
+			errors_.incrementAndGet();
+		}
+		window_.record(NANOSECONDS.toMicros(elapsedNanos), error);
+	}
+	
+	@Override
+	public String getServiceName() {
+		return serviceName_;
+	}
+	
+	@Override
+	public String getEndpoint() {
+		return endpoint_;
+	}
+	
+	@Override
+	public int getInFlightRequests() {
+		return inFlight_.get();
+	}
+	
+	@Override
+	public long getRequestCount() {
+		long count = 0L;
+		for(int i = 0; i < STATUSES; i++) {
+			count += statuses_.get(i);
+		}
+		return count;
+	}
+	
+	@Override
+	public long getErrorCount() {
+		return errors_.get();
+	}
+	
+	@Override
+	public Map<Integer,Long> getStatusCounts() {
+		final SortedMap<Integer,Long> counts = new TreeMap<Integer,Long>();
+		for(int i = 0; i < STATUSES; i++) {
+			final long count = statuses_.get(i);
+			if(count > 0L) {
+				counts.put(i, count);
+			}
+		}
+		return counts;
+	}
+	
+	@Override
+	public double getRequestsPerSecond() {
+		return window_.getRequestsPerSecond();
+	}
+	
+	@Override
+	public double getErrorRate() {
+		return window_.getErrorRate();
+	}
+	
+	@Override
+	public double getLatencyMeanMs() {
+		return window_.getLatencies().getMean() / 1000d;
+	}
+	
+	@Override
+	public double getLatency50thPercentileMs() {
+		return getLatencyMs(50d);
+	}
+	
+	@Override
+	public double getLatency90thPercentileMs() {
+		return getLatencyMs(90d);
+	}
+	
+	@Override
+	public double getLatency99thPercentileMs() {
+		return getLatencyMs(99d);
+	}
+	
+	@Override
+	public double getLatency999thPercentileMs() {
+		return getLatencyMs(99.9d);
+	}
+	
+	@Override
+	public double getLatencyMaxMs() {
+		return window_.getLatencies().getMax() / 1000d;
+	}
+	
+	private final double getLatencyMs(final double percentile) {
+		final LatencyHistogram latencies = window_.getLatencies();
+		return latencies.getValueAtPercentile(percentile) / 1000d;
+	}
+	
+	@Override
+	public int getPoolLeased() {
+		return (pool_ != null) ? pool_.getTotalStats().getLeased() : -1;
+	}
+	
+	@Override
+	public int getPoolAvailable() {
+		return (pool_ != null) ? pool_.getTotalStats().getAvailable() : -1;
+	}
+	
+	@Override
+	public int getPoolPending() {
+		return (pool_ != null) ? pool_.getTotalStats().getPending() : -1;
+	}
+	
+	@Override
+	public int getPoolMax() {
+		return (pool_ != null) ? pool_.getTotalStats().getMax() : -1;
+	}
+	
+	@Override
+	public long getPoolMaxLeaseWaitMs() {
+		return (pool_ != null) ? pool_.getMaxLeaseWaitMs() : -1L;
+	}
+	
+	@Override
+	public Map<String,Integer> getConcurrencyLimits() {
+		final AdaptiveConcurrencyInterceptor limiter =
+			find(AdaptiveConcurrencyInterceptor.class);
+		return (limiter != null) ? limiter.getLimits() :
+			Collections.<String,Integer>emptyMap();
+	}
+	
+	@Override
+	public int getMaxConcurrencyLimit() {
+		final AdaptiveConcurrencyInterceptor limiter =
+			find(AdaptiveConcurrencyInterceptor.class);
+		return (limiter != null) ? limiter.getMaxLimit() : -1;
+	}
+	
+	@Override
+	public void setMaxConcurrencyLimit(final int maxLimit) {
+		get(AdaptiveConcurrencyInterceptor.class).setMaxLimit(maxLimit);
+	}
+	
+	@Override
+	public double getRequestRateLimit() {
+		final RateLimitingInterceptor limiter =
+			find(RateLimitingInterceptor.class);
+		return (limiter != null) ? limiter.getRequestsPerSecond() : -1d;
+	}
+	
+	@Override
+	public void setRequestRateLimit(final double requestsPerSecond) {
+		get(RateLimitingInterceptor.class)
+			.setRequestsPerSecond(requestsPerSecond);
+	}
+	
+	@Override
+	public long getByteRateLimit() {
+		final RateLimitingInterceptor limiter =
+			find(RateLimitingInterceptor.class);
+		return (limiter != null) ? limiter.getBytesPerSecond() : -1L;
+	}
+	
+	@Override
+	public void setByteRateLimit(final long bytesPerSecond) {
+		get(RateLimitingInterceptor.class).setBytesPerSecond(bytesPerSecond);
+	}
+	
+	@Override
+	public int getMaxScheduledRequests() {
+		final RequestSchedulingInterceptor scheduler =
+			find(RequestSchedulingInterceptor.class);
+		return (scheduler != null) ? scheduler.getMaxConcurrent() : -1;
+	}
+	
+	@Override
+	public void setMaxScheduledRequests(final int maxConcurrent) {
+		get(RequestSchedulingInterceptor.class)
+			.setMaxConcurrent(maxConcurrent);
+	}
+	
+	@Override
+	public int getScheduledQueueLength() {
+		final RequestSchedulingInterceptor scheduler =
+			find(RequestSchedulingInterceptor.class);
+		return (scheduler != null) ? scheduler.getQueueLength() : -1;
+	}
+	
+	/**
+	 * The first of the client's interceptors of the given type, or null
+	 * if it has none.
+	 */
+	private final <T extends AwsRequestInterceptor> T find(final Class<T> type) {
+		for(final AwsRequestInterceptor interceptor : client_.getInterceptors()) {
+			if(type.isInstance(interceptor)) {
+				return type.cast(interceptor);
+			}
+		}
+		return null;
+	}
+	
+	private final <T extends AwsRequestInterceptor> T get(final Class<T> type) {
+		final T interceptor = find(type);
+		checkState(interceptor != null, serviceName_ + " client has no " +
+			type.getSimpleName() + ".");
+		return interceptor;
+	}
+	
+	@Override
+	public String toString() {
+		return name_ + " inFlight=" + getInFlightRequests() +
+			", rps=" + getRequestsPerSecond() +
+			", errorRate=" + getErrorRate() +
+			", statuses=" + getStatusCounts();
+	}
+
+}
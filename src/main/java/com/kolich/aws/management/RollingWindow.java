@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.management;
+
+import com.kolich.aws.metrics.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Request, error and latency counts over roughly the last minute, kept
+ * in six ten second slots that are replaced as they age out.  Recording
+ * never locks; a slot is swapped for a fresh one with a compare-and-set
+ * by whichever request first lands in it after it has aged out.
+ */
+final class RollingWindow {
+	
+	private static final int SLOTS = 6;
+	private static final long SLOT_NANOS = SECONDS.toNanos(10L);
+	
+	private static final class Slot {
+		private final long epoch_;
+		private final AtomicLong requests_;
+		private final AtomicLong errors_;
+		private final LatencyHistogram latencies_;
+		private Slot(final long epoch) {
+			epoch_ = epoch;
+			requests_ = new AtomicLong();
+			errors_ = new AtomicLong();
+			latencies_ = new LatencyHistogram();
+		}
+	}
+	
+	private final long started_;
+	private final AtomicReferenceArray<Slot> slots_;
+	
+	RollingWindow() {
+		started_ = System.nanoTime();
+		slots_ = new AtomicReferenceArray<Slot>(SLOTS);
+	}
+	
+	void record(final long latencyMicros, final boolean error) {
+		final Slot slot = getSlot(epoch(System.nanoTime()));
+		slot.requests_.incrementAndGet();
+		if(error) {
+			slot.errors_.incrementAndGet();
+		}
+		slot.latencies_.record(latencyMicros);
+	}
+	
+	/**
+	 * Requests per second over the window, or over the time since this
+	 * window was created if that is shorter.
+	 */
+	double getRequestsPerSecond() {
+		final long now = System.nanoTime();
+		long requests = 0L;
+		for(final Slot slot : getLive(now)) {
+			requests += slot.requests_.get();
+		}
+		final long from = started_ +
+			Math.max(0L, epoch(now) - SLOTS + 1L) * SLOT_NANOS;
+		final double seconds = Math.max(1d,
+			(double)(now - from) / SECONDS.toNanos(1L));
+		return requests / seconds;
+	}
+	
+	/**
+	 * The fraction of requests over the window that failed.
+	 */
+	double getErrorRate() {
+		long requests = 0L, errors = 0L;
+		for(final Slot slot : getLive(System.nanoTime())) {
+			requests += slot.requests_.get();
+			errors += slot.errors_.get();
+		}
+		return (requests == 0L) ? 0d : (double)errors / requests;
+	}
+	
+	/**
+	 * A copy of the latencies over the window, in microseconds.
+	 */
+	LatencyHistogram getLatencies() {
+		final LatencyHistogram latencies = new LatencyHistogram();
+		for(final Slot slot : getLive(System.nanoTime())) {
+			latencies.add(slot.latencies_);
+		}
+		return latencies;
+	}
+	
+	private final Slot getSlot(final long epoch) {
+		final int index = (int)(epoch % SLOTS);
+		while(true) {
+			final Slot slot = slots_.get(index);
+			// A writer that read the clock just before a slot turned over
+			// can arrive after it did, it must not throw the newer slot
+			// away, so it counts there instead.
+			if(slot != null && slot.epoch_ >= epoch) {
+				return slot;
+			}
+			final Slot fresh = new Slot(epoch);
+			if(slots_.compareAndSet(index, slot, fresh)) {
+				return fresh;
+			}
+		}
+	}
+	
+	private final Slot[] getLive(final long now) {
+		final long epoch = epoch(now);
+		final Slot[] live = new Slot[SLOTS];
+		int count = 0;
+		for(int i = 0; i < SLOTS; i++) {
+			final Slot slot = slots_.get(i);
+			if(slot != null && slot.epoch_ > epoch - SLOTS &&
+				slot.epoch_ <= epoch) {
+				live[count++] = slot;
+			}
+		}
+		final Slot[] result = new Slot[count];
+		System.arraycopy(live, 0, result, 0, count);
+		return result;
+	}
+	
+	/**
+	 * The slot the given time falls in, counted from when this window
+	 * was created so it never goes negative.
+	 */
+	private final long epoch(final long nanos) {
+		return (nanos - started_) / SLOT_NANOS;
+	}
+
+}
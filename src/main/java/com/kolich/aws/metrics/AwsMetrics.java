@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.metrics;
+
+/**
+ * Receives a record of every request a client sends.  Called on the
+ * thread that made the request once its response has been read, so
+ * implementations must be thread safe and should be quick.
+ * 
+ * Clients start out with {@link NoOpAwsMetrics}, which they recognize
+ * and skip all measuring for, so that metrics cost nothing until they're
+ * asked for.  {@link RecordingAwsMetrics} keeps lock-free counters and
+ * latency histograms that are cheap enough to leave on in production.
+ */
+public interface AwsMetrics {
+	
+	/**
+	 * @param serviceName the short name of the service, for example "s3"
+	 * @param operation the API operation, for example "GetObject"
+	 * @param status the HTTP status of the response, or zero if there
+	 * wasn't one
+	 * @param latencyNanos from when the request was first being prepared
+	 * to when its response was read, or it failed
+	 * @param requestBytes the size of the request body, zero if none
+	 * @param responseBytes the number of response body bytes read
+	 * @param retries the number of times the HTTP client retried the
+	 * request after an I/O error, as counted by the client of an
+	 * {@link com.kolich.aws.transport.AwsConnectionPool}; redirects are
+	 * not retries
+	 * @param hedges the number of hedge requests sent alongside this one
+	 * by a {@link com.kolich.aws.transport.interceptors.HedgingInterceptor}
+	 */
+	public void record(final String serviceName,
+                       final String operation,
+                       final int status,
+                       final long latencyNanos,
+                       final long requestBytes,
+                       final long responseBytes,
+                       final int retries,
+                       final int hedges);
+
+}
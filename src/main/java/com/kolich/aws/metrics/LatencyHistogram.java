@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A lock-free histogram of non-negative values, bucketed the way an HDR
+ * histogram is: values below 32 have a bucket each, and every power of
+ * two above that is split into 16 equal buckets, so any value is known
+ * to within about 6% and all of a long's range fits in under a thousand
+ * buckets.  Recording a value is one increment of one
+ * {@link AtomicLongArray} slot, and reading percentiles never blocks
+ * writers, at the cost of their being a moment out of date.
+ */
+public final class LatencyHistogram {
+	
+	/**
+	 * Values below this are counted exactly.
+	 */
+	private static final int LINEAR = 32;
+	
+	/**
+	 * Log2 of the number of buckets each power of two above that is
+	 * split into.
+	 */
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	
+	private static final int BUCKETS = LINEAR +
+		(63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	
+	private final AtomicLongArray counts_;
+	private final AtomicLong count_;
+	private final AtomicLong sum_;
+	private final AtomicLong max_;
+	
+	public LatencyHistogram() {
+		counts_ = new AtomicLongArray(BUCKETS);
+		count_ = new AtomicLong();
+		sum_ = new AtomicLong();
+		max_ = new AtomicLong();
+	}
+	
+	public void record(final long value) {
+		checkArgument(value >= 0L, "Value cannot be negative.");
+		counts_.incrementAndGet(index(value));
+		count_.incrementAndGet();
+		sum_.addAndGet(value);
+		long max;
+		while(value > (max = max_.get()) && !max_.compareAndSet(max, value)) {
+			// Lost the race to another writer, try again.
+		}
+	}
+	
+	/**
+	 * Adds every value recorded in the given histogram to this one, for
+	 * rolling several up into one.
+	 */
+	public void add(final LatencyHistogram other) {
+		for(int i = 0; i < BUCKETS; i++) {
+			final long count = other.counts_.get(i);
+			if(count > 0L) {
+				counts_.addAndGet(i, count);
+			}
+		}
+		count_.addAndGet(other.count_.get());
+		sum_.addAndGet(other.sum_.get());
+		final long value = other.max_.get();
+		long max;
+		while(value > (max = max_.get()) && !max_.compareAndSet(max, value)) {
+			// Lost the race to another writer, try again.
+		}
+	}
+	
+	public long getCount() {
+		return count_.get();
+	}
+	
+	public long getMax() {
+		return max_.get();
+	}
+	
+	public double getMean() {
+		final long count = count_.get();
+		return (count == 0L) ? 0d : (double)sum_.get() / count;
+	}
+	
+	/**
+	 * The value at the given percentile, the upper end of the bucket it
+	 * falls in but never more than the largest value recorded, or zero if
+	 * nothing has been.
+	 * @param percentile between 0 and 100
+	 */
+	public long getValueAtPercentile(final double percentile) {
+		checkArgument(percentile >= 0d && percentile <= 100d, "Percentile " +
+			"must be between 0 and 100.");
+		long total = 0L;
+		final long[] counts = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++) {
+			total += (counts[i] = counts_.get(i));
+		}
+		if(total == 0L) {
+			return 0L;
+		}
+		final long rank = Math.max(1L,
+			(long)Math.ceil(percentile / 100d * total));
+		long seen = 0L;
+		for(int i = 0; i < BUCKETS; i++) {
+			if((seen += counts[i]) >= rank) {
+				return Math.min(highestValue(i), max_.get());
+			}
+		}
+		return max_.get();
+	}
+	
+	private static final int index(final long value) {
+		if(value < LINEAR) {
+			return (int)value;
+		}
+		// Keep the top five bits of the value, the highest of which is
+		// always set: one of 16 buckets within its power of two.
+		final int shift = (63 - Long.numberOfLeadingZeros(value)) -
+			SUB_BUCKET_BITS;
+		return LINEAR + (shift - 1) * SUB_BUCKETS +
+			(int)(value >>> shift) - SUB_BUCKETS;
+	}
+	
+	private static final long highestValue(final int index) {
+		if(index < LINEAR) {
+			return index;
+		}
+		final int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+		final long top = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((top + 1L) << shift) - 1L;
+	}
+
+}
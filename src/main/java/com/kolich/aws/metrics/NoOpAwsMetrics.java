@@ -0,0 +1,51 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.metrics;
+
+/**
+ * Throws every record away.  Clients that have it check for it by
+ * identity and don't take any measurements at all.
+ */
+public final class NoOpAwsMetrics implements AwsMetrics {
+	
+	public static final AwsMetrics INSTANCE = new NoOpAwsMetrics();
+	
+	private NoOpAwsMetrics() {}
+	
+	@Override
+	public void record(final String serviceName,
+                       final String operation,
+                       final int status,
+                       final long latencyNanos,
+                       final long requestBytes,
+                       final long responseBytes,
+                       final int retries,
+                       final int hedges) {
+		// Nothing, on purpose.
+	}
+
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.metrics;
+
+import com.google.common.collect.ImmutableSortedMap;
+
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Everything {@link RecordingAwsMetrics} has counted for one operation
+ * of one service.  Latencies are in microseconds.
+ */
+public final class OperationStats {
+	
+	/**
+	 * One past the highest HTTP status there is.
+	 */
+	private static final int STATUSES = 600;
+	
+	private final String serviceName_;
+	private final String operation_;
+	
+	private final LatencyHistogram latencies_;
+	private final AtomicLongArray statuses_;
+	private final AtomicLong requestBytes_;
+	private final AtomicLong responseBytes_;
+	private final AtomicLong retries_;
+	private final AtomicLong hedges_;
+	
+	OperationStats(final String serviceName, final String operation) {
+		serviceName_ = serviceName;
+		operation_ = operation;
+		latencies_ = new LatencyHistogram();
+		statuses_ = new AtomicLongArray(STATUSES);
+		requestBytes_ = new AtomicLong();
+		responseBytes_ = new AtomicLong();
+		retries_ = new AtomicLong();
+		hedges_ = new AtomicLong();
+	}
+	
+	void record(final int status, final long latencyMicros,
+		final long requestBytes, final long responseBytes,
+		final int retries, final int hedges) {
+		latencies_.record(latencyMicros);
+		// Anything out of range is counted as no response at all.
+		statuses_.incrementAndGet((status > 0 && status < STATUSES) ?
+			status : 0);
+		if(requestBytes > 0L) {
+			requestBytes_.addAndGet(requestBytes);
+		}
+		if(responseBytes > 0L) {
+			responseBytes_.addAndGet(responseBytes);
+		}
+		if(retries > 0) {
+			retries_.addAndGet(retries);
+		}
+		if(hedges > 0) {
+			hedges_.addAndGet(hedges);
+		}
+	}
+	
+	public String getServiceName() {
+		return serviceName_;
+	}
+	
+	public String getOperation() {
+		return operation_;
+	}
+	
+	public long getCount() {
+		return latencies_.getCount();
+	}
+	
+	public LatencyHistogram getLatencies() {
+		return latencies_;
+	}
+	
+	/**
+	 * The number of responses with each status seen so far, where zero
+	 * counts requests that got no response.
+	 */
+	public SortedMap<Integer,Long> getStatusCounts() {
+		final ImmutableSortedMap.Builder<Integer,Long> counts =
+			ImmutableSortedMap.naturalOrder();
+		for(int i = 0; i < STATUSES; i++) {
+			final long count = statuses_.get(i);
+			if(count > 0L) {
+				counts.put(i, count);
+			}
+		}
+		return counts.build();
+	}
+	
+	public long getRequestBytes() {
+		return requestBytes_.get();
+	}
+	
+	public long getResponseBytes() {
+		return responseBytes_.get();
+	}
+	
+	public long getRetryCount() {
+		return retries_.get();
+	}
+	
+	public long getHedgeCount() {
+		return hedges_.get();
+	}
+	
+	@Override
+	public String toString() {
+		return serviceName_ + ":" + operation_ + " count=" + getCount() +
+			", p50=" + latencies_.getValueAtPercentile(50d) + "us" +
+			", p99=" + latencies_.getValueAtPercentile(99d) + "us" +
+			", statuses=" + getStatusCounts();
+	}
+
+}
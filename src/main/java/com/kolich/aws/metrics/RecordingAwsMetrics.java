@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.metrics;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Keeps per service and operation counts of requests by status, latency
+ * histograms, byte counts and retry counts, in memory, for as long as it
+ * lives.  Nothing is ever locked: each operation's {@link OperationStats}
+ * is created once, and from then on recording is a handful of atomic
+ * increments.
+ * 
+ * <pre>
+ * final RecordingAwsMetrics metrics = new RecordingAwsMetrics();
+ * s3.setMetrics(metrics);
+ * sqs.setMetrics(metrics);
+ * ...
+ * for(final OperationStats stats : metrics.getStats().values()) {
+ *   logger.info(stats.toString());
+ * }
+ * </pre>
+ */
+public final class RecordingAwsMetrics implements AwsMetrics {
+	
+	private final ConcurrentMap<String,OperationStats> stats_;
+	
+	public RecordingAwsMetrics() {
+		stats_ = new ConcurrentHashMap<String,OperationStats>();
+	}
+	
+	@Override
+	public void record(final String serviceName,
+                       final String operation,
+                       final int status,
+                       final long latencyNanos,
+                       final long requestBytes,
+                       final long responseBytes,
+                       final int retries,
+                       final int hedges) {
+		getStats(serviceName, operation).record(status,
+			NANOSECONDS.toMicros(Math.max(0L, latencyNanos)), requestBytes,
+			responseBytes, retries, hedges);
+	}
+	
+	/**
+	 * What has been recorded so far, keyed by "service:operation".
+	 */
+	public Map<String,OperationStats> getStats() {
+		return ImmutableMap.copyOf(stats_);
+	}
+	
+	private final OperationStats getStats(final String serviceName,
+		final String operation) {
+		final String key = serviceName + ":" + operation;
+		OperationStats stats = stats_.get(key);
+		if(stats == null) {
+			final OperationStats created = new OperationStats(serviceName,
+				operation);
+			stats = stats_.putIfAbsent(key, created);
+			if(stats == null) {
+				stats = created;
+			}
+		}
+		return stats;
+	}
+
+}
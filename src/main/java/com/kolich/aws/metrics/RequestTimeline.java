@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.metrics;
+
+import org.apache.http.protocol.HttpContext;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * When a request reached each phase of its life, in
+ * {@link System#nanoTime()} terms.  The client marks the phases it goes
+ * through itself, and finds the timeline in the request's
+ * {@link HttpContext} to hand to the parts of the HTTP client that mark
+ * the rest: the connection pool, sockets and request executor of an
+ * {@link com.kolich.aws.transport.AwsConnectionPool}.  Phases nothing
+ * marked, like connecting over a pooled connection that was already
+ * open, are left unset.
+ * 
+ * A request sent more than once, say retried or redirected, is marked
+ * anew from {@link Phase#DISPATCHED} on each time, so the timeline shows
+ * its last attempt.  The timeline also counts how many times the HTTP
+ * client retried the request, and how many hedges were sent for it.
+ */
+public final class RequestTimeline {
+	
+	public static enum Phase {
+		/** Its arguments were checked. */
+		VALIDATED("validated"),
+		/** Its URI, headers and body were built. */
+		PREPARED("prepared"),
+		/** It was signed. */
+		SIGNED("signed"),
+		/** It made it through every interceptor, to the HTTP client. */
+		DISPATCHED("dispatched"),
+		/** It got a connection from the pool. */
+		LEASED("leased"),
+		/** A new connection was opened for it. */
+		CONNECTED("connected"),
+		/** The TLS handshake on that new connection finished. */
+		TLS_HANDSHAKEN("tls"),
+		/** It was written out, body and all. */
+		REQUEST_SENT("request sent"),
+		/** The response headers were read. */
+		FIRST_BYTE("first byte"),
+		/** The response body was read and closed. */
+		COMPLETED("completed");
+		private final String label_;
+		private Phase(final String label) {
+			label_ = label;
+		}
+		public String getLabel() {
+			return label_;
+		}
+	}
+	
+	/**
+	 * The {@link HttpContext} attribute the timeline of the request being
+	 * executed is kept in.
+	 */
+	public static final String CONTEXT_ATTRIBUTE =
+		RequestTimeline.class.getName();
+	
+	private static final Phase[] PHASES = Phase.values();
+	
+	private final long started_;
+	
+	/**
+	 * Zero for a phase not reached, which is safe, a request can't get
+	 * anywhere in no time at all.
+	 */
+	private final long[] marks_;
+	
+	private final AtomicInteger retries_;
+	private final AtomicInteger hedges_;
+	
+	public RequestTimeline() {
+		started_ = System.nanoTime();
+		marks_ = new long[PHASES.length];
+		retries_ = new AtomicInteger();
+		hedges_ = new AtomicInteger();
+	}
+	
+	public long getStarted() {
+		return started_;
+	}
+	
+	public void mark(final Phase phase) {
+		if(phase == Phase.DISPATCHED) {
+			for(int i = phase.ordinal() + 1; i < marks_.length; i++) {
+				marks_[i] = 0L;
+			}
+		}
+		marks_[phase.ordinal()] = System.nanoTime();
+	}
+	
+	/**
+	 * Marks the phase unless it's already been reached on this attempt.
+	 */
+	public void markFirst(final Phase phase) {
+		if(marks_[phase.ordinal()] == 0L) {
+			mark(phase);
+		}
+	}
+	
+	/**
+	 * Nanoseconds from the start of the request to the phase, or -1 if it
+	 * wasn't reached.
+	 */
+	public long getElapsed(final Phase phase) {
+		final long mark = marks_[phase.ordinal()];
+		return (mark == 0L) ? -1L : mark - started_;
+	}
+	
+	public int getRetries() {
+		return retries_.get();
+	}
+	
+	public int getHedges() {
+		return hedges_.get();
+	}
+	
+	/**
+	 * Marks the phase on the timeline in the context, if there is one.
+	 */
+	public static final void mark(final HttpContext context,
+		final Phase phase) {
+		final RequestTimeline timeline = get(context);
+		if(timeline != null) {
+			timeline.mark(phase);
+		}
+	}
+	
+	public static final void markFirst(final HttpContext context,
+		final Phase phase) {
+		final RequestTimeline timeline = get(context);
+		if(timeline != null) {
+			timeline.markFirst(phase);
+		}
+	}
+	
+	/**
+	 * Counts a retry of the request, by the HTTP client, on the timeline
+	 * in the context, if there is one.
+	 */
+	public static final void retried(final HttpContext context) {
+		final RequestTimeline timeline = get(context);
+		if(timeline != null) {
+			timeline.retries_.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Counts a hedge sent for the request on the timeline in the context,
+	 * if there is one.
+	 */
+	public static final void hedged(final HttpContext context) {
+		final RequestTimeline timeline = get(context);
+		if(timeline != null) {
+			timeline.hedges_.incrementAndGet();
+		}
+	}
+	
+	private static final RequestTimeline get(final HttpContext context) {
+		if(context == null) {
+			return null;
+		}
+		final Object timeline = context.getAttribute(CONTEXT_ATTRIBUTE);
+		return (timeline instanceof RequestTimeline) ?
+			(RequestTimeline)timeline : null;
+	}
+
+}
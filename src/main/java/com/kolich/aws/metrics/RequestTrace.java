@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.metrics;
+
+import com.kolich.aws.metrics.RequestTimeline.Phase;
+
+import java.util.Date;
+import java.util.Locale;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A snapshot of one finished request, kept by a {@link SlowRequestLog}.
+ * Holds no headers, so nothing secret ends up in a dump.
+ */
+public final class RequestTrace {
+	
+	private static final Phase[] PHASES = Phase.values();
+	
+	private final String serviceName_;
+	private final String operation_;
+	private final String requestLine_;
+	private final int status_;
+	private final long startedAtMs_;
+	private final long[] elapsed_;
+	private final long requestBytes_;
+	private final long responseBytes_;
+	private final int retries_;
+	
+	public RequestTrace(final String serviceName,
+                        final String operation,
+                        final String requestLine,
+                        final int status,
+                        final long startedAtMs,
+                        final RequestTimeline timeline,
+                        final long requestBytes,
+                        final long responseBytes,
+                        final int retries) {
+		serviceName_ = serviceName;
+		operation_ = operation;
+		requestLine_ = requestLine;
+		status_ = status;
+		startedAtMs_ = startedAtMs;
+		checkNotNull(timeline, "Timeline cannot be null.");
+		elapsed_ = new long[PHASES.length];
+		for(final Phase phase : PHASES) {
+			elapsed_[phase.ordinal()] = timeline.getElapsed(phase);
+		}
+		requestBytes_ = requestBytes;
+		responseBytes_ = responseBytes;
+		retries_ = retries;
+	}
+	
+	public String getServiceName() {
+		return serviceName_;
+	}
+	
+	public String getOperation() {
+		return operation_;
+	}
+	
+	/**
+	 * The method and URI of the request.
+	 */
+	public String getRequestLine() {
+		return requestLine_;
+	}
+	
+	/**
+	 * The HTTP status of the response, zero if there wasn't one.
+	 */
+	public int getStatus() {
+		return status_;
+	}
+	
+	/**
+	 * When the request started, in milliseconds since the epoch.
+	 */
+	public long getStartedAt() {
+		return startedAtMs_;
+	}
+	
+	/**
+	 * Nanoseconds from the start of the request to the phase, or -1 if it
+	 * wasn't reached.
+	 */
+	public long getElapsed(final Phase phase) {
+		return elapsed_[phase.ordinal()];
+	}
+	
+	/**
+	 * Nanoseconds from the start of the request to when it completed, or
+	 * failed.
+	 */
+	public long getDuration() {
+		return getElapsed(Phase.COMPLETED);
+	}
+	
+	public long getRequestBytes() {
+		return requestBytes_;
+	}
+	
+	public long getResponseBytes() {
+		return responseBytes_;
+	}
+	
+	public int getRetries() {
+		return retries_;
+	}
+	
+	/**
+	 * One line, with the time from the start of the request to every
+	 * phase it reached.
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder()
+			.append(new Date(startedAtMs_)).append(' ')
+			.append(serviceName_).append(':').append(operation_).append(' ')
+			.append(requestLine_).append(" -> ").append(status_)
+			.append(" in ").append(millis(getDuration()))
+			.append(" (");
+		String separator = "";
+		for(final Phase phase : PHASES) {
+			final long elapsed = elapsed_[phase.ordinal()];
+			if(elapsed >= 0L) {
+				sb.append(separator).append(phase.getLabel())
+					.append(" +").append(millis(elapsed));
+				separator = ", ";
+			}
+		}
+		return sb.append("), sent ").append(requestBytes_)
+			.append(" bytes, read ").append(responseBytes_)
+			.append(" bytes, retries ").append(retries_).toString();
+	}
+	
+	private static final String millis(final long nanos) {
+		return String.format(Locale.US, "%.1fms", nanos / 1000000d);
+	}
+
+}
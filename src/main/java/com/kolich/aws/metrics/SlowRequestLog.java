@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.metrics;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Keeps a detailed {@link RequestTrace} of the most recent requests that
+ * took longer than a threshold, in a fixed size ring buffer, so the slow
+ * ones can be looked at after the fact without tracing every request.
+ * Adding a trace is a single atomic increment and array write.
+ * 
+ * <pre>
+ * final SlowRequestLog slow = new SlowRequestLog(1000L, 100);
+ * s3.setSlowRequestLog(slow);
+ * ...
+ * slow.dump(System.err);
+ * </pre>
+ */
+public final class SlowRequestLog {
+	
+	private final long thresholdNanos_;
+	private final AtomicReferenceArray<RequestTrace> traces_;
+	private final AtomicLong added_;
+	
+	/**
+	 * @param thresholdMs requests that take at least this long are kept
+	 * @param capacity how many of the most recent slow requests to keep
+	 */
+	public SlowRequestLog(final long thresholdMs,
+                          final int capacity) {
+		checkArgument(thresholdMs >= 0L, "Threshold cannot be negative.");
+		checkArgument(capacity > 0, "Capacity must be greater than zero.");
+		thresholdNanos_ = MILLISECONDS.toNanos(thresholdMs);
+		traces_ = new AtomicReferenceArray<RequestTrace>(capacity);
+		added_ = new AtomicLong();
+	}
+	
+	/**
+	 * True if a request that took this long should be kept, checked
+	 * before going to the trouble of building a trace for it.
+	 */
+	public boolean isSlow(final long durationNanos) {
+		return durationNanos >= thresholdNanos_;
+	}
+	
+	public void add(final RequestTrace trace) {
+		checkNotNull(trace, "Trace cannot be null.");
+		traces_.set((int)(added_.getAndIncrement() % traces_.length()),
+			trace);
+	}
+	
+	/**
+	 * The slow requests kept, most recent first.
+	 */
+	public List<RequestTrace> getTraces() {
+		final ImmutableList.Builder<RequestTrace> traces =
+			ImmutableList.builder();
+		final long added = added_.get();
+		final int length = traces_.length();
+		for(long i = added - 1L; i >= 0L && i >= added - length; i--) {
+			final RequestTrace trace = traces_.get((int)(i % length));
+			if(trace != null) {
+				traces.add(trace);
+			}
+		}
+		return traces.build();
+	}
+	
+	/**
+	 * How many slow requests were seen in all, kept or not.
+	 */
+	public long getSlowCount() {
+		return added_.get();
+	}
+	
+	/**
+	 * Writes every slow request kept, most recent first, one per line.
+	 */
+	public void dump(final Appendable out) throws IOException {
+		checkNotNull(out, "Output cannot be null.");
+		for(final RequestTrace trace : getTraces()) {
+			out.append(trace.toString()).append(System.lineSeparator());
+		}
+	}
+
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.metrics.jfr;
+
+import com.kolich.aws.metrics.jfr.DynamicEventType.Field;
+
+/**
+ * Emits JDK Flight Recorder events for AWS requests, so that a recording
+ * can line AWS latency up against GC pauses, lock contention and
+ * everything else it captures, without any other metrics pipeline.
+ * Clients emit them on their own whenever a recording that wants them
+ * is running, see {@link #isRecording()}, and there's nothing to set up.
+ * 
+ * Three events, all in the "AWS" category:
+ * <ul>
+ * <li>com.kolich.aws.Request, one per request: service, operation,
+ * bucket or queue, status, attempt, bytes each way, its duration and
+ * its time to first byte.</li>
+ * <li>com.kolich.aws.Sign, the time spent signing a request.</li>
+ * <li>com.kolich.aws.Unmarshal, the time from the first byte of a
+ * response to when it was fully read and unmarshalled.</li>
+ * </ul>
+ * 
+ * This library is built for Java 7, so the event types are defined at
+ * runtime through jdk.jfr.EventFactory, by reflection, on JVMs that have
+ * the JFR API (11 and later, and 8u272 and later).  Anywhere else this
+ * does nothing at all.  A request event is begun when its request
+ * starts, see {@link #beginRequest()}, and committed once it is over,
+ * so its start time and duration in a recording are the request's own.
+ * Sign and unmarshal events are committed after the fact, their
+ * durations are in their fields.
+ */
+public final class AwsFlightRecorder {
+	
+	private static final String TIMESPAN = "Timespan";
+	private static final String NANOSECONDS = "NANOSECONDS";
+	private static final String DATA_AMOUNT = "DataAmount";
+	private static final String BYTES = "BYTES";
+	
+	/**
+	 * Defined the first time anyone asks, null if this JVM has no JFR.
+	 */
+	private static final class EventsHolder {
+		private static final DynamicEventType request__;
+		private static final DynamicEventType sign__;
+		private static final DynamicEventType unmarshal__;
+		static {
+			DynamicEventType request = null, sign = null, unmarshal = null;
+			try {
+				request = DynamicEventType.create("com.kolich.aws.Request",
+					"AWS Request", "An AWS API request",
+					new Field("service", "Service", String.class),
+					new Field("operation", "Operation", String.class),
+					new Field("resource", "Bucket or Queue", String.class),
+					new Field("status", "Status", int.class),
+					new Field("attempt", "Attempt", int.class),
+					new Field("requestBytes", "Request Bytes", long.class,
+						DATA_AMOUNT, BYTES),
+					new Field("responseBytes", "Response Bytes", long.class,
+						DATA_AMOUNT, BYTES),
+					new Field("requestDuration", "Duration", long.class,
+						TIMESPAN, NANOSECONDS),
+					new Field("timeToFirstByte", "Time to First Byte",
+						long.class, TIMESPAN, NANOSECONDS));
+				sign = DynamicEventType.create("com.kolich.aws.Sign",
+					"AWS Sign", "Signing an AWS API request",
+					new Field("service", "Service", String.class),
+					new Field("operation", "Operation", String.class),
+					new Field("signDuration", "Duration", long.class,
+						TIMESPAN, NANOSECONDS));
+				unmarshal = DynamicEventType.create("com.kolich.aws.Unmarshal",
+					"AWS Unmarshal", "Reading and unmarshalling an AWS " +
+					"API response",
+					new Field("service", "Service", String.class),
+					new Field("operation", "Operation", String.class),
+					new Field("responseBytes", "Response Bytes", long.class,
+						DATA_AMOUNT, BYTES),
+					new Field("unmarshalDuration", "Duration", long.class,
+						TIMESPAN, NANOSECONDS));
+			} catch (Throwable t) {
+				// No JFR here, or not one we know how to talk to.
+				request = sign = unmarshal = null;
+			}
+			request__ = request;
+			sign__ = sign;
+			unmarshal__ = unmarshal;
+		}
+	}
+	
+	private AwsFlightRecorder() {}
+	
+	/**
+	 * True if this JVM has the JFR API.
+	 */
+	public static final boolean isAvailable() {
+		return EventsHolder.request__ != null;
+	}
+	
+	/**
+	 * True if a recording that wants request events is running, checked
+	 * before going to the trouble of measuring a request.
+	 */
+	public static final boolean isRecording() {
+		return EventsHolder.request__ != null &&
+			EventsHolder.request__.isEnabled();
+	}
+	
+	/**
+	 * Starts timing a request event, returning it to be passed to
+	 * {@link #recordRequest} when the request is over, or null if no
+	 * recording wants it.
+	 */
+	public static final Object beginRequest() {
+		final DynamicEventType request = EventsHolder.request__;
+		return (request != null && request.isEnabled()) ?
+			request.begin() : null;
+	}
+	
+	/**
+	 * @param event the event from {@link #beginRequest()}, or null to
+	 * create one now
+	 * @param resource the S3 bucket, or the path of the request, which
+	 * for SQS names the queue
+	 * @param attempt how many times the request was sent
+	 * @param timeToFirstByteNanos -1 if not known
+	 */
+	public static final void recordRequest(final Object event,
+                                           final String serviceName,
+                                           final String operation,
+                                           final String resource,
+                                           final int status,
+                                           final int attempt,
+                                           final long requestBytes,
+                                           final long responseBytes,
+                                           final long durationNanos,
+                                           final long timeToFirstByteNanos) {
+		final DynamicEventType request = EventsHolder.request__;
+		if(request != null) {
+			request.commitBegun(event, serviceName, operation, resource,
+				status, attempt, requestBytes, responseBytes, durationNanos,
+				timeToFirstByteNanos);
+		}
+	}
+	
+	public static final void recordSign(final String serviceName,
+                                        final String operation,
+                                        final long durationNanos) {
+		final DynamicEventType sign = EventsHolder.sign__;
+		if(sign != null && sign.isEnabled()) {
+			sign.commit(serviceName, operation, durationNanos);
+		}
+	}
+	
+	public static final void recordUnmarshal(final String serviceName,
+                                             final String operation,
+                                             final long responseBytes,
+                                             final long durationNanos) {
+		final DynamicEventType unmarshal = EventsHolder.unmarshal__;
+		if(unmarshal != null && unmarshal.isEnabled()) {
+			unmarshal.commit(serviceName, operation, responseBytes,
+				durationNanos);
+		}
+	}
+
+}
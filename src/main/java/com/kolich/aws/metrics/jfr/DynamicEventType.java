@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.metrics.jfr;
+
+import com.google.common.collect.Lists;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A JDK Flight Recorder event type defined at runtime, through
+ * jdk.jfr.EventFactory, entirely by reflection.  This library is built
+ * for Java 7, so it can't extend jdk.jfr.Event, and JVMs without the JFR
+ * API simply never get past {@link #create(String, String, String, Field...)}.
+ */
+final class DynamicEventType {
+	
+	private static final String CATEGORY = "AWS";
+	
+	/**
+	 * A field of the event, with the unit its value is in, if any.
+	 */
+	static final class Field {
+		private final String name_;
+		private final String label_;
+		private final Class<?> type_;
+		private final String unitAnnotation_;
+		private final String unit_;
+		Field(final String name, final String label, final Class<?> type,
+			final String unitAnnotation, final String unit) {
+			name_ = name;
+			label_ = label;
+			type_ = type;
+			unitAnnotation_ = unitAnnotation;
+			unit_ = unit;
+		}
+		Field(final String name, final String label, final Class<?> type) {
+			this(name, label, type, null, null);
+		}
+	}
+	
+	private final Object eventType_;
+	private final Method isEnabled_;
+	private final Object factory_;
+	private final Method newEvent_;
+	private final Method set_;
+	private final Method begin_;
+	private final Method commit_;
+	
+	private DynamicEventType(final Object factory) throws Exception {
+		factory_ = factory;
+		newEvent_ = factory.getClass().getMethod("newEvent");
+		eventType_ = factory.getClass().getMethod("getEventType")
+			.invoke(factory);
+		isEnabled_ = eventType_.getClass().getMethod("isEnabled");
+		final Class<?> event = Class.forName("jdk.jfr.Event");
+		set_ = event.getMethod("set", int.class, Object.class);
+		begin_ = event.getMethod("begin");
+		commit_ = event.getMethod("commit");
+	}
+	
+	/**
+	 * True if a recording that wants this event is running.
+	 */
+	boolean isEnabled() {
+		try {
+			return (Boolean)isEnabled_.invoke(eventType_);
+		} catch (Exception e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Creates an event and starts its clock, for
+	 * {@link #commitBegun(Object, Object...)} to commit once what it times
+	 * is over.  Returns null if the event could not be created.
+	 */
+	Object begin() {
+		try {
+			final Object event = newEvent_.invoke(factory_);
+			begin_.invoke(event);
+			return event;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Commits an event with the given values, in the order the fields
+	 * were defined in.  Its start time and duration are those of the
+	 * commit itself.
+	 */
+	void commit(final Object... values) {
+		commitBegun(null, values);
+	}
+	
+	/**
+	 * Commits an event from {@link #begin()} with the given values, in
+	 * the order the fields were defined in, ending its clock.  A null
+	 * event is created on the spot.
+	 */
+	void commitBegun(final Object begun, final Object... values) {
+		try {
+			final Object event = (begun != null) ? begun :
+				newEvent_.invoke(factory_);
+			for(int i = 0; i < values.length; i++) {
+				set_.invoke(event, i, values[i]);
+			}
+			commit_.invoke(event);
+		} catch (Exception e) {
+			// Losing an event is better than failing the request.
+		}
+	}
+	
+	/**
+	 * Defines the event type, throws if this JVM has no JFR API.
+	 */
+	static DynamicEventType create(final String name, final String label,
+		final String description, final Field... fields) throws Exception {
+		final Class<?> annotationElement =
+			Class.forName("jdk.jfr.AnnotationElement");
+		final Constructor<?> newAnnotation = annotationElement.getConstructor(
+			Class.class, Object.class);
+		final Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+		final Constructor<?> newValue = valueDescriptor.getConstructor(
+			Class.class, String.class, List.class);
+		final List<Object> annotations = Lists.newArrayList(
+			newAnnotation.newInstance(annotation("Name"), name),
+			newAnnotation.newInstance(annotation("Label"), label),
+			newAnnotation.newInstance(annotation("Description"), description),
+			newAnnotation.newInstance(annotation("Category"),
+				new String[]{CATEGORY}));
+		final List<Object> values = Lists.newArrayList();
+		for(final Field field : fields) {
+			final List<Object> fieldAnnotations = Lists.newArrayList(
+				newAnnotation.newInstance(annotation("Label"), field.label_));
+			if(field.unitAnnotation_ != null) {
+				fieldAnnotations.add(newAnnotation.newInstance(
+					annotation(field.unitAnnotation_), field.unit_));
+			}
+			values.add(newValue.newInstance(field.type_, field.name_,
+				Collections.unmodifiableList(fieldAnnotations)));
+		}
+		final Object factory = Class.forName("jdk.jfr.EventFactory")
+			.getMethod("create", List.class, List.class)
+			.invoke(null, annotations, values);
+		return new DynamicEventType(factory);
+	}
+	
+	private static final Class<?> annotation(final String name)
+		throws ClassNotFoundException {
+		return Class.forName("jdk.jfr." + name);
+	}
+
+}
@@ -26,16 +26,58 @@
 
 package com.kolich.aws.services;
 
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.ObjectArrays;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.kolich.aws.KolichAwsException;
+import com.kolich.aws.concurrent.BoundedExecutor;
+import com.kolich.aws.concurrent.Deadline;
+import com.kolich.aws.management.AwsClientMonitor;
+import com.kolich.aws.metrics.AwsMetrics;
+import com.kolich.aws.metrics.NoOpAwsMetrics;
+import com.kolich.aws.metrics.RequestTimeline;
+import com.kolich.aws.metrics.RequestTimeline.Phase;
+import com.kolich.aws.metrics.SlowRequestLog;
+import com.kolich.aws.metrics.jfr.AwsFlightRecorder;
+import com.kolich.aws.transport.AwsConnectionPool;
+import com.kolich.aws.transport.AwsEndpoint;
 import com.kolich.aws.transport.AwsHttpRequest;
+import com.kolich.aws.transport.AwsRequestChain;
+import com.kolich.aws.transport.AwsRequestContext;
+import com.kolich.aws.transport.AwsRequestInterceptor;
+import com.kolich.aws.transport.DeadlineExceededException;
+import com.kolich.aws.transport.DefaultEndpointResolver;
+import com.kolich.aws.transport.EndpointResolver;
+import com.kolich.aws.transport.ForwardingHttpClient;
+import com.kolich.common.functional.option.None;
+import com.kolich.common.functional.option.Option;
+import com.kolich.http.common.response.HttpFailure;
 import com.kolich.http.helpers.definitions.OrHttpFailureClosure;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
 
+import javax.management.ObjectName;
+import java.io.IOException;
 import java.net.URI;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.util.concurrent.Futures.allAsList;
+import static com.google.common.util.concurrent.Futures.transform;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 public abstract class AbstractAwsService {
 	
@@ -46,15 +88,86 @@ public abstract class AbstractAwsService {
 	protected static final String QUERY_STRING = "?";
 	protected static final String DOT_STRING = ".";
 	
+	private static final URI ROOT_URI = URI.create(SLASH_STRING);
+	
+	private static final AwsRequestInterceptor[] NO_INTERCEPTORS =
+		new AwsRequestInterceptor[0];
+	
 	private final AbstractAwsSigner signer_;
-	private final URI apiEndpoint_;
+	private final EndpointResolver endpointResolver_;
+	
+	/**
+	 * Copied on write, interceptors are added rarely and read on
+	 * every request.
+	 */
+	private volatile AwsRequestInterceptor[] interceptors_;
+	
+	private volatile boolean warm_;
+	
+	private volatile AwsMetrics metrics_;
+	private volatile SlowRequestLog slowRequestLog_;
+	
+	private volatile RequestConfig defaultRequestConfig_;
+	
+	/**
+	 * Non-null while this client is registered over JMX.
+	 */
+	private AwsClientMonitor monitor_;
 	
 	protected abstract class AwsBaseHttpClosure<S> extends OrHttpFailureClosure<S> {
+		private final InterceptingHttpClient client_;
 		private final int expectStatus_;
+		private final String resource_;
+		public AwsBaseHttpClosure(final HttpClient client,
+                                  final int expectStatus,
+                                  final String resource) {
+			this(new InterceptingHttpClient(client), expectStatus, resource);
+		}
 		public AwsBaseHttpClosure(final HttpClient client,
                                   final int expectStatus) {
+			this(client, expectStatus, null);
+		}
+		private AwsBaseHttpClosure(final InterceptingHttpClient client,
+                                   final int expectStatus,
+                                   final String resource) {
 			super(client);
+			client_ = client;
 			expectStatus_ = expectStatus;
+			resource_ = resource;
+		}
+		@Override
+		public final void before(final HttpRequestBase request) throws Exception {
+			final AwsMetrics metrics = metrics_;
+			final SlowRequestLog slowRequestLog = slowRequestLog_;
+			final boolean flightRecording = AwsFlightRecorder.isRecording();
+			final RequestMeter meter;
+			if(metrics != NoOpAwsMetrics.INSTANCE || slowRequestLog != null ||
+				flightRecording) {
+				meter = new RequestMeter(metrics, slowRequestLog,
+					flightRecording, getServiceName());
+				client_.setMeter(meter);
+			} else {
+				meter = null;
+			}
+			final AwsHttpRequest wrapped = new AwsHttpRequest(request, resource_);
+			validate();
+			mark(meter, Phase.VALIDATED);
+			prepare(wrapped);
+			mark(meter, Phase.PREPARED);
+			signRequest(wrapped);
+			mark(meter, Phase.SIGNED);
+			client_.setRequest(wrapped);
+		}
+		private void mark(final RequestMeter meter, final Phase phase) {
+			if(meter != null) {
+				meter.getTimeline().mark(phase);
+			}
+		}
+		public void validate() throws Exception {
+			// Default, nothing.
+		}
+		public void prepare(final AwsHttpRequest request) throws Exception {
+			// Default, nothing.
 		}
 		@Override
 		public boolean check(final HttpResponse response,
@@ -63,26 +176,420 @@ public abstract class AbstractAwsService {
 		}
 	}
 	
+	/**
+	 * Runs every request through the service's interceptors on its way
+	 * to the real client.  One is created for each closure, and so only
+	 * ever executes the one request its closure prepared.
+	 */
+	private final class InterceptingHttpClient extends ForwardingHttpClient {
+		private AwsHttpRequest request_;
+		private RequestMeter meter_;
+		private InterceptingHttpClient(final HttpClient delegate) {
+			super(delegate);
+		}
+		private void setRequest(final AwsHttpRequest request) {
+			request_ = request;
+		}
+		private void setMeter(final RequestMeter meter) {
+			meter_ = meter;
+		}
+		@Override
+		public HttpResponse execute(final HttpUriRequest request)
+			throws IOException {
+			return execute(request, (HttpContext)null);
+		}
+		@Override
+		public HttpResponse execute(final HttpUriRequest request,
+                                    final HttpContext context)
+			throws IOException {
+			final RequestMeter meter = meter_;
+			if(meter == null) {
+				return dispatch(request, context, null);
+			}
+			final String operation = getOperation(request);
+			meter.onRequest(request, operation,
+				(request_ != null) ? request_.getResource() : null);
+			// The connection pool finds the timeline in the context.
+			final HttpContext timed = (context != null) ? context :
+				new BasicHttpContext();
+			timed.setAttribute(RequestTimeline.CONTEXT_ATTRIBUTE,
+				meter.getTimeline());
+			try {
+				return meter.onResponse(dispatch(request, timed, operation));
+			} catch (IOException | RuntimeException e) {
+				meter.onFailure();
+				throw e;
+			}
+		}
+		private HttpResponse dispatch(final HttpUriRequest request,
+			final HttpContext context, final String operation)
+			throws IOException {
+			final Deadline deadline = Deadline.current();
+			if(deadline != null && deadline.isExpired()) {
+				throw new DeadlineExceededException("Deadline passed " +
+					"before request was sent: " + request.getRequestLine());
+			}
+			final AwsRequestInterceptor[] interceptors = interceptors_;
+			if(interceptors.length == 0) {
+				return send(request, context);
+			}
+			final AwsRequestContext awsContext = new AwsRequestContext(
+				getServiceName(),
+				(operation != null) ? operation : getOperation(request),
+				getApiEndpointAuthority(), request.getURI().getAuthority(),
+				(request_ != null) ? request_.getResource() : null, context);
+			return new Chain(interceptors, 0, request, awsContext).proceed();
+		}
+		private String getOperation(final HttpUriRequest request) {
+			return (request_ != null) ? getOperationName(request_) :
+				request.getMethod();
+		}
+		/**
+		 * Sends the request, with its timeouts cut down to whatever is
+		 * left of the calling thread's deadline, if it has one.  This is
+		 * done as late as possible, so that any time spent queueing in an
+		 * interceptor comes out of the budget.  Only the first attempt is
+		 * capped here; retries made inside the client are only held to
+		 * the deadline if it is an {@link AwsConnectionPool} client, which
+		 * caps each retry again.
+		 */
+		private HttpResponse send(final HttpUriRequest request,
+			final HttpContext context) throws IOException {
+			if(meter_ != null) {
+				meter_.getTimeline().mark(Phase.DISPATCHED);
+			}
+			final Deadline deadline = Deadline.current();
+			if(deadline != null) {
+				final long remaining = deadline.remaining(MILLISECONDS);
+				if(remaining <= 0L) {
+					throw new DeadlineExceededException("Deadline passed " +
+						"before request was sent: " + request.getRequestLine());
+				}
+				if(request instanceof HttpRequestBase) {
+					final HttpRequestBase base = (HttpRequestBase)request;
+					final int timeout = (int)Math.min(Integer.MAX_VALUE,
+						remaining);
+					// Start from whatever config the client would have used,
+					// so nothing but the timeouts changes, and those only
+					// ever go down.
+					final RequestConfig config = getRequestConfig(base, context);
+					base.setConfig(RequestConfig.copy(config)
+						.setConnectionRequestTimeout(lower(
+							config.getConnectionRequestTimeout(), timeout))
+						.setConnectTimeout(lower(config.getConnectTimeout(),
+							timeout))
+						.setSocketTimeout(lower(config.getSocketTimeout(),
+							timeout))
+						.build());
+				}
+			}
+			return getDelegate().execute(request, context);
+		}
+		/**
+		 * The config the client will execute the request with, looked up
+		 * the way the client does: the request's own, else the one in its
+		 * context, else the client's default.
+		 */
+		private RequestConfig getRequestConfig(final HttpRequestBase request,
+			final HttpContext context) {
+			RequestConfig config = request.getConfig();
+			if(config == null && context != null) {
+				// Not HttpClientContext.getRequestConfig(), which falls back
+				// to RequestConfig.DEFAULT rather than the client's default.
+				config = (RequestConfig)context.getAttribute(
+					HttpClientContext.REQUEST_CONFIG);
+			}
+			return (config != null) ? config : defaultRequestConfig_;
+		}
+		private final class Chain implements AwsRequestChain {
+			private final AwsRequestInterceptor[] interceptors_;
+			private final int index_;
+			private final HttpUriRequest request_;
+			private final AwsRequestContext context_;
+			private Chain(final AwsRequestInterceptor[] interceptors,
+                          final int index,
+                          final HttpUriRequest request,
+                          final AwsRequestContext context) {
+				interceptors_ = interceptors;
+				index_ = index;
+				request_ = request;
+				context_ = context;
+			}
+			@Override
+			public HttpUriRequest getRequest() {
+				return request_;
+			}
+			@Override
+			public AwsRequestContext getContext() {
+				return context_;
+			}
+			@Override
+			public HttpResponse proceed(final HttpUriRequest request)
+				throws IOException {
+				checkNotNull(request, "Request cannot be null.");
+				if(index_ < interceptors_.length) {
+					return interceptors_[index_].intercept(new Chain(
+						interceptors_, index_ + 1, request, context_));
+				}
+				return send(request, context_.getHttpContext());
+			}
+			@Override
+			public HttpResponse proceed(final HttpUriRequest request,
+				final HttpContext httpContext) throws IOException {
+				return new Chain(interceptors_, index_, request_,
+					new AwsRequestContext(context_.getServiceName(),
+						context_.getOperation(), context_.getEndpoint(),
+						context_.getAuthority(), context_.getResource(),
+						httpContext)).proceed(request);
+			}
+			@Override
+			public HttpResponse proceed() throws IOException {
+				return proceed(request_);
+			}
+		}
+	}
+	
+	/**
+	 * The lower of an existing timeout, where zero or less means none,
+	 * and the given one.
+	 */
+	private static final int lower(final int existing, final int timeout) {
+		return (existing > 0) ? Math.min(existing, timeout) : timeout;
+	}
+	
 	public AbstractAwsService(final AbstractAwsSigner signer,
-                              final String apiEndpoint) {
+                              final EndpointResolver endpointResolver) {
         signer_ = checkNotNull(signer, "The signer cannot be null!");
-        apiEndpoint_ = getApiEndpoint(checkNotNull(apiEndpoint, "The service " +
-            "client API endpoint cannot be null!"));
+        endpointResolver_ = checkNotNull(endpointResolver, "The service " +
+            "client endpoint resolver cannot be null!");
+        interceptors_ = NO_INTERCEPTORS;
+        warm_ = false;
+        metrics_ = NoOpAwsMetrics.INSTANCE;
+        defaultRequestConfig_ = RequestConfig.DEFAULT;
+	}
+	
+	public AbstractAwsService(final AbstractAwsSigner signer,
+                              final String apiEndpoint) {
+		this(signer, new DefaultEndpointResolver(checkNotNull(apiEndpoint,
+			"The service client API endpoint cannot be null!")));
+	}
+	
+	/**
+	 * The short name of this service, for example "s3" or "sqs", as
+	 * reported to interceptors.
+	 */
+	protected abstract String getServiceName();
+	
+	/**
+	 * The name of the API operation a signed request performs, for example
+	 * "GetObject" or "SendMessage", as reported to interceptors.  Defaults
+	 * to the HTTP method.
+	 */
+	protected String getOperationName(final AwsHttpRequest request) {
+		return request.getMethod();
+	}
+	
+	/**
+	 * Adds an interceptor that every request this client sends from now on
+	 * will pass through.  Interceptors run in the order they were added,
+	 * each one wrapping all of the ones added after it.
+	 */
+	public final synchronized void addInterceptor(final AwsRequestInterceptor interceptor) {
+		checkNotNull(interceptor, "Interceptor cannot be null.");
+		interceptors_ = ObjectArrays.concat(interceptors_, interceptor);
+	}
+	
+	public final synchronized void removeInterceptor(final AwsRequestInterceptor interceptor) {
+		final List<AwsRequestInterceptor> remaining =
+			Lists.newArrayList(interceptors_);
+		remaining.remove(interceptor);
+		interceptors_ = remaining.toArray(NO_INTERCEPTORS);
 	}
 	
-	private final URI getApiEndpoint(String apiEndPoint) {
-		// If the communication endpoint does not start with https://
-		// then we assume that we need to add it.
-		if(!apiEndPoint.startsWith(HTTPS)) {
-			apiEndPoint = HTTPS + apiEndPoint;
-		} else {
-			// Our communication endpoint can only be HTTPS.
-			throw new KolichAwsException("Oops! AWS endpoints must start " +
-				"with " + HTTPS + " but you gave me something else: " +
-                apiEndPoint);
+	public final List<AwsRequestInterceptor> getInterceptors() {
+		return ImmutableList.copyOf(interceptors_);
+	}
+	
+	/**
+	 * Sets where a record of every request this client sends goes, use
+	 * {@link NoOpAwsMetrics#INSTANCE} to stop measuring altogether.
+	 */
+	public final void setMetrics(final AwsMetrics metrics) {
+		metrics_ = checkNotNull(metrics, "Metrics cannot be null.");
+	}
+	
+	public final AwsMetrics getMetrics() {
+		return metrics_;
+	}
+	
+	/**
+	 * Sets where a detailed trace of every request that takes longer
+	 * than its threshold goes, null for none.
+	 */
+	public final void setSlowRequestLog(final SlowRequestLog slowRequestLog) {
+		slowRequestLog_ = slowRequestLog;
+	}
+	
+	public final SlowRequestLog getSlowRequestLog() {
+		return slowRequestLog_;
+	}
+	
+	/**
+	 * Tells this client the default {@link RequestConfig} its underlying
+	 * {@link HttpClient} was built with.  A request sent under a
+	 * {@link Deadline} has its timeouts lowered to fit what is left of it,
+	 * starting from this config unless the request or its context has
+	 * its own, so set it if the client's default is not
+	 * {@link RequestConfig#DEFAULT}.
+	 */
+	public final void setDefaultRequestConfig(final RequestConfig config) {
+		defaultRequestConfig_ = checkNotNull(config, "Default request " +
+			"config cannot be null.");
+	}
+	
+	public final RequestConfig getDefaultRequestConfig() {
+		return defaultRequestConfig_;
+	}
+	
+	/**
+	 * Registers an {@link com.kolich.aws.management.AwsClientMXBean}
+	 * exposing this client's live state and runtime limits with the
+	 * platform MBean server, returning the name it was registered under.
+	 * Pass the pool this client leases connections from to include its
+	 * state too, or null.
+	 * 
+	 * Clients are never closed, so this is opt-in, and the registration
+	 * keeps this client reachable until {@link #unregisterMBean()}.
+	 * Registering again returns the existing name.
+	 */
+	public final synchronized ObjectName registerMBean(final AwsConnectionPool pool) {
+		if(monitor_ != null) {
+			return monitor_.getObjectName();
 		}
-		// Create our endpoint URI.
-		return URI.create(apiEndPoint);
+		final AwsClientMonitor monitor = new AwsClientMonitor(this,
+			getServiceName(), getApiEndpointAuthority(), pool);
+		monitor.register();
+		addInterceptor(monitor);
+		monitor_ = monitor;
+		return monitor.getObjectName();
+	}
+	
+	public final ObjectName registerMBean() {
+		return registerMBean(null);
+	}
+	
+	public final synchronized void unregisterMBean() {
+		if(monitor_ != null) {
+			removeInterceptor(monitor_);
+			monitor_.unregister();
+			monitor_ = null;
+		}
+	}
+	
+	/**
+	 * Sends a single cheap, signed, read-only request, for example listing
+	 * buckets or queues, used to warm this client up.
+	 */
+	protected abstract Option<HttpFailure> warmUpRequest();
+	
+	/**
+	 * Warms this client up in the background, by sending the given number
+	 * of cheap signed requests to its endpoint all at once.  That opens
+	 * (up to) as many connections and does their TLS handshakes, grows
+	 * the connection pool, and loads and runs the signing and response
+	 * parsing code, so the first real requests pay for none of it.
+	 * 
+	 * The returned future completes once every request has come back,
+	 * with the first failure if any of them failed.
+	 */
+	public final ListenableFuture<Option<HttpFailure>> warmUpAsync(final int connections) {
+		return warmUpAsync(connections, new Callable<Option<HttpFailure>>() {
+			@Override
+			public Option<HttpFailure> call() throws Exception {
+				return warmUpRequest();
+			}
+		});
+	}
+	
+	/**
+	 * Warms this client up with the given request instead of the default
+	 * {@link #warmUpRequest()}, for services whose requests are routed
+	 * somewhere other than the endpoint itself.
+	 */
+	protected final ListenableFuture<Option<HttpFailure>> warmUpAsync(final int connections,
+                                                                      final Callable<Option<HttpFailure>> request) {
+		checkArgument(connections > 0, "Connections must be greater " +
+			"than zero.");
+		checkNotNull(request, "Warm up request cannot be null.");
+		final ListeningExecutorService executor =
+			BoundedExecutor.getDefaultExecutor();
+		// Released once every request is ready to go, so they overlap and
+		// each one needs a connection of its own.
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<ListenableFuture<Option<HttpFailure>>> requests =
+			Lists.newArrayListWithCapacity(connections);
+		for(int i = 0; i < connections; i++) {
+			requests.add(executor.submit(Deadline.propagate(
+				new Callable<Option<HttpFailure>>() {
+				@Override
+				public Option<HttpFailure> call() throws Exception {
+					start.await();
+					return request.call();
+				}
+			})));
+		}
+		start.countDown();
+		return transform(allAsList(requests),
+			new Function<List<Option<HttpFailure>>,Option<HttpFailure>>() {
+			@Override
+			public Option<HttpFailure> apply(final List<Option<HttpFailure>> results) {
+				for(final Option<HttpFailure> result : results) {
+					if(result.isSome()) {
+						return result;
+					}
+				}
+				warm_ = true;
+				return None.<HttpFailure>none();
+			}
+		});
+	}
+	
+	/**
+	 * Warms this client up, see {@link #warmUpAsync(int)}, blocking until
+	 * it is warm.
+	 */
+	public final Option<HttpFailure> warmUp(final int connections) {
+		return awaitWarmUp(warmUpAsync(connections));
+	}
+	
+	/**
+	 * Blocks until the given warm up, from {@link #warmUpAsync}, is done.
+	 */
+	protected final Option<HttpFailure> awaitWarmUp(final ListenableFuture<Option<HttpFailure>> warmUp) {
+		try {
+			return warmUp.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KolichAwsException("Interrupted while warming up " +
+				getServiceName() + " client.", e);
+		} catch (ExecutionException e) {
+			throw new KolichAwsException("Failed to warm up " +
+				getServiceName() + " client.", e.getCause());
+		}
+	}
+	
+	/**
+	 * True once a warm up has completed without any failures.
+	 */
+	public final boolean isWarm() {
+		return warm_;
+	}
+	
+	/**
+	 * The authority (host and port, if any) of this service's endpoint.
+	 */
+	protected final String getApiEndpointAuthority() {
+		return endpointResolver_.resolve(null).getAuthority();
 	}
 	
 	protected final void signRequest(final AwsHttpRequest request)
@@ -95,86 +602,21 @@ public abstract class AbstractAwsService {
 	}
 	
 	private URI getFinalEndpoint(final AwsHttpRequest request) {
-		URI endPointURI = request.getURI();
-		// If the request URI already starts with https:// then we don't
-		// have to build a full endpoint URL anymore since it's already
-		// been provided.  This assumes the caller knows what they are
-		// doing and have built a complete and proper URL for AWS.
-		if(!isComplete(endPointURI)) {
-			endPointURI = URI.create(
-				// AWS endpoint URL's always start with https://	
-				HTTPS +
-				// The sub-domain is most often how we refer to S3 buckets.
-				// For example, on a bucket named "foo" the subdomain would
-				// be "foo" and the resulting endpoint we actually send
-				// the request to is "foo.s3.amazonaws.com".
-				((request.getResource() != null) ?
-					// If there is a "resource" (usually a bucket name to
-					// represent a sub-domain, then append it followed by
-					// a single dot.
-					request.getResource() + DOT_STRING :
-					// If the request has no resource, usually for all AWS
-					// services other than S3, then just append an empty
-					// String.
-					EMPTY_STRING) +
-				// Returns the decoded authority component of this endpoint URI.
-				// The authority of a URI is basically the hostname, otherwise
-				// called the endpoint here.
-				apiEndpoint_.getAuthority() +
-				// Returns the decoded path component of the request URI.
-				// The path of a URI is the piece of the URI after the hostname,
-				// not including the query parameters.
-				getPath(endPointURI) +
-				// Returns the decoded query component of this URI.
-				// The query parameters, if any.
-				getQuery(endPointURI));
-		}
-		return endPointURI;
-	}
-	
-	/**
-	 * Given a {@link URI} returns the path component of that
-	 * {@link URI}.  The path of a URI is the piece of the URI after
-	 * the hostname, not including the query parameters.  If the URI
-	 * is null, a single "/" is returned.  If the URI is not null, but
-	 * the path is empty, an "" empty string is returned.
-	 * @param uri the URI to extract the path from
-	 * @return
-	 */
-	private static final String getPath(final URI uri) {
-		if(uri == null) {
-			return SLASH_STRING;
-		} else {
-			final String path = uri.getRawPath();
-			return (path == null) ? EMPTY_STRING : path;
-		}
-	}
-	
-	/**
-	 * Given a {@link URI} returns the query string component of that
-	 * {@link URI}.  The query of a URI is the piece after the "?". If the
-	 * URI is null, an "" empty string is returned.  If the URI is not null,
-	 * but the query is empty, an "" empty string is returned.
-	 * @param uri the URI to extract the query from
-	 * @return
-	 */
-	private static final String getQuery(final URI uri) {
-		if(uri == null) {
-			return EMPTY_STRING;
-		} else {
-			final String query = uri.getRawQuery();
-			return (query == null) ? EMPTY_STRING : QUERY_STRING + query;
-		}
-	}
-	
-	/**
-	 * Checks if the given URI is non-null, and if it's a complete endpoint
-	 * URI that already starts with "https://".
-	 * @param uri
-	 * @return
-	 */
-	private static final boolean isComplete(final URI uri) {
-		return uri != null && uri.toString().startsWith(HTTPS);
+		final URI uri = request.getURI();
+		// If the request URI is already absolute then we don't have to
+		// build a full endpoint URL, since it's already been provided.
+		// This assumes the caller knows what they are doing and has built
+		// a complete and proper URL for AWS, like an SQS queue URL.
+		if(uri != null && uri.isAbsolute()) {
+			return uri;
+		}
+		// The resource is most often an S3 bucket, which the resolver
+		// addresses either as a sub-domain of the endpoint, for example
+		// "foo.s3.amazonaws.com", or as the first segment of the path.
+		final AwsEndpoint endpoint = endpointResolver_.resolve(
+			request.getResource());
+		request.setResourceInPath(endpoint.isResourceInPath());
+		return endpoint.resolve((uri == null) ? ROOT_URI : uri);
 	}
 	
 }
@@ -0,0 +1,266 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services;
+
+import com.kolich.aws.metrics.AwsMetrics;
+import com.kolich.aws.metrics.RequestTimeline;
+import com.kolich.aws.metrics.RequestTimeline.Phase;
+import com.kolich.aws.metrics.RequestTrace;
+import com.kolich.aws.metrics.SlowRequestLog;
+import com.kolich.aws.metrics.jfr.AwsFlightRecorder;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import static com.google.common.io.ByteStreams.copy;
+
+/**
+ * Measures one request for an {@link AwsMetrics}, from when its closure
+ * starts preparing it to when its response body has been read and
+ * closed, and records it exactly once.  Requests slow enough for the
+ * {@link SlowRequestLog}, if any, are traced there too, and while a
+ * flight recording is running they're sent to the
+ * {@link AwsFlightRecorder} as well.
+ */
+final class RequestMeter {
+	
+	private static final AtomicIntegerFieldUpdater<RequestMeter> recordedUpdater__ =
+		AtomicIntegerFieldUpdater.newUpdater(RequestMeter.class, "recorded_");
+	
+	private final AwsMetrics metrics_;
+	private final SlowRequestLog slowRequestLog_;
+	private final boolean flightRecording_;
+	/**
+	 * The flight recorder event timing this request, if one was begun.
+	 */
+	private final Object flightEvent_;
+	private final String serviceName_;
+	private final long startedAtMs_;
+	private final RequestTimeline timeline_;
+	
+	private String operation_;
+	private String resource_;
+	private String requestLine_;
+	private int status_;
+	
+	/**
+	 * Only ever added to by the one thread writing the request.
+	 */
+	private volatile long requestBytes_;
+	
+	/**
+	 * Only ever added to by the one thread reading the response.
+	 */
+	private volatile long responseBytes_;
+	
+	private volatile int recorded_;
+	
+	RequestMeter(final AwsMetrics metrics,
+                 final SlowRequestLog slowRequestLog,
+                 final boolean flightRecording,
+                 final String serviceName) {
+		metrics_ = metrics;
+		slowRequestLog_ = slowRequestLog;
+		flightRecording_ = flightRecording;
+		flightEvent_ = flightRecording ? AwsFlightRecorder.beginRequest() :
+			null;
+		serviceName_ = serviceName;
+		startedAtMs_ = System.currentTimeMillis();
+		timeline_ = new RequestTimeline();
+	}
+	
+	RequestTimeline getTimeline() {
+		return timeline_;
+	}
+	
+	/**
+	 * Called once the request is ready to send, counts its body as it is
+	 * written out if its length isn't known up front.
+	 */
+	void onRequest(final HttpUriRequest request, final String operation,
+		final String resource) {
+		operation_ = operation;
+		if(flightRecording_) {
+			resource_ = (resource != null) ? resource :
+				request.getURI().getRawPath();
+		}
+		if(slowRequestLog_ != null) {
+			requestLine_ = request.getMethod() + " " + request.getURI();
+		}
+		if(request instanceof HttpEntityEnclosingRequest) {
+			final HttpEntityEnclosingRequest enclosing =
+				(HttpEntityEnclosingRequest)request;
+			final HttpEntity entity = enclosing.getEntity();
+			if(entity != null) {
+				if(entity.getContentLength() >= 0L) {
+					requestBytes_ = entity.getContentLength();
+				} else {
+					enclosing.setEntity(new CountingRequestEntity(entity));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Records the request once the response body has been read and
+	 * closed, or right away if there is none.
+	 */
+	HttpResponse onResponse(final HttpResponse response) {
+		status_ = response.getStatusLine().getStatusCode();
+		final HttpEntity entity = response.getEntity();
+		if(entity == null) {
+			record();
+		} else {
+			response.setEntity(new CountingResponseEntity(entity));
+		}
+		return response;
+	}
+	
+	/**
+	 * Records a request that didn't get a response.
+	 */
+	void onFailure() {
+		status_ = 0;
+		record();
+	}
+	
+	private void record() {
+		if(recordedUpdater__.compareAndSet(this, 0, 1)) {
+			timeline_.mark(Phase.COMPLETED);
+			final long duration = timeline_.getElapsed(Phase.COMPLETED);
+			final int retries = timeline_.getRetries();
+			metrics_.record(serviceName_, operation_, status_, duration,
+				requestBytes_, responseBytes_, retries, timeline_.getHedges());
+			if(slowRequestLog_ != null && slowRequestLog_.isSlow(duration)) {
+				slowRequestLog_.add(new RequestTrace(serviceName_, operation_,
+					requestLine_, status_, startedAtMs_, timeline_,
+					requestBytes_, responseBytes_, retries));
+			}
+			if(flightRecording_) {
+				recordFlight(duration, retries);
+			}
+		}
+	}
+	
+	private void recordFlight(final long duration, final int retries) {
+		final long dispatched = timeline_.getElapsed(Phase.DISPATCHED);
+		final long firstByte = timeline_.getElapsed(Phase.FIRST_BYTE);
+		AwsFlightRecorder.recordRequest(flightEvent_, serviceName_,
+			operation_, resource_, status_, retries + 1, requestBytes_,
+			responseBytes_, duration,
+			(dispatched >= 0L && firstByte >= 0L) ?
+				firstByte - dispatched : -1L);
+		final long prepared = timeline_.getElapsed(Phase.PREPARED);
+		final long signed = timeline_.getElapsed(Phase.SIGNED);
+		if(prepared >= 0L && signed >= 0L) {
+			AwsFlightRecorder.recordSign(serviceName_, operation_,
+				signed - prepared);
+		}
+		if(firstByte >= 0L) {
+			AwsFlightRecorder.recordUnmarshal(serviceName_, operation_,
+				responseBytes_, duration - firstByte);
+		}
+	}
+	
+	private final class CountingRequestEntity extends HttpEntityWrapper {
+		private CountingRequestEntity(final HttpEntity entity) {
+			super(entity);
+		}
+		@Override
+		public void writeTo(final OutputStream out) throws IOException {
+			super.writeTo(new FilterOutputStream(out) {
+				@Override
+				public void write(final int b) throws IOException {
+					out.write(b);
+					requestBytes_++;
+				}
+				@Override
+				public void write(final byte[] b, final int off,
+					final int len) throws IOException {
+					out.write(b, off, len);
+					requestBytes_ += len;
+				}
+			});
+		}
+	}
+	
+	private final class CountingResponseEntity extends HttpEntityWrapper {
+		private CountingResponseEntity(final HttpEntity entity) {
+			super(entity);
+		}
+		@Override
+		public InputStream getContent() throws IOException {
+			return new FilterInputStream(super.getContent()) {
+				@Override
+				public int read() throws IOException {
+					final int b = super.read();
+					if(b < 0) {
+						record();
+					} else {
+						responseBytes_++;
+					}
+					return b;
+				}
+				@Override
+				public int read(final byte[] b, final int off,
+					final int len) throws IOException {
+					final int read = super.read(b, off, len);
+					if(read < 0) {
+						record();
+					} else {
+						responseBytes_ += read;
+					}
+					return read;
+				}
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						record();
+					}
+				}
+			};
+		}
+		@Override
+		public void writeTo(final OutputStream out) throws IOException {
+			try(final InputStream in = getContent()) {
+				copy(in, out);
+			}
+		}
+	}
+
+}
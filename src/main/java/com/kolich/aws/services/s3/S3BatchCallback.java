@@ -0,0 +1,49 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3;
+
+import com.kolich.common.functional.either.Either;
+import com.kolich.http.common.response.HttpFailure;
+
+/**
+ * Receives the result of each key in a batch operation as soon as that
+ * key completes, in completion order rather than the order the keys were
+ * given in.  Results are delivered on the threads doing the work, so
+ * implementations must be thread safe.
+ */
+public interface S3BatchCallback<T> {
+	
+	/**
+	 * Called exactly once for each key in the batch.
+	 * @param key the raw key the result belongs to
+	 * @param result the result for the key, or the {@link HttpFailure}
+	 * that prevented it
+	 */
+	public void onResult(final String key,
+                         final Either<HttpFailure,T> result);
+
+}
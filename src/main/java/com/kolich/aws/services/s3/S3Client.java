@@ -27,7 +27,10 @@
 package com.kolich.aws.services.s3;
 
 import com.amazonaws.services.s3.model.Bucket;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
 import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectResult;
 import com.kolich.common.functional.either.Either;
 import com.kolich.common.functional.option.Option;
@@ -39,6 +42,8 @@ import org.apache.http.entity.ContentType;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public interface S3Client {
 
@@ -70,6 +75,19 @@ public interface S3Client {
 	
 	public Either<HttpFailure,ObjectListing> listObjects(final String bucketName);
 	
+	/**
+	 * Walk every object in a bucket whose key begins with the given prefix,
+	 * following the listing from page to page as the visitor consumes it.
+	 * @param bucketName the name of the bucket
+	 * @param prefix the raw key prefix to walk, null or empty to walk
+	 * the entire bucket
+	 * @param visitor the {@link S3ObjectVisitor} to call for each object
+	 * @return a failure if any page of the listing could not be fetched
+	 */
+	public Option<HttpFailure> walkObjects(final String bucketName,
+                                           final String prefix,
+                                           final S3ObjectVisitor visitor);
+	
 	/**
 	 * Create a bucket.
 	 * @param bucketName the name of the bucket
@@ -78,12 +96,25 @@ public interface S3Client {
 	public Option<HttpFailure> createBucket(final String bucketName);
 
 	/**
-	 * Without the "recursive" parameter, we don't try to delete the
-	 * contents first, and we will immediately fail if it is not empty.
+	 * Delete a bucket.  Without the "recursive" parameter, we don't try to
+	 * delete the contents first, and we will immediately fail if it is
+	 * not empty.
 	 * @param bucketName the name of the bucket to delete
+	 * @param recursive set to true to first purge every object in the
+	 * bucket, see {@link #purgeObjects(String, int, String)}
 	 */
+	public Option<HttpFailure> deleteBucket(final String bucketName,
+                                            final boolean recursive);
+	
 	public Option<HttpFailure> deleteBucket(final String bucketName);
 	
+	/**
+	 * Get the region a bucket lives in.
+	 * @param bucketName the name of the bucket
+	 * @return the {@link S3Region} the bucket was created in
+	 */
+	public Either<HttpFailure,S3Region> getBucketLocation(final String bucketName);
+	
 	/**
 	 * Put an object into a bucket.
 	 * @param bucketName the name of the bucket
@@ -130,6 +161,36 @@ public interface S3Client {
                                                          final byte[] object,
                                                          final String... path);
 	
+	/**
+	 * Put many objects into a bucket at once, with a bounded number of
+	 * requests in flight.  Each result is handed to the callback as soon as
+	 * its object is stored, and this method returns once every object has
+	 * been reported on.  For the requests to reuse connections, the
+	 * underlying client's connection pool should allow at least as many
+	 * connections per route as the requested concurrency.
+	 * @param bucketName the name of the bucket
+	 * @param concurrency the maximum number of requests to have in flight
+	 * at once
+	 * @param objects the objects to put, keyed by their raw key
+	 * @param callback the {@link S3BatchCallback} to notify as each
+	 * object completes
+	 */
+	public void putObjects(final String bucketName,
+                           final int concurrency,
+                           final Map<String,byte[]> objects,
+                           final S3BatchCallback<PutObjectResult> callback);
+	
+	/**
+	 * Like {@link #putObjects(String, int, Map, S3BatchCallback)} but
+	 * returns every result at once, in the same order as the given objects.
+	 */
+	public Map<String,Either<HttpFailure,PutObjectResult>> putObjects(final String bucketName,
+                                                                      final int concurrency,
+                                                                      final Map<String,byte[]> objects);
+	
+	public Map<String,Either<HttpFailure,PutObjectResult>> putObjects(final String bucketName,
+                                                                      final Map<String,byte[]> objects);
+	
 	/**
 	 * Delete an object.
 	 * @param bucketName the name of the bucket
@@ -141,6 +202,92 @@ public interface S3Client {
 	public Option<HttpFailure> deleteObject(final String bucketName,
                                             final String... path);
 	
+	/**
+	 * Delete up to 1000 objects in a single request using the S3
+	 * Multi-Object Delete API.
+	 * @param bucketName the name of the bucket
+	 * @param keys the raw keys to delete, at most 1000
+	 * @return a {@link DeleteError} for each key that could not be
+	 * deleted, an empty list if all keys were deleted
+	 */
+	public Either<HttpFailure,List<DeleteError>> deleteObjects(final String bucketName,
+                                                               final List<String> keys);
+	
+	/**
+	 * Delete every object whose key begins with the given prefix.  The
+	 * listing is streamed into concurrent Multi-Object Delete requests.
+	 * @param bucketName the name of the bucket
+	 * @param concurrency the maximum number of delete requests to have in
+	 * flight at once
+	 * @param prefix the raw key prefix to purge, null or empty to purge
+	 * the entire bucket
+	 * @return a {@link DeleteError} for each key that could not be
+	 * deleted, an empty list if all keys were deleted
+	 */
+	public Either<HttpFailure,List<DeleteError>> purgeObjects(final String bucketName,
+                                                              final int concurrency,
+                                                              final String prefix);
+	
+	public Either<HttpFailure,List<DeleteError>> purgeObjects(final String bucketName,
+                                                              final String prefix);
+	
+	/**
+	 * Copy an object entirely server-side, no object data passes through
+	 * this client.  Objects larger than 5 GB are copied in parallel
+	 * ranges with UploadPartCopy.
+	 * @param sourceBucketName the name of the bucket to copy from
+	 * @param sourceKey the raw key of the object to copy
+	 * @param destinationBucketName the name of the bucket to copy to
+	 * @param destinationKey the raw key of the new object
+	 * @return a {@link CopyObjectResult} describing the new object
+	 */
+	public Either<HttpFailure,CopyObjectResult> copyObject(final String sourceBucketName,
+                                                           final String sourceKey,
+                                                           final String destinationBucketName,
+                                                           final String destinationKey);
+	
+	/**
+	 * Copy every object whose key begins with the source prefix, replacing
+	 * that prefix with the destination prefix.  The source listing is
+	 * streamed into a bounded number of concurrent server-side copies.
+	 * @param sourceBucketName the name of the bucket to copy from
+	 * @param sourcePrefix the raw key prefix to copy
+	 * @param destinationBucketName the name of the bucket to copy to
+	 * @param destinationPrefix the raw key prefix that replaces the
+	 * source prefix on each copied key
+	 * @param concurrency the maximum number of copies to have in
+	 * flight at once
+	 * @return the source keys that could not be copied, each with the
+	 * failure that prevented it
+	 */
+	public Either<HttpFailure,Map<String,HttpFailure>> copyObjects(final String sourceBucketName,
+                                                                   final String sourcePrefix,
+                                                                   final String destinationBucketName,
+                                                                   final String destinationPrefix,
+                                                                   final int concurrency);
+	
+	public Either<HttpFailure,Map<String,HttpFailure>> copyObjects(final String sourceBucketName,
+                                                                   final String sourcePrefix,
+                                                                   final String destinationBucketName,
+                                                                   final String destinationPrefix);
+	
+	/**
+	 * Like {@link #copyObjects(String, String, String, String, int)} but
+	 * each source object is deleted once its own copy has succeeded.
+	 * @return the source keys that could not be moved, each with the
+	 * failure that prevented it
+	 */
+	public Either<HttpFailure,Map<String,HttpFailure>> moveObjects(final String sourceBucketName,
+                                                                   final String sourcePrefix,
+                                                                   final String destinationBucketName,
+                                                                   final String destinationPrefix,
+                                                                   final int concurrency);
+	
+	public Either<HttpFailure,Map<String,HttpFailure>> moveObjects(final String sourceBucketName,
+                                                                   final String sourcePrefix,
+                                                                   final String destinationBucketName,
+                                                                   final String destinationPrefix);
+	
 	/**
 	 * Get an object.
 	 * @param bucketName the name of the bucket
@@ -155,6 +302,66 @@ public interface S3Client {
 	public Either<HttpFailure,byte[]> getObject(final String bucketName,
                                                 final String... path);
 		
+	/**
+	 * Get an object only if it has changed.  When the object's current ETag
+	 * still matches the given ETag, S3 answers 304 Not Modified without
+	 * sending the object again.
+	 * @param bucketName the name of the bucket
+	 * @param eTag the ETag of the copy the caller already has, exactly as
+	 * it was returned by S3, may be null to get the object unconditionally
+	 * @param destination where the object is written if it has changed
+	 * @param path path are joined using a standard
+	 * "/" path separator then properly URL encoded to produce a unique
+	 * path to a key in the bucket
+	 * @return the response headers if the object was written to the
+	 * destination, or none if it has not changed
+	 */
+	public Either<HttpFailure,Option<List<Header>>> getObjectIfNoneMatch(final String bucketName,
+                                                                         final String eTag,
+                                                                         final OutputStream destination,
+                                                                         final String... path);
+	
+	/**
+	 * Get an object by its raw key, as read back from a listing, only if
+	 * it has changed.  The key is sent exactly as given, it is not split
+	 * on "/" and encoded again.
+	 * @see #getObjectIfNoneMatch(String, String, OutputStream, String...)
+	 */
+	public Either<HttpFailure,Option<List<Header>>> getObjectByKeyIfNoneMatch(final String bucketName,
+                                                                              final String key,
+                                                                              final String eTag,
+                                                                              final OutputStream destination);
+	
+	/**
+	 * Get many objects from a bucket at once, with a bounded number of
+	 * requests in flight.  Each result is handed to the callback as soon as
+	 * its object has been read, and this method returns once every key has
+	 * been reported on.  For the requests to reuse connections, the
+	 * underlying client's connection pool should allow at least as many
+	 * connections per route as the requested concurrency.
+	 * @param bucketName the name of the bucket
+	 * @param concurrency the maximum number of requests to have in flight
+	 * at once
+	 * @param keys the raw keys of the objects to get
+	 * @param callback the {@link S3BatchCallback} to notify as each
+	 * object completes
+	 */
+	public void getObjects(final String bucketName,
+                           final int concurrency,
+                           final Iterable<String> keys,
+                           final S3BatchCallback<byte[]> callback);
+	
+	/**
+	 * Like {@link #getObjects(String, int, Iterable, S3BatchCallback)} but
+	 * returns every result at once, in the same order as the given keys.
+	 */
+	public Map<String,Either<HttpFailure,byte[]>> getObjects(final String bucketName,
+                                                             final int concurrency,
+                                                             final Iterable<String> keys);
+	
+	public Map<String,Either<HttpFailure,byte[]>> getObjects(final String bucketName,
+                                                             final Iterable<String> keys);
+	
 	/**
 	 * Check if an object exists.
 	 * @param bucketName the name of the bucket
@@ -167,4 +374,36 @@ public interface S3Client {
 	public boolean objectExists(final String bucketName,
                                 final String... path);
 	
+	/**
+	 * Get the metadata of an object, without its content.
+	 * @param bucketName the name of the bucket
+	 * @param path path are joined using a standard
+	 * "/" path separator then properly URL encoded to produce a unique
+	 * path to a key in the bucket
+	 * @return the {@link ObjectMetadata} of the object, including its
+	 * Content-Length, Content-Type, ETag, last modified date and any user
+	 * metadata
+	 */
+	public Either<HttpFailure,ObjectMetadata> getObjectMetadata(final String bucketName,
+                                                                final String... path);
+	
+	/**
+	 * Check which of a (potentially very large) set of keys exist in a
+	 * bucket.  Keys are grouped by their parent prefix and each group is
+	 * resolved either by concurrent HEAD requests or by listing the prefix,
+	 * whichever is expected to be cheaper for the size of the group.
+	 * @param bucketName the name of the bucket
+	 * @param concurrency the maximum number of requests to have in flight
+	 * at once
+	 * @param keys the raw keys to check, in the same form they are returned
+	 * in an {@link ObjectListing}
+	 * @return the subset of the given keys that exist in the bucket
+	 */
+	public Either<HttpFailure,Set<String>> objectsExist(final String bucketName,
+                                                       final int concurrency,
+                                                       final Set<String> keys);
+	
+	public Either<HttpFailure,Set<String>> objectsExist(final String bucketName,
+                                                       final Set<String> keys);
+	
 }
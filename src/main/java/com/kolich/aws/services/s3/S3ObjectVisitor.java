@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Visits each object in a bucket listing, one page at a time, as the
+ * listing is streamed back from S3.  Nothing beyond the current page is
+ * ever held in memory, so walking a bucket with millions of keys is safe.
+ */
+public interface S3ObjectVisitor {
+	
+	/**
+	 * Called once for each object in the listing, in key order.
+	 * @param summary the {@link S3ObjectSummary} of the current object
+	 * @return true to keep walking, false to stop the walk early
+	 */
+	public boolean visit(final S3ObjectSummary summary)
+		throws InterruptedException;
+
+}
@@ -61,5 +61,26 @@ public enum S3Region {
 	public final String getApiEndpoint() {
 		return regionUri_.toString();
 	}
+	
+	/**
+	 * The region with the given id, as S3 reports it in a bucket location
+	 * or the x-amz-bucket-region header, or null if it's not one we know.
+	 * US Standard is reported as no id at all, or as "US", and Ireland
+	 * sometimes as "EU".
+	 */
+	public static final S3Region fromRegionId(final String regionId) {
+		if(regionId == null || regionId.isEmpty() ||
+			"US".equals(regionId) || "us-east-1".equals(regionId)) {
+			return US_EAST;
+		} else if("EU".equals(regionId)) {
+			return EU;
+		}
+		for(final S3Region region : values()) {
+			if(regionId.equals(region.regionId_)) {
+				return region;
+			}
+		}
+		return null;
+	}
 
 }
@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.cache;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A weight-bounded map of cached values whose residency is decided by a
+ * {@link TinyLfuPolicy}.  Lookups never block; only hits, inserts and
+ * removals take the policy lock, which is held just long enough to update
+ * its bookkeeping.
+ */
+abstract class CacheTier<V> {
+	
+	private final ConcurrentMap<String,V> entries_;
+	private final TinyLfuPolicy<String> policy_;
+	
+	CacheTier(final long maxWeight) {
+		entries_ = new ConcurrentHashMap<String,V>();
+		policy_ = new TinyLfuPolicy<String>(maxWeight);
+	}
+	
+	/**
+	 * The weight of a value, in bytes.
+	 */
+	abstract long weigh(final V value);
+	
+	/**
+	 * Called, outside of any lock, for each value the policy chose to
+	 * evict to make room for another.
+	 */
+	abstract void evicted(final String key, final V value);
+	
+	/**
+	 * Called, outside of any lock, for each value that was explicitly
+	 * invalidated or replaced.
+	 */
+	abstract void removed(final String key, final V value);
+	
+	final V getEntry(final String key) {
+		final V value = entries_.get(key);
+		if(value != null) {
+			synchronized(policy_) {
+				// Only touch if it wasn't evicted since the lookup above.
+				if(entries_.get(key) == value) {
+					policy_.touch(key);
+				}
+			}
+		}
+		return value;
+	}
+	
+	final void putEntry(final String key, final V value) {
+		final V replaced;
+		final Map<String,V> evicted = Maps.newHashMap();
+		synchronized(policy_) {
+			if((replaced = entries_.put(key, value)) != null) {
+				policy_.remove(key);
+			}
+			for(final String victim : policy_.add(key, weigh(value))) {
+				evicted.put(victim, entries_.remove(victim));
+			}
+		}
+		if(replaced != null) {
+			removed(key, replaced);
+		}
+		for(final Map.Entry<String,V> e : evicted.entrySet()) {
+			evicted(e.getKey(), e.getValue());
+		}
+	}
+	
+	final void invalidate(final String key) {
+		final V removed;
+		synchronized(policy_) {
+			if((removed = entries_.remove(key)) != null) {
+				policy_.remove(key);
+			}
+		}
+		if(removed != null) {
+			removed(key, removed);
+		}
+	}
+	
+	final void invalidatePrefix(final String prefix) {
+		final List<String> matching = Lists.newArrayList();
+		for(final String key : entries_.keySet()) {
+			if(key.startsWith(prefix)) {
+				matching.add(key);
+			}
+		}
+		for(final String key : matching) {
+			invalidate(key);
+		}
+	}
+	
+	final boolean contains(final String key) {
+		return entries_.containsKey(key);
+	}
+	
+	final int size() {
+		return entries_.size();
+	}
+	
+	final long weight() {
+		synchronized(policy_) {
+			return policy_.weight();
+		}
+	}
+
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.cache;
+
+import org.apache.http.Header;
+
+import java.util.List;
+
+/**
+ * A cached copy of an object, along with the ETag it had and the response
+ * headers it was served with when it was fetched.
+ */
+final class CachedObject {
+	
+	private final String eTag_;
+	private final List<Header> headers_;
+	private final byte[] bytes_;
+	
+	/**
+	 * When S3 last confirmed this copy is current, either by serving it or
+	 * by answering a conditional GET with 304 Not Modified.
+	 */
+	private volatile long validatedAt_;
+	
+	CachedObject(final String eTag,
+                 final List<Header> headers,
+                 final byte[] bytes,
+                 final long validatedAt) {
+		eTag_ = eTag;
+		headers_ = headers;
+		bytes_ = bytes;
+		validatedAt_ = validatedAt;
+	}
+	
+	String getETag() {
+		return eTag_;
+	}
+	
+	List<Header> getHeaders() {
+		return headers_;
+	}
+	
+	byte[] getBytes() {
+		return bytes_;
+	}
+	
+	/**
+	 * A copy of the object's bytes, safe to hand to a caller who may
+	 * write to it without corrupting what every other reader sees.
+	 */
+	byte[] copyBytes() {
+		return bytes_.clone();
+	}
+	
+	long getValidatedAt() {
+		return validatedAt_;
+	}
+	
+	void setValidatedAt(final long validatedAt) {
+		validatedAt_ = validatedAt;
+	}
+	
+	long getWeight() {
+		return bytes_.length;
+	}
+
+}
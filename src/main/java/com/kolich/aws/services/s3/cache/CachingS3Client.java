@@ -0,0 +1,921 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.cache;
+
+import com.amazonaws.services.s3.model.Bucket;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.kolich.aws.KolichAwsException;
+import com.kolich.aws.concurrent.BoundedExecutor;
+import com.kolich.aws.concurrent.SingleFlight;
+import com.kolich.aws.services.s3.S3BatchCallback;
+import com.kolich.aws.services.s3.S3Client;
+import com.kolich.aws.services.s3.S3ObjectVisitor;
+import com.kolich.aws.services.s3.S3Region;
+import com.kolich.common.functional.either.Either;
+import com.kolich.common.functional.either.Left;
+import com.kolich.common.functional.either.Right;
+import com.kolich.common.functional.option.Option;
+import com.kolich.http.common.response.HttpFailure;
+import org.apache.http.Header;
+import org.apache.http.entity.ContentType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Strings.nullToEmpty;
+import static com.google.common.util.concurrent.Futures.successfulAsList;
+import static com.kolich.aws.services.s3.impl.KolichS3Client.varargsToPathString;
+import static java.lang.System.currentTimeMillis;
+import static org.apache.http.HttpHeaders.ETAG;
+import static org.apache.http.HttpStatus.SC_NOT_FOUND;
+
+/**
+ * A read-through caching {@link S3Client} decorator.  Objects read with
+ * {@link #getObject(String, String...)} and friends are kept in a
+ * size-bounded in-heap tier and, optionally, a larger memory-mapped local
+ * disk tier that catches what the heap tier evicts.  Both tiers admit and
+ * evict with W-TinyLFU, so a scan of cold objects can't flush out the hot
+ * ones.
+ * 
+ * A cached copy is served without contacting S3 for as long as it is
+ * fresh, and is revalidated with a conditional GET (If-None-Match) once
+ * it isn't, so an unchanged object costs a 304 and no body transfer.
+ * Concurrent misses for the same key collapse into a single fetch.
+ * 
+ * Object metadata, and with it {@link #objectExists(String, String...)},
+ * is cached separately with its own TTL, and a 404 is cached for a
+ * (usually much shorter) negative TTL.  Every
+ * write made through this client invalidates the keys it touches, and
+ * keeps reads of them that were already in flight from caching what they
+ * saw; writes made by anyone else are only noticed on revalidation.
+ * 
+ * Every other operation passes straight through to the delegate.
+ */
+public final class CachingS3Client implements S3Client {
+	
+	private static final String SLASH_STRING = "/";
+	
+	private static final int DEFAULT_BATCH_CONCURRENCY = 32;
+	
+	/**
+	 * Objects larger than this are passed through but never cached, a
+	 * cache this size is meant for lots of small, hot objects.
+	 */
+	private static final long DEFAULT_MAX_OBJECT_SIZE = 8L * 1024L * 1024L;
+	
+	private static final long DEFAULT_MAX_METADATA_ENTRIES = 100000L;
+	private static final long DEFAULT_METADATA_TTL_MILLIS = 30000L;
+	
+	/**
+	 * Negative entries are kept short, a key that doesn't exist yet is
+	 * often about to.
+	 */
+	private static final long DEFAULT_NEGATIVE_TTL_MILLIS = 2000L;
+	
+	private final S3Client delegate_;
+	private final HeapTier heap_;
+	private final DiskTier disk_;
+	private final long freshForMillis_;
+	private final long maxObjectSize_;
+	private final ListeningExecutorService executor_;
+	private final SingleFlight<String,Either<HttpFailure,CachedObject>> inFlight_;
+	private final WriteGenerations generations_;
+	private final S3MetadataCache metadata_;
+	
+	private final AtomicLong hits_;
+	private final AtomicLong misses_;
+	private final AtomicLong revalidations_;
+	
+	/**
+	 * @param delegate the {@link S3Client} to fetch objects with
+	 * @param maxHeapBytes the maximum number of object bytes to keep
+	 * in the heap
+	 * @param diskDirectory the directory to keep the disk tier under, in
+	 * a subdirectory of its own, or null for no disk tier
+	 * @param maxDiskBytes the maximum number of object bytes to keep on disk
+	 * @param freshForMillis how long a cached copy is served without
+	 * revalidating it, zero to revalidate on every read
+	 * @param metadataTtlMillis how long the metadata of an object that
+	 * exists is cached, zero to not cache it
+	 * @param negativeTtlMillis how long the fact that an object does not
+	 * exist is cached, zero to not cache it
+	 */
+	public CachingS3Client(final S3Client delegate,
+                           final long maxHeapBytes,
+                           final File diskDirectory,
+                           final long maxDiskBytes,
+                           final long freshForMillis,
+                           final long metadataTtlMillis,
+                           final long negativeTtlMillis) {
+		checkArgument(maxHeapBytes > 0L, "Max heap bytes must be " +
+			"greater than zero.");
+		checkArgument(diskDirectory == null || maxDiskBytes > 0L, "Max " +
+			"disk bytes must be greater than zero.");
+		checkArgument(freshForMillis >= 0L, "Fresh for millis cannot " +
+			"be negative.");
+		checkArgument(metadataTtlMillis >= 0L, "Metadata TTL cannot " +
+			"be negative.");
+		checkArgument(negativeTtlMillis >= 0L, "Negative TTL cannot " +
+			"be negative.");
+		delegate_ = checkNotNull(delegate, "Delegate S3 client cannot be null.");
+		disk_ = (diskDirectory != null) ?
+			new DiskTier(diskDirectory, maxDiskBytes) : null;
+		heap_ = new HeapTier(maxHeapBytes, disk_);
+		freshForMillis_ = freshForMillis;
+		maxObjectSize_ = Math.min(DEFAULT_MAX_OBJECT_SIZE, Math.max(maxHeapBytes,
+			(disk_ != null) ? maxDiskBytes : 0L));
+		executor_ = BoundedExecutor.getDefaultExecutor();
+		inFlight_ = new SingleFlight<String,Either<HttpFailure,CachedObject>>();
+		generations_ = new WriteGenerations();
+		metadata_ = new S3MetadataCache(DEFAULT_MAX_METADATA_ENTRIES,
+			metadataTtlMillis, negativeTtlMillis);
+		hits_ = new AtomicLong();
+		misses_ = new AtomicLong();
+		revalidations_ = new AtomicLong();
+	}
+	
+	public CachingS3Client(final S3Client delegate,
+                           final long maxHeapBytes,
+                           final File diskDirectory,
+                           final long maxDiskBytes,
+                           final long freshForMillis) {
+		this(delegate, maxHeapBytes, diskDirectory, maxDiskBytes,
+			freshForMillis, DEFAULT_METADATA_TTL_MILLIS,
+			DEFAULT_NEGATIVE_TTL_MILLIS);
+	}
+	
+	public CachingS3Client(final S3Client delegate,
+                           final long maxHeapBytes,
+                           final long freshForMillis) {
+		this(delegate, maxHeapBytes, null, 0L, freshForMillis);
+	}
+	
+	/**
+	 * Reads served entirely from the cache, without contacting S3.
+	 */
+	public long getHitCount() {
+		return hits_.get();
+	}
+	
+	/**
+	 * Reads that had to transfer the object from S3.
+	 */
+	public long getMissCount() {
+		return misses_.get();
+	}
+	
+	/**
+	 * Reads of a stale copy that S3 confirmed was still current with a
+	 * 304 Not Modified.
+	 */
+	public long getRevalidationCount() {
+		return revalidations_.get();
+	}
+	
+	/**
+	 * Metadata lookups, including {@link #objectExists(String, String...)},
+	 * answered from the metadata cache.  Includes negative hits.
+	 */
+	public long getMetadataHitCount() {
+		return metadata_.getHitCount() + metadata_.getNegativeHitCount();
+	}
+	
+	/**
+	 * Metadata lookups answered from a cached 404.
+	 */
+	public long getMetadataNegativeHitCount() {
+		return metadata_.getNegativeHitCount();
+	}
+	
+	/**
+	 * Metadata lookups that had to HEAD the object.
+	 */
+	public long getMetadataMissCount() {
+		return metadata_.getMissCount();
+	}
+	
+	public long getMetadataEntryCount() {
+		return metadata_.size();
+	}
+	
+	public int getHeapObjectCount() {
+		return heap_.size();
+	}
+	
+	public long getHeapBytes() {
+		return heap_.weight();
+	}
+	
+	public int getDiskObjectCount() {
+		return (disk_ != null) ? disk_.size() : 0;
+	}
+	
+	public long getDiskBytes() {
+		return (disk_ != null) ? disk_.weight() : 0L;
+	}
+	
+	/**
+	 * Drops the cached copy of a single object.
+	 */
+	public void invalidate(final String bucketName, final String... path) {
+		invalidateKey(bucketName, varargsToPathString(path));
+	}
+	
+	/**
+	 * Drops the cached copy of every object in a bucket.
+	 */
+	public void invalidateAll(final String bucketName) {
+		invalidatePrefix(bucketName, null);
+	}
+	
+	@Override
+	public Either<HttpFailure,byte[]> getObject(final String bucketName,
+                                                final String... path) {
+		final Either<HttpFailure,CachedObject> object =
+			load(bucketName, varargsToPathString(path));
+		return object.success() ?
+			Right.<HttpFailure,byte[]>right(object.right().copyBytes()) :
+			Left.<HttpFailure,byte[]>left(object.left());
+	}
+	
+	@Override
+	public Either<HttpFailure,List<Header>> getObject(final String bucketName,
+                                                      final OutputStream destination,
+                                                      final String... path) {
+		final String cacheKey = toCacheKey(bucketName, varargsToPathString(path));
+		final long generation = generations_.get(cacheKey);
+		final CachedObject cached = lookup(cacheKey, generation);
+		if(cached != null && isFresh(cached)) {
+			hits_.incrementAndGet();
+			return write(cached, destination);
+		}
+		// Unlike the byte[] flavor, the body streams straight through to
+		// the caller, so only objects small enough to cache are buffered.
+		final CappedBuffer buffer = new CappedBuffer(destination, maxObjectSize_);
+		final Either<HttpFailure,Option<List<Header>>> get =
+			delegate_.getObjectIfNoneMatch(bucketName,
+				(cached != null) ? cached.getETag() : null, buffer, path);
+		if(!get.success()) {
+			onFailure(cacheKey, get.left());
+			return Left.<HttpFailure,List<Header>>left(get.left());
+		}
+		if(get.right().isNone()) {
+			revalidations_.incrementAndGet();
+			cached.setValidatedAt(currentTimeMillis());
+			return write(cached, destination);
+		}
+		misses_.incrementAndGet();
+		final List<Header> headers = get.right().get();
+		if(!buffer.isOverflowed()) {
+			store(cacheKey, new CachedObject(getETag(headers), headers,
+				buffer.toByteArray(), currentTimeMillis()), generation);
+		}
+		return Right.<HttpFailure,List<Header>>right(headers);
+	}
+	
+	@Override
+	public Either<HttpFailure,Option<List<Header>>> getObjectIfNoneMatch(final String bucketName,
+                                                                         final String eTag,
+                                                                         final OutputStream destination,
+                                                                         final String... path) {
+		// The caller is doing its own caching, stay out of the way.
+		return delegate_.getObjectIfNoneMatch(bucketName, eTag, destination,
+			path);
+	}
+	
+	@Override
+	public Either<HttpFailure,Option<List<Header>>> getObjectByKeyIfNoneMatch(final String bucketName,
+                                                                              final String key,
+                                                                              final String eTag,
+                                                                              final OutputStream destination) {
+		return delegate_.getObjectByKeyIfNoneMatch(bucketName, key, eTag,
+			destination);
+	}
+	
+	@Override
+	public void getObjects(final String bucketName,
+                           final int concurrency,
+                           final Iterable<String> keys,
+                           final S3BatchCallback<byte[]> callback) {
+		checkArgument(concurrency > 0, "Concurrency must be greater " +
+			"than zero.");
+		checkNotNull(keys, "Keys cannot be null.");
+		checkNotNull(callback, "Callback cannot be null.");
+		final BoundedExecutor executor = new BoundedExecutor(executor_,
+			concurrency);
+		final List<ListenableFuture<Void>> pending = Lists.newArrayList();
+		try {
+			for(final String key : keys) {
+				final String cacheKey = toCacheKey(bucketName, key);
+				final CachedObject cached = lookup(cacheKey,
+					generations_.get(cacheKey));
+				if(cached != null && isFresh(cached)) {
+					// Fresh hits never leave the calling thread.
+					hits_.incrementAndGet();
+					callback.onResult(key, Right.<HttpFailure,byte[]>right(
+						cached.copyBytes()));
+					continue;
+				}
+				pending.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						final Either<HttpFailure,CachedObject> object =
+							load(bucketName, key);
+						callback.onResult(key, object.success() ?
+							Right.<HttpFailure,byte[]>right(object.right().copyBytes()) :
+							Left.<HttpFailure,byte[]>left(object.left()));
+						return null;
+					}
+				}));
+			}
+			successfulAsList(pending).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KolichAwsException("Interrupted while getting " +
+				"objects (bucket=" + bucketName + ")", e);
+		} catch (ExecutionException e) {
+			// Cannot happen, successfulAsList never fails.
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	@Override
+	public Map<String,Either<HttpFailure,byte[]>> getObjects(final String bucketName,
+                                                             final int concurrency,
+                                                             final Iterable<String> keys) {
+		final Map<String,Either<HttpFailure,byte[]>> results =
+			new ConcurrentHashMap<String,Either<HttpFailure,byte[]>>();
+		getObjects(bucketName, concurrency, keys, new S3BatchCallback<byte[]>() {
+			@Override
+			public void onResult(final String key,
+                                 final Either<HttpFailure,byte[]> result) {
+				results.put(key, result);
+			}
+		});
+		final Map<String,Either<HttpFailure,byte[]>> ordered =
+			Maps.newLinkedHashMap();
+		for(final String key : keys) {
+			ordered.put(key, results.get(key));
+		}
+		return ordered;
+	}
+	
+	@Override
+	public Map<String,Either<HttpFailure,byte[]>> getObjects(final String bucketName,
+                                                             final Iterable<String> keys) {
+		return getObjects(bucketName, DEFAULT_BATCH_CONCURRENCY, keys);
+	}
+	
+	@Override
+	public Either<HttpFailure,PutObjectResult> putObject(final String bucketName,
+                                                         final boolean rrs,
+                                                         final ContentType type,
+                                                         final InputStream input,
+                                                         final long contentLength,
+                                                         final String... path) {
+		try {
+			return delegate_.putObject(bucketName, rrs, type, input,
+				contentLength, path);
+		} finally {
+			invalidateKey(bucketName, varargsToPathString(path));
+		}
+	}
+	
+	@Override
+	public Either<HttpFailure,PutObjectResult> putObject(final String bucketName,
+                                                         final ContentType type,
+                                                         final InputStream input,
+                                                         final long contentLength,
+                                                         final String... path) {
+		return putObject(bucketName, false, type, input, contentLength, path);
+	}
+	
+	@Override
+	public Either<HttpFailure,PutObjectResult> putObject(final String bucketName,
+                                                         final InputStream input,
+                                                         final long contentLength,
+                                                         final String... path) {
+		return putObject(bucketName, null, input, contentLength, path);
+	}
+	
+	@Override
+	public Either<HttpFailure,PutObjectResult> putObject(final String bucketName,
+                                                         final boolean rrs,
+                                                         final ContentType type,
+                                                         final byte[] object,
+                                                         final String... path) {
+		try {
+			return delegate_.putObject(bucketName, rrs, type, object, path);
+		} finally {
+			invalidateKey(bucketName, varargsToPathString(path));
+		}
+	}
+	
+	@Override
+	public Either<HttpFailure,PutObjectResult> putObject(final String bucketName,
+                                                         final ContentType type,
+                                                         final byte[] object,
+                                                         final String... path) {
+		return putObject(bucketName, false, type, object, path);
+	}
+	
+	@Override
+	public Either<HttpFailure,PutObjectResult> putObject(final String bucketName,
+                                                         final byte[] object,
+                                                         final String... path) {
+		return putObject(bucketName, null, object, path);
+	}
+	
+	@Override
+	public void putObjects(final String bucketName,
+                           final int concurrency,
+                           final Map<String,byte[]> objects,
+                           final S3BatchCallback<PutObjectResult> callback) {
+		checkNotNull(callback, "Callback cannot be null.");
+		delegate_.putObjects(bucketName, concurrency, objects,
+			new S3BatchCallback<PutObjectResult>() {
+			@Override
+			public void onResult(final String key,
+                                 final Either<HttpFailure,PutObjectResult> result) {
+				invalidateKey(bucketName, key);
+				callback.onResult(key, result);
+			}
+		});
+	}
+	
+	@Override
+	public Map<String,Either<HttpFailure,PutObjectResult>> putObjects(final String bucketName,
+                                                                      final int concurrency,
+                                                                      final Map<String,byte[]> objects) {
+		try {
+			return delegate_.putObjects(bucketName, concurrency, objects);
+		} finally {
+			invalidateKeys(bucketName, objects.keySet());
+		}
+	}
+	
+	@Override
+	public Map<String,Either<HttpFailure,PutObjectResult>> putObjects(final String bucketName,
+                                                                      final Map<String,byte[]> objects) {
+		return putObjects(bucketName, DEFAULT_BATCH_CONCURRENCY, objects);
+	}
+	
+	@Override
+	public Option<HttpFailure> deleteObject(final String bucketName,
+                                            final String... path) {
+		try {
+			return delegate_.deleteObject(bucketName, path);
+		} finally {
+			invalidateKey(bucketName, varargsToPathString(path));
+		}
+	}
+	
+	@Override
+	public Either<HttpFailure,List<DeleteError>> deleteObjects(final String bucketName,
+                                                               final List<String> keys) {
+		try {
+			return delegate_.deleteObjects(bucketName, keys);
+		} finally {
+			invalidateKeys(bucketName, keys);
+		}
+	}
+	
+	@Override
+	public Either<HttpFailure,List<DeleteError>> purgeObjects(final String bucketName,
+                                                              final int concurrency,
+                                                              final String prefix) {
+		try {
+			return delegate_.purgeObjects(bucketName, concurrency, prefix);
+		} finally {
+			invalidatePrefix(bucketName, prefix);
+		}
+	}
+	
+	@Override
+	public Either<HttpFailure,List<DeleteError>> purgeObjects(final String bucketName,
+                                                              final String prefix) {
+		return purgeObjects(bucketName, DEFAULT_BATCH_CONCURRENCY, prefix);
+	}
+	
+	@Override
+	public Either<HttpFailure,CopyObjectResult> copyObject(final String sourceBucketName,
+                                                           final String sourceKey,
+                                                           final String destinationBucketName,
+                                                           final String destinationKey) {
+		try {
+			return delegate_.copyObject(sourceBucketName, sourceKey,
+				destinationBucketName, destinationKey);
+		} finally {
+			invalidateKey(destinationBucketName, destinationKey);
+		}
+	}
+	
+	@Override
+	public Either<HttpFailure,Map<String,HttpFailure>> copyObjects(final String sourceBucketName,
+                                                                   final String sourcePrefix,
+                                                                   final String destinationBucketName,
+                                                                   final String destinationPrefix,
+                                                                   final int concurrency) {
+		try {
+			return delegate_.copyObjects(sourceBucketName, sourcePrefix,
+				destinationBucketName, destinationPrefix, concurrency);
+		} finally {
+			invalidatePrefix(destinationBucketName, destinationPrefix);
+		}
+	}
+	
+	@Override
+	public Either<HttpFailure,Map<String,HttpFailure>> copyObjects(final String sourceBucketName,
+                                                                   final String sourcePrefix,
+                                                                   final String destinationBucketName,
+                                                                   final String destinationPrefix) {
+		return copyObjects(sourceBucketName, sourcePrefix, destinationBucketName,
+			destinationPrefix, DEFAULT_BATCH_CONCURRENCY);
+	}
+	
+	@Override
+	public Either<HttpFailure,Map<String,HttpFailure>> moveObjects(final String sourceBucketName,
+                                                                   final String sourcePrefix,
+                                                                   final String destinationBucketName,
+                                                                   final String destinationPrefix,
+                                                                   final int concurrency) {
+		try {
+			return delegate_.moveObjects(sourceBucketName, sourcePrefix,
+				destinationBucketName, destinationPrefix, concurrency);
+		} finally {
+			invalidatePrefix(sourceBucketName, sourcePrefix);
+			invalidatePrefix(destinationBucketName, destinationPrefix);
+		}
+	}
+	
+	@Override
+	public Either<HttpFailure,Map<String,HttpFailure>> moveObjects(final String sourceBucketName,
+                                                                   final String sourcePrefix,
+                                                                   final String destinationBucketName,
+                                                                   final String destinationPrefix) {
+		return moveObjects(sourceBucketName, sourcePrefix, destinationBucketName,
+			destinationPrefix, DEFAULT_BATCH_CONCURRENCY);
+	}
+	
+	@Override
+	public Option<HttpFailure> deleteBucket(final String bucketName,
+                                            final boolean recursive) {
+		try {
+			return delegate_.deleteBucket(bucketName, recursive);
+		} finally {
+			invalidateAll(bucketName);
+		}
+	}
+	
+	@Override
+	public Option<HttpFailure> deleteBucket(final String bucketName) {
+		return deleteBucket(bucketName, false);
+	}
+	
+	@Override
+	public Either<HttpFailure,List<Bucket>> listBuckets() {
+		return delegate_.listBuckets();
+	}
+	
+	@Override
+	public Either<HttpFailure,S3Region> getBucketLocation(final String bucketName) {
+		return delegate_.getBucketLocation(bucketName);
+	}
+	
+	@Override
+	public Either<HttpFailure,ObjectListing> listObjects(final String bucketName,
+                                                         final String marker,
+                                                         final String... path) {
+		return delegate_.listObjects(bucketName, marker, path);
+	}
+	
+	@Override
+	public Either<HttpFailure,ObjectListing> listObjects(final String bucketName,
+                                                         final String marker) {
+		return delegate_.listObjects(bucketName, marker);
+	}
+	
+	@Override
+	public Either<HttpFailure,ObjectListing> listObjects(final String bucketName) {
+		return delegate_.listObjects(bucketName);
+	}
+	
+	@Override
+	public Option<HttpFailure> walkObjects(final String bucketName,
+                                           final String prefix,
+                                           final S3ObjectVisitor visitor) {
+		return delegate_.walkObjects(bucketName, prefix, visitor);
+	}
+	
+	@Override
+	public Option<HttpFailure> createBucket(final String bucketName) {
+		return delegate_.createBucket(bucketName);
+	}
+	
+	@Override
+	public boolean objectExists(final String bucketName,
+                                final String... path) {
+		return getObjectMetadata(bucketName, path).success();
+	}
+	
+	@Override
+	public Either<HttpFailure,ObjectMetadata> getObjectMetadata(final String bucketName,
+                                                                final String... path) {
+		return metadata_.get(toCacheKey(bucketName, varargsToPathString(path)),
+			new Callable<Either<HttpFailure,ObjectMetadata>>() {
+			@Override
+			public Either<HttpFailure,ObjectMetadata> call() {
+				return delegate_.getObjectMetadata(bucketName, path);
+			}
+		});
+	}
+	
+	@Override
+	public Either<HttpFailure,Set<String>> objectsExist(final String bucketName,
+                                                       final int concurrency,
+                                                       final Set<String> keys) {
+		return delegate_.objectsExist(bucketName, concurrency, keys);
+	}
+	
+	@Override
+	public Either<HttpFailure,Set<String>> objectsExist(final String bucketName,
+                                                       final Set<String> keys) {
+		return delegate_.objectsExist(bucketName, keys);
+	}
+	
+	/**
+	 * Returns the cached copy of an object, fresh or not, or fetches it.
+	 * A stale copy is revalidated, concurrent fetches and revalidations of
+	 * the same key are collapsed into one, but only among readers that
+	 * started after the same write: a read that starts after this client
+	 * wrote the key never joins a fetch that started before.
+	 */
+	private final Either<HttpFailure,CachedObject> load(final String bucketName,
+                                                        final String key) {
+		final String cacheKey = toCacheKey(bucketName, key);
+		final long generation = generations_.get(cacheKey);
+		final CachedObject cached = lookup(cacheKey, generation);
+		if(cached != null && isFresh(cached)) {
+			hits_.incrementAndGet();
+			return Right.<HttpFailure,CachedObject>right(cached);
+		}
+		try {
+			return inFlight_.execute(cacheKey + "@" + generation,
+				new Callable<Either<HttpFailure,CachedObject>>() {
+				@Override
+				public Either<HttpFailure,CachedObject> call() {
+					return fetch(bucketName, key, cacheKey, cached, generation);
+				}
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KolichAwsException("Interrupted while waiting on " +
+				"fetch (key=" + cacheKey + ")", e);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new KolichAwsException(e);
+		}
+	}
+	
+	private final Either<HttpFailure,CachedObject> fetch(final String bucketName,
+                                                         final String key,
+                                                         final String cacheKey,
+                                                         final CachedObject cached,
+                                                         final long generation) {
+		// Keys are raw, already encoded, keys from here on.
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		final Either<HttpFailure,Option<List<Header>>> get =
+			delegate_.getObjectByKeyIfNoneMatch(bucketName, key,
+				(cached != null) ? cached.getETag() : null, os);
+		if(!get.success()) {
+			onFailure(cacheKey, get.left());
+			return Left.<HttpFailure,CachedObject>left(get.left());
+		}
+		if(get.right().isNone()) {
+			revalidations_.incrementAndGet();
+			cached.setValidatedAt(currentTimeMillis());
+			return Right.<HttpFailure,CachedObject>right(cached);
+		}
+		misses_.incrementAndGet();
+		final List<Header> headers = get.right().get();
+		final CachedObject object = new CachedObject(getETag(headers), headers,
+			os.toByteArray(), currentTimeMillis());
+		if(object.getWeight() <= maxObjectSize_) {
+			store(cacheKey, object, generation);
+		}
+		return Right.<HttpFailure,CachedObject>right(object);
+	}
+	
+	/**
+	 * Looks in the heap, then on disk.  A disk hit is promoted back into
+	 * the heap tier, unless the key has been written to since the given
+	 * generation.
+	 */
+	private final CachedObject lookup(final String cacheKey,
+                                      final long generation) {
+		CachedObject cached = heap_.get(cacheKey);
+		if(cached == null && disk_ != null &&
+			(cached = disk_.get(cacheKey)) != null) {
+			putIfUnwritten(cacheKey, cached, generation);
+		}
+		return cached;
+	}
+	
+	/**
+	 * Caches what a read saw, unless the key was written to by this
+	 * client since the read started, at the given generation.
+	 */
+	private final void store(final String cacheKey,
+                             final CachedObject object,
+                             final long generation) {
+		if(generations_.get(cacheKey) != generation) {
+			return;
+		}
+		// Anything left on disk is now out of date.
+		if(disk_ != null) {
+			disk_.invalidate(cacheKey);
+		}
+		putIfUnwritten(cacheKey, object, generation);
+	}
+	
+	private final void putIfUnwritten(final String cacheKey,
+                                      final CachedObject object,
+                                      final long generation) {
+		heap_.put(cacheKey, object);
+		// A write that landed between checking the generation and the put
+		// invalidated before there was anything to invalidate, take the
+		// stale copy back out.
+		if(generations_.get(cacheKey) != generation) {
+			evict(cacheKey);
+		}
+	}
+	
+	private final void onFailure(final String cacheKey,
+                                 final HttpFailure failure) {
+		// A 404 means the object is gone, anything else is no reason to
+		// throw away a copy that may well still be good.
+		if(failure.getStatusCode() == SC_NOT_FOUND) {
+			invalidateCacheKey(cacheKey);
+		}
+	}
+	
+	private final boolean isFresh(final CachedObject cached) {
+		return currentTimeMillis() - cached.getValidatedAt() < freshForMillis_;
+	}
+	
+	private final void invalidateKey(final String bucketName,
+                                     final String key) {
+		invalidateCacheKey(toCacheKey(bucketName, key));
+	}
+	
+	private final void invalidateKeys(final String bucketName,
+                                      final Iterable<String> keys) {
+		for(final String key : keys) {
+			invalidateKey(bucketName, key);
+		}
+	}
+	
+	private final void invalidateCacheKey(final String cacheKey) {
+		// Bumped first, so that a read in flight either sees the new
+		// generation before it caches, or caches before the eviction.
+		generations_.bump(cacheKey);
+		metadata_.invalidate(cacheKey);
+		evict(cacheKey);
+	}
+	
+	private final void evict(final String cacheKey) {
+		heap_.invalidate(cacheKey);
+		if(disk_ != null) {
+			disk_.invalidate(cacheKey);
+		}
+	}
+	
+	private final void invalidatePrefix(final String bucketName,
+                                        final String prefix) {
+		final String cacheKeyPrefix = toCacheKey(bucketName, nullToEmpty(prefix));
+		generations_.bumpAll();
+		metadata_.invalidatePrefix(cacheKeyPrefix);
+		heap_.invalidatePrefix(cacheKeyPrefix);
+		if(disk_ != null) {
+			disk_.invalidatePrefix(cacheKeyPrefix);
+		}
+	}
+	
+	private static final String toCacheKey(final String bucketName,
+                                           final String key) {
+		return bucketName + SLASH_STRING + key;
+	}
+	
+	private static final Either<HttpFailure,List<Header>> write(final CachedObject cached,
+                                                                final OutputStream destination) {
+		try {
+			destination.write(cached.getBytes());
+			return Right.<HttpFailure,List<Header>>right(cached.getHeaders());
+		} catch (IOException e) {
+			return Left.<HttpFailure,List<Header>>left(new HttpFailure(e));
+		}
+	}
+	
+	private static final String getETag(final List<Header> headers) {
+		for(final Header header : headers) {
+			if(ETAG.equalsIgnoreCase(header.getName())) {
+				return header.getValue();
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Passes everything through to the destination, keeping a copy of it
+	 * until it grows past the maximum cacheable object size.
+	 */
+	private static final class CappedBuffer extends OutputStream {
+		private final OutputStream destination_;
+		private final long maxSize_;
+		private ByteArrayOutputStream buffer_;
+		private CappedBuffer(final OutputStream destination,
+                             final long maxSize) {
+			destination_ = destination;
+			maxSize_ = maxSize;
+			buffer_ = new ByteArrayOutputStream();
+		}
+		@Override
+		public void write(final int b) throws IOException {
+			destination_.write(b);
+			if(buffer_ != null) {
+				buffer_.write(b);
+				checkSize();
+			}
+		}
+		@Override
+		public void write(final byte[] b, final int off, final int len)
+			throws IOException {
+			destination_.write(b, off, len);
+			if(buffer_ != null) {
+				buffer_.write(b, off, len);
+				checkSize();
+			}
+		}
+		@Override
+		public void flush() throws IOException {
+			destination_.flush();
+		}
+		private void checkSize() {
+			if(buffer_.size() > maxSize_) {
+				buffer_ = null;
+			}
+		}
+		private boolean isOverflowed() {
+			return buffer_ == null;
+		}
+		private byte[] toByteArray() {
+			return buffer_.toByteArray();
+		}
+	}
+
+}
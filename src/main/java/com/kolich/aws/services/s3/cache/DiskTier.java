@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.cache;
+
+import com.kolich.aws.KolichAwsException;
+import org.apache.http.Header;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * The local disk tier.  Each object is written once to its own file in
+ * the cache directory and then memory-mapped, so a hit is a copy out of
+ * the page cache with no read system calls.  The files live in a
+ * subdirectory of the given directory that this tier owns.  The index
+ * lives in memory only; files left behind there by a previous process
+ * are deleted on startup, anything else in it is never touched.
+ */
+final class DiskTier extends CacheTier<DiskTier.MappedObject> {
+	
+	private static final String CACHE_SUBDIRECTORY = "kolich-aws-s3-cache";
+	private static final String CACHE_FILE_FORMAT = "%016x.obj";
+	private static final String CACHE_FILE_GLOB =
+		"[0-9a-f][0-9a-f][0-9a-f][0-9a-f][0-9a-f][0-9a-f][0-9a-f][0-9a-f]" +
+		"[0-9a-f][0-9a-f][0-9a-f][0-9a-f][0-9a-f][0-9a-f][0-9a-f][0-9a-f]" +
+		".obj";
+	
+	static final class MappedObject {
+		private final Path file_;
+		private final MappedByteBuffer buffer_;
+		private final String eTag_;
+		private final List<Header> headers_;
+		private final long validatedAt_;
+		private MappedObject(final Path file,
+                             final MappedByteBuffer buffer,
+                             final CachedObject object) {
+			file_ = file;
+			buffer_ = buffer;
+			eTag_ = object.getETag();
+			headers_ = object.getHeaders();
+			validatedAt_ = object.getValidatedAt();
+		}
+	}
+	
+	private final Path directory_;
+	private final AtomicLong sequence_;
+	
+	DiskTier(final File directory, final long maxBytes) {
+		super(maxBytes);
+		directory_ = directory.toPath().resolve(CACHE_SUBDIRECTORY);
+		sequence_ = new AtomicLong();
+		try {
+			Files.createDirectories(directory_);
+			// Only ever files this tier could have written, never anything
+			// else someone put in here.
+			try(final DirectoryStream<Path> stale = Files.newDirectoryStream(
+				directory_, CACHE_FILE_GLOB)) {
+				for(final Path file : stale) {
+					if(Files.isRegularFile(file)) {
+						Files.deleteIfExists(file);
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new KolichAwsException("Failed to prepare disk cache " +
+				"directory (directory=" + directory_ + ")", e);
+		}
+	}
+	
+	@Override
+	long weigh(final MappedObject value) {
+		return value.buffer_.capacity();
+	}
+	
+	@Override
+	void evicted(final String key, final MappedObject value) {
+		delete(value);
+	}
+	
+	@Override
+	void removed(final String key, final MappedObject value) {
+		delete(value);
+	}
+	
+	final CachedObject get(final String key) {
+		final MappedObject mapped = getEntry(key);
+		if(mapped == null) {
+			return null;
+		}
+		// Duplicate so concurrent readers each get their own position.
+		final ByteBuffer buffer = mapped.buffer_.duplicate();
+		final byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return new CachedObject(mapped.eTag_, mapped.headers_, bytes,
+			mapped.validatedAt_);
+	}
+	
+	final void put(final String key, final CachedObject object) {
+		final MappedObject existing = getEntry(key);
+		if(existing != null && existing.eTag_ != null &&
+			existing.eTag_.equals(object.getETag())) {
+			// Already on disk, typically an object that was promoted to
+			// the heap on a disk hit and is now being demoted again.
+			return;
+		}
+		final Path file = directory_.resolve(String.format(CACHE_FILE_FORMAT,
+			sequence_.incrementAndGet()));
+		try(final FileChannel channel = FileChannel.open(file, CREATE_NEW,
+			READ, WRITE)) {
+			final ByteBuffer source = ByteBuffer.wrap(object.getBytes());
+			while(source.hasRemaining()) {
+				channel.write(source);
+			}
+			// The mapping stays valid after the channel is closed.
+			final MappedByteBuffer buffer = channel.map(READ_ONLY, 0L,
+				object.getBytes().length);
+			putEntry(key, new MappedObject(file, buffer, object));
+		} catch (IOException e) {
+			// The disk tier is strictly best effort, a full or broken disk
+			// only ever costs a cache miss.
+			deleteQuietly(file);
+		}
+	}
+	
+	private static final void delete(final MappedObject object) {
+		// On every platform that matters the mapping survives the unlink,
+		// so a reader copying out of it right now is unaffected.
+		deleteQuietly(object.file_);
+	}
+	
+	private static final void deleteQuietly(final Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			// Best effort, it'll be cleaned up on the next startup.
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.cache;
+
+/**
+ * A 4-bit count-min sketch estimating how often each key has been seen
+ * recently, the "TinyLFU" half of W-TinyLFU.  Sixteen counters are packed
+ * into each long, each key maps to four of them, and its frequency is the
+ * smallest of the four.  Once enough increments have been recorded every
+ * counter is halved, so popularity decays and yesterday's hot keys don't
+ * crowd out today's.  Not thread safe, callers must synchronize.
+ */
+final class FrequencySketch {
+	
+	private static final long[] SEEDS = {
+		0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+		0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final int MAX_COUNT = 15;
+	
+	private final long[] table_;
+	private final int tableMask_;
+	private final int sampleSize_;
+	
+	private int size_;
+	
+	/**
+	 * @param expectedEntries the number of entries the cache is expected
+	 * to hold, the sketch is sized to keep estimates accurate for about
+	 * this many distinct keys
+	 */
+	FrequencySketch(final int expectedEntries) {
+		final int capacity = Math.max(16, Math.min(expectedEntries, 1 << 24));
+		table_ = new long[Integer.highestOneBit(capacity - 1) << 1];
+		tableMask_ = table_.length - 1;
+		sampleSize_ = 10 * capacity;
+	}
+	
+	final int frequency(final Object key) {
+		final int hash = spread(key.hashCode());
+		int frequency = MAX_COUNT;
+		for(int i = 0; i < SEEDS.length; i++) {
+			final long h = indexHash(hash, i);
+			final int index = (int)(h >>> 32) & tableMask_;
+			final int offset = (int)(h & 15L) << 2;
+			frequency = Math.min(frequency,
+				(int)((table_[index] >>> offset) & 15L));
+		}
+		return frequency;
+	}
+	
+	final void increment(final Object key) {
+		final int hash = spread(key.hashCode());
+		boolean added = false;
+		for(int i = 0; i < SEEDS.length; i++) {
+			final long h = indexHash(hash, i);
+			final int index = (int)(h >>> 32) & tableMask_;
+			final int offset = (int)(h & 15L) << 2;
+			if(((table_[index] >>> offset) & 15L) < MAX_COUNT) {
+				table_[index] += (1L << offset);
+				added = true;
+			}
+		}
+		if(added && ++size_ >= sampleSize_) {
+			reset();
+		}
+	}
+	
+	/**
+	 * Halves every counter, aging out frequencies that are no longer
+	 * being refreshed.
+	 */
+	private final void reset() {
+		for(int i = 0; i < table_.length; i++) {
+			table_[i] = (table_[i] >>> 1) & RESET_MASK;
+		}
+		size_ >>>= 1;
+	}
+	
+	private static final long indexHash(final int hash, final int i) {
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += (h >>> 32);
+		return h;
+	}
+	
+	/**
+	 * Guards against poor quality hash codes.
+	 */
+	private static final int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.cache;
+
+/**
+ * The in-heap tier.  Objects evicted from here are demoted to the disk
+ * tier, if there is one, rather than being dropped outright.
+ */
+final class HeapTier extends CacheTier<CachedObject> {
+	
+	private final DiskTier disk_;
+	
+	HeapTier(final long maxBytes, final DiskTier disk) {
+		super(maxBytes);
+		disk_ = disk;
+	}
+	
+	@Override
+	long weigh(final CachedObject value) {
+		return value.getWeight();
+	}
+	
+	@Override
+	void evicted(final String key, final CachedObject value) {
+		if(disk_ != null) {
+			disk_.put(key, value);
+		}
+	}
+	
+	@Override
+	void removed(final String key, final CachedObject value) {
+		// Nothing to clean up, the object is simply garbage.
+	}
+	
+	final CachedObject get(final String key) {
+		return getEntry(key);
+	}
+	
+	final void put(final String key, final CachedObject object) {
+		putEntry(key, object);
+	}
+
+}
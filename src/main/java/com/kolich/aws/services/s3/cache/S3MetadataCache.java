@@ -0,0 +1,214 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.cache;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.kolich.aws.KolichAwsException;
+import com.kolich.aws.concurrent.SingleFlight;
+import com.kolich.common.functional.either.Either;
+import com.kolich.common.functional.either.Left;
+import com.kolich.common.functional.either.Right;
+import com.kolich.http.common.response.HttpFailure;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.apache.http.HttpStatus.SC_NOT_FOUND;
+
+/**
+ * Caches the result of HEAD requests, keyed by bucket and key.  An object
+ * that exists is remembered for the positive TTL; an object that doesn't
+ * (a 404) is remembered, along with the failure S3 returned, for the
+ * usually much shorter negative TTL.  Any other failure is never cached.
+ * Concurrent lookups of the same missing key share a single HEAD.
+ */
+final class S3MetadataCache {
+	
+	/**
+	 * A positive entry has metadata, a negative one has the 404 instead.
+	 */
+	private static final class Entry {
+		private final ObjectMetadata metadata_;
+		private final HttpFailure notFound_;
+		private final long expiresAt_;
+		private Entry(final ObjectMetadata metadata,
+                      final HttpFailure notFound,
+                      final long expiresAt) {
+			metadata_ = metadata;
+			notFound_ = notFound;
+			expiresAt_ = expiresAt;
+		}
+		private Either<HttpFailure,ObjectMetadata> toEither() {
+			return (metadata_ != null) ?
+				Right.<HttpFailure,ObjectMetadata>right(metadata_) :
+				Left.<HttpFailure,ObjectMetadata>left(notFound_);
+		}
+	}
+	
+	private final Cache<String,Entry> entries_;
+	private final long ttlMillis_;
+	private final long negativeTtlMillis_;
+	private final SingleFlight<String,Either<HttpFailure,ObjectMetadata>> inFlight_;
+	
+	/**
+	 * Bumped on every invalidation, so that a HEAD which was already in
+	 * flight when its key was written to can't cache what it saw before,
+	 * while HEADs of other keys are unaffected.
+	 */
+	private final WriteGenerations generations_;
+	
+	private final AtomicLong hits_;
+	private final AtomicLong negativeHits_;
+	private final AtomicLong misses_;
+	
+	S3MetadataCache(final long maxEntries,
+                    final long ttlMillis,
+                    final long negativeTtlMillis) {
+		ttlMillis_ = ttlMillis;
+		negativeTtlMillis_ = negativeTtlMillis;
+		// Each entry carries its own expiry, this just makes sure expired
+		// entries don't linger around taking up space.
+		entries_ = CacheBuilder.newBuilder()
+			.maximumSize(maxEntries)
+			.expireAfterWrite(Math.max(1L, Math.max(ttlMillis, negativeTtlMillis)),
+				MILLISECONDS)
+			.build();
+		inFlight_ = new SingleFlight<String,Either<HttpFailure,ObjectMetadata>>();
+		generations_ = new WriteGenerations();
+		hits_ = new AtomicLong();
+		negativeHits_ = new AtomicLong();
+		misses_ = new AtomicLong();
+	}
+	
+	/**
+	 * Returns the cached metadata for the key, or loads it with the given
+	 * HEAD request and caches the result.
+	 */
+	final Either<HttpFailure,ObjectMetadata> get(final String cacheKey,
+                                                 final Callable<Either<HttpFailure,ObjectMetadata>> head) {
+		final Entry entry = entries_.getIfPresent(cacheKey);
+		if(entry != null && entry.expiresAt_ > currentTimeMillis()) {
+			if(entry.metadata_ != null) {
+				hits_.incrementAndGet();
+			} else {
+				negativeHits_.incrementAndGet();
+			}
+			return entry.toEither();
+		}
+		// A lookup that starts after a write never joins a HEAD that was
+		// already in flight before it.
+		final long generation = generations_.get(cacheKey);
+		try {
+			return inFlight_.execute(cacheKey + "@" + generation,
+				new Callable<Either<HttpFailure,ObjectMetadata>>() {
+				@Override
+				public Either<HttpFailure,ObjectMetadata> call() throws Exception {
+					misses_.incrementAndGet();
+					final Either<HttpFailure,ObjectMetadata> result = head.call();
+					if(result.success()) {
+						if(ttlMillis_ > 0L) {
+							putIfUnwritten(cacheKey, new Entry(result.right(),
+								null, currentTimeMillis() + ttlMillis_),
+								generation);
+						}
+					} else if(result.left().getStatusCode() == SC_NOT_FOUND &&
+						negativeTtlMillis_ > 0L) {
+						putIfUnwritten(cacheKey, new Entry(null, result.left(),
+							currentTimeMillis() + negativeTtlMillis_),
+							generation);
+					}
+					return result;
+				}
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KolichAwsException("Interrupted while waiting on " +
+				"HEAD (key=" + cacheKey + ")", e);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new KolichAwsException(e);
+		}
+	}
+	
+	final void put(final String cacheKey, final ObjectMetadata metadata) {
+		if(ttlMillis_ > 0L) {
+			entries_.put(cacheKey, new Entry(metadata, null,
+				currentTimeMillis() + ttlMillis_));
+		}
+	}
+	
+	private final void putIfUnwritten(final String cacheKey,
+                                      final Entry entry,
+                                      final long generation) {
+		if(generation != generations_.get(cacheKey)) {
+			// Something was written meanwhile, don't trust it.
+			return;
+		}
+		entries_.put(cacheKey, entry);
+		if(generation != generations_.get(cacheKey)) {
+			// Written while this was going in, the write's invalidation
+			// may have run before the put.
+			entries_.invalidate(cacheKey);
+		}
+	}
+	
+	final void invalidate(final String cacheKey) {
+		generations_.bump(cacheKey);
+		entries_.invalidate(cacheKey);
+	}
+	
+	final void invalidatePrefix(final String cacheKeyPrefix) {
+		generations_.bumpAll();
+		for(final String cacheKey : entries_.asMap().keySet()) {
+			if(cacheKey.startsWith(cacheKeyPrefix)) {
+				entries_.invalidate(cacheKey);
+			}
+		}
+	}
+	
+	final long getHitCount() {
+		return hits_.get();
+	}
+	
+	final long getNegativeHitCount() {
+		return negativeHits_.get();
+	}
+	
+	final long getMissCount() {
+		return misses_.get();
+	}
+	
+	final long size() {
+		return entries_.size();
+	}
+
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.cache;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The bookkeeping half of a weight-bounded W-TinyLFU cache: tracks which
+ * keys are resident and decides which get evicted, leaving the storage of
+ * the values themselves to the caller.
+ * 
+ * New keys enter a small LRU "window" (1% of the capacity) which absorbs
+ * bursts of one-hit wonders.  Keys pushed out of the window must then win
+ * admission into the main space against the main space's own LRU victim,
+ * by having been seen more often according to a {@link FrequencySketch}.
+ * The main space is a segmented LRU: keys start out on probation and are
+ * promoted to the protected segment (80% of the main space) on their next
+ * hit.  Not thread safe, callers must synchronize.
+ */
+final class TinyLfuPolicy<K> {
+	
+	private static final int WINDOW_PERCENT = 1;
+	private static final int PROTECTED_PERCENT = 80;
+	
+	/**
+	 * A rough guess at the average entry size, only used to size the
+	 * frequency sketch.
+	 */
+	private static final long EXPECTED_AVERAGE_WEIGHT = 16L * 1024L;
+	
+	private final long maxWeight_;
+	private final long maxWindowWeight_;
+	private final long maxMainWeight_;
+	private final long maxProtectedWeight_;
+	
+	private final FrequencySketch sketch_;
+	
+	private final LinkedHashMap<K,Long> window_;
+	private final LinkedHashMap<K,Long> probation_;
+	private final LinkedHashMap<K,Long> protected_;
+	
+	private long windowWeight_;
+	private long probationWeight_;
+	private long protectedWeight_;
+	
+	TinyLfuPolicy(final long maxWeight) {
+		maxWeight_ = maxWeight;
+		maxWindowWeight_ = Math.max(1L, maxWeight * WINDOW_PERCENT / 100L);
+		maxMainWeight_ = maxWeight - maxWindowWeight_;
+		maxProtectedWeight_ = maxMainWeight_ * PROTECTED_PERCENT / 100L;
+		sketch_ = new FrequencySketch((int)Math.min(Integer.MAX_VALUE,
+			maxWeight / EXPECTED_AVERAGE_WEIGHT));
+		window_ = Maps.newLinkedHashMap();
+		probation_ = Maps.newLinkedHashMap();
+		protected_ = Maps.newLinkedHashMap();
+	}
+	
+	/**
+	 * Records a hit on a resident key.
+	 */
+	final void touch(final K key) {
+		sketch_.increment(key);
+		Long weight;
+		if((weight = window_.remove(key)) != null) {
+			window_.put(key, weight);
+		} else if((weight = probation_.remove(key)) != null) {
+			probationWeight_ -= weight;
+			protected_.put(key, weight);
+			protectedWeight_ += weight;
+			// Make room in the protected segment by demoting its least
+			// recently used keys back to probation.
+			while(protectedWeight_ > maxProtectedWeight_ && protected_.size() > 1) {
+				final Map.Entry<K,Long> eldest = removeEldest(protected_);
+				protectedWeight_ -= eldest.getValue();
+				probation_.put(eldest.getKey(), eldest.getValue());
+				probationWeight_ += eldest.getValue();
+			}
+		} else if((weight = protected_.remove(key)) != null) {
+			protected_.put(key, weight);
+		}
+	}
+	
+	/**
+	 * Adds a new key, returning every key that was evicted to make room.
+	 * The returned keys may include the new key itself if it was not
+	 * admitted.
+	 */
+	final List<K> add(final K key, final long weight) {
+		sketch_.increment(key);
+		final List<K> evicted = Lists.newArrayListWithCapacity(2);
+		if(weight > maxWeight_) {
+			evicted.add(key);
+			return evicted;
+		}
+		window_.put(key, weight);
+		windowWeight_ += weight;
+		while(windowWeight_ > maxWindowWeight_ && !window_.isEmpty()) {
+			final Map.Entry<K,Long> candidate = removeEldest(window_);
+			windowWeight_ -= candidate.getValue();
+			admit(candidate.getKey(), candidate.getValue(), evicted);
+		}
+		return evicted;
+	}
+	
+	final void remove(final K key) {
+		Long weight;
+		if((weight = window_.remove(key)) != null) {
+			windowWeight_ -= weight;
+		} else if((weight = probation_.remove(key)) != null) {
+			probationWeight_ -= weight;
+		} else if((weight = protected_.remove(key)) != null) {
+			protectedWeight_ -= weight;
+		}
+	}
+	
+	final long weight() {
+		return windowWeight_ + probationWeight_ + protectedWeight_;
+	}
+	
+	/**
+	 * Moves a candidate out of the window into the main space if it has
+	 * been seen more often than the main space's victim, the eldest key
+	 * on probation.  The decision is made once, up front, so a candidate
+	 * that loses never costs a resident key its place; one that wins
+	 * evicts as many keys as it needs room for.
+	 */
+	private final void admit(final K candidate,
+                             final long weight,
+                             final List<K> evicted) {
+		if(weight > maxMainWeight_) {
+			evicted.add(candidate);
+			return;
+		}
+		if(probationWeight_ + protectedWeight_ + weight > maxMainWeight_ &&
+			sketch_.frequency(candidate) <= sketch_.frequency(nextVictim())) {
+			evicted.add(candidate);
+			return;
+		}
+		while(probationWeight_ + protectedWeight_ + weight > maxMainWeight_) {
+			final boolean fromProbation = !probation_.isEmpty();
+			final Map.Entry<K,Long> victim = removeEldest(fromProbation ?
+				probation_ : protected_);
+			if(fromProbation) {
+				probationWeight_ -= victim.getValue();
+			} else {
+				protectedWeight_ -= victim.getValue();
+			}
+			evicted.add(victim.getKey());
+		}
+		probation_.put(candidate, weight);
+		probationWeight_ += weight;
+	}
+	
+	/**
+	 * The key the main space evicts first, the eldest on probation or,
+	 * with probation empty, the eldest protected key.
+	 */
+	private final K nextVictim() {
+		return (!probation_.isEmpty() ? probation_ : protected_)
+			.keySet().iterator().next();
+	}
+	
+	private static final <K> Map.Entry<K,Long> removeEldest(final LinkedHashMap<K,Long> segment) {
+		final Iterator<Map.Entry<K,Long>> it = segment.entrySet().iterator();
+		final Map.Entry<K,Long> next = it.next();
+		final Map.Entry<K,Long> eldest = Maps.immutableEntry(next.getKey(),
+			next.getValue());
+		it.remove();
+		return eldest;
+	}
+
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts writes per key, so that a read can tell whether its key was
+ * written to while the read was in flight, and if so not cache what it
+ * saw.  Keys are hashed onto a fixed number of stripes, so a write to one
+ * key only rarely, and harmlessly, looks like a write to another.  A
+ * write to a whole prefix counts as a write to every key.
+ */
+final class WriteGenerations {
+	
+	private static final int STRIPES = 4096;
+	
+	private final AtomicLongArray stripes_;
+	private final AtomicLong all_;
+	
+	WriteGenerations() {
+		stripes_ = new AtomicLongArray(STRIPES);
+		all_ = new AtomicLong();
+	}
+	
+	/**
+	 * The key's generation, which changes with every write to it.  Both
+	 * counters only ever go up, so their sum does too.
+	 */
+	final long get(final String cacheKey) {
+		return stripes_.get(stripe(cacheKey)) + all_.get();
+	}
+	
+	final void bump(final String cacheKey) {
+		stripes_.incrementAndGet(stripe(cacheKey));
+	}
+	
+	final void bumpAll() {
+		all_.incrementAndGet();
+	}
+	
+	private static final int stripe(final String cacheKey) {
+		final int h = cacheKey.hashCode();
+		return (h ^ (h >>> 16)) & (STRIPES - 1);
+	}
+
+}
@@ -28,54 +28,95 @@ package com.kolich.aws.services.s3.impl;
 
 import com.amazonaws.services.s3.internal.XmlWriter;
 import com.amazonaws.services.s3.model.Bucket;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
 import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.model.transform.Unmarshallers;
+import com.amazonaws.services.s3.model.transform.XmlResponsesSaxParser;
+import com.amazonaws.services.s3.model.transform.XmlResponsesSaxParser.CompleteMultipartUploadHandler;
+import com.amazonaws.services.s3.model.transform.XmlResponsesSaxParser.CopyObjectResultHandler;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.kolich.aws.KolichAwsException;
+import com.kolich.aws.concurrent.BoundedExecutor;
 import com.kolich.aws.services.AbstractAwsService;
 import com.kolich.aws.services.AbstractAwsSigner;
+import com.kolich.aws.services.s3.S3BatchCallback;
 import com.kolich.aws.services.s3.S3Client;
+import com.kolich.aws.services.s3.S3ObjectVisitor;
 import com.kolich.aws.services.s3.S3Region;
 import com.kolich.aws.transport.AwsHttpRequest;
+import com.kolich.aws.transport.DefaultEndpointResolver;
+import com.kolich.aws.transport.EndpointResolver;
 import com.kolich.common.functional.either.Either;
+import com.kolich.common.functional.either.Left;
 import com.kolich.common.functional.option.None;
 import com.kolich.common.functional.option.Option;
 import com.kolich.common.functional.option.Some;
 import com.kolich.http.common.response.HttpFailure;
 import com.kolich.http.common.response.HttpSuccess;
 import org.apache.http.Header;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.protocol.HttpContext;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.regex.Pattern;
 
 import static com.amazonaws.services.s3.internal.Constants.XML_NAMESPACE;
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.base.Strings.nullToEmpty;
+import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
 import static com.kolich.aws.services.s3.S3Region.US_EAST;
 import static com.kolich.aws.transport.AwsHeaders.*;
 import static com.kolich.common.util.URLEncodingUtils.urlDecode;
 import static com.kolich.common.util.URLEncodingUtils.urlEncode;
+import static com.kolich.common.util.crypt.Base64Utils.encodeBase64ToString;
 import static java.util.regex.Pattern.compile;
 import static java.util.regex.Pattern.quote;
+import static org.apache.commons.codec.digest.DigestUtils.md5;
 import static org.apache.commons.io.IOUtils.copyLarge;
+import static org.apache.http.HttpHeaders.CONTENT_LENGTH;
+import static org.apache.http.HttpHeaders.CONTENT_MD5;
 import static org.apache.http.HttpHeaders.CONTENT_TYPE;
+import static org.apache.http.HttpHeaders.IF_NONE_MATCH;
+import static org.apache.http.HttpHeaders.LAST_MODIFIED;
+import static org.apache.http.HttpStatus.SC_NOT_MODIFIED;
 import static org.apache.http.HttpStatus.SC_NO_CONTENT;
 import static org.apache.http.HttpStatus.SC_OK;
+import static org.apache.http.client.utils.DateUtils.parseDate;
 
 public final class KolichS3Client extends AbstractAwsService
     implements S3Client {
+	
+	private static final String S3_SERVICE_NAME = "s3";
 	    
     /**
      * Specifies the key to start with when listing objects in a bucket.
@@ -91,6 +132,48 @@ public final class KolichS3Client extends AbstractAwsService
      */
     private static final String S3_PARAM_PREFIX = "prefix";
     
+    /**
+     * Groups keys that share the same prefix up to the first occurrence
+     * of this character after the prefix into a single "common prefix"
+     * result element.
+     */
+    private static final String S3_PARAM_DELIMITER = "delimiter";
+    
+    /**
+     * Sub-resource that turns a bucket POST into a Multi-Object Delete.
+     */
+    private static final String S3_PARAM_DELETE = "delete";
+    
+    /**
+     * A single Multi-Object Delete request can name at most 1000 keys.
+     */
+    static final int S3_MAX_KEYS_PER_DELETE = 1000;
+    
+    /**
+     * Sub-resources of the multipart upload API, used here to copy objects
+     * too large for a single server-side copy.
+     */
+    private static final String S3_PARAM_UPLOADS = "uploads";
+    
+    /**
+     * Asks for the region a bucket lives in.
+     */
+    private static final String S3_PARAM_LOCATION = "location";
+    private static final String S3_PARAM_UPLOAD_ID = "uploadId";
+    private static final String S3_PARAM_PART_NUMBER = "partNumber";
+    
+    /**
+     * Objects larger than 5 GB cannot be copied with a single PUT and must
+     * be copied in parts with UploadPartCopy instead.
+     */
+    static final long S3_MAX_SINGLE_COPY_SIZE = 5L * 1024L * 1024L * 1024L;
+    
+    /**
+     * The default number of requests a single batch operation is allowed
+     * to have in flight at any one time.
+     */
+    private static final int DEFAULT_BATCH_CONCURRENCY = 32;
+    
     /**
      * Bucket names can ONLY contain lowercase letters, numbers, periods (.),
      * underscores (_), and dashes (-). Bucket names MUST start with a number
@@ -99,16 +182,87 @@ public final class KolichS3Client extends AbstractAwsService
     private static final Pattern VALID_BUCKET_NAME_PATTERN =
     	compile("\\A[a-z0-9]{1}[a-z0-9_\\-\\.]{1,253}[a-z0-9]{1}\\Z");
 	
+	/**
+	 * The standard headers S3 stores with an object and sends back with
+	 * it, in lower case.
+	 */
+	private static final Set<String> OBJECT_HEADERS = ImmutableSet.of(
+		"content-type", "content-encoding", "content-disposition",
+		"content-language", "cache-control", "expires");
+	
+	/**
+	 * The order S3 lists keys in.  S3 sorts keys by their UTF-8 bytes,
+	 * which is equivalent to sorting by Unicode code point, but not to
+	 * {@link String#compareTo(String)} which compares UTF-16 code units.
+	 */
+	public static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+		@Override
+		public int compare(final String a, final String b) {
+			int i = 0, j = 0;
+			while(i < a.length() && j < b.length()) {
+				final int ca = a.codePointAt(i), cb = b.codePointAt(j);
+				if(ca != cb) {
+					return (ca < cb) ? -1 : 1;
+				}
+				i += Character.charCount(ca);
+				j += Character.charCount(cb);
+			}
+			return (a.length() - i) - (b.length() - j);
+		}
+	};
+	
 	private final HttpClient client_;
 
     private final S3Region region_;
+    
+    private final S3BucketEndpointResolver bucketEndpoints_;
+    
+    private final ListeningExecutorService executor_;
 	
+	/**
+	 * Buckets found to live in another region, from redirects or a
+	 * location lookup, are sent straight there from then on.
+	 * @param region the region new buckets are created in
+	 * @param endpointResolver where requests are sent, see
+	 * {@link DefaultEndpointResolver} for plain HTTP, VPC and local
+	 * endpoints and path-style bucket addressing
+	 */
 	public KolichS3Client(final HttpClient client,
                           final AbstractAwsSigner signer,
-                          final S3Region region) {
-		super(signer, region.getApiEndpoint());
+                          final S3Region region,
+                          final EndpointResolver endpointResolver,
+                          final ExecutorService executor) {
+		this(client, signer, region, new S3BucketEndpointResolver(
+			checkNotNull(endpointResolver, "Endpoint resolver cannot be " +
+				"null.")), executor);
+	}
+	
+	private KolichS3Client(final HttpClient client,
+                           final AbstractAwsSigner signer,
+                           final S3Region region,
+                           final S3BucketEndpointResolver bucketEndpoints,
+                           final ExecutorService executor) {
+		super(signer, bucketEndpoints);
 		client_ = client;
         region_ = region;
+        bucketEndpoints_ = bucketEndpoints;
+        executor_ = listeningDecorator(checkNotNull(executor,
+            "Batch executor cannot be null."));
+        addInterceptor(new S3RedirectInterceptor(bucketEndpoints_));
+	}
+	
+	public KolichS3Client(final HttpClient client,
+                          final AbstractAwsSigner signer,
+                          final S3Region region,
+                          final ExecutorService executor) {
+		this(client, signer, region,
+			new DefaultEndpointResolver(region.getApiEndpoint()), executor);
+	}
+	
+	public KolichS3Client(final HttpClient client,
+                          final AbstractAwsSigner signer,
+                          final S3Region region) {
+		this(client, signer, region, BoundedExecutor.getDefaultExecutor());
 	}
 	
 	public KolichS3Client(final HttpClient client,
@@ -124,44 +278,155 @@ public final class KolichS3Client extends AbstractAwsService
 		this(client, new KolichS3Signer(key, secret), US_EAST);
 	}
 	
+	@Override
+	protected String getServiceName() {
+		return S3_SERVICE_NAME;
+	}
+	
+	/**
+	 * Lists buckets, which is signed, read-only and cheap.
+	 */
+	@Override
+	protected Option<HttpFailure> warmUpRequest() {
+		final Either<HttpFailure,List<Bucket>> result = listBuckets();
+		return result.success() ? None.<HttpFailure>none() :
+			Some.<HttpFailure>some(result.left());
+	}
+	
+	/**
+	 * Warms this client up for requests to the given bucket, see
+	 * {@link #warmUpAsync(int)}.  Requests for a bucket go to its own
+	 * virtual host, and often its own region, rather than the endpoint
+	 * the default warm up lists buckets on.  So this sends HEAD Bucket
+	 * requests instead, opening connections on the very routes real
+	 * requests for the bucket will use.
+	 */
+	public ListenableFuture<Option<HttpFailure>> warmUpAsync(final String bucketName,
+                                                             final int connections) {
+		checkNotNull(bucketName, "Bucket name cannot be null.");
+		return warmUpAsync(connections, new Callable<Option<HttpFailure>>() {
+			@Override
+			public Option<HttpFailure> call() throws Exception {
+				return headBucket(bucketName);
+			}
+		});
+	}
+	
+	/**
+	 * Warms this client up for requests to the given bucket, see
+	 * {@link #warmUpAsync(String, int)}, blocking until it is warm.
+	 */
+	public Option<HttpFailure> warmUp(final String bucketName,
+                                      final int connections) {
+		return awaitWarmUp(warmUpAsync(bucketName, connections));
+	}
+	
+	/**
+	 * HEAD's a bucket, which is signed, read-only and cheap.
+	 */
+	private final Option<HttpFailure> headBucket(final String bucketName) {
+		final Either<HttpFailure,Void> result = new AwsS3HttpClosure<Void>(
+			client_, SC_OK, bucketName) {
+			@Override
+			public void validate() throws Exception {
+				checkState(isValidBucketName(bucketName), "Invalid bucket name, " +
+					"did not match expected bucket name pattern.");
+			}
+		}.head();
+		return result.success() ? None.<HttpFailure>none() :
+			Some.<HttpFailure>some(result.left());
+	}
+	
+	/**
+	 * S3 is a REST API, the operation is implied by the method, whether
+	 * the request addresses a bucket or a key, and its sub-resource.
+	 */
+	@Override
+	protected String getOperationName(final AwsHttpRequest request) {
+		final HttpRequestBase base = request.getRequestBase();
+		final String query = nullToEmpty(request.getURI().getRawQuery());
+		final String path = request.getURI().getRawPath();
+		// Path-style, the path starts with "/bucket", which isn't a key.
+		final boolean isKey = !SLASH_STRING.equals(
+			request.isResourceInPath() ?
+				path.substring(request.getResource().length() + 1) : path);
+		switch(request.getMethod()) {
+			case "GET":
+				if(request.getResource() == null) {
+					return "ListBuckets";
+				} else if(!isKey && hasSubResource(query, S3_PARAM_LOCATION)) {
+					return "GetBucketLocation";
+				}
+				return isKey ? "GetObject" : "ListObjects";
+			case "HEAD":
+				return isKey ? "HeadObject" : "HeadBucket";
+			case "PUT":
+				if(base.containsHeader(S3_COPY_SOURCE)) {
+					return hasSubResource(query, S3_PARAM_UPLOAD_ID) ?
+						"UploadPartCopy" : "CopyObject";
+				}
+				return isKey ? "PutObject" : "CreateBucket";
+			case "POST":
+				if(hasSubResource(query, S3_PARAM_DELETE)) {
+					return "DeleteObjects";
+				} else if(hasSubResource(query, S3_PARAM_UPLOADS)) {
+					return "CreateMultipartUpload";
+				}
+				return "CompleteMultipartUpload";
+			case "DELETE":
+				if(hasSubResource(query, S3_PARAM_UPLOAD_ID)) {
+					return "AbortMultipartUpload";
+				}
+				return isKey ? "DeleteObject" : "DeleteBucket";
+			default:
+				return request.getMethod();
+		}
+	}
+	
 	private abstract class AwsS3HttpClosure<S> extends AwsBaseHttpClosure<S> {
-		private final String bucketName_;
 		public AwsS3HttpClosure(final HttpClient client,
                                 final int expectStatus,
                                 final String bucketName) {
-			super(client, expectStatus);
-			bucketName_ = bucketName;
+			super(client, expectStatus, bucketName);
 		}
 		public AwsS3HttpClosure(final HttpClient client,
                                 final int expectStatus) {
 			this(client, expectStatus, null);
 		}
 		@Override
-		public final void before(final HttpRequestBase request) throws Exception {
-			final AwsHttpRequest wrapped = new AwsHttpRequest(request, bucketName_);
-			validate();
-			prepare(wrapped);
-			signRequest(wrapped);
-		}
-		public void validate() throws Exception {
-			// Default, nothing.
-		}
-		public void prepare(final AwsHttpRequest request) throws Exception {
-			// Default, nothing.
-		}
-		@Override
 		public S success(final HttpSuccess success) throws Exception {
 			return null; // Default, return null on success.
 		}		
 		public final Either<HttpFailure,S> head(final String... path) {
 			return super.head(buildPath(path));
 		}
+		public final Either<HttpFailure,S> head() {
+			return head((String[])null);
+		}
+		public final Either<HttpFailure,S> headKey(final String key) {
+			return super.head(buildKeyPath(key));
+		}
 		public final Either<HttpFailure,S> get(final String... path) {
 			return super.get(buildPath(path));
 		}
 		public final Either<HttpFailure,S> get() {
 			return get((String[])null);
 		}
+		public final Either<HttpFailure,S> getKey(final String key) {
+			return super.get(buildKeyPath(key));
+		}
+		public final Either<HttpFailure,S> post(final String... path) {
+			return super.post(buildPath(path));
+		}
+		public final Either<HttpFailure,S> post() {
+			return post((String[])null);
+		}
+		public final Either<HttpFailure,S> postKey(final String key) {
+			return super.post(buildKeyPath(key));
+		}
+		public final Either<HttpFailure,S> putKey(final String key) {
+			return super.put(buildKeyPath(key));
+		}
 		public final Either<HttpFailure,S> put(final String... path) {
 			return super.put(buildPath(path));
 		}
@@ -186,12 +451,25 @@ public final class KolichS3Client extends AbstractAwsService
 		public final Option<HttpFailure> deleteOption() {
 			return deleteOption((String[])null);
 		}
+		public final Option<HttpFailure> deleteKeyOption(final String key) {
+			final Either<HttpFailure,S> either = super.delete(buildKeyPath(key));
+			return either.success() ?
+				None.<HttpFailure>none() :
+				Some.<HttpFailure>some(either.left());
+		}
 		private final String buildPath(final String... path) {
-			final StringBuilder sb = new StringBuilder(SLASH_STRING);
-			if(path != null && path.length > 0) {
-				sb.append(urlEncode(varargsToPathString(path)));
-			}
-			return sb.toString();
+			return (path != null && path.length > 0) ?
+				buildKeyPath(varargsToPathString(path)) :
+				SLASH_STRING;
+		}
+		/**
+		 * Keys are sent as a single URL-encoded path component, exactly as
+		 * {@link #buildPath(String...)} sends the key it builds from a
+		 * varargs path, so a key read back out of a listing addresses the
+		 * very same object.
+		 */
+		private final String buildKeyPath(final String key) {
+			return SLASH_STRING + urlEncode(key);
 		}
 	}
 	    
@@ -238,6 +516,79 @@ public final class KolichS3Client extends AbstractAwsService
 		}.get();
 	}
 	
+	/**
+	 * Lists objects whose raw key begins with the given prefix, optionally
+	 * rolling keys up into common prefixes at the given delimiter.  Unlike
+	 * {@link #listObjects(String, String, String...)} the prefix is used
+	 * exactly as given, which is what internal callers that already hold
+	 * keys read back from a listing need.
+	 */
+	final Either<HttpFailure,ObjectListing> listObjectsByPrefix(final String bucketName,
+                                                                final String prefix,
+                                                                final String marker,
+                                                                final String delimiter) {
+		return new AwsS3HttpClosure<ObjectListing>(client_, SC_OK, bucketName) {
+			@Override
+			public void validate() throws Exception {
+				checkNotNull(bucketName, "Bucket name cannot be null.");
+				checkState(isValidBucketName(bucketName), "Invalid bucket name, " +
+					"did not match expected bucket name pattern.");
+			}
+			@Override
+			public void prepare(final AwsHttpRequest request) throws Exception {
+				final URIBuilder builder = new URIBuilder(request.getURI());
+				if(marker != null) {
+					builder.addParameter(S3_PARAM_MARKER, marker);
+				}
+				if(prefix != null && !prefix.isEmpty()) {
+					builder.addParameter(S3_PARAM_PREFIX, prefix);
+				}
+				if(delimiter != null) {
+					builder.addParameter(S3_PARAM_DELIMITER, delimiter);
+				}
+				request.setURI(builder.build());
+			}
+			@Override
+			public ObjectListing success(final HttpSuccess success) throws Exception {
+				return new Unmarshallers.ListObjectsUnmarshaller()
+					.unmarshall(success.getContent());
+			}
+		}.get();
+	}
+	
+	@Override
+	public Option<HttpFailure> walkObjects(final String bucketName,
+                                           final String prefix,
+                                           final S3ObjectVisitor visitor) {
+		checkNotNull(visitor, "Visitor cannot be null.");
+		String marker = null;
+		try {
+			while(true) {
+				final Either<HttpFailure,ObjectListing> list =
+					listObjectsByPrefix(bucketName, prefix, marker, null);
+				if(!list.success()) {
+					return Some.<HttpFailure>some(list.left());
+				}
+				final ObjectListing listing = list.right();
+				for(final S3ObjectSummary summary : listing.getObjectSummaries()) {
+					if(!visitor.visit(summary)) {
+						return None.<HttpFailure>none();
+					}
+					marker = summary.getKey();
+				}
+				// Without a delimiter S3 does not hand back a next marker,
+				// the last key on the page is where the next page starts.
+				if(!listing.isTruncated() || marker == null) {
+					return None.<HttpFailure>none();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KolichAwsException("Interrupted while walking " +
+				"objects (bucket=" + bucketName + ", prefix=" + prefix + ")", e);
+		}
+	}
+	
 	@Override
 	public Either<HttpFailure,ObjectListing> listObjects(final String bucketName,
                                                          final String marker) {
@@ -281,7 +632,7 @@ public final class KolichS3Client extends AbstractAwsService
 
 	@Override
 	public Option<HttpFailure> deleteBucket(final String bucketName) {
-    	return new AwsS3HttpClosure<Void>(client_, SC_NO_CONTENT, bucketName) {
+    	final Option<HttpFailure> result = new AwsS3HttpClosure<Void>(client_, SC_NO_CONTENT, bucketName) {
     		@Override
 			public void validate() throws Exception {
 				checkNotNull(bucketName, "Bucket name cannot be null.");
@@ -289,6 +640,79 @@ public final class KolichS3Client extends AbstractAwsService
 					"did not match expected bucket name pattern.");
 			}
     	}.deleteOption();
+    	if(result.isNone()) {
+    		// It may well be recreated in another region.
+    		bucketEndpoints_.forget(bucketName);
+    	}
+    	return result;
+	}
+	
+	@Override
+	public Either<HttpFailure,S3Region> getBucketLocation(final String bucketName) {
+		return new AwsS3HttpClosure<S3Region>(client_, SC_OK, bucketName) {
+			@Override
+			public void validate() throws Exception {
+				checkNotNull(bucketName, "Bucket name cannot be null.");
+				checkState(isValidBucketName(bucketName), "Invalid bucket name, " +
+					"did not match expected bucket name pattern.");
+			}
+			@Override
+			public void prepare(final AwsHttpRequest request) throws Exception {
+				request.setURI(new URIBuilder(request.getURI())
+					.addParameter(S3_PARAM_LOCATION, null).build());
+			}
+			@Override
+			public S3Region success(final HttpSuccess success) throws Exception {
+				final String regionId = new XmlResponsesSaxParser()
+					.parseBucketLocationResponse(success.getContent());
+				final S3Region region = S3Region.fromRegionId(regionId);
+				if(region == null) {
+					throw new KolichAwsException("Bucket " + bucketName +
+						" is in an unknown region: " + regionId);
+				}
+				return region;
+			}
+		}.get();
+	}
+	
+	/**
+	 * Looks up the region the bucket lives in, and sends every later
+	 * request for it straight to that region's endpoint.  Buckets are
+	 * also learned from the redirects S3 answers with when they are
+	 * addressed through the wrong region, this just saves the first
+	 * request to each the extra round trip.
+	 */
+	public Option<HttpFailure> locateBucket(final String bucketName) {
+		final Either<HttpFailure,S3Region> location =
+			getBucketLocation(bucketName);
+		if(!location.success()) {
+			return Some.<HttpFailure>some(location.left());
+		}
+		bucketEndpoints_.learn(bucketName, location.right().getApiEndpoint());
+		return None.<HttpFailure>none();
+	}
+	
+	/**
+	 * The authority requests for each bucket found to live in another
+	 * region are sent to.
+	 */
+	public Map<String,String> getBucketEndpoints() {
+		return bucketEndpoints_.getLearned();
+	}
+	
+	@Override
+	public Option<HttpFailure> deleteBucket(final String bucketName,
+                                            final boolean recursive) {
+		if(recursive) {
+			final Either<HttpFailure,List<DeleteError>> purge =
+				purgeObjects(bucketName, null);
+			if(!purge.success()) {
+				return Some.<HttpFailure>some(purge.left());
+			}
+			// If some keys could not be deleted the bucket is not empty, and
+			// deleting it below fails with a 409 Conflict as it should.
+		}
+		return deleteBucket(bucketName);
 	}
 
 	@Override
@@ -375,6 +799,89 @@ public final class KolichS3Client extends AbstractAwsService
 		return putObject(bucketName, null, object, path);
 	}
 
+	/**
+	 * Puts a single object by its raw key, as read back from a listing.
+	 */
+	final Either<HttpFailure,PutObjectResult> putObjectByKey(final String bucketName,
+                                                             final String key,
+                                                             final byte[] object) {
+		return new AwsS3HttpClosure<PutObjectResult>(client_, SC_OK, bucketName) {
+			@Override
+			public void validate() throws Exception {
+				checkNotNull(bucketName, "Bucket name cannot be null.");
+				checkState(isValidBucketName(bucketName), "Invalid bucket name, " +
+					"did not match expected bucket name pattern.");
+				checkNotNull(key, "Key cannot be null.");
+				checkNotNull(object, "Object cannot be null.");
+			}
+			@Override
+			public void prepare(final AwsHttpRequest request) throws Exception {
+				((HttpPut)request.getRequestBase()).setEntity(
+					new ByteArrayEntity(object));
+			}
+			@Override
+			public PutObjectResult success(final HttpSuccess success)
+                throws Exception {
+				final PutObjectResult result = new PutObjectResult();
+				result.setETag(success.getETag());
+				result.setVersionId(success.getFirstHeader(S3_VERSION_ID));
+				return result;
+			}
+		}.putKey(key);
+	}
+	
+	@Override
+	public void putObjects(final String bucketName,
+                           final int concurrency,
+                           final Map<String,byte[]> objects,
+                           final S3BatchCallback<PutObjectResult> callback) {
+		checkNotNull(objects, "Objects cannot be null.");
+		checkNotNull(callback, "Callback cannot be null.");
+		try {
+			putObjectsOperation(bucketName, concurrency, objects).run(
+				objects.keySet(), callback);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KolichAwsException("Interrupted while putting " +
+				"objects (bucket=" + bucketName + ")", e);
+		}
+	}
+	
+	@Override
+	public Map<String,Either<HttpFailure,PutObjectResult>> putObjects(final String bucketName,
+                                                                      final int concurrency,
+                                                                      final Map<String,byte[]> objects) {
+		checkNotNull(objects, "Objects cannot be null.");
+		try {
+			return putObjectsOperation(bucketName, concurrency, objects).run(
+				objects.keySet());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KolichAwsException("Interrupted while putting " +
+				"objects (bucket=" + bucketName + ")", e);
+		}
+	}
+	
+	@Override
+	public Map<String,Either<HttpFailure,PutObjectResult>> putObjects(final String bucketName,
+                                                                      final Map<String,byte[]> objects) {
+		return putObjects(bucketName, DEFAULT_BATCH_CONCURRENCY, objects);
+	}
+	
+	private final S3BatchOperation<PutObjectResult> putObjectsOperation(final String bucketName,
+                                                                        final int concurrency,
+                                                                        final Map<String,byte[]> objects) {
+		checkArgument(concurrency > 0, "Concurrency must be greater " +
+			"than zero.");
+		return new S3BatchOperation<PutObjectResult>(new BoundedExecutor(
+			executor_, concurrency)) {
+			@Override
+			public Either<HttpFailure,PutObjectResult> execute(final String key) {
+				return putObjectByKey(bucketName, key, objects.get(key));
+			}
+		};
+	}
+	
 	@Override
 	public Option<HttpFailure> deleteObject(final String bucketName,
                                             final String... path) {
@@ -388,6 +895,76 @@ public final class KolichS3Client extends AbstractAwsService
 		}.deleteOption(path);
 	}
 	
+	@Override
+	public Either<HttpFailure,List<DeleteError>> deleteObjects(final String bucketName,
+                                                               final List<String> keys) {
+		return new AwsS3HttpClosure<List<DeleteError>>(client_, SC_OK, bucketName) {
+			@Override
+			public void validate() throws Exception {
+				checkNotNull(bucketName, "Bucket name cannot be null.");
+				checkState(isValidBucketName(bucketName), "Invalid bucket name, " +
+					"did not match expected bucket name pattern.");
+				checkNotNull(keys, "Keys cannot be null.");
+				checkArgument(!keys.isEmpty() &&
+					keys.size() <= S3_MAX_KEYS_PER_DELETE, "Must delete " +
+					"between 1 and " + S3_MAX_KEYS_PER_DELETE + " keys at " +
+					"once, but got: " + keys.size());
+			}
+			@Override
+			public void prepare(final AwsHttpRequest request) throws Exception {
+				request.setURI(new URIBuilder(request.getURI())
+					.addParameter(S3_PARAM_DELETE, null).build());
+				// Quiet mode: S3 only reports the keys it failed to delete,
+				// which keeps the response small for large batches.
+				final XmlWriter xml = new XmlWriter();
+				xml.start("Delete");
+				xml.start("Quiet").value(Boolean.TRUE.toString()).end();
+				for(final String key : keys) {
+					xml.start("Object");
+					xml.start("Key").value(key).end();
+					xml.end();
+				}
+				xml.end();
+				final byte[] body = xml.getBytes();
+				// Multi-Object Delete is one of the few S3 requests that
+				// insists on a Content-MD5 of the request body.
+				final HttpRequestBase base = request.getRequestBase();
+				base.setHeader(CONTENT_MD5, encodeBase64ToString(md5(body)));
+				((HttpPost)base).setEntity(new ByteArrayEntity(body));
+			}
+			@Override
+			public List<DeleteError> success(final HttpSuccess success)
+				throws Exception {
+				return new Unmarshallers.DeleteObjectsResultUnmarshaller()
+					.unmarshall(success.getContent()).getErrors();
+			}
+		}.post();
+	}
+	
+	@Override
+	public Either<HttpFailure,List<DeleteError>> purgeObjects(final String bucketName,
+                                                              final int concurrency,
+                                                              final String prefix) {
+		checkNotNull(bucketName, "Bucket name cannot be null.");
+		checkArgument(concurrency > 0, "Concurrency must be greater " +
+			"than zero.");
+		try {
+			return new S3BulkDelete(this,
+				new BoundedExecutor(executor_, concurrency),
+				bucketName).purge(prefix);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KolichAwsException("Interrupted while purging " +
+				"objects (bucket=" + bucketName + ", prefix=" + prefix + ")", e);
+		}
+	}
+	
+	@Override
+	public Either<HttpFailure,List<DeleteError>> purgeObjects(final String bucketName,
+                                                              final String prefix) {
+		return purgeObjects(bucketName, DEFAULT_BATCH_CONCURRENCY, prefix);
+	}
+	
 	@Override
 	public Either<HttpFailure,List<Header>> getObject(final String bucketName,
                                                       final OutputStream destination,
@@ -434,6 +1011,132 @@ public final class KolichS3Client extends AbstractAwsService
     	}.get(path);
 	}
 	
+	/**
+	 * Gets a single object by its raw key, as read back from a listing.
+	 */
+	final Either<HttpFailure,byte[]> getObjectByKey(final String bucketName,
+                                                    final String key) {
+		return new AwsS3HttpClosure<byte[]>(client_, SC_OK, bucketName) {
+			@Override
+			public void validate() throws Exception {
+				checkNotNull(bucketName, "Bucket name cannot be null.");
+				checkState(isValidBucketName(bucketName), "Invalid bucket name, " +
+					"did not match expected bucket name pattern.");
+				checkNotNull(key, "Key cannot be null.");
+			}
+			@Override
+			public byte[] success(final HttpSuccess success) throws Exception {
+				final ByteArrayOutputStream os = new ByteArrayOutputStream();
+				copyLarge(success.getContent(), os);
+				return os.toByteArray();
+			}
+		}.getKey(key);
+	}
+	
+	@Override
+	public Either<HttpFailure,Option<List<Header>>> getObjectIfNoneMatch(final String bucketName,
+                                                                         final String eTag,
+                                                                         final OutputStream destination,
+                                                                         final String... path) {
+		return ifNoneMatch(bucketName, eTag, destination).get(path);
+	}
+	
+	@Override
+	public Either<HttpFailure,Option<List<Header>>> getObjectByKeyIfNoneMatch(final String bucketName,
+                                                                              final String key,
+                                                                              final String eTag,
+                                                                              final OutputStream destination) {
+		checkNotNull(key, "Key cannot be null.");
+		return ifNoneMatch(bucketName, eTag, destination).getKey(key);
+	}
+	
+	private final AwsS3HttpClosure<Option<List<Header>>> ifNoneMatch(final String bucketName,
+                                                                     final String eTag,
+                                                                     final OutputStream destination) {
+		return new AwsS3HttpClosure<Option<List<Header>>>(client_, SC_OK,
+			bucketName) {
+			@Override
+			public void validate() throws Exception {
+				checkNotNull(bucketName, "Bucket name cannot be null.");
+				checkState(isValidBucketName(bucketName), "Invalid bucket name, " +
+					"did not match expected bucket name pattern.");
+			}
+			@Override
+			public void prepare(final AwsHttpRequest request) throws Exception {
+				if(eTag != null) {
+					request.getRequestBase().setHeader(IF_NONE_MATCH, eTag);
+				}
+			}
+			@Override
+			public boolean check(final HttpResponse response,
+                                 final HttpContext context) {
+				// A 304 is just as much a success as a 200 here, it means
+				// the caller's copy is still current.
+				return super.check(response, context) ||
+					response.getStatusLine().getStatusCode() == SC_NOT_MODIFIED;
+			}
+			@Override
+			public Option<List<Header>> success(final HttpSuccess success)
+				throws Exception {
+				if(success.getStatusCode() == SC_NOT_MODIFIED) {
+					return None.<List<Header>>none();
+				}
+				copyLarge(success.getContent(), destination);
+				return Some.<List<Header>>some(
+					Arrays.asList(success.getResponse().getAllHeaders()));
+			}
+		};
+	}
+	
+	@Override
+	public void getObjects(final String bucketName,
+                           final int concurrency,
+                           final Iterable<String> keys,
+                           final S3BatchCallback<byte[]> callback) {
+		checkNotNull(keys, "Keys cannot be null.");
+		checkNotNull(callback, "Callback cannot be null.");
+		try {
+			getObjectsOperation(bucketName, concurrency).run(keys, callback);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KolichAwsException("Interrupted while getting " +
+				"objects (bucket=" + bucketName + ")", e);
+		}
+	}
+	
+	@Override
+	public Map<String,Either<HttpFailure,byte[]>> getObjects(final String bucketName,
+                                                             final int concurrency,
+                                                             final Iterable<String> keys) {
+		checkNotNull(keys, "Keys cannot be null.");
+		try {
+			return getObjectsOperation(bucketName, concurrency).run(keys);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KolichAwsException("Interrupted while getting " +
+				"objects (bucket=" + bucketName + ")", e);
+		}
+	}
+	
+	@Override
+	public Map<String,Either<HttpFailure,byte[]>> getObjects(final String bucketName,
+                                                             final Iterable<String> keys) {
+		return getObjects(bucketName, DEFAULT_BATCH_CONCURRENCY, keys);
+	}
+	
+	private final S3BatchOperation<byte[]> getObjectsOperation(final String bucketName,
+                                                               final int concurrency) {
+		checkArgument(concurrency > 0, "Concurrency must be greater " +
+			"than zero.");
+		return new S3BatchOperation<byte[]>(new BoundedExecutor(executor_,
+			concurrency)) {
+			@Override
+			public Either<HttpFailure,byte[]> execute(final String key) {
+				return getObjectByKey(bucketName, key);
+			}
+		};
+	}
+	
 	@Override
 	public boolean objectExists(final String bucketName,
                                 final String... path) {
@@ -447,6 +1150,390 @@ public final class KolichS3Client extends AbstractAwsService
 		}.head(path).success();
 	}
 	
+	@Override
+	public Either<HttpFailure,ObjectMetadata> getObjectMetadata(final String bucketName,
+                                                                final String... path) {
+		checkNotNull(path, "The path cannot be null.");
+		return headObject(bucketName, varargsToPathString(path));
+	}
+	
+	/**
+	 * HEAD's a single object by its raw key, as read back from a listing.
+	 */
+	final Either<HttpFailure,ObjectMetadata> headObject(final String bucketName,
+                                                        final String key) {
+		return new AwsS3HttpClosure<ObjectMetadata>(client_, SC_OK, bucketName) {
+			@Override
+			public void validate() throws Exception {
+				checkNotNull(bucketName, "Bucket name cannot be null.");
+				checkState(isValidBucketName(bucketName), "Invalid bucket name, " +
+					"did not match expected bucket name pattern.");
+				checkNotNull(key, "Key cannot be null.");
+			}
+			@Override
+			public ObjectMetadata success(final HttpSuccess success) throws Exception {
+				return toObjectMetadata(success.getResponse().getAllHeaders());
+			}
+		}.headKey(key);
+	}
+	
+	/**
+	 * Copies an object of up to 5 GB with a single server-side copy.
+	 */
+	final Either<HttpFailure,CopyObjectResult> copyObjectInPlace(final String sourceBucketName,
+                                                                 final String sourceKey,
+                                                                 final String destinationBucketName,
+                                                                 final String destinationKey) {
+		return new AwsS3HttpClosure<CopyObjectResult>(client_, SC_OK,
+			destinationBucketName) {
+			@Override
+			public void validate() throws Exception {
+				checkNotNull(sourceBucketName, "Source bucket name cannot be null.");
+				checkState(isValidBucketName(sourceBucketName), "Invalid source " +
+					"bucket name, did not match expected bucket name pattern.");
+				checkNotNull(destinationBucketName, "Destination bucket name " +
+					"cannot be null.");
+				checkState(isValidBucketName(destinationBucketName), "Invalid " +
+					"destination bucket name, did not match expected bucket " +
+					"name pattern.");
+				checkNotNull(sourceKey, "Source key cannot be null.");
+				checkNotNull(destinationKey, "Destination key cannot be null.");
+			}
+			@Override
+			public void prepare(final AwsHttpRequest request) throws Exception {
+				final HttpRequestBase base = request.getRequestBase();
+				base.setHeader(S3_COPY_SOURCE,
+					buildCopySource(sourceBucketName, sourceKey));
+				base.setHeader(S3_METADATA_DIRECTIVE, S3_METADATA_DIRECTIVE_COPY);
+			}
+			@Override
+			public CopyObjectResult success(final HttpSuccess success)
+				throws Exception {
+				final CopyObjectResultHandler handler =
+					unmarshallCopyResult(success);
+				final CopyObjectResult result = new CopyObjectResult();
+				result.setETag(handler.getETag());
+				result.setLastModifiedDate(handler.getLastModified());
+				result.setVersionId(success.getFirstHeader(S3_VERSION_ID));
+				return result;
+			}
+		}.putKey(destinationKey);
+	}
+	
+	/**
+	 * Deletes a single object by its raw key, as read back from a listing.
+	 */
+	final Option<HttpFailure> deleteObjectByKey(final String bucketName,
+                                                final String key) {
+		return new AwsS3HttpClosure<Void>(client_, SC_NO_CONTENT, bucketName) {
+			@Override
+			public void validate() throws Exception {
+				checkNotNull(key, "Key cannot be null.");
+			}
+		}.deleteKeyOption(key);
+	}
+	
+	/**
+	 * Starts a multipart upload whose object will have the content
+	 * headers and user metadata of the given metadata, if any.
+	 */
+	final Either<HttpFailure,String> initiateMultipartUpload(final String bucketName,
+                                                             final String key,
+                                                             final ObjectMetadata metadata) {
+		return new AwsS3HttpClosure<String>(client_, SC_OK, bucketName) {
+			@Override
+			public void prepare(final AwsHttpRequest request) throws Exception {
+				request.setURI(new URIBuilder(request.getURI())
+					.addParameter(S3_PARAM_UPLOADS, null).build());
+				if(metadata != null) {
+					setObjectMetadata(request.getRequestBase(), metadata);
+				}
+			}
+			@Override
+			public String success(final HttpSuccess success) throws Exception {
+				return new Unmarshallers.InitiateMultipartUploadResultUnmarshaller()
+					.unmarshall(success.getContent()).getUploadId();
+			}
+		}.postKey(key);
+	}
+	
+	/**
+	 * Copies the inclusive byte range [first, last] of the source object
+	 * into one part of an in-progress multipart upload.
+	 */
+	final Either<HttpFailure,PartETag> uploadPartCopy(final String sourceBucketName,
+                                                      final String sourceKey,
+                                                      final String destinationBucketName,
+                                                      final String destinationKey,
+                                                      final String uploadId,
+                                                      final int partNumber,
+                                                      final long first,
+                                                      final long last) {
+		return new AwsS3HttpClosure<PartETag>(client_, SC_OK,
+			destinationBucketName) {
+			@Override
+			public void prepare(final AwsHttpRequest request) throws Exception {
+				request.setURI(new URIBuilder(request.getURI())
+					.addParameter(S3_PARAM_PART_NUMBER, Integer.toString(partNumber))
+					.addParameter(S3_PARAM_UPLOAD_ID, uploadId)
+					.build());
+				final HttpRequestBase base = request.getRequestBase();
+				base.setHeader(S3_COPY_SOURCE,
+					buildCopySource(sourceBucketName, sourceKey));
+				base.setHeader(S3_COPY_SOURCE_RANGE,
+					String.format("bytes=%d-%d", first, last));
+			}
+			@Override
+			public PartETag success(final HttpSuccess success) throws Exception {
+				return new PartETag(partNumber,
+					unmarshallCopyResult(success).getETag());
+			}
+		}.putKey(destinationKey);
+	}
+	
+	final Either<HttpFailure,CompleteMultipartUploadResult> completeMultipartUpload(final String bucketName,
+                                                                                    final String key,
+                                                                                    final String uploadId,
+                                                                                    final List<PartETag> parts) {
+		return new AwsS3HttpClosure<CompleteMultipartUploadResult>(client_,
+			SC_OK, bucketName) {
+			@Override
+			public void prepare(final AwsHttpRequest request) throws Exception {
+				request.setURI(new URIBuilder(request.getURI())
+					.addParameter(S3_PARAM_UPLOAD_ID, uploadId).build());
+				final XmlWriter xml = new XmlWriter();
+				xml.start("CompleteMultipartUpload");
+				for(final PartETag part : parts) {
+					xml.start("Part");
+					xml.start("PartNumber").value(
+						Integer.toString(part.getPartNumber())).end();
+					xml.start("ETag").value(part.getETag()).end();
+					xml.end();
+				}
+				xml.end();
+				final HttpRequestBase base = request.getRequestBase();
+				((HttpPost)base).setEntity(new ByteArrayEntity(xml.getBytes()));
+			}
+			@Override
+			public CompleteMultipartUploadResult success(final HttpSuccess success)
+				throws Exception {
+				final CompleteMultipartUploadHandler handler =
+					new Unmarshallers.CompleteMultipartUploadResultUnmarshaller()
+						.unmarshall(success.getContent());
+				// S3 can answer a 200 OK and still fail the completion, the
+				// error is only found in the response body.
+				if(handler.getAmazonS3Exception() != null) {
+					throw handler.getAmazonS3Exception();
+				}
+				return handler.getCompleteMultipartUploadResult();
+			}
+		}.postKey(key);
+	}
+	
+	final Option<HttpFailure> abortMultipartUpload(final String bucketName,
+                                                   final String key,
+                                                   final String uploadId) {
+		return new AwsS3HttpClosure<Void>(client_, SC_NO_CONTENT, bucketName) {
+			@Override
+			public void prepare(final AwsHttpRequest request) throws Exception {
+				request.setURI(new URIBuilder(request.getURI())
+					.addParameter(S3_PARAM_UPLOAD_ID, uploadId).build());
+			}
+		}.deleteKeyOption(key);
+	}
+	
+	@Override
+	public Either<HttpFailure,CopyObjectResult> copyObject(final String sourceBucketName,
+                                                           final String sourceKey,
+                                                           final String destinationBucketName,
+                                                           final String destinationKey) {
+		final Either<HttpFailure,ObjectMetadata> head =
+			headObject(sourceBucketName, sourceKey);
+		if(!head.success()) {
+			return Left.<HttpFailure,CopyObjectResult>left(head.left());
+		}
+		try {
+			return new S3ServerSideCopy(this,
+				new BoundedExecutor(executor_, 1),
+				new BoundedExecutor(executor_, DEFAULT_BATCH_CONCURRENCY),
+				sourceBucketName, destinationBucketName).copy(sourceKey,
+					head.right().getContentLength(), head.right(),
+					destinationKey);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KolichAwsException("Interrupted while copying object " +
+				"(source=" + sourceBucketName + "/" + sourceKey + ")", e);
+		}
+	}
+	
+	@Override
+	public Either<HttpFailure,Map<String,HttpFailure>> copyObjects(final String sourceBucketName,
+                                                                   final String sourcePrefix,
+                                                                   final String destinationBucketName,
+                                                                   final String destinationPrefix,
+                                                                   final int concurrency) {
+		return copyOrMoveObjects(sourceBucketName, sourcePrefix,
+			destinationBucketName, destinationPrefix, concurrency, false);
+	}
+	
+	@Override
+	public Either<HttpFailure,Map<String,HttpFailure>> copyObjects(final String sourceBucketName,
+                                                                   final String sourcePrefix,
+                                                                   final String destinationBucketName,
+                                                                   final String destinationPrefix) {
+		return copyObjects(sourceBucketName, sourcePrefix, destinationBucketName,
+			destinationPrefix, DEFAULT_BATCH_CONCURRENCY);
+	}
+	
+	@Override
+	public Either<HttpFailure,Map<String,HttpFailure>> moveObjects(final String sourceBucketName,
+                                                                   final String sourcePrefix,
+                                                                   final String destinationBucketName,
+                                                                   final String destinationPrefix,
+                                                                   final int concurrency) {
+		return copyOrMoveObjects(sourceBucketName, sourcePrefix,
+			destinationBucketName, destinationPrefix, concurrency, true);
+	}
+	
+	@Override
+	public Either<HttpFailure,Map<String,HttpFailure>> moveObjects(final String sourceBucketName,
+                                                                   final String sourcePrefix,
+                                                                   final String destinationBucketName,
+                                                                   final String destinationPrefix) {
+		return moveObjects(sourceBucketName, sourcePrefix, destinationBucketName,
+			destinationPrefix, DEFAULT_BATCH_CONCURRENCY);
+	}
+	
+	private final Either<HttpFailure,Map<String,HttpFailure>> copyOrMoveObjects(final String sourceBucketName,
+                                                                                final String sourcePrefix,
+                                                                                final String destinationBucketName,
+                                                                                final String destinationPrefix,
+                                                                                final int concurrency,
+                                                                                final boolean move) {
+		checkNotNull(sourceBucketName, "Source bucket name cannot be null.");
+		checkNotNull(destinationBucketName, "Destination bucket name " +
+			"cannot be null.");
+		checkArgument(concurrency > 0, "Concurrency must be greater " +
+			"than zero.");
+		try {
+			return new S3ServerSideCopy(this,
+				new BoundedExecutor(executor_, concurrency),
+				new BoundedExecutor(executor_, concurrency),
+				sourceBucketName, destinationBucketName).copyPrefix(
+					nullToEmpty(sourcePrefix), nullToEmpty(destinationPrefix),
+					move);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KolichAwsException("Interrupted while copying objects " +
+				"(source=" + sourceBucketName + "/" + sourcePrefix + ")", e);
+		}
+	}
+	
+	@Override
+	public Either<HttpFailure,Set<String>> objectsExist(final String bucketName,
+                                                       final int concurrency,
+                                                       final Set<String> keys) {
+		checkNotNull(bucketName, "Bucket name cannot be null.");
+		checkState(isValidBucketName(bucketName), "Invalid bucket name, " +
+			"did not match expected bucket name pattern.");
+		checkNotNull(keys, "Keys cannot be null.");
+		checkArgument(concurrency > 0, "Concurrency must be greater " +
+			"than zero.");
+		try {
+			return new S3BulkExistenceCheck(this,
+				new BoundedExecutor(executor_, concurrency),
+				bucketName).check(keys);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KolichAwsException("Interrupted while checking " +
+				"object existence (bucket=" + bucketName + ")", e);
+		}
+	}
+	
+	@Override
+	public Either<HttpFailure,Set<String>> objectsExist(final String bucketName,
+                                                       final Set<String> keys) {
+		return objectsExist(bucketName, DEFAULT_BATCH_CONCURRENCY, keys);
+	}
+	
+	/**
+	 * The copy source is the source bucket and key, URL-encoded the same
+	 * way the key is encoded when it's addressed directly in a request path.
+	 */
+	private static final String buildCopySource(final String bucketName,
+                                                final String key) {
+		return SLASH_STRING + bucketName + SLASH_STRING + urlEncode(key);
+	}
+	
+	/**
+	 * A copy can fail after S3 has already committed to a 200 OK, in which
+	 * case the error is only found in the response body.
+	 */
+	private static final CopyObjectResultHandler unmarshallCopyResult(final HttpSuccess success)
+		throws Exception {
+		final CopyObjectResultHandler handler =
+			new Unmarshallers.CopyObjectUnmarshaller()
+				.unmarshall(success.getContent());
+		if(handler.isErrorResponse()) {
+			throw new KolichAwsException("Copy failed (code=" +
+				handler.getErrorCode() + ", message=" +
+				handler.getErrorMessage() + ")");
+		}
+		return handler;
+	}
+	
+	/**
+	 * Builds an {@link ObjectMetadata} from the headers on an object
+	 * GET or HEAD response.
+	 */
+	static final ObjectMetadata toObjectMetadata(final Header[] headers) {
+		final ObjectMetadata metadata = new ObjectMetadata();
+		for(final Header header : headers) {
+			final String name = header.getName();
+			if(name.regionMatches(true, 0, S3_USER_METADATA_PREFIX, 0,
+				S3_USER_METADATA_PREFIX.length())) {
+				metadata.addUserMetadata(name.substring(
+					S3_USER_METADATA_PREFIX.length()), header.getValue());
+			} else if(LAST_MODIFIED.equalsIgnoreCase(name)) {
+				metadata.setLastModified(parseDate(header.getValue()));
+			} else if(CONTENT_LENGTH.equalsIgnoreCase(name)) {
+				metadata.setContentLength(Long.parseLong(header.getValue()));
+			} else {
+				metadata.setHeader(name, header.getValue());
+			}
+		}
+		return metadata;
+	}
+	
+	/**
+	 * Sets the headers S3 keeps with an object, its content headers and
+	 * user metadata, from the given metadata.
+	 */
+	private static final void setObjectMetadata(final HttpRequestBase request,
+                                                final ObjectMetadata metadata) {
+		for(final Map.Entry<String,Object> header :
+			metadata.getRawMetadata().entrySet()) {
+			if(OBJECT_HEADERS.contains(header.getKey().toLowerCase(Locale.US))) {
+				request.setHeader(header.getKey(), header.getValue().toString());
+			}
+		}
+		for(final Map.Entry<String,String> meta :
+			metadata.getUserMetadata().entrySet()) {
+			request.setHeader(S3_USER_METADATA_PREFIX + meta.getKey(),
+				meta.getValue());
+		}
+	}
+	
+	private static final boolean hasSubResource(final String query,
+                                                final String subResource) {
+		for(final String param : query.split("&")) {
+			if(param.equals(subResource) || param.startsWith(subResource + "=")) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	private static final boolean isValidBucketName(final String bucketName) {
     	return VALID_BUCKET_NAME_PATTERN.matcher(bucketName).matches();
     }
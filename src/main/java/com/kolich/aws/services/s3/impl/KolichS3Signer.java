@@ -79,7 +79,7 @@ public final class KolichS3Signer extends AbstractAwsSigner {
     	Arrays.asList(
     		"acl", "torrent", "logging", "location", "policy",
     		"requestPayment", "versioning", "versions", "versionId",
-    		"notification"
+    		"notification", "delete", "uploads", "uploadId", "partNumber"
         );
     
     @Override
@@ -169,7 +169,7 @@ public final class KolichS3Signer extends AbstractAwsSigner {
 		// (virtual hosted-style), append the bucket name preceded by a
 		// "/" (e.g., "/bucketname"). For path-style requests and requests
 		// that don't address a bucket, do nothing.
-        if(request.getResource() != null) {
+        if(request.getResource() != null && !request.isResourceInPath()) {
         	buf.append("/" + request.getResource() +
         		request.getURI().getRawPath());
         } else {
@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.impl;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.kolich.aws.concurrent.BoundedExecutor;
+import com.kolich.aws.services.s3.S3BatchCallback;
+import com.kolich.common.functional.either.Either;
+import com.kolich.common.functional.either.Left;
+import com.kolich.http.common.response.HttpFailure;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import static com.google.common.util.concurrent.Futures.successfulAsList;
+
+/**
+ * Runs the same single-key operation over many keys with a bounded number
+ * of requests in flight, so the batch takes about as long as its slowest
+ * request instead of the sum of them all.
+ */
+abstract class S3BatchOperation<T> {
+	
+	private final BoundedExecutor executor_;
+	
+	S3BatchOperation(final BoundedExecutor executor) {
+		executor_ = executor;
+	}
+	
+	/**
+	 * The operation to run for a single key.
+	 */
+	abstract Either<HttpFailure,T> execute(final String key) throws Exception;
+	
+	/**
+	 * Runs the operation over every key, handing each result to the
+	 * callback as it completes, and returns once every key is done.
+	 */
+	final void run(final Iterable<String> keys,
+                   final S3BatchCallback<T> callback) throws InterruptedException {
+		final List<ListenableFuture<Void>> pending = Lists.newArrayList();
+		for(final String key : keys) {
+			pending.add(executor_.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					Either<HttpFailure,T> result;
+					try {
+						result = execute(key);
+					} catch (Exception e) {
+						// Make sure every key is always reported on, even the
+						// ones that never made it as far as a request.
+						result = Left.<HttpFailure,T>left(new HttpFailure(e));
+					}
+					callback.onResult(key, result);
+					return null;
+				}
+			}));
+		}
+		try {
+			successfulAsList(pending).get();
+		} catch (ExecutionException e) {
+			// Cannot happen, successfulAsList never fails.
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Runs the operation over every key, returning all of the results
+	 * at once in the same order the keys were given in.
+	 */
+	final Map<String,Either<HttpFailure,T>> run(final Iterable<String> keys)
+		throws InterruptedException {
+		final Map<String,Either<HttpFailure,T>> results =
+			new ConcurrentHashMap<String,Either<HttpFailure,T>>();
+		run(keys, new S3BatchCallback<T>() {
+			@Override
+			public void onResult(final String key,
+                                 final Either<HttpFailure,T> result) {
+				results.put(key, result);
+			}
+		});
+		final Map<String,Either<HttpFailure,T>> ordered = Maps.newLinkedHashMap();
+		for(final String key : keys) {
+			ordered.put(key, results.get(key));
+		}
+		return ordered;
+	}
+
+}
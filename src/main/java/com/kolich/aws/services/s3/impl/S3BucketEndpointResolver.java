@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.kolich.aws.transport.AwsEndpoint;
+import com.kolich.aws.transport.EndpointResolver;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Sends requests for each bucket to the regional endpoint it was last
+ * learned to live at, and everything else to wherever the given resolver
+ * says.  Buckets are learned from the redirects S3 answers with when a
+ * bucket is addressed through the wrong region, or from a bucket location
+ * lookup, so only the first request to a bucket in another region pays
+ * for the extra round trip.
+ */
+public final class S3BucketEndpointResolver implements EndpointResolver {
+	
+	private static final String DOT = ".";
+	
+	private final EndpointResolver delegate_;
+	private final ConcurrentMap<String,AwsEndpoint> learned_;
+	
+	public S3BucketEndpointResolver(final EndpointResolver delegate) {
+		delegate_ = checkNotNull(delegate, "Delegate resolver cannot be null.");
+		learned_ = new ConcurrentHashMap<String,AwsEndpoint>();
+	}
+	
+	@Override
+	public AwsEndpoint resolve(final String resource) {
+		if(resource != null) {
+			final AwsEndpoint learned = learned_.get(resource);
+			if(learned != null) {
+				return learned;
+			}
+		}
+		return delegate_.resolve(resource);
+	}
+	
+	/**
+	 * Routes every later request for the bucket to the given regional
+	 * endpoint, for example "s3-eu-west-1.amazonaws.com", addressing the
+	 * bucket the same way, by host or by path, and over the same scheme
+	 * as the delegate does.  The
+	 * endpoint may also be given with the bucket already in front of it,
+	 * as S3 redirects name it.
+	 */
+	public void learn(final String bucket, String endpoint) {
+		checkNotNull(bucket, "Bucket cannot be null.");
+		checkNotNull(endpoint, "Endpoint cannot be null.");
+		if(endpoint.startsWith(bucket + DOT)) {
+			endpoint = endpoint.substring(bucket.length() + 1);
+		}
+		final AwsEndpoint current = delegate_.resolve(bucket);
+		final AwsEndpoint learned = current.isResourceInPath() ?
+			AwsEndpoint.byPath(current.getScheme(), endpoint, bucket) :
+			AwsEndpoint.byHost(current.getScheme(), bucket + DOT + endpoint);
+		// Don't learn what we'd have done anyways.
+		if(learned.getAuthority().equals(current.getAuthority())) {
+			learned_.remove(bucket);
+		} else {
+			learned_.put(bucket, learned);
+		}
+	}
+	
+	/**
+	 * Forgets what was learned about the bucket, for example after it was
+	 * deleted and may be recreated elsewhere.
+	 */
+	public void forget(final String bucket) {
+		learned_.remove(checkNotNull(bucket, "Bucket cannot be null."));
+	}
+	
+	/**
+	 * The authority requests for each learned bucket are sent to.
+	 */
+	public Map<String,String> getLearned() {
+		final ImmutableMap.Builder<String,String> learned =
+			ImmutableMap.builder();
+		for(final Map.Entry<String,AwsEndpoint> e : learned_.entrySet()) {
+			learned.put(e.getKey(), e.getValue().getAuthority());
+		}
+		return learned.build();
+	}
+
+}
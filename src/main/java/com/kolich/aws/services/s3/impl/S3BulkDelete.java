@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.impl;
+
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.kolich.aws.concurrent.BoundedExecutor;
+import com.kolich.aws.services.s3.S3ObjectVisitor;
+import com.kolich.common.functional.either.Either;
+import com.kolich.common.functional.either.Left;
+import com.kolich.common.functional.either.Right;
+import com.kolich.common.functional.option.Option;
+import com.kolich.http.common.response.HttpFailure;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.util.concurrent.Futures.successfulAsList;
+
+/**
+ * Deletes every object under a prefix by streaming the listing straight
+ * into concurrent Multi-Object Delete requests of up to 1000 keys each.
+ * The listing is paused whenever the maximum number of delete requests
+ * are already in flight.
+ */
+final class S3BulkDelete implements S3ObjectVisitor {
+	
+	private final KolichS3Client client_;
+	private final BoundedExecutor executor_;
+	private final String bucketName_;
+	
+	private final List<ListenableFuture<Void>> pending_;
+	private final Queue<DeleteError> errors_;
+	private final AtomicReference<HttpFailure> failure_;
+	
+	private List<String> batch_;
+	
+	S3BulkDelete(final KolichS3Client client,
+                 final BoundedExecutor executor,
+                 final String bucketName) {
+		client_ = client;
+		executor_ = executor;
+		bucketName_ = bucketName;
+		pending_ = Lists.newArrayList();
+		errors_ = new ConcurrentLinkedQueue<DeleteError>();
+		failure_ = new AtomicReference<HttpFailure>();
+		batch_ = Lists.newArrayListWithCapacity(
+			KolichS3Client.S3_MAX_KEYS_PER_DELETE);
+	}
+	
+	final Either<HttpFailure,List<DeleteError>> purge(final String prefix)
+		throws InterruptedException {
+		final Option<HttpFailure> walk = client_.walkObjects(bucketName_,
+			prefix, this);
+		// Flush whatever is left over in the last partial batch.
+		flush();
+		try {
+			successfulAsList(pending_).get();
+		} catch (ExecutionException e) {
+			// Cannot happen, successfulAsList never fails.
+			throw new IllegalStateException(e);
+		}
+		final HttpFailure failure = walk.isSome() ?
+			walk.get() : failure_.get();
+		return (failure != null) ?
+			Left.<HttpFailure,List<DeleteError>>left(failure) :
+			Right.<HttpFailure,List<DeleteError>>right(
+				ImmutableList.copyOf(errors_));
+	}
+	
+	@Override
+	public boolean visit(final S3ObjectSummary summary)
+		throws InterruptedException {
+		batch_.add(summary.getKey());
+		if(batch_.size() >= KolichS3Client.S3_MAX_KEYS_PER_DELETE) {
+			flush();
+		}
+		// Stop listing as soon as any batch failed outright.
+		return failure_.get() == null;
+	}
+	
+	private final void flush() throws InterruptedException {
+		if(!batch_.isEmpty() && failure_.get() == null) {
+			pending_.add(executor_.submit(deleteTask(batch_)));
+			batch_ = Lists.newArrayListWithCapacity(
+				KolichS3Client.S3_MAX_KEYS_PER_DELETE);
+		}
+	}
+	
+	private final Callable<Void> deleteTask(final List<String> keys) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				final Either<HttpFailure,List<DeleteError>> delete =
+					client_.deleteObjects(bucketName_, keys);
+				if(delete.success()) {
+					errors_.addAll(delete.right());
+				} else {
+					failure_.compareAndSet(null, delete.left());
+				}
+				return null;
+			}
+		};
+	}
+
+}
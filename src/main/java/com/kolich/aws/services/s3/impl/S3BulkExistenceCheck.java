@@ -0,0 +1,248 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.impl;
+
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.kolich.aws.concurrent.BoundedExecutor;
+import com.kolich.common.functional.either.Either;
+import com.kolich.common.functional.either.Left;
+import com.kolich.common.functional.either.Right;
+import com.kolich.http.common.response.HttpFailure;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.util.concurrent.Futures.successfulAsList;
+import static com.kolich.aws.services.s3.impl.KolichS3Client.KEY_ORDER;
+import static java.util.Collections.newSetFromMap;
+import static java.util.Collections.unmodifiableSet;
+import static org.apache.http.HttpStatus.SC_NOT_FOUND;
+
+/**
+ * Answers "which of these keys exist?" for a large set of candidate keys
+ * without issuing one blocking HEAD per key.  Keys are grouped by their
+ * parent prefix (everything up to and including the last "/") and each
+ * group is resolved with whichever approach is cheaper: a handful of
+ * concurrent HEAD requests, or a delimited listing of the prefix that
+ * sees up to 1000 siblings per round trip.
+ */
+final class S3BulkExistenceCheck {
+	
+	private static final String DELIMITER = "/";
+	
+	/**
+	 * A single LIST page costs roughly ten times as much as a HEAD request
+	 * on the S3 price sheet, and about the same wall-clock time as one
+	 * round of concurrent HEADs.  A group therefore earns one listing page
+	 * for every this many candidate keys it contains; smaller groups are
+	 * cheaper to resolve with HEADs alone.
+	 */
+	private static final int LIST_PAGE_COST_IN_HEADS = 10;
+	
+	private final KolichS3Client client_;
+	private final BoundedExecutor executor_;
+	private final String bucketName_;
+	
+	private final Set<String> found_;
+	private final Queue<String> unresolved_;
+	private final AtomicReference<HttpFailure> failure_;
+	
+	S3BulkExistenceCheck(final KolichS3Client client,
+                         final BoundedExecutor executor,
+                         final String bucketName) {
+		client_ = client;
+		executor_ = executor;
+		bucketName_ = bucketName;
+		found_ = newSetFromMap(Maps.<String,Boolean>newConcurrentMap());
+		unresolved_ = new ConcurrentLinkedQueue<String>();
+		failure_ = new AtomicReference<HttpFailure>();
+	}
+	
+	final Either<HttpFailure,Set<String>> check(final Set<String> keys)
+		throws InterruptedException {
+		// Pass one: list the prefixes worth listing and HEAD everything
+		// else.  Listing tasks never submit work of their own (they would
+		// compete for the same permits they hold), instead they leave any
+		// keys they could not resolve within budget on the queue.
+		final List<ListenableFuture<Void>> pending = Lists.newArrayList();
+		for(final Map.Entry<String,NavigableSet<String>> group :
+			groupByPrefix(keys).entrySet()) {
+			final NavigableSet<String> candidates = group.getValue();
+			final int pageBudget = candidates.size() / LIST_PAGE_COST_IN_HEADS;
+			if(pageBudget > 0) {
+				pending.add(executor_.submit(
+					listTask(group.getKey(), candidates, pageBudget)));
+			} else {
+				submitHeads(candidates, pending);
+			}
+		}
+		await(pending);
+		// Pass two: HEAD whatever the listings left unresolved.
+		pending.clear();
+		submitHeads(unresolved_, pending);
+		await(pending);
+		final HttpFailure failure = failure_.get();
+		return (failure != null) ?
+			Left.<HttpFailure,Set<String>>left(failure) :
+			Right.<HttpFailure,Set<String>>right(unmodifiableSet(found_));
+	}
+	
+	private final void submitHeads(final Collection<String> keys,
+                                   final List<ListenableFuture<Void>> pending)
+		throws InterruptedException {
+		for(final String key : keys) {
+			// Stop queueing more work once we know the answer is a failure.
+			if(failure_.get() != null) {
+				break;
+			}
+			pending.add(executor_.submit(headTask(key)));
+		}
+	}
+	
+	private final Callable<Void> headTask(final String key) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try {
+					final Either<HttpFailure,ObjectMetadata> head =
+						client_.headObject(bucketName_, key);
+					if(head.success()) {
+						found_.add(key);
+					} else if(head.left().getStatusCode() != SC_NOT_FOUND) {
+						failure_.compareAndSet(null, head.left());
+					}
+				} catch (Exception e) {
+					// A HEAD that blew up says nothing about whether the
+					// key exists, so it must not be reported as missing.
+					failure_.compareAndSet(null, new HttpFailure(e));
+				}
+				return null;
+			}
+		};
+	}
+	
+	private final Callable<Void> listTask(final String prefix,
+                                          final NavigableSet<String> candidates,
+                                          final int pageBudget) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try {
+					list();
+				} catch (Exception e) {
+					// Let pass two HEAD every key, the same as when the
+					// listing is refused.
+					unresolved_.addAll(candidates);
+				}
+				return null;
+			}
+			private void list() {
+				// Any proper prefix of the smallest candidate sorts before
+				// it, so it makes a safe starting marker that skips every
+				// sibling we have no interest in.
+				final String first = candidates.first();
+				String marker = (first.length() > prefix.length()) ?
+					first.substring(0, first.length() - 1) : null;
+				String seen = null;
+				for(int page = 0; page < pageBudget; page++) {
+					final Either<HttpFailure,ObjectListing> list =
+						client_.listObjectsByPrefix(bucketName_, prefix,
+							marker, DELIMITER);
+					if(!list.success()) {
+						// Listing might not be permitted even where HEADs
+						// are; let pass two have a go at every key.
+						break;
+					}
+					final ObjectListing listing = list.right();
+					for(final S3ObjectSummary summary :
+						listing.getObjectSummaries()) {
+						final String key = summary.getKey();
+						if(candidates.contains(key)) {
+							found_.add(key);
+						}
+						seen = key;
+					}
+					if(!listing.isTruncated()) {
+						// The entire prefix has been seen, nothing is left
+						// to resolve for this group.
+						return;
+					}
+					// With a delimiter, the next marker may be a common
+					// prefix that sorts after the last key on this page.
+					if(listing.getNextMarker() != null) {
+						seen = listing.getNextMarker();
+					}
+					if(seen == null ||
+						KEY_ORDER.compare(seen, candidates.last()) >= 0) {
+						return;
+					}
+					marker = seen;
+				}
+				// Out of budget: everything after the last key we saw is
+				// still unknown.
+				unresolved_.addAll((seen == null) ? candidates :
+					candidates.tailSet(seen, false));
+			}
+		};
+	}
+	
+	private static final void await(final List<ListenableFuture<Void>> pending)
+		throws InterruptedException {
+		try {
+			successfulAsList(pending).get();
+		} catch (ExecutionException e) {
+			// Cannot happen, successfulAsList never fails and the tasks
+			// record their own failures.
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static final Map<String,NavigableSet<String>> groupByPrefix(
+		final Set<String> keys) {
+		final Map<String,NavigableSet<String>> groups = Maps.newHashMap();
+		for(final String key : keys) {
+			final String prefix =
+				key.substring(0, key.lastIndexOf(DELIMITER) + 1);
+			NavigableSet<String> group = groups.get(prefix);
+			if(group == null) {
+				groups.put(prefix, group = Sets.newTreeSet(KEY_ORDER));
+			}
+			group.add(key);
+		}
+		return groups;
+	}
+
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.impl;
+
+import com.kolich.aws.services.s3.S3Region;
+import com.kolich.aws.transport.AwsEndpoint;
+import com.kolich.aws.transport.AwsRequestChain;
+import com.kolich.aws.transport.AwsRequestInterceptor;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.regex.Pattern.compile;
+import static org.apache.http.Consts.UTF_8;
+import static org.apache.http.HttpHeaders.LOCATION;
+import static org.apache.http.HttpStatus.SC_MOVED_PERMANENTLY;
+import static org.apache.http.HttpStatus.SC_TEMPORARY_REDIRECT;
+
+/**
+ * Learns where buckets in other regions live from the redirects S3 sends
+ * back when they are addressed through the wrong regional endpoint, and
+ * resends the request there once.  A 301 names the bucket's region in
+ * the x-amz-bucket-region header and its endpoint in the error body, a
+ * 307 in the Location header.  307s that the HTTP client already
+ * followed on its own are learned from too, unless they switched scheme.
+ * Requests always keep the scheme the client was configured with, only
+ * the host changes.
+ * 
+ * The request doesn't need signing again: the S3 string to sign doesn't
+ * include the host.
+ */
+final class S3RedirectInterceptor implements AwsRequestInterceptor {
+	
+	private static final String S3_BUCKET_REGION_HEADER =
+		"x-amz-bucket-region";
+	
+	private static final Pattern ENDPOINT_PATTERN =
+		compile("<Endpoint>([^<]+)</Endpoint>");
+	
+	private static final String SCHEME_SEPARATOR = "://";
+	private static final String QUERY = "?";
+	
+	private final S3BucketEndpointResolver resolver_;
+	
+	S3RedirectInterceptor(final S3BucketEndpointResolver resolver) {
+		resolver_ = checkNotNull(resolver, "Resolver cannot be null.");
+	}
+	
+	@Override
+	public HttpResponse intercept(final AwsRequestChain chain)
+		throws IOException {
+		final String bucket = chain.getContext().getResource();
+		if(bucket == null) {
+			return chain.proceed();
+		}
+		// Redirects the client followed itself are only visible through
+		// the context, so make sure there is one to look in.
+		HttpContext context = chain.getContext().getHttpContext();
+		final HttpResponse response;
+		if(context == null) {
+			context = new BasicHttpContext();
+			response = chain.proceed(chain.getRequest(), context);
+		} else {
+			response = chain.proceed();
+		}
+		final int status = response.getStatusLine().getStatusCode();
+		if(status != SC_MOVED_PERMANENTLY && status != SC_TEMPORARY_REDIRECT) {
+			final List<URI> followed = HttpClientContext.adapt(context)
+				.getRedirectLocations();
+			if(followed != null && !followed.isEmpty()) {
+				final URI last = followed.get(followed.size() - 1);
+				if(last.getScheme() != null && last.getScheme()
+					.equalsIgnoreCase(chain.getRequest().getURI().getScheme())) {
+					resolver_.learn(bucket, last.getRawAuthority());
+				}
+			}
+			return response;
+		}
+		final String endpoint = getRedirectEndpoint(response);
+		if(endpoint == null) {
+			return response;
+		}
+		resolver_.learn(bucket, endpoint);
+		if(!(chain.getRequest() instanceof HttpRequestBase) ||
+			!isRepeatable((HttpRequestBase)chain.getRequest())) {
+			// Can't send it again, but the next one goes to the right place.
+			return response;
+		}
+		EntityUtils.consume(response.getEntity());
+		final HttpRequestBase request = (HttpRequestBase)chain.getRequest();
+		final URI uri = request.getURI();
+		final String query = uri.getRawQuery();
+		final AwsEndpoint learned = resolver_.resolve(bucket);
+		request.setURI(URI.create(learned.getScheme() + SCHEME_SEPARATOR +
+			learned.getAuthority() + uri.getRawPath() +
+			((query == null) ? "" : QUERY + query)));
+		return chain.proceed(request);
+	}
+	
+	/**
+	 * The endpoint, with or without the bucket in front of it, that the
+	 * redirect points at, or null if it doesn't say.  Reading the error
+	 * body leaves a copy behind, in case the redirect is handed back.
+	 */
+	private static final String getRedirectEndpoint(
+		final HttpResponse response) throws IOException {
+		final Header region = response.getFirstHeader(S3_BUCKET_REGION_HEADER);
+		if(region != null) {
+			final S3Region known = S3Region.fromRegionId(region.getValue());
+			if(known != null) {
+				return known.getApiEndpoint();
+			}
+		}
+		final Header location = response.getFirstHeader(LOCATION);
+		if(location != null) {
+			final String authority = URI.create(location.getValue())
+				.getRawAuthority();
+			if(authority != null) {
+				return authority;
+			}
+		}
+		final HttpEntity entity = response.getEntity();
+		if(entity != null) {
+			final byte[] body = EntityUtils.toByteArray(entity);
+			response.setEntity(new ByteArrayEntity(body,
+				ContentType.get(entity)));
+			final Matcher m = ENDPOINT_PATTERN.matcher(new String(body, UTF_8));
+			if(m.find()) {
+				return m.group(1).trim();
+			}
+		}
+		return null;
+	}
+	
+	private static final boolean isRepeatable(final HttpRequestBase request) {
+		if(request instanceof HttpEntityEnclosingRequest) {
+			final HttpEntity entity =
+				((HttpEntityEnclosingRequest)request).getEntity();
+			return entity == null || entity.isRepeatable();
+		}
+		return true;
+	}
+
+}
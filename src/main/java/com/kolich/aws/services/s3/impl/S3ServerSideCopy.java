@@ -0,0 +1,324 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.impl;
+
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.kolich.aws.KolichAwsException;
+import com.kolich.aws.concurrent.BoundedExecutor;
+import com.kolich.aws.services.s3.S3ObjectVisitor;
+import com.kolich.common.functional.either.Either;
+import com.kolich.common.functional.either.Left;
+import com.kolich.common.functional.either.Right;
+import com.kolich.common.functional.option.Option;
+import com.kolich.http.common.response.HttpFailure;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.util.concurrent.Futures.successfulAsList;
+import static com.kolich.aws.services.s3.impl.KolichS3Client.S3_MAX_SINGLE_COPY_SIZE;
+
+/**
+ * Copies objects entirely server-side.  Objects up to 5 GB are copied with
+ * a single PUT, anything larger is split into byte ranges that are copied
+ * in parallel with UploadPartCopy and then stitched back together.  Copying
+ * a prefix streams the source listing straight into concurrent copies,
+ * pausing the listing whenever the maximum number are already in flight.
+ */
+final class S3ServerSideCopy implements S3ObjectVisitor {
+	
+	/**
+	 * A multipart upload is limited to 10,000 parts.
+	 */
+	private static final int S3_MAX_PARTS = 10000;
+	
+	/**
+	 * Ranges are copied in parts of at least this size, large enough that
+	 * even a 5 TB object fits inside the 10,000 part limit and no more
+	 * requests than necessary are made for smaller ones.
+	 */
+	private static final long MIN_COPY_PART_SIZE = 512L * 1024L * 1024L;
+	
+	private final KolichS3Client client_;
+	private final BoundedExecutor objects_;
+	private final BoundedExecutor parts_;
+	private final String sourceBucketName_;
+	private final String destinationBucketName_;
+	
+	private final List<ListenableFuture<Void>> pending_;
+	private final Map<String,HttpFailure> failed_;
+	
+	private String sourcePrefix_;
+	private String destinationPrefix_;
+	private boolean move_;
+	
+	/**
+	 * Objects and parts are bounded separately so that an object copy
+	 * waiting on its own parts can never starve them of a permit.  Both
+	 * may share one pool of threads, even a bounded one: a part the pool
+	 * can't take, or hasn't started yet, is copied on the thread copying
+	 * its object, which never waits on a part that isn't already running.
+	 */
+	S3ServerSideCopy(final KolichS3Client client,
+                     final BoundedExecutor objects,
+                     final BoundedExecutor parts,
+                     final String sourceBucketName,
+                     final String destinationBucketName) {
+		client_ = client;
+		objects_ = objects;
+		parts_ = parts;
+		sourceBucketName_ = sourceBucketName;
+		destinationBucketName_ = destinationBucketName;
+		pending_ = Lists.newArrayList();
+		failed_ = new ConcurrentHashMap<String,HttpFailure>();
+	}
+	
+	final Either<HttpFailure,Map<String,HttpFailure>> copyPrefix(final String sourcePrefix,
+                                                                 final String destinationPrefix,
+                                                                 final boolean move)
+		throws InterruptedException {
+		sourcePrefix_ = sourcePrefix;
+		destinationPrefix_ = destinationPrefix;
+		move_ = move;
+		final Option<HttpFailure> walk = client_.walkObjects(
+			sourceBucketName_, sourcePrefix, this);
+		awaitAll(pending_);
+		return walk.isSome() ?
+			Left.<HttpFailure,Map<String,HttpFailure>>left(walk.get()) :
+			Right.<HttpFailure,Map<String,HttpFailure>>right(
+				ImmutableMap.copyOf(failed_));
+	}
+	
+	@Override
+	public boolean visit(final S3ObjectSummary summary)
+		throws InterruptedException {
+		final String sourceKey = summary.getKey();
+		final String destinationKey = destinationPrefix_ +
+			sourceKey.substring(sourcePrefix_.length());
+		pending_.add(objects_.submit(copyTask(sourceKey, summary.getSize(),
+			destinationKey)));
+		// A failed copy only fails its own key, keep walking.
+		return true;
+	}
+	
+	/**
+	 * @param metadata the source object's metadata if the caller already
+	 * has it, or null to HEAD the source should it need copying in parts
+	 */
+	final Either<HttpFailure,CopyObjectResult> copy(final String sourceKey,
+                                                    final long size,
+                                                    final ObjectMetadata metadata,
+                                                    final String destinationKey)
+		throws InterruptedException {
+		if(size <= S3_MAX_SINGLE_COPY_SIZE) {
+			return client_.copyObjectInPlace(sourceBucketName_, sourceKey,
+				destinationBucketName_, destinationKey);
+		}
+		return copyInParts(sourceKey, size, metadata, destinationKey);
+	}
+	
+	private final Either<HttpFailure,CopyObjectResult> copyInParts(final String sourceKey,
+                                                                   final long size,
+                                                                   final ObjectMetadata metadata,
+                                                                   final String destinationKey)
+		throws InterruptedException {
+		// A single copy carries the source's metadata over by itself, a
+		// multipart upload only gets what it is initiated with.
+		ObjectMetadata source = metadata;
+		if(source == null) {
+			final Either<HttpFailure,ObjectMetadata> head =
+				client_.headObject(sourceBucketName_, sourceKey);
+			if(!head.success()) {
+				return Left.<HttpFailure,CopyObjectResult>left(head.left());
+			}
+			source = head.right();
+		}
+		final Either<HttpFailure,String> initiate =
+			client_.initiateMultipartUpload(destinationBucketName_,
+				destinationKey, source);
+		if(!initiate.success()) {
+			return Left.<HttpFailure,CopyObjectResult>left(initiate.left());
+		}
+		final String uploadId = initiate.right();
+		final long partSize = Math.max(MIN_COPY_PART_SIZE,
+			(size + S3_MAX_PARTS - 1) / S3_MAX_PARTS);
+		final List<Part> parts = Lists.newArrayList();
+		final List<ListenableFuture<Either<HttpFailure,PartETag>>> results =
+			Lists.newArrayList();
+		try {
+			int partNumber = 1;
+			for(long first = 0L; first < size; first += partSize) {
+				final long last = Math.min(first + partSize, size) - 1L;
+				final Part part = new Part(partTask(sourceKey, destinationKey,
+					uploadId, partNumber++, first, last));
+				parts.add(part);
+				results.add(part.result_);
+				if(parts_.trySubmit(part) == null) {
+					part.run();
+				}
+			}
+			// Every pool thread may well be busy copying other objects, so
+			// take back whatever parts haven't been started yet.
+			for(final Part part : parts) {
+				part.run();
+			}
+			final List<Either<HttpFailure,PartETag>> copied = awaitAll(results);
+			final List<PartETag> etags = Lists.newArrayListWithCapacity(
+				copied.size());
+			for(int i = 0, l = copied.size(); i < l; i++) {
+				final Either<HttpFailure,PartETag> part = copied.get(i);
+				if(part == null || !part.success()) {
+					abort(destinationKey, uploadId);
+					return Left.<HttpFailure,CopyObjectResult>left(
+						(part != null) ? part.left() :
+						new HttpFailure(new KolichAwsException("Failed to " +
+							"copy part " + (i + 1) + " of " + sourceKey)));
+				}
+				etags.add(part.right());
+			}
+			final Either<HttpFailure,CompleteMultipartUploadResult> complete =
+				client_.completeMultipartUpload(destinationBucketName_,
+					destinationKey, uploadId, etags);
+			if(!complete.success()) {
+				abort(destinationKey, uploadId);
+				return Left.<HttpFailure,CopyObjectResult>left(complete.left());
+			}
+			final CopyObjectResult result = new CopyObjectResult();
+			result.setETag(complete.right().getETag());
+			result.setVersionId(complete.right().getVersionId());
+			return Right.<HttpFailure,CopyObjectResult>right(result);
+		} catch (InterruptedException e) {
+			abort(destinationKey, uploadId);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Aborting releases the storage held by parts already copied, S3 would
+	 * otherwise keep (and bill for) them until the upload is aborted.
+	 */
+	private final void abort(final String destinationKey,
+                             final String uploadId) {
+		client_.abortMultipartUpload(destinationBucketName_, destinationKey,
+			uploadId);
+	}
+	
+	/**
+	 * One part of a copy, run by whichever thread gets to it first.
+	 */
+	private static final class Part implements Callable<Void> {
+		private final Callable<Either<HttpFailure,PartETag>> task_;
+		private final AtomicBoolean claimed_;
+		private final SettableFuture<Either<HttpFailure,PartETag>> result_;
+		private Part(final Callable<Either<HttpFailure,PartETag>> task) {
+			task_ = task;
+			claimed_ = new AtomicBoolean();
+			result_ = SettableFuture.create();
+		}
+		@Override
+		public Void call() {
+			run();
+			return null;
+		}
+		private void run() {
+			if(claimed_.compareAndSet(false, true)) {
+				try {
+					result_.set(task_.call());
+				} catch (Exception e) {
+					result_.setException(e);
+				} catch (Error e) {
+					result_.setException(e);
+					throw e;
+				}
+			}
+		}
+	}
+	
+	private final Callable<Either<HttpFailure,PartETag>> partTask(final String sourceKey,
+                                                                  final String destinationKey,
+                                                                  final String uploadId,
+                                                                  final int partNumber,
+                                                                  final long first,
+                                                                  final long last) {
+		return new Callable<Either<HttpFailure,PartETag>>() {
+			@Override
+			public Either<HttpFailure,PartETag> call() throws Exception {
+				return client_.uploadPartCopy(sourceBucketName_, sourceKey,
+					destinationBucketName_, destinationKey, uploadId,
+					partNumber, first, last);
+			}
+		};
+	}
+	
+	private final Callable<Void> copyTask(final String sourceKey,
+                                          final long size,
+                                          final String destinationKey) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				final Either<HttpFailure,CopyObjectResult> copy =
+					copy(sourceKey, size, null, destinationKey);
+				if(!copy.success()) {
+					failed_.put(sourceKey, copy.left());
+				} else if(move_) {
+					// Each source is only deleted once its own copy succeeded,
+					// so a failure never loses an object and stays attributable
+					// to the one key it belongs to.
+					final Option<HttpFailure> delete =
+						client_.deleteObjectByKey(sourceBucketName_, sourceKey);
+					if(delete.isSome()) {
+						failed_.put(sourceKey, delete.get());
+					}
+				}
+				return null;
+			}
+		};
+	}
+	
+	private static final <T> List<T> awaitAll(final List<ListenableFuture<T>> futures)
+		throws InterruptedException {
+		try {
+			return successfulAsList(futures).get();
+		} catch (ExecutionException e) {
+			// Cannot happen, successfulAsList never fails.
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
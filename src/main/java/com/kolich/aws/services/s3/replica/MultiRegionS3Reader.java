@@ -0,0 +1,339 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.replica;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.CountingOutputStream;
+import com.kolich.aws.services.s3.S3Region;
+import com.kolich.common.functional.either.Either;
+import com.kolich.http.common.response.HttpFailure;
+import org.apache.http.Header;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.apache.http.HttpStatus.SC_CONTINUE;
+import static org.apache.http.HttpStatus.SC_INTERNAL_SERVER_ERROR;
+
+/**
+ * Reads from a bucket that is replicated into several regions, sending
+ * each read to whichever copy has lately been answering fastest.
+ * 
+ * Every copy keeps a moving average of how long it takes to answer and
+ * how often it fails.  Reads go to the fastest healthy copy, and fail
+ * over down the line to the next one on a 5xx or an I/O error.  Copies
+ * that fail too often are only tried once the healthy ones have failed.
+ * A copy that hasn't been read from for a while gets the next read, so
+ * that its averages stay current and a copy that has recovered, or has
+ * become the fastest, is noticed.
+ * 
+ * Anything else, a 404 included, is an answer and is handed back as is,
+ * reads don't go looking for an object that hasn't replicated yet.
+ */
+public final class MultiRegionS3Reader {
+	
+	private static final long DEFAULT_PROBE_INTERVAL_MS = 10000L;
+	
+	/**
+	 * Weight of the newest sample in the moving averages.
+	 */
+	private static final double ALPHA = 0.2d;
+	
+	/**
+	 * A copy is unhealthy if more than this fraction of its recent reads
+	 * failed.
+	 */
+	private static final double ERROR_RATE = 0.3d;
+	
+	/**
+	 * What is known about one copy, the averages are racy but only ever
+	 * used to rank copies.
+	 */
+	private static final class Replica {
+		private final S3Replica replica_;
+		private volatile double latencyMs_ = -1d;
+		private volatile double errorRate_;
+		private final AtomicLong lastRead_;
+		private Replica(final S3Replica replica, final long now) {
+			replica_ = replica;
+			lastRead_ = new AtomicLong(now);
+		}
+		private boolean isHealthy() {
+			return errorRate_ <= ERROR_RATE;
+		}
+		private void recordSuccess(final long latencyMs) {
+			final double latency = latencyMs_;
+			latencyMs_ = (latency < 0d) ? latencyMs :
+				latency + ALPHA * (latencyMs - latency);
+			errorRate_ = errorRate_ * (1d - ALPHA);
+		}
+		private void recordFailure() {
+			errorRate_ = errorRate_ * (1d - ALPHA) + ALPHA;
+		}
+	}
+	
+	/**
+	 * Healthy copies first, fastest first, where a copy not yet read from
+	 * counts as fastest, then the unhealthy ones, least failing first.
+	 */
+	private static final Comparator<Replica> BY_RANK = new Comparator<Replica>() {
+		@Override
+		public int compare(final Replica a, final Replica b) {
+			final boolean healthy = a.isHealthy();
+			if(healthy != b.isHealthy()) {
+				return healthy ? -1 : 1;
+			} else if(!healthy) {
+				return Double.compare(a.errorRate_, b.errorRate_);
+			}
+			return Double.compare(a.latencyMs_, b.latencyMs_);
+		}
+	};
+	
+	/**
+	 * A read against one copy.
+	 */
+	private static abstract class Read<T> {
+		public abstract Either<HttpFailure,T> read(final S3Replica replica);
+		/**
+		 * False once a failed read can't be tried again elsewhere.
+		 */
+		public boolean canFailOver() {
+			return true;
+		}
+	}
+	
+	private final Replica[] replicas_;
+	private final long probeIntervalNanos_;
+	
+	private final AtomicLong failovers_;
+	private final AtomicLong probes_;
+	
+	/**
+	 * @param replicas every copy of the bucket, at most one per region
+	 * @param probeIntervalMs how long a copy can go without being read
+	 * from before the next read is sent to it regardless
+	 */
+	public MultiRegionS3Reader(final List<S3Replica> replicas,
+                               final long probeIntervalMs) {
+		checkNotNull(replicas, "Replicas cannot be null.");
+		checkArgument(!replicas.isEmpty(), "Need at least one replica.");
+		checkArgument(probeIntervalMs > 0L, "Probe interval must be " +
+			"greater than zero.");
+		final Set<S3Region> regions = EnumSet.noneOf(S3Region.class);
+		final long now = System.nanoTime();
+		replicas_ = new Replica[replicas.size()];
+		for(int i = 0; i < replicas_.length; i++) {
+			final S3Replica replica = checkNotNull(replicas.get(i),
+				"Replica cannot be null.");
+			checkArgument(regions.add(replica.getRegion()), "More than " +
+				"one replica in region: " + replica.getRegion());
+			replicas_[i] = new Replica(replica, now);
+		}
+		probeIntervalNanos_ = MILLISECONDS.toNanos(probeIntervalMs);
+		failovers_ = new AtomicLong();
+		probes_ = new AtomicLong();
+	}
+	
+	public MultiRegionS3Reader(final List<S3Replica> replicas) {
+		this(replicas, DEFAULT_PROBE_INTERVAL_MS);
+	}
+	
+	public MultiRegionS3Reader(final S3Replica... replicas) {
+		this(Arrays.asList(replicas));
+	}
+	
+	/**
+	 * Get an object from the fastest healthy copy.
+	 * @param path path are joined using a standard
+	 * "/" path separator then properly URL encoded to produce a unique
+	 * path to a key in the bucket
+	 */
+	public Either<HttpFailure,byte[]> getObject(final String... path) {
+		return read(new Read<byte[]>() {
+			@Override
+			public Either<HttpFailure,byte[]> read(final S3Replica replica) {
+				return replica.getClient().getObject(replica.getBucketName(),
+					path);
+			}
+		});
+	}
+	
+	/**
+	 * Get an object from the fastest healthy copy, into the destination.
+	 * Once any of the object has been written to the destination a
+	 * failed read is not tried again on another copy.
+	 */
+	public Either<HttpFailure,List<Header>> getObject(final OutputStream destination,
+                                                      final String... path) {
+		final CountingOutputStream counting = new CountingOutputStream(
+			checkNotNull(destination, "Destination cannot be null."));
+		return read(new Read<List<Header>>() {
+			@Override
+			public Either<HttpFailure,List<Header>> read(final S3Replica replica) {
+				return replica.getClient().getObject(replica.getBucketName(),
+					counting, path);
+			}
+			@Override
+			public boolean canFailOver() {
+				return counting.getCount() == 0L;
+			}
+		});
+	}
+	
+	public Either<HttpFailure,ObjectMetadata> getObjectMetadata(final String... path) {
+		return read(new Read<ObjectMetadata>() {
+			@Override
+			public Either<HttpFailure,ObjectMetadata> read(final S3Replica replica) {
+				return replica.getClient().getObjectMetadata(
+					replica.getBucketName(), path);
+			}
+		});
+	}
+	
+	/**
+	 * True if the object exists in the fastest healthy copy that answers.
+	 */
+	public boolean objectExists(final String... path) {
+		return getObjectMetadata(path).success();
+	}
+	
+	/**
+	 * The average time each copy takes to answer a read, in milliseconds,
+	 * or -1 if it hasn't been read from yet.
+	 */
+	public Map<S3Region,Double> getLatencies() {
+		final ImmutableMap.Builder<S3Region,Double> latencies =
+			ImmutableMap.builder();
+		for(final Replica replica : replicas_) {
+			latencies.put(replica.replica_.getRegion(), replica.latencyMs_);
+		}
+		return latencies.build();
+	}
+	
+	/**
+	 * The recent fraction of reads that failed, per copy.
+	 */
+	public Map<S3Region,Double> getErrorRates() {
+		final ImmutableMap.Builder<S3Region,Double> errorRates =
+			ImmutableMap.builder();
+		for(final Replica replica : replicas_) {
+			errorRates.put(replica.replica_.getRegion(), replica.errorRate_);
+		}
+		return errorRates.build();
+	}
+	
+	/**
+	 * How many times a failed read was tried again on another copy.
+	 */
+	public long getFailoverCount() {
+		return failovers_.get();
+	}
+	
+	/**
+	 * How many reads were sent to a copy only because it hadn't been read
+	 * from for a while.
+	 */
+	public long getProbeCount() {
+		return probes_.get();
+	}
+	
+	private final <T> Either<HttpFailure,T> read(final Read<T> read) {
+		final Replica[] ranked = rank();
+		Either<HttpFailure,T> result = null;
+		for(int i = 0; i < ranked.length; i++) {
+			final Replica replica = ranked[i];
+			final long start = System.nanoTime();
+			replica.lastRead_.set(start);
+			result = read.read(replica.replica_);
+			if(result.success() || !isFailure(result.left())) {
+				replica.recordSuccess(NANOSECONDS.toMillis(
+					System.nanoTime() - start));
+				return result;
+			}
+			replica.recordFailure();
+			if(i == ranked.length - 1 || !read.canFailOver()) {
+				break;
+			}
+			failovers_.incrementAndGet();
+		}
+		return result;
+	}
+	
+	/**
+	 * The copies in the order to try them in.  The copy that has gone the
+	 * longest without a read goes first if that's been longer than the
+	 * probe interval, and it's claimed so that only one read probes it.
+	 */
+	private final Replica[] rank() {
+		final Replica[] ranked = replicas_.clone();
+		Arrays.sort(ranked, BY_RANK);
+		if(ranked.length > 1) {
+			final long now = System.nanoTime();
+			Replica stalest = null;
+			long stalestRead = 0L;
+			for(final Replica replica : ranked) {
+				final long lastRead = replica.lastRead_.get();
+				if(now - lastRead > probeIntervalNanos_ &&
+					(stalest == null || lastRead < stalestRead)) {
+					stalest = replica;
+					stalestRead = lastRead;
+				}
+			}
+			if(stalest != null && stalest != ranked[0] &&
+				stalest.lastRead_.compareAndSet(stalestRead, now)) {
+				probes_.incrementAndGet();
+				int i = 0;
+				while(ranked[i] != stalest) {
+					i++;
+				}
+				System.arraycopy(ranked, 0, ranked, 1, i);
+				ranked[0] = stalest;
+			}
+		}
+		return ranked;
+	}
+	
+	/**
+	 * A 5xx, or no response at all.  Anything else is an answer.
+	 */
+	private static final boolean isFailure(final HttpFailure failure) {
+		final int status = failure.getStatusCode();
+		return status < SC_CONTINUE || status >= SC_INTERNAL_SERVER_ERROR;
+	}
+
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.replica;
+
+import com.kolich.aws.services.s3.S3Client;
+import com.kolich.aws.services.s3.S3Region;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * One regional copy of a replicated bucket: the region it lives in, the
+ * client to read it with, and its name, since bucket names are global
+ * and every copy has its own.
+ */
+public final class S3Replica {
+	
+	private final S3Region region_;
+	private final S3Client client_;
+	private final String bucketName_;
+	
+	/**
+	 * @param region the region the copy lives in
+	 * @param client a client to read it with, usually one configured for
+	 * the same region
+	 * @param bucketName the name of the bucket the copy is in
+	 */
+	public S3Replica(final S3Region region,
+                     final S3Client client,
+                     final String bucketName) {
+		region_ = checkNotNull(region, "Region cannot be null.");
+		client_ = checkNotNull(client, "Client cannot be null.");
+		bucketName_ = checkNotNull(bucketName, "Bucket name cannot be null.");
+	}
+	
+	public S3Region getRegion() {
+		return region_;
+	}
+	
+	public S3Client getClient() {
+		return client_;
+	}
+	
+	public String getBucketName() {
+		return bucketName_;
+	}
+	
+	@Override
+	public String toString() {
+		return bucketName_ + "@" + region_;
+	}
+
+}
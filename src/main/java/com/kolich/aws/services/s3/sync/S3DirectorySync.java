@@ -0,0 +1,598 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.sync;
+
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.kolich.aws.KolichAwsException;
+import com.kolich.aws.concurrent.BoundedExecutor;
+import com.kolich.aws.concurrent.Deadline;
+import com.kolich.aws.services.s3.S3Client;
+import com.kolich.aws.services.s3.S3ObjectVisitor;
+import com.kolich.common.functional.either.Either;
+import com.kolich.common.functional.either.Left;
+import com.kolich.common.functional.either.Right;
+import com.kolich.common.functional.option.Option;
+import com.kolich.http.common.response.HttpFailure;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Strings.nullToEmpty;
+import static com.google.common.collect.ObjectArrays.concat;
+import static com.google.common.util.concurrent.Futures.successfulAsList;
+import static com.kolich.aws.services.s3.impl.KolichS3Client.KEY_ORDER;
+import static com.kolich.aws.services.s3.impl.KolichS3Client.pathStringToVarargs;
+import static com.kolich.aws.services.s3.impl.KolichS3Client.varargsToPathString;
+import static org.apache.commons.codec.binary.Hex.encodeHexString;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.apache.commons.codec.digest.DigestUtils.md5Hex;
+
+/**
+ * Mirrors a local directory tree into a bucket.  The remote listing is
+ * streamed in the background while the local tree is walked, and merged
+ * against the sorted local tree page by page as it arrives, so diffing
+ * and uploads start with the first page and the listing is never held
+ * in memory as a whole.  Every local file is diffed against its remote
+ * object:
+ * 
+ * <ul>
+ * <li>no remote object, or a different size: upload</li>
+ * <li>same size, and the {@link S3SyncManifest} entry still matches the
+ * file's size and modification time: compare the recorded MD5 or ETag
+ * against the remote ETag without reading the file</li>
+ * <li>otherwise: hash the file and compare its MD5 against the remote
+ * ETag, recording the result in the manifest</li>
+ * </ul>
+ * 
+ * Remote objects with no local file are optionally deleted.  Hashing,
+ * uploads and deletes all run with bounded concurrency; files that can be
+ * skipped outright never leave the calling thread.
+ */
+public final class S3DirectorySync {
+	
+	private static final int DEFAULT_CONCURRENCY = 32;
+	private static final int S3_MAX_KEYS_PER_DELETE = 1000;
+	
+	/**
+	 * How many listed objects may be waiting to be merged, ten pages.
+	 */
+	private static final int LISTING_BUFFER_SIZE = 10000;
+	private static final long LISTING_OFFER_MS = 100L;
+	
+	/**
+	 * Put on the listing queue once the listing is done, whether or not
+	 * it succeeded.
+	 */
+	private static final S3ObjectSummary END_OF_LISTING = new S3ObjectSummary();
+	
+	private static final String S3_PATH_SEPARATOR = "/";
+	private static final String MULTIPART_ETAG_SEPARATOR = "-";
+	
+	private final S3Client client_;
+	private final ListeningExecutorService executor_;
+	private final int concurrency_;
+	
+	public S3DirectorySync(final S3Client client,
+                           final ListeningExecutorService executor,
+                           final int concurrency) {
+		checkArgument(concurrency > 0, "Concurrency must be greater " +
+			"than zero.");
+		client_ = checkNotNull(client, "S3 client cannot be null.");
+		executor_ = checkNotNull(executor, "Executor cannot be null.");
+		concurrency_ = concurrency;
+	}
+	
+	public S3DirectorySync(final S3Client client,
+                           final int concurrency) {
+		this(client, BoundedExecutor.getDefaultExecutor(), concurrency);
+	}
+	
+	public S3DirectorySync(final S3Client client) {
+		this(client, DEFAULT_CONCURRENCY);
+	}
+	
+	/**
+	 * Syncs the given directory into the bucket under the given prefix.
+	 * @param directory the local directory to mirror
+	 * @param bucketName the name of the bucket to mirror into
+	 * @param prefix the path to mirror the directory under, joined and URL
+	 * encoded the same way as the path of every other path based method,
+	 * null or empty to mirror into the root of the bucket.  Each relative
+	 * path in the directory is encoded the same way, one segment per
+	 * directory level
+	 * @param manifest the {@link S3SyncManifest} of the previous sync,
+	 * updated in place and saved once the sync completes, whose entries
+	 * for other buckets and prefixes are left alone
+	 * @param delete set to true to delete remote objects under the prefix
+	 * whose local file no longer exists
+	 * @return a {@link S3SyncResult} describing what was done, or a failure
+	 * if the remote listing could not be fetched.  Files diffed before a
+	 * listing failed may already have been uploaded, and are recorded in
+	 * the manifest
+	 */
+	public Either<HttpFailure,S3SyncResult> sync(final File directory,
+                                                 final String bucketName,
+                                                 final String prefix,
+                                                 final S3SyncManifest manifest,
+                                                 final boolean delete) {
+		checkNotNull(directory, "Directory cannot be null.");
+		checkArgument(directory.isDirectory(), "Not a directory: " + directory);
+		checkNotNull(bucketName, "Bucket name cannot be null.");
+		checkNotNull(manifest, "Manifest cannot be null.");
+		try {
+			return new SyncRun(directory.toPath(), bucketName,
+				nullToEmpty(prefix), manifest).run(delete);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KolichAwsException("Interrupted while syncing " +
+				"directory (directory=" + directory + ")", e);
+		} catch (IOException e) {
+			throw new KolichAwsException("Failed to walk directory " +
+				"(directory=" + directory + ")", e);
+		}
+	}
+	
+	public Either<HttpFailure,S3SyncResult> sync(final File directory,
+                                                 final String bucketName,
+                                                 final String prefix,
+                                                 final S3SyncManifest manifest) {
+		return sync(directory, bucketName, prefix, manifest, false);
+	}
+	
+	private static final class LocalFile {
+		private final Path path_;
+		private final long size_;
+		private final long lastModified_;
+		private LocalFile(final Path path,
+                          final long size,
+                          final long lastModified) {
+			path_ = path;
+			size_ = size;
+			lastModified_ = lastModified;
+		}
+	}
+	
+	/**
+	 * The state of one sync, from walking both sides through to waiting
+	 * on the last upload.
+	 */
+	private final class SyncRun {
+		
+		private final Path root_;
+		private final String bucketName_;
+		private final String[] prefixPath_;
+		private final String keyPrefix_;
+		private final String target_;
+		private final S3SyncManifest manifest_;
+		private final BoundedExecutor bounded_;
+		
+		private final List<ListenableFuture<Void>> pending_;
+		private final Map<String,HttpFailure> failed_;
+		private final Queue<DeleteError> deleteErrors_;
+		private final AtomicLong uploaded_;
+		private final AtomicLong deleted_;
+		private final AtomicLong skipped_;
+		private final AtomicLong hashed_;
+		
+		private SyncRun(final Path root,
+                        final String bucketName,
+                        final String prefix,
+                        final S3SyncManifest manifest) {
+			root_ = root;
+			bucketName_ = bucketName;
+			prefixPath_ = pathStringToVarargs(prefix);
+			keyPrefix_ = (prefixPath_.length == 0) ? "" :
+				varargsToPathString(prefixPath_) + S3_PATH_SEPARATOR;
+			target_ = bucketName + S3_PATH_SEPARATOR + keyPrefix_;
+			manifest_ = manifest;
+			bounded_ = new BoundedExecutor(executor_, concurrency_);
+			pending_ = Lists.newArrayList();
+			failed_ = new ConcurrentHashMap<String,HttpFailure>();
+			deleteErrors_ = new ConcurrentLinkedQueue<DeleteError>();
+			uploaded_ = new AtomicLong();
+			deleted_ = new AtomicLong();
+			skipped_ = new AtomicLong();
+			hashed_ = new AtomicLong();
+		}
+		
+		private final Either<HttpFailure,S3SyncResult> run(final boolean delete)
+			throws InterruptedException, IOException {
+			// Start listing the remote side first, it's by far the slower
+			// of the two walks.
+			final RemoteListing remote = new RemoteListing();
+			final ListenableFuture<Void> listing =
+				executor_.submit(Deadline.propagate(remote));
+			final NavigableMap<String,LocalFile> local;
+			try {
+				local = walkLocal();
+				merge(local, remote, delete);
+			} finally {
+				// Lets the listing go if the merge gave up early.
+				remote.stop();
+			}
+			await(listing);
+			awaitAll(pending_);
+			manifest_.retain(target_, local.keySet());
+			manifest_.save();
+			final HttpFailure failure = remote.failure_;
+			if(failure != null) {
+				return Left.<HttpFailure,S3SyncResult>left(failure);
+			}
+			return Right.<HttpFailure,S3SyncResult>right(new S3SyncResult(
+				uploaded_.get(), deleted_.get(), skipped_.get(), hashed_.get(),
+				ImmutableMap.copyOf(failed_), ImmutableList.copyOf(deleteErrors_)));
+		}
+		
+		/**
+		 * Walks the local tree and the remote listing side by side, both
+		 * in key order, diffing files found on both sides or locally only,
+		 * and deleting objects found remotely only.  Stops where the
+		 * listing does if it fails, since nothing after that is known.
+		 */
+		private final void merge(final NavigableMap<String,LocalFile> local,
+                                 final RemoteListing remote,
+                                 final boolean delete)
+			throws InterruptedException {
+			final Iterator<Map.Entry<String,LocalFile>> files =
+				local.entrySet().iterator();
+			Map.Entry<String,LocalFile> file = files.hasNext() ?
+				files.next() : null;
+			S3ObjectSummary object = remote.take();
+			List<String> deletes = Lists.newArrayListWithCapacity(
+				S3_MAX_KEYS_PER_DELETE);
+			while(file != null || object != null) {
+				if(object == null && remote.failure_ != null) {
+					break;
+				}
+				final int order = (file == null) ? 1 : (object == null) ? -1 :
+					KEY_ORDER.compare(file.getKey(),
+						object.getKey().substring(keyPrefix_.length()));
+				if(order > 0) {
+					if(delete) {
+						deletes.add(object.getKey());
+						if(deletes.size() >= S3_MAX_KEYS_PER_DELETE) {
+							pending_.add(bounded_.submit(deleteTask(deletes)));
+							deletes = Lists.newArrayListWithCapacity(
+								S3_MAX_KEYS_PER_DELETE);
+						}
+					}
+					object = remote.take();
+					continue;
+				}
+				diff(file.getKey(), file.getValue(), (order == 0) ? object : null);
+				if(order == 0) {
+					object = remote.take();
+				}
+				file = files.hasNext() ? files.next() : null;
+			}
+			if(!deletes.isEmpty()) {
+				pending_.add(bounded_.submit(deleteTask(deletes)));
+			}
+		}
+		
+		private final void diff(final String path,
+                                final LocalFile file,
+                                final S3ObjectSummary object)
+			throws InterruptedException {
+			if(object == null || object.getSize() != file.size_) {
+				pending_.add(bounded_.submit(uploadTask(path, file)));
+				return;
+			}
+			final String eTag = normalizeETag(object.getETag());
+			final S3SyncManifest.Entry entry = manifest_.get(target_, path);
+			if(entry != null && entry.matches(file.size_, file.lastModified_)) {
+				if(eTag.equals(entry.getETag()) || eTag.equals(entry.getMd5())) {
+					skipped_.incrementAndGet();
+					return;
+				}
+				if(entry.getMd5() != null && !isMultipartETag(eTag)) {
+					// The file hasn't changed since it was hashed, and that
+					// hash doesn't match: the remote object is different.
+					pending_.add(bounded_.submit(uploadTask(path, file)));
+					return;
+				}
+			}
+			pending_.add(bounded_.submit(hashTask(path, file, eTag)));
+		}
+		
+		/**
+		 * The local tree by relative path, in the order S3 lists the keys
+		 * they map to.
+		 */
+		private final NavigableMap<String,LocalFile> walkLocal() throws IOException {
+			final NavigableMap<String,LocalFile> local =
+				new TreeMap<String,LocalFile>(KEY_ORDER);
+			final Path manifest = manifest_.getFile().toPath().toAbsolutePath();
+			Files.walkFileTree(root_, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(final Path file,
+                                                 final BasicFileAttributes attrs) {
+					if(attrs.isRegularFile() &&
+						!file.toAbsolutePath().equals(manifest)) {
+						local.put(toRelativePath(file), new LocalFile(file,
+							attrs.size(), attrs.lastModifiedTime().toMillis()));
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			return local;
+		}
+		
+		/**
+		 * The relative path of a local file, one encoded segment per
+		 * directory level, exactly as it appears at the end of its key.
+		 */
+		private final String toRelativePath(final Path file) {
+			final Path relative = root_.relativize(file);
+			final String[] segments = new String[relative.getNameCount()];
+			for(int i = 0; i < segments.length; i++) {
+				segments[i] = relative.getName(i).toString();
+			}
+			return varargsToPathString(segments);
+		}
+		
+		/**
+		 * Lists every object under the prefix, a page at a time, onto a
+		 * bounded queue for the merge to take from in key order.
+		 */
+		private final class RemoteListing implements Callable<Void>,
+			S3ObjectVisitor {
+			
+			private final BlockingQueue<S3ObjectSummary> queue_;
+			private volatile boolean stopped_;
+			private volatile HttpFailure failure_;
+			
+			private RemoteListing() {
+				queue_ = new ArrayBlockingQueue<S3ObjectSummary>(
+					LISTING_BUFFER_SIZE);
+			}
+			
+			@Override
+			public Void call() {
+				try {
+					final Option<HttpFailure> walk = client_.walkObjects(
+						bucketName_, keyPrefix_, this);
+					if(walk.isSome()) {
+						failure_ = walk.get();
+					}
+				} catch (Exception e) {
+					failure_ = new HttpFailure(e);
+				} finally {
+					offerUninterruptibly(END_OF_LISTING);
+				}
+				return null;
+			}
+			
+			@Override
+			public boolean visit(final S3ObjectSummary summary)
+				throws InterruptedException {
+				while(!stopped_) {
+					if(queue_.offer(summary, LISTING_OFFER_MS, MILLISECONDS)) {
+						return true;
+					}
+				}
+				// The merge is gone, stop listing.
+				return false;
+			}
+			
+			/**
+			 * The next object in key order, or null once the listing is
+			 * done.  Never called again after returning null.
+			 */
+			private S3ObjectSummary take() throws InterruptedException {
+				final S3ObjectSummary summary = queue_.take();
+				return (summary == END_OF_LISTING) ? null : summary;
+			}
+			
+			private void stop() {
+				stopped_ = true;
+			}
+			
+			private void offerUninterruptibly(final S3ObjectSummary summary) {
+				boolean interrupted = false;
+				try {
+					while(!stopped_) {
+						try {
+							if(queue_.offer(summary, LISTING_OFFER_MS,
+								MILLISECONDS)) {
+								return;
+							}
+						} catch (InterruptedException e) {
+							interrupted = true;
+						}
+					}
+				} finally {
+					if(interrupted) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+			
+		}
+		
+		private final Callable<Void> hashTask(final String path,
+                                              final LocalFile file,
+                                              final String eTag) {
+			return new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try {
+						final String md5;
+						try(final InputStream is = Files.newInputStream(file.path_)) {
+							md5 = md5Hex(is);
+						}
+						hashed_.incrementAndGet();
+						if(md5.equals(eTag)) {
+							manifest_.put(target_, path, new S3SyncManifest.Entry(file.size_,
+								file.lastModified_, md5, eTag));
+							skipped_.incrementAndGet();
+						} else {
+							upload(path, file);
+						}
+					} catch (IOException e) {
+						failed_.put(keyPrefix_ + path, new HttpFailure(e));
+					}
+					return null;
+				}
+			};
+		}
+		
+		private final Callable<Void> uploadTask(final String path,
+                                                final LocalFile file) {
+			return new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try {
+						upload(path, file);
+					} catch (IOException e) {
+						// The file went away or became unreadable mid-sync.
+						failed_.put(keyPrefix_ + path, new HttpFailure(e));
+					}
+					return null;
+				}
+			};
+		}
+		
+		/**
+		 * Uploads a file, hashing it on the way out so that the next sync
+		 * never has to read it again.
+		 */
+		private final void upload(final String path,
+                                  final LocalFile file) throws IOException {
+			final MessageDigest digest = newMd5Digest();
+			final Either<HttpFailure,PutObjectResult> put;
+			try(final InputStream is = new DigestInputStream(
+				Files.newInputStream(file.path_), digest)) {
+				put = client_.putObject(bucketName_, is, file.size_,
+					concat(prefixPath_, pathStringToVarargs(path), String.class));
+			}
+			if(put.success()) {
+				manifest_.put(target_, path, new S3SyncManifest.Entry(file.size_,
+					file.lastModified_, encodeHexString(digest.digest()),
+					normalizeETag(put.right().getETag())));
+				uploaded_.incrementAndGet();
+			} else {
+				failed_.put(keyPrefix_ + path, put.left());
+			}
+		}
+		
+		private final Callable<Void> deleteTask(final List<String> keys) {
+			return new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					final Either<HttpFailure,List<DeleteError>> delete =
+						client_.deleteObjects(bucketName_, keys);
+					if(delete.success()) {
+						deleteErrors_.addAll(delete.right());
+						deleted_.addAndGet(keys.size() - delete.right().size());
+					} else {
+						for(final String key : keys) {
+							failed_.put(key, delete.left());
+						}
+					}
+					return null;
+				}
+			};
+		}
+		
+	}
+	
+	/**
+	 * ETags come back quoted from some APIs and unquoted from others.
+	 */
+	private static final String normalizeETag(final String eTag) {
+		return nullToEmpty(eTag).replace("\"", "").toLowerCase();
+	}
+	
+	/**
+	 * The ETag of an object uploaded in parts is not the MD5 of its
+	 * content, so it can never be compared against a local hash.
+	 */
+	private static final boolean isMultipartETag(final String eTag) {
+		return eTag.contains(MULTIPART_ETAG_SEPARATOR);
+	}
+	
+	private static final MessageDigest newMd5Digest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM is required to support MD5.
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static final <T> T await(final ListenableFuture<T> future)
+		throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw new KolichAwsException(e.getCause());
+		}
+	}
+	
+	private static final void awaitAll(final List<ListenableFuture<Void>> futures)
+		throws InterruptedException {
+		try {
+			successfulAsList(futures).get();
+		} catch (ExecutionException e) {
+			// Cannot happen, successfulAsList never fails.
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.sync;
+
+import com.kolich.aws.KolichAwsException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.kolich.common.util.URLEncodingUtils.urlDecode;
+import static com.kolich.common.util.URLEncodingUtils.urlEncode;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * A local record of what each file looked like the last time it was
+ * synced: its size, modification time, MD5 and the ETag S3 gave back.
+ * A file whose size and modification time still match its entry is never
+ * read again, which is what makes re-syncing a large, mostly unchanged
+ * tree cheap.
+ * 
+ * Entries are kept per target, the bucket and prefix a directory is
+ * synced into, so one manifest can be shared between syncs of different
+ * directories or to different places without one vouching for another.
+ * 
+ * The manifest is stored as one line per file of tab separated fields,
+ * with the target and relative path URL-encoded so that neither can ever
+ * contain a tab or a newline.
+ */
+public final class S3SyncManifest {
+	
+	private static final Charset MANIFEST_CHARSET = UTF_8;
+	private static final char FIELD_SEPARATOR = '\t';
+	private static final String NO_VALUE = "-";
+	
+	static final class Entry {
+		
+		private final long size_;
+		private final long lastModified_;
+		private final String md5_;
+		private final String eTag_;
+		
+		Entry(final long size,
+              final long lastModified,
+              final String md5,
+              final String eTag) {
+			size_ = size;
+			lastModified_ = lastModified;
+			md5_ = md5;
+			eTag_ = eTag;
+		}
+		
+		long getSize() {
+			return size_;
+		}
+		long getLastModified() {
+			return lastModified_;
+		}
+		String getMd5() {
+			return md5_;
+		}
+		String getETag() {
+			return eTag_;
+		}
+		
+		/**
+		 * True if the file on disk has not been touched since this entry
+		 * was recorded, and so its recorded MD5 can be trusted.
+		 */
+		boolean matches(final long size, final long lastModified) {
+			return size_ == size && lastModified_ == lastModified;
+		}
+		
+	}
+	
+	private final Path file_;
+	
+	/**
+	 * Entries by relative path, by target.
+	 */
+	private final ConcurrentMap<String,Map<String,Entry>> targets_;
+	
+	private S3SyncManifest(final Path file) {
+		file_ = file;
+		targets_ = new ConcurrentHashMap<String,Map<String,Entry>>();
+	}
+	
+	/**
+	 * Loads the manifest stored in the given file, or starts an empty
+	 * one if the file does not exist yet.
+	 */
+	public static final S3SyncManifest load(final File file) {
+		checkNotNull(file, "Manifest file cannot be null.");
+		final S3SyncManifest manifest = new S3SyncManifest(file.toPath());
+		if(file.exists()) {
+			try(final BufferedReader reader = Files.newBufferedReader(
+				manifest.file_, MANIFEST_CHARSET)) {
+				String line;
+				while((line = reader.readLine()) != null) {
+					final String[] fields = line.split(
+						String.valueOf(FIELD_SEPARATOR), -1);
+					if(fields.length != 6) {
+						// Skip anything that isn't well formed, the worst that
+						// can happen is that the file is hashed once more.
+						continue;
+					}
+					manifest.put(urlDecode(fields[0]), urlDecode(fields[1]),
+						new Entry(Long.parseLong(fields[2]),
+							Long.parseLong(fields[3]),
+							fromField(fields[4]), fromField(fields[5])));
+				}
+			} catch (IOException | NumberFormatException e) {
+				throw new KolichAwsException("Failed to load sync manifest " +
+					"(file=" + file + ")", e);
+			}
+		}
+		return manifest;
+	}
+	
+	/**
+	 * Writes the manifest out, replacing the previous one atomically so
+	 * that a crash mid-write never leaves a truncated manifest behind.
+	 */
+	public final void save() {
+		final Path temp = file_.resolveSibling(file_.getFileName() + ".tmp");
+		try {
+			try(final BufferedWriter writer = Files.newBufferedWriter(temp,
+				MANIFEST_CHARSET)) {
+				for(final Map.Entry<String,Map<String,Entry>> t :
+					targets_.entrySet()) {
+					final String target = urlEncode(t.getKey());
+					for(final Map.Entry<String,Entry> e : t.getValue().entrySet()) {
+						final Entry entry = e.getValue();
+						writer.append(target).append(FIELD_SEPARATOR)
+							.append(urlEncode(e.getKey())).append(FIELD_SEPARATOR)
+							.append(Long.toString(entry.getSize())).append(FIELD_SEPARATOR)
+							.append(Long.toString(entry.getLastModified())).append(FIELD_SEPARATOR)
+							.append(toField(entry.getMd5())).append(FIELD_SEPARATOR)
+							.append(toField(entry.getETag()));
+						writer.newLine();
+					}
+				}
+			}
+			Files.move(temp, file_, REPLACE_EXISTING, ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new KolichAwsException("Failed to save sync manifest " +
+				"(file=" + file_ + ")", e);
+		}
+	}
+	
+	public final File getFile() {
+		return file_.toFile();
+	}
+	
+	public final int size() {
+		int size = 0;
+		for(final Map<String,Entry> entries : targets_.values()) {
+			size += entries.size();
+		}
+		return size;
+	}
+	
+	final Entry get(final String target, final String path) {
+		final Map<String,Entry> entries = targets_.get(target);
+		return (entries != null) ? entries.get(path) : null;
+	}
+	
+	final void put(final String target, final String path,
+		final Entry entry) {
+		Map<String,Entry> entries = targets_.get(target);
+		if(entries == null) {
+			final Map<String,Entry> created =
+				new ConcurrentHashMap<String,Entry>();
+			entries = targets_.putIfAbsent(target, created);
+			if(entries == null) {
+				entries = created;
+			}
+		}
+		entries.put(path, entry);
+	}
+	
+	/**
+	 * Forgets every file synced to the given target that is no longer in
+	 * the local tree.
+	 */
+	final void retain(final String target, final Collection<String> paths) {
+		final Map<String,Entry> entries = targets_.get(target);
+		if(entries != null) {
+			entries.keySet().retainAll(paths);
+		}
+	}
+	
+	private static final String toField(final String value) {
+		return (value != null) ? value : NO_VALUE;
+	}
+	
+	private static final String fromField(final String field) {
+		return NO_VALUE.equals(field) ? null : field;
+	}
+
+}
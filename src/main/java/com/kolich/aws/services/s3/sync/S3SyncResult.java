@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.sync;
+
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.kolich.http.common.response.HttpFailure;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a single sync did: how many files were uploaded, deleted or left
+ * alone, and which ones failed.
+ */
+public final class S3SyncResult {
+	
+	private final long uploaded_;
+	private final long deleted_;
+	private final long skipped_;
+	private final long hashed_;
+	private final Map<String,HttpFailure> failed_;
+	private final List<DeleteError> deleteErrors_;
+	
+	S3SyncResult(final long uploaded,
+                 final long deleted,
+                 final long skipped,
+                 final long hashed,
+                 final Map<String,HttpFailure> failed,
+                 final List<DeleteError> deleteErrors) {
+		uploaded_ = uploaded;
+		deleted_ = deleted;
+		skipped_ = skipped;
+		hashed_ = hashed;
+		failed_ = failed;
+		deleteErrors_ = deleteErrors;
+	}
+	
+	/**
+	 * The number of files that were new or changed and were uploaded.
+	 */
+	public long getUploaded() {
+		return uploaded_;
+	}
+	
+	/**
+	 * The number of remote objects deleted because their local file
+	 * no longer exists.
+	 */
+	public long getDeleted() {
+		return deleted_;
+	}
+	
+	/**
+	 * The number of files that were already up to date.
+	 */
+	public long getSkipped() {
+		return skipped_;
+	}
+	
+	/**
+	 * The number of files that had to be read and hashed because the
+	 * manifest could not vouch for them.
+	 */
+	public long getHashed() {
+		return hashed_;
+	}
+	
+	/**
+	 * Keys that could not be uploaded or deleted, each with the failure
+	 * that prevented it.
+	 */
+	public Map<String,HttpFailure> getFailed() {
+		return failed_;
+	}
+	
+	/**
+	 * Keys S3 refused to delete inside an otherwise successful
+	 * Multi-Object Delete request.
+	 */
+	public List<DeleteError> getDeleteErrors() {
+		return deleteErrors_;
+	}
+	
+	public boolean isComplete() {
+		return failed_.isEmpty() && deleteErrors_.isEmpty();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("S3SyncResult(uploaded=%d, deleted=%d, " +
+			"skipped=%d, hashed=%d, failed=%d, deleteErrors=%d)",
+			uploaded_, deleted_, skipped_, hashed_, failed_.size(),
+			deleteErrors_.size());
+	}
+
+}
@@ -35,6 +35,9 @@ import com.kolich.aws.services.AbstractAwsSigner;
 import com.kolich.aws.services.ses.SESClient;
 import com.kolich.aws.services.ses.SESRegion;
 import com.kolich.aws.transport.AwsHttpRequest;
+import com.kolich.aws.transport.DefaultEndpointResolver;
+import com.kolich.aws.transport.EndpointResolver;
+import com.kolich.aws.transport.SortableBasicNameValuePair;
 import com.kolich.common.functional.either.Either;
 import com.kolich.common.functional.option.None;
 import com.kolich.common.functional.option.Option;
@@ -42,7 +45,6 @@ import com.kolich.common.functional.option.Some;
 import com.kolich.http.common.response.HttpFailure;
 import com.kolich.http.common.response.HttpSuccess;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpRequestBase;
 
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLInputFactory;
@@ -62,6 +64,8 @@ import static org.apache.http.HttpStatus.SC_OK;
 public final class KolichSESClient extends AbstractAwsService
     implements SESClient {
 	
+	private static final String SES_SERVICE_NAME = "ses";
+	
 	private static final String SES_ACTION_PARAM = "Action";
     private static final String SES_EMAILADDRESS_PARAM = "EmailAddress";
     
@@ -96,11 +100,18 @@ public final class KolichSESClient extends AbstractAwsService
 	
 	public KolichSESClient(final HttpClient client,
                            final AbstractAwsSigner signer,
-                           final SESRegion region) {
-		super(signer, region.getApiEndpoint());
+                           final EndpointResolver endpointResolver) {
+		super(signer, endpointResolver);
 		client_ = client;
 	}
 	
+	public KolichSESClient(final HttpClient client,
+                           final AbstractAwsSigner signer,
+                           final SESRegion region) {
+		this(client, signer,
+			new DefaultEndpointResolver(region.getApiEndpoint()));
+	}
+	
 	public KolichSESClient(final HttpClient client,
                            final String key,
                            final String secret,
@@ -114,6 +125,34 @@ public final class KolichSESClient extends AbstractAwsService
 		this(client, new KolichSESSigner(key, secret), US_EAST);
 	}
 	
+	@Override
+	protected String getServiceName() {
+		return SES_SERVICE_NAME;
+	}
+	
+	/**
+	 * Fetches the send quota, which is signed, read-only and cheap.
+	 */
+	@Override
+	protected Option<HttpFailure> warmUpRequest() {
+		final Either<HttpFailure,GetSendQuotaResult> result = getSendQuota();
+		return result.success() ? None.<HttpFailure>none() :
+			Some.<HttpFailure>some(result.left());
+	}
+	
+	/**
+	 * Every request carries its operation in the "Action" parameter.
+	 */
+	@Override
+	protected String getOperationName(final AwsHttpRequest request) {
+		for(final SortableBasicNameValuePair param : request.getParameters()) {
+			if(SES_ACTION_PARAM.equals(param.getName())) {
+				return param.getValue();
+			}
+		}
+		return super.getOperationName(request);
+	}
+	
 	private abstract class AwsSESHttpClosure<S> extends AwsBaseHttpClosure<S> {
 		private final Unmarshaller<S,StaxUnmarshallerContext> unmarshaller_;
 		public AwsSESHttpClosure(final HttpClient client,
@@ -127,19 +166,6 @@ public final class KolichSESClient extends AbstractAwsService
 			this(client, expectStatus, null);
 		}
 		@Override
-		public final void before(final HttpRequestBase request) throws Exception {
-			final AwsHttpRequest wrapped = new AwsHttpRequest(request);
-			validate();
-			prepare(wrapped);
-			signRequest(wrapped);
-		}
-		public void validate() throws Exception {
-			// Default, nothing.
-		}
-		public void prepare(final AwsHttpRequest request) throws Exception {
-			// Default, nothing.
-		}
-		@Override
 		public S success(final HttpSuccess success) throws Exception {
 			return (unmarshaller_ != null) ? unmarshall(success) : null;
 		}
@@ -41,6 +41,9 @@ import com.kolich.aws.services.AbstractAwsSigner;
 import com.kolich.aws.services.sqs.SQSClient;
 import com.kolich.aws.services.sqs.SQSRegion;
 import com.kolich.aws.transport.AwsHttpRequest;
+import com.kolich.aws.transport.DefaultEndpointResolver;
+import com.kolich.aws.transport.EndpointResolver;
+import com.kolich.aws.transport.SortableBasicNameValuePair;
 import com.kolich.common.functional.either.Either;
 import com.kolich.common.functional.option.None;
 import com.kolich.common.functional.option.Option;
@@ -48,7 +51,6 @@ import com.kolich.common.functional.option.Some;
 import com.kolich.http.common.response.HttpFailure;
 import com.kolich.http.common.response.HttpSuccess;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpRequestBase;
 
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLInputFactory;
@@ -83,6 +85,8 @@ public final class KolichSQSClient extends AbstractAwsService
      */
     private static final int SQS_MAX_LONG_POLL_WAIT_TIME_SECS = 20; // seconds
 	
+	private static final String SQS_SERVICE_NAME = "sqs";
+	
 	private static final String SQS_ACTION_PARAM = "Action";
 	private static final String SQS_QUEUE_NAME_PARAM = "QueueName";
     private static final String SQS_DEFAULT_VISIBILITY_TIMEOUT_PARAM = "DefaultVisibilityTimeout";
@@ -111,11 +115,18 @@ public final class KolichSQSClient extends AbstractAwsService
 	
 	public KolichSQSClient(final HttpClient client,
                            final AbstractAwsSigner signer,
-                           final SQSRegion region) {
-		super(signer, region.getApiEndpoint());
+                           final EndpointResolver endpointResolver) {
+		super(signer, endpointResolver);
 		client_ = client;
 	}
 	
+	public KolichSQSClient(final HttpClient client,
+                           final AbstractAwsSigner signer,
+                           final SQSRegion region) {
+		this(client, signer,
+			new DefaultEndpointResolver(region.getApiEndpoint()));
+	}
+	
 	public KolichSQSClient(final HttpClient client,
                            final String key,
                            final String secret,
@@ -129,6 +140,34 @@ public final class KolichSQSClient extends AbstractAwsService
 		this(client, key, secret, DEFAULT);
 	}
 	
+	@Override
+	protected String getServiceName() {
+		return SQS_SERVICE_NAME;
+	}
+	
+	/**
+	 * Lists queues, which is signed, read-only and cheap.
+	 */
+	@Override
+	protected Option<HttpFailure> warmUpRequest() {
+		final Either<HttpFailure,ListQueuesResult> result = listQueues();
+		return result.success() ? None.<HttpFailure>none() :
+			Some.<HttpFailure>some(result.left());
+	}
+	
+	/**
+	 * Every request carries its operation in the "Action" parameter.
+	 */
+	@Override
+	protected String getOperationName(final AwsHttpRequest request) {
+		for(final SortableBasicNameValuePair param : request.getParameters()) {
+			if(SQS_ACTION_PARAM.equals(param.getName())) {
+				return param.getValue();
+			}
+		}
+		return super.getOperationName(request);
+	}
+	
 	private abstract class AwsSQSHttpClosure<S> extends AwsBaseHttpClosure<S> {
 		private final Unmarshaller<S,StaxUnmarshallerContext> unmarshaller_;
 		public AwsSQSHttpClosure(final HttpClient client,
@@ -142,19 +181,6 @@ public final class KolichSQSClient extends AbstractAwsService
 			this(client, expectStatus, null);
 		}
 		@Override
-		public final void before(final HttpRequestBase request) throws Exception {
-			final AwsHttpRequest wrapped = new AwsHttpRequest(request);
-			validate();
-			prepare(wrapped);
-			signRequest(wrapped);
-		}
-		public void validate() throws Exception {
-			// Default, nothing.
-		}
-		public void prepare(final AwsHttpRequest request) throws Exception {
-			// Default, nothing.
-		}
-		@Override
 		public S success(final HttpSuccess success) throws Exception {
 			return (unmarshaller_ != null) ? unmarshall(success) : null;
 		}
@@ -0,0 +1,520 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.kolich.aws.concurrent.Deadline;
+import com.kolich.aws.metrics.RequestTimeline;
+import com.kolich.aws.metrics.RequestTimeline.Phase;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLContexts;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * A connection pool, and an {@link HttpClient} over it, sized for the
+ * way the S3, SQS and SES clients talk to AWS.
+ * 
+ * Every S3 bucket addressed virtual-host style is a route of its own,
+ * so buckets are sized separately from service endpoints: a few hot
+ * buckets cannot take every connection, and every endpoint still gets
+ * enough of them.  Connections are kept alive only as long as AWS is
+ * likely to keep its end open, and a background thread closes idle and
+ * expired connections before a request trips over them.  Since
+ * connections are also retired after a time to live, new ones keep
+ * being placed by the {@link DnsResolver}, see
+ * {@link SpreadingDnsResolver}.
+ * 
+ * For requests from a client that is measuring them, the pool also
+ * marks when each got its connection, connected, finished its TLS
+ * handshake, was sent and was answered, see {@link RequestTimeline}.
+ * 
+ * <pre>
+ * final AwsConnectionPool pool = new AwsConnectionPool();
+ * final S3Client s3 = new KolichS3Client(pool.getHttpClient(), key, secret);
+ * </pre>
+ */
+public final class AwsConnectionPool implements Closeable {
+	
+	private static final int DEFAULT_MAX_TOTAL = 200;
+	private static final int DEFAULT_MAX_PER_ENDPOINT = 50;
+	private static final int DEFAULT_MAX_PER_BUCKET = 20;
+	
+	/**
+	 * S3 closes connections that have been idle for about 20 seconds, so
+	 * anything idle for longer than this is not worth trying to reuse.
+	 */
+	private static final long DEFAULT_MAX_IDLE_MS = 15000L;
+	
+	/**
+	 * Connections are retired after this long, even if busy, so that the
+	 * pool picks up DNS changes.
+	 */
+	private static final long DEFAULT_TIME_TO_LIVE_MS = 60000L;
+	
+	private static final long EVICTION_INTERVAL_MS = 5000L;
+	
+	private static final String EVICTOR_THREAD_NAME = "kolich-aws-pool-evictor";
+	
+	/**
+	 * Virtual-host style bucket hosts, like "bucket.s3.amazonaws.com" or
+	 * "my.bucket.s3-us-west-2.amazonaws.com".
+	 */
+	private static final Pattern BUCKET_HOST = Pattern.compile(
+		"^.+\\.s3([.-][a-z0-9-]+)*\\.amazonaws\\.com(\\.cn)?$",
+		Pattern.CASE_INSENSITIVE);
+	
+	private static final String KEEP_ALIVE_TIMEOUT = "timeout";
+	
+	private static final String HTTP_SCHEME = "http";
+	private static final String HTTPS_SCHEME = "https";
+	
+	/**
+	 * Lazily created, shared daemon thread that evicts idle and expired
+	 * connections from every pool.
+	 */
+	private static final class EvictorHolder {
+		private static final ScheduledExecutorService evictor__ =
+			newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat(EVICTOR_THREAD_NAME)
+				.build());
+	}
+	
+	/**
+	 * Sizes every route the first time it is seen, and times how long
+	 * each lease waits for a connection.
+	 */
+	private final class ConnectionManager
+		extends PoolingHttpClientConnectionManager {
+		private ConnectionManager(final DnsResolver resolver,
+			final long timeToLiveMs) {
+			super(RegistryBuilder.<ConnectionSocketFactory>create()
+				.register(HTTP_SCHEME, new TimedPlainSocketFactory())
+				.register(HTTPS_SCHEME, new TimedSSLSocketFactory())
+				.build(), null, null, resolver, timeToLiveMs, MILLISECONDS);
+		}
+		@Override
+		public ConnectionRequest requestConnection(final HttpRoute route,
+			final Object state) {
+			final String host = route.getTargetHost().getHostName();
+			if(routes_.putIfAbsent(route, host) == null) {
+				setMaxPerRoute(route, BUCKET_HOST.matcher(host).matches() ?
+					maxPerBucket_ : maxPerEndpoint_);
+			}
+			final ConnectionRequest request = super.requestConnection(route,
+				state);
+			return new ConnectionRequest() {
+				@Override
+				public HttpClientConnection get(final long timeout,
+					final TimeUnit unit) throws InterruptedException,
+					ExecutionException, ConnectionPoolTimeoutException {
+					final long start = System.nanoTime();
+					try {
+						return request.get(timeout, unit);
+					} finally {
+						recordLease(System.nanoTime() - start);
+					}
+				}
+				@Override
+				public boolean cancel() {
+					return request.cancel();
+				}
+			};
+		}
+	}
+	
+	/**
+	 * Marks when a new connection was opened on the
+	 * {@link RequestTimeline} of the request it's for, if any.
+	 */
+	private static final class TimedPlainSocketFactory
+		extends PlainConnectionSocketFactory {
+		@Override
+		public Socket connectSocket(final int connectTimeout,
+			final Socket socket, final HttpHost host,
+			final InetSocketAddress remoteAddress,
+			final InetSocketAddress localAddress,
+			final HttpContext context) throws IOException {
+			RequestTimeline.markFirst(context, Phase.LEASED);
+			final Socket connected = super.connectSocket(connectTimeout,
+				socket, host, remoteAddress, localAddress, context);
+			RequestTimeline.mark(context, Phase.CONNECTED);
+			return connected;
+		}
+	}
+	
+	/**
+	 * Marks when a new connection was opened, and when its TLS handshake
+	 * finished, on the {@link RequestTimeline} of the request it's for,
+	 * if any.  Configured just like
+	 * {@link SSLConnectionSocketFactory#getSocketFactory()}.
+	 */
+	private static final class TimedSSLSocketFactory
+		extends SSLConnectionSocketFactory {
+		private TimedSSLSocketFactory() {
+			super(SSLContexts.createDefault(),
+				BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
+		}
+		@Override
+		public Socket connectSocket(final int connectTimeout,
+			final Socket socket, final HttpHost host,
+			final InetSocketAddress remoteAddress,
+			final InetSocketAddress localAddress,
+			final HttpContext context) throws IOException {
+			RequestTimeline.markFirst(context, Phase.LEASED);
+			return super.connectSocket(connectTimeout, socket, host,
+				remoteAddress, localAddress, context);
+		}
+		@Override
+		public Socket createLayeredSocket(final Socket socket,
+			final String target, final int port, final HttpContext context)
+			throws IOException {
+			// Connected, about to start the handshake.
+			RequestTimeline.mark(context, Phase.CONNECTED);
+			final Socket layered = super.createLayeredSocket(socket, target,
+				port, context);
+			RequestTimeline.mark(context, Phase.TLS_HANDSHAKEN);
+			return layered;
+		}
+	}
+	
+	/**
+	 * Marks when the request was written out and when the response
+	 * headers were read on the {@link RequestTimeline} of the request,
+	 * if any.
+	 */
+	private static final class TimedRequestExecutor
+		extends HttpRequestExecutor {
+		@Override
+		public HttpResponse execute(final HttpRequest request,
+			final HttpClientConnection connection, final HttpContext context)
+			throws IOException, HttpException {
+			// A pooled connection that was already open goes straight here.
+			RequestTimeline.markFirst(context, Phase.LEASED);
+			return super.execute(request, connection, context);
+		}
+		@Override
+		protected HttpResponse doSendRequest(final HttpRequest request,
+			final HttpClientConnection connection, final HttpContext context)
+			throws IOException, HttpException {
+			final HttpResponse response = super.doSendRequest(request,
+				connection, context);
+			RequestTimeline.mark(context, Phase.REQUEST_SENT);
+			return response;
+		}
+		@Override
+		protected HttpResponse doReceiveResponse(final HttpRequest request,
+			final HttpClientConnection connection, final HttpContext context)
+			throws IOException, HttpException {
+			final HttpResponse response = super.doReceiveResponse(request,
+				connection, context);
+			RequestTimeline.mark(context, Phase.FIRST_BYTE);
+			return response;
+		}
+	}
+	
+	/**
+	 * Retries as the client would by default, counting each retry on the
+	 * {@link RequestTimeline} of the request, if any.  Under a
+	 * {@link Deadline} nothing is retried once it has passed, and each
+	 * retry has its timeouts cut down again to whatever is left of it,
+	 * rather than getting the full timeouts the first attempt started
+	 * out with.
+	 */
+	static final class CountingRetryHandler
+		extends DefaultHttpRequestRetryHandler {
+		@Override
+		public boolean retryRequest(final IOException exception,
+			final int executionCount, final HttpContext context) {
+			if(Deadline.isCurrentExpired()) {
+				return false;
+			}
+			final boolean retry = super.retryRequest(exception,
+				executionCount, context);
+			if(retry) {
+				final Deadline deadline = Deadline.current();
+				if(deadline != null) {
+					capTimeouts(HttpClientContext.adapt(context), deadline);
+				}
+				RequestTimeline.retried(context);
+			}
+			return retry;
+		}
+		/**
+		 * The client reads the config back out of the context on every
+		 * attempt, so replacing it there is enough.
+		 */
+		private static final void capTimeouts(final HttpClientContext context,
+			final Deadline deadline) {
+			final int timeout = (int)Math.max(1L, Math.min(Integer.MAX_VALUE,
+				deadline.remaining(MILLISECONDS)));
+			final RequestConfig config = context.getRequestConfig();
+			context.setRequestConfig(RequestConfig.copy(config)
+				.setConnectionRequestTimeout(lower(
+					config.getConnectionRequestTimeout(), timeout))
+				.setConnectTimeout(lower(config.getConnectTimeout(), timeout))
+				.setSocketTimeout(lower(config.getSocketTimeout(), timeout))
+				.build());
+		}
+		/**
+		 * The lower of an existing timeout, where zero or less means none,
+		 * and the given one.
+		 */
+		private static final int lower(final int existing, final int timeout) {
+			return (existing > 0) ? Math.min(existing, timeout) : timeout;
+		}
+	}
+	
+	private final int maxPerEndpoint_;
+	private final int maxPerBucket_;
+	private final long maxIdleMs_;
+	
+	private final ConnectionManager manager_;
+	private final CloseableHttpClient client_;
+	private final ScheduledFuture<?> eviction_;
+	
+	private final ConcurrentHashMap<HttpRoute,String> routes_;
+	private final AtomicLong leases_;
+	private final AtomicLong leaseWaitNanos_;
+	private final AtomicLong maxLeaseWaitNanos_;
+	
+	/**
+	 * @param maxTotal the most connections open at once, to anywhere
+	 * @param maxPerEndpoint the most connections open to any one service
+	 * endpoint, like "sqs.us-east-1.amazonaws.com"
+	 * @param maxPerBucket the most connections open to any one S3 bucket
+	 * addressed virtual-host style
+	 * @param maxIdleMs how long a connection may sit idle in the pool
+	 * @param timeToLiveMs how long a connection lives, idle or not
+	 * @param resolver resolves hosts to the addresses to connect to, null
+	 * for the system resolver
+	 */
+	public AwsConnectionPool(final int maxTotal,
+                             final int maxPerEndpoint,
+                             final int maxPerBucket,
+                             final long maxIdleMs,
+                             final long timeToLiveMs,
+                             final DnsResolver resolver) {
+		checkArgument(maxTotal > 0, "Max total must be greater than zero.");
+		checkArgument(maxPerEndpoint > 0 && maxPerEndpoint <= maxTotal,
+			"Max per endpoint must be between one and the max total.");
+		checkArgument(maxPerBucket > 0 && maxPerBucket <= maxTotal,
+			"Max per bucket must be between one and the max total.");
+		checkArgument(maxIdleMs > 0L, "Max idle must be greater than zero.");
+		checkArgument(timeToLiveMs > 0L, "Time to live must be greater " +
+			"than zero.");
+		maxPerEndpoint_ = maxPerEndpoint;
+		maxPerBucket_ = maxPerBucket;
+		maxIdleMs_ = maxIdleMs;
+		routes_ = new ConcurrentHashMap<HttpRoute,String>();
+		leases_ = new AtomicLong();
+		leaseWaitNanos_ = new AtomicLong();
+		maxLeaseWaitNanos_ = new AtomicLong();
+		manager_ = new ConnectionManager(resolver, timeToLiveMs);
+		manager_.setMaxTotal(maxTotal);
+		manager_.setDefaultMaxPerRoute(maxPerEndpoint);
+		client_ = HttpClients.custom()
+			.setConnectionManager(manager_)
+			.setRequestExecutor(new TimedRequestExecutor())
+			.setRetryHandler(new CountingRetryHandler())
+			.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+				@Override
+				public long getKeepAliveDuration(final HttpResponse response,
+					final HttpContext context) {
+					return getKeepAliveMs(response);
+				}
+			})
+			.build();
+		eviction_ = EvictorHolder.evictor__.scheduleWithFixedDelay(
+			new Runnable() {
+			@Override
+			public void run() {
+				manager_.closeExpiredConnections();
+				manager_.closeIdleConnections(maxIdleMs_, MILLISECONDS);
+			}
+		}, EVICTION_INTERVAL_MS, EVICTION_INTERVAL_MS, MILLISECONDS);
+	}
+	
+	/**
+	 * A pool with the default sizes that resolves hosts with the given
+	 * resolver, for example a {@link SpreadingDnsResolver}.
+	 */
+	public AwsConnectionPool(final DnsResolver resolver) {
+		this(DEFAULT_MAX_TOTAL, DEFAULT_MAX_PER_ENDPOINT, DEFAULT_MAX_PER_BUCKET,
+			DEFAULT_MAX_IDLE_MS, DEFAULT_TIME_TO_LIVE_MS, resolver);
+	}
+	
+	public AwsConnectionPool() {
+		this(null);
+	}
+	
+	/**
+	 * The client to hand to the S3, SQS and SES clients.  One pool, and so
+	 * one client, can be shared by all of them.
+	 */
+	public HttpClient getHttpClient() {
+		return client_;
+	}
+	
+	/**
+	 * The underlying connection manager, for building a client of your
+	 * own over this pool.
+	 */
+	public HttpClientConnectionManager getConnectionManager() {
+		return manager_;
+	}
+	
+	/**
+	 * Connections leased, available and pending across the whole pool.
+	 */
+	public PoolStats getTotalStats() {
+		return manager_.getTotalStats();
+	}
+	
+	/**
+	 * Connections leased, available and pending per host seen so far.
+	 */
+	public Map<String,PoolStats> getStats() {
+		final ImmutableMap.Builder<String,PoolStats> stats =
+			ImmutableMap.builder();
+		for(final Map.Entry<HttpRoute,String> route : routes_.entrySet()) {
+			stats.put(route.getKey().getTargetHost().toHostString(),
+				manager_.getStats(route.getKey()));
+		}
+		return stats.build();
+	}
+	
+	/**
+	 * The number of connections leased from the pool so far.
+	 */
+	public long getLeaseCount() {
+		return leases_.get();
+	}
+	
+	/**
+	 * The total time, in milliseconds, spent waiting for connections to be
+	 * leased, whether they were free, opened, or handed back by others.
+	 */
+	public long getLeaseWaitMs() {
+		return NANOSECONDS.toMillis(leaseWaitNanos_.get());
+	}
+	
+	/**
+	 * The longest time, in milliseconds, any one lease waited.
+	 */
+	public long getMaxLeaseWaitMs() {
+		return NANOSECONDS.toMillis(maxLeaseWaitNanos_.get());
+	}
+	
+	/**
+	 * Stops evicting connections and closes every one of them.  Any client
+	 * built over this pool is unusable afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		eviction_.cancel(false);
+		client_.close();
+	}
+	
+	private final void recordLease(final long waited) {
+		leases_.incrementAndGet();
+		leaseWaitNanos_.addAndGet(waited);
+		long max;
+		while(waited > (max = maxLeaseWaitNanos_.get()) &&
+			!maxLeaseWaitNanos_.compareAndSet(max, waited));
+	}
+	
+	/**
+	 * Honors the timeout the server asks for, if any, but never keeps a
+	 * connection around for longer than it may sit idle in the pool.
+	 */
+	private final long getKeepAliveMs(final HttpResponse response) {
+		final HeaderElementIterator it = new BasicHeaderElementIterator(
+			response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+		while(it.hasNext()) {
+			final HeaderElement he = it.nextElement();
+			if(KEEP_ALIVE_TIMEOUT.equalsIgnoreCase(he.getName()) &&
+				he.getValue() != null) {
+				try {
+					return Math.min(maxIdleMs_,
+						SECONDS.toMillis(Long.parseLong(he.getValue())));
+				} catch (NumberFormatException e) {
+					// Ignore it.
+				}
+			}
+		}
+		return maxIdleMs_;
+	}
+
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport;
+
+import java.net.URI;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Where requests for one resource, an S3 bucket or the service itself,
+ * are sent.  Built once per resource by an {@link EndpointResolver} and
+ * reused for every request to it.
+ */
+public final class AwsEndpoint {
+	
+	private static final String SLASH = "/";
+	private static final String QUERY = "?";
+	
+	private final URI baseUri_;
+	private final String pathPrefix_;
+	
+	private AwsEndpoint(final URI baseUri, final String pathPrefix) {
+		baseUri_ = baseUri;
+		pathPrefix_ = pathPrefix;
+	}
+	
+	/**
+	 * An endpoint that addresses its resource, if any, by host, for
+	 * example "https://bucket.s3.amazonaws.com".
+	 */
+	public static final AwsEndpoint byHost(final String scheme,
+		final String authority) {
+		return new AwsEndpoint(toUri(scheme, authority), null);
+	}
+	
+	/**
+	 * An endpoint that addresses its resource by the first segment of the
+	 * path, for example "http://localhost:9000/bucket".
+	 */
+	public static final AwsEndpoint byPath(final String scheme,
+		final String authority, final String resource) {
+		checkNotNull(resource, "Resource cannot be null.");
+		checkArgument(!resource.contains(SLASH), "Resource cannot " +
+			"contain a slash.");
+		return new AwsEndpoint(toUri(scheme, authority),
+			toUri(scheme, authority).toString() + resource);
+	}
+	
+	private static final URI toUri(final String scheme,
+		final String authority) {
+		checkNotNull(scheme, "Scheme cannot be null.");
+		checkNotNull(authority, "Authority cannot be null.");
+		return URI.create(scheme + "://" + authority + SLASH);
+	}
+	
+	/**
+	 * The scheme requests are sent with, "http" or "https".
+	 */
+	public String getScheme() {
+		return baseUri_.getScheme();
+	}
+	
+	/**
+	 * The host, and port if not the default, requests are sent to.
+	 */
+	public String getAuthority() {
+		return baseUri_.getRawAuthority();
+	}
+	
+	/**
+	 * True if the resource is addressed by path, in which case the path
+	 * of every request starts with it.
+	 */
+	public boolean isResourceInPath() {
+		return pathPrefix_ != null;
+	}
+	
+	/**
+	 * The full URI to send a request with the given path and query to.
+	 * Addressed by host, this is a {@link URI#resolve(URI)} against the
+	 * cached base, and involves no parsing at all.
+	 */
+	public URI resolve(final URI relative) {
+		checkNotNull(relative, "Relative URI cannot be null.");
+		if(pathPrefix_ == null) {
+			return baseUri_.resolve(relative);
+		}
+		final String path = relative.getRawPath();
+		final String query = relative.getRawQuery();
+		return URI.create(pathPrefix_ +
+			((path == null || path.isEmpty()) ? SLASH : path) +
+			((query == null) ? "" : QUERY + query));
+	}
+	
+	@Override
+	public String toString() {
+		return (pathPrefix_ != null) ? pathPrefix_ : baseUri_.toString();
+	}
+
+}
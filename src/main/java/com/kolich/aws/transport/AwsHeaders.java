@@ -34,6 +34,13 @@ public interface AwsHeaders {
 	
 	public static final String S3_VERSION_ID = "x-amz-version-id";	
 	public static final String S3_ALTERNATE_DATE = "x-amz-date";	
+	public static final String S3_USER_METADATA_PREFIX = "x-amz-meta-";
+	
+	public static final String S3_COPY_SOURCE = "x-amz-copy-source";
+	public static final String S3_COPY_SOURCE_RANGE = "x-amz-copy-source-range";
+	public static final String S3_METADATA_DIRECTIVE = "x-amz-metadata-directive";
+	public static final String S3_METADATA_DIRECTIVE_COPY = "COPY";
+	
 	public static final String S3_STANDARD_REDUNDANCY = "STANDARD";
     public static final String S3_REDUCED_REDUNDANCY = "REDUCED_REDUNDANCY";
     
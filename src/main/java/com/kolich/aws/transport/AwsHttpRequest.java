@@ -40,6 +40,8 @@ public final class AwsHttpRequest {
 	private final HttpRequestBase request_;	
 	private final ImmutableList.Builder<SortableBasicNameValuePair> paramBuilder_;
     private final String resource_;
+    
+    private boolean resourceInPath_;
 	
 	public AwsHttpRequest(final HttpRequestBase request,
                           final String resource) {
@@ -73,6 +75,18 @@ public final class AwsHttpRequest {
 		return resource_;
 	}
 	
+	/**
+	 * True if the resource is addressed by the first segment of the
+	 * path, path-style, rather than by host.
+	 */
+	public boolean isResourceInPath() {
+		return resourceInPath_;
+	}
+	
+	public void setResourceInPath(final boolean resourceInPath) {
+		resourceInPath_ = resourceInPath;
+	}
+	
 	public void addHeader(final String name,
                           final String value) {
 		checkNotNull(name, "The header name cannot be null.");
@@ -0,0 +1,69 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+
+/**
+ * The rest of the interceptor chain, as seen from one interceptor.
+ */
+public interface AwsRequestChain {
+	
+	/**
+	 * The request as it was handed to this interceptor.
+	 */
+	public HttpUriRequest getRequest();
+	
+	public AwsRequestContext getContext();
+	
+	/**
+	 * Sends the given request down the rest of the chain.  This is safe to
+	 * call more than once, and from more than one thread at a time, as long
+	 * as each call is given its own request instance.
+	 */
+	public HttpResponse proceed(final HttpUriRequest request)
+		throws IOException;
+	
+	/**
+	 * Sends the given request down the rest of the chain to execute in
+	 * its own {@link HttpContext}.  Requests sent concurrently with the
+	 * original one must not share its context.
+	 */
+	public HttpResponse proceed(final HttpUriRequest request,
+		final HttpContext httpContext) throws IOException;
+	
+	/**
+	 * Sends the request as it was handed to this interceptor down the
+	 * rest of the chain.
+	 */
+	public HttpResponse proceed() throws IOException;
+
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport;
+
+import org.apache.http.protocol.HttpContext;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * What an interceptor knows about the request it is intercepting, beyond
+ * the request itself.
+ */
+public final class AwsRequestContext {
+	
+	private final String serviceName_;
+	private final String operation_;
+	private final String endpoint_;
+	private final String authority_;
+	private final String resource_;
+	private final HttpContext httpContext_;
+	
+	public AwsRequestContext(final String serviceName,
+                             final String operation,
+                             final String endpoint,
+                             final String authority,
+                             final String resource,
+                             final HttpContext httpContext) {
+		serviceName_ = checkNotNull(serviceName, "Service name cannot be null.");
+		operation_ = checkNotNull(operation, "Operation cannot be null.");
+		endpoint_ = endpoint;
+		authority_ = authority;
+		resource_ = resource;
+		httpContext_ = httpContext;
+	}
+	
+	public AwsRequestContext(final String serviceName,
+                             final String operation,
+                             final String endpoint,
+                             final String authority,
+                             final HttpContext httpContext) {
+		this(serviceName, operation, endpoint, authority, null, httpContext);
+	}
+	
+	/**
+	 * The short name of the service, for example "s3" or "sqs".
+	 */
+	public String getServiceName() {
+		return serviceName_;
+	}
+	
+	/**
+	 * The name of the API operation, for example "GetObject" or
+	 * "SendMessage".
+	 */
+	public String getOperation() {
+		return operation_;
+	}
+	
+	/**
+	 * The host (and port, if any) of the API endpoint the client was
+	 * configured with, for example "s3.amazonaws.com" or
+	 * "sqs.us-west-2.amazonaws.com".  Unlike the authority this never
+	 * includes the S3 bucket.
+	 */
+	public String getEndpoint() {
+		return endpoint_;
+	}
+	
+	/**
+	 * The host (and port, if any) the request is being sent to.  For S3
+	 * this includes the bucket.
+	 */
+	public String getAuthority() {
+		return authority_;
+	}
+	
+	/**
+	 * The resource the request addresses, usually the S3 bucket, or null
+	 * if it addresses the service itself.
+	 */
+	public String getResource() {
+		return resource_;
+	}
+	
+	/**
+	 * The {@link HttpContext} the request executes in, shared by every
+	 * interceptor in the chain, may be null.
+	 */
+	public HttpContext getHttpContext() {
+		return httpContext_;
+	}
+	
+	@Override
+	public String toString() {
+		return serviceName_ + ":" + operation_ + "@" + authority_;
+	}
+
+}
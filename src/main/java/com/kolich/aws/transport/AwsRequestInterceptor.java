@@ -0,0 +1,52 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport;
+
+import org.apache.http.HttpResponse;
+
+import java.io.IOException;
+
+/**
+ * Observes, and optionally changes, every request an AWS service client
+ * sends, see {@link com.kolich.aws.services.AbstractAwsService#addInterceptor}.
+ * Interceptors run on the calling thread, in the order they were added,
+ * each wrapping all of the ones added after it, with the actual HTTP
+ * exchange at the very end of the chain.
+ */
+public interface AwsRequestInterceptor {
+	
+	/**
+	 * Intercepts a signed, ready to send request.  Implementations either
+	 * call {@link AwsRequestChain#proceed} to carry on down the chain, any
+	 * number of times, or return a response of their own.  An
+	 * {@link IOException} thrown here fails the request, the client turns
+	 * it into the cause of the resulting failure.
+	 */
+	public HttpResponse intercept(final AwsRequestChain chain)
+		throws IOException;
+
+}
@@ -0,0 +1,231 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Shares a fixed amount of bandwidth between interactive and bulk
+ * transfers.  When both are moving data, each gets a share of the
+ * bandwidth in proportion to its weight, and when only one of them is,
+ * it gets all of it.  With the default weights of 9 to 1, bulk transfers
+ * run flat out when nothing else is going on and drop to a tenth of the
+ * bandwidth the moment an interactive transfer starts.
+ * 
+ * Bytes are handed out in turn to whichever class with someone waiting
+ * has had the least bandwidth relative to its weight, a simple weighted
+ * fair queue.  Callers should ask for bytes in small chunks, say 64KB,
+ * so that one large transfer cannot hold the line.
+ * 
+ * One governor is meant to be shared by everything in the JVM that
+ * should be held to the same bandwidth, see
+ * {@link com.kolich.aws.transport.interceptors.BandwidthInterceptor}.
+ */
+public final class BandwidthGovernor {
+	
+	private static final int DEFAULT_INTERACTIVE_WEIGHT = 9;
+	private static final int DEFAULT_BULK_WEIGHT = 1;
+	
+	/**
+	 * How many bytes can go back-to-back when nothing has been sent for a
+	 * while, as a fraction of a second's worth.
+	 */
+	private static final double BURST_SECONDS = 0.1d;
+	
+	public static enum TransferClass {
+		INTERACTIVE, BULK;
+	}
+	
+	private static final ThreadLocal<TransferClass> currentClass__ =
+		new ThreadLocal<TransferClass>();
+	
+	private final double nanosPerByte_;
+	private final long burstNanos_;
+	private final Map<TransferClass,Integer> weights_;
+	
+	private final ReentrantLock lock_;
+	private final Condition turn_;
+	
+	/**
+	 * Guarded by the lock.  How much each class has been given so far,
+	 * in bytes over its weight, how many callers of each class are
+	 * waiting, and when each class last had nobody waiting.
+	 */
+	private final Map<TransferClass,Double> virtualTime_;
+	private final Map<TransferClass,Integer> waiting_;
+	private final Map<TransferClass,Long> idleSince_;
+	private long paidUntil_;
+	
+	public BandwidthGovernor(final long bytesPerSecond,
+                             final int interactiveWeight,
+                             final int bulkWeight) {
+		checkArgument(bytesPerSecond > 0L, "Bytes per second must be " +
+			"greater than zero.");
+		checkArgument(interactiveWeight > 0 && bulkWeight > 0, "Weights " +
+			"must be greater than zero.");
+		nanosPerByte_ = SECONDS.toNanos(1L) / (double)bytesPerSecond;
+		burstNanos_ = (long)(SECONDS.toNanos(1L) * BURST_SECONDS);
+		weights_ = new EnumMap<TransferClass,Integer>(TransferClass.class);
+		weights_.put(TransferClass.INTERACTIVE, interactiveWeight);
+		weights_.put(TransferClass.BULK, bulkWeight);
+		lock_ = new ReentrantLock();
+		turn_ = lock_.newCondition();
+		virtualTime_ = new EnumMap<TransferClass,Double>(TransferClass.class);
+		waiting_ = new EnumMap<TransferClass,Integer>(TransferClass.class);
+		idleSince_ = new EnumMap<TransferClass,Long>(TransferClass.class);
+		final long now = System.nanoTime();
+		for(final TransferClass c : TransferClass.values()) {
+			virtualTime_.put(c, 0d);
+			waiting_.put(c, 0);
+			idleSince_.put(c, now - burstNanos_);
+		}
+		paidUntil_ = now - burstNanos_;
+	}
+	
+	public BandwidthGovernor(final long bytesPerSecond) {
+		this(bytesPerSecond, DEFAULT_INTERACTIVE_WEIGHT, DEFAULT_BULK_WEIGHT);
+	}
+	
+	/**
+	 * Blocks until the given number of bytes can be transferred by the
+	 * given class.
+	 */
+	public void acquire(final TransferClass transferClass, final long bytes)
+		throws InterruptedException {
+		checkNotNull(transferClass, "Transfer class cannot be null.");
+		checkArgument(bytes >= 0L, "Bytes cannot be negative.");
+		lock_.lockInterruptibly();
+		try {
+			arrive(transferClass);
+			try {
+				while(true) {
+					if(isTurn(transferClass)) {
+						final long now = System.nanoTime();
+						final long from = Math.max(paidUntil_,
+							now - burstNanos_);
+						final long cost = (long)Math.ceil(bytes * nanosPerByte_);
+						final long wait = from + Math.min(cost, burstNanos_) - now;
+						if(wait <= 0L) {
+							paidUntil_ = from + cost;
+							virtualTime_.put(transferClass,
+								virtualTime_.get(transferClass) +
+								bytes / (double)weights_.get(transferClass));
+							return;
+						}
+						turn_.awaitNanos(wait);
+					} else {
+						turn_.await();
+					}
+				}
+			} finally {
+				final int waiting = waiting_.get(transferClass) - 1;
+				waiting_.put(transferClass, waiting);
+				if(waiting == 0) {
+					idleSince_.put(transferClass, System.nanoTime());
+				}
+				turn_.signalAll();
+			}
+		} finally {
+			lock_.unlock();
+		}
+	}
+	
+	/**
+	 * A class that starts waiting after being idle picks up where the
+	 * busiest class is, rather than spending bandwidth it never used.
+	 * Having nobody waiting only between one chunk and the next, as a
+	 * single transfer does, is not being idle.
+	 */
+	private final void arrive(final TransferClass transferClass) {
+		final int waiting = waiting_.get(transferClass);
+		final long now = System.nanoTime();
+		if(waiting == 0 && !isBusy(transferClass, now)) {
+			double floor = virtualTime_.get(transferClass);
+			for(final TransferClass c : TransferClass.values()) {
+				if(c != transferClass && isBusy(c, now)) {
+					floor = Math.max(floor, virtualTime_.get(c));
+				}
+			}
+			virtualTime_.put(transferClass, floor);
+		}
+		waiting_.put(transferClass, waiting + 1);
+	}
+	
+	/**
+	 * True if the class has someone waiting, or had within the last
+	 * burst.
+	 */
+	private final boolean isBusy(final TransferClass transferClass,
+		final long now) {
+		return waiting_.get(transferClass) > 0 ||
+			now - idleSince_.get(transferClass) <= burstNanos_;
+	}
+	
+	private final boolean isTurn(final TransferClass transferClass) {
+		final double mine = virtualTime_.get(transferClass);
+		for(final TransferClass c : TransferClass.values()) {
+			if(c != transferClass && waiting_.get(c) > 0 &&
+				virtualTime_.get(c) < mine) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Sets the class of transfers started on the calling thread, which
+	 * overrides the default of whatever is doing the transferring.  Pass
+	 * null to clear it.  Returns the class it replaces, so it can be put
+	 * back once done.
+	 */
+	public static final TransferClass setCurrentTransferClass(
+		final TransferClass transferClass) {
+		final TransferClass previous = currentClass__.get();
+		if(transferClass == null) {
+			currentClass__.remove();
+		} else {
+			currentClass__.set(transferClass);
+		}
+		return previous;
+	}
+	
+	/**
+	 * The class of transfers started on the calling thread, null if it
+	 * has not been set.
+	 */
+	public static final TransferClass getCurrentTransferClass() {
+		return currentClass__.get();
+	}
+
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport;
+
+import java.io.IOException;
+
+/**
+ * Thrown in place of sending a request while the circuit breaker for its
+ * endpoint is open.  The request was never sent.
+ */
+public class CircuitBreakerOpenException extends IOException {
+
+	private static final long serialVersionUID = -1826260563541851377L;
+	
+	private final String endpoint_;
+	private final long retryAfterMs_;
+
+	public CircuitBreakerOpenException(final String endpoint,
+                                       final long retryAfterMs) {
+		super("Circuit breaker for " + endpoint + " is open, not sending " +
+			"requests for another " + retryAfterMs + "ms.");
+		endpoint_ = endpoint;
+		retryAfterMs_ = retryAfterMs;
+	}
+	
+	/**
+	 * The service and endpoint whose circuit breaker is open.
+	 */
+	public String getEndpoint() {
+		return endpoint_;
+	}
+	
+	/**
+	 * Roughly how long until the breaker lets a probe request through,
+	 * zero if it is already letting probes through but has no more room.
+	 */
+	public long getRetryAfterMs() {
+		return retryAfterMs_;
+	}
+
+}
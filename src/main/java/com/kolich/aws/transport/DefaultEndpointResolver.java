@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Sends every request to one fixed endpoint, for example a region
+ * endpoint like "s3-us-west-2.amazonaws.com", an in-VPC proxy like
+ * "http://s3-proxy.internal:8080", or a local stand-in like
+ * "http://localhost:9000".
+ * 
+ * An endpoint given without a scheme is HTTPS.  S3 buckets are addressed
+ * by host ("bucket.s3.amazonaws.com") unless path-style addressing is
+ * asked for ("s3.amazonaws.com/bucket"), which is what most proxies and
+ * local stand-ins expect.  The endpoint for each bucket is built once
+ * and cached.
+ */
+public final class DefaultEndpointResolver implements EndpointResolver {
+	
+	private static final String HTTP = "http";
+	private static final String HTTPS = "https";
+	private static final String SCHEME_SEPARATOR = "://";
+	
+	private static final String DOT = ".";
+	
+	private final String scheme_;
+	private final String authority_;
+	private final boolean pathStyle_;
+	
+	private final AwsEndpoint serviceEndpoint_;
+	private final ConcurrentMap<String,AwsEndpoint> resources_;
+	
+	/**
+	 * @param endpoint the endpoint, with or without an "http://" or
+	 * "https://" scheme, and with or without a port
+	 * @param pathStyle true to address S3 buckets by path instead of host
+	 */
+	public DefaultEndpointResolver(final String endpoint,
+		final boolean pathStyle) {
+		checkNotNull(endpoint, "Endpoint cannot be null.");
+		final URI uri = URI.create(endpoint.contains(SCHEME_SEPARATOR) ?
+			endpoint : HTTPS + SCHEME_SEPARATOR + endpoint);
+		scheme_ = uri.getScheme().toLowerCase();
+		checkArgument(HTTP.equals(scheme_) || HTTPS.equals(scheme_),
+			"Endpoint scheme must be http or https: " + endpoint);
+		authority_ = checkNotNull(uri.getRawAuthority(), "Endpoint has " +
+			"no host: " + endpoint);
+		pathStyle_ = pathStyle;
+		serviceEndpoint_ = AwsEndpoint.byHost(scheme_, authority_);
+		resources_ = new ConcurrentHashMap<String,AwsEndpoint>();
+	}
+	
+	public DefaultEndpointResolver(final String endpoint) {
+		this(endpoint, false);
+	}
+	
+	@Override
+	public AwsEndpoint resolve(final String resource) {
+		if(resource == null) {
+			return serviceEndpoint_;
+		}
+		AwsEndpoint endpoint = resources_.get(resource);
+		if(endpoint == null) {
+			final AwsEndpoint created = pathStyle_ ?
+				AwsEndpoint.byPath(scheme_, authority_, resource) :
+				AwsEndpoint.byHost(scheme_, resource + DOT + authority_);
+			endpoint = resources_.putIfAbsent(resource, created);
+			if(endpoint == null) {
+				endpoint = created;
+			}
+		}
+		return endpoint;
+	}
+	
+	@Override
+	public String toString() {
+		return serviceEndpoint_.toString();
+	}
+
+}
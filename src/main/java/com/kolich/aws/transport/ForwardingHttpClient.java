@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An {@link HttpClient} that forwards every call to another one.  Extend
+ * it and override just the calls to be decorated.
+ */
+public abstract class ForwardingHttpClient implements HttpClient {
+	
+	private final HttpClient delegate_;
+	
+	public ForwardingHttpClient(final HttpClient delegate) {
+		delegate_ = checkNotNull(delegate, "Delegate HTTP client " +
+			"cannot be null.");
+	}
+	
+	public final HttpClient getDelegate() {
+		return delegate_;
+	}
+	
+	@Override
+	@Deprecated
+	@SuppressWarnings("deprecation")
+	public org.apache.http.params.HttpParams getParams() {
+		return delegate_.getParams();
+	}
+	
+	@Override
+	@Deprecated
+	@SuppressWarnings("deprecation")
+	public org.apache.http.conn.ClientConnectionManager getConnectionManager() {
+		return delegate_.getConnectionManager();
+	}
+	
+	@Override
+	public HttpResponse execute(final HttpUriRequest request)
+		throws IOException, ClientProtocolException {
+		return delegate_.execute(request);
+	}
+	
+	@Override
+	public HttpResponse execute(final HttpUriRequest request,
+                                final HttpContext context)
+		throws IOException, ClientProtocolException {
+		return delegate_.execute(request, context);
+	}
+	
+	@Override
+	public HttpResponse execute(final HttpHost target,
+                                final HttpRequest request)
+		throws IOException, ClientProtocolException {
+		return delegate_.execute(target, request);
+	}
+	
+	@Override
+	public HttpResponse execute(final HttpHost target,
+                                final HttpRequest request,
+                                final HttpContext context)
+		throws IOException, ClientProtocolException {
+		return delegate_.execute(target, request, context);
+	}
+	
+	@Override
+	public <T> T execute(final HttpUriRequest request,
+                         final ResponseHandler<? extends T> handler)
+		throws IOException, ClientProtocolException {
+		return delegate_.execute(request, handler);
+	}
+	
+	@Override
+	public <T> T execute(final HttpUriRequest request,
+                         final ResponseHandler<? extends T> handler,
+                         final HttpContext context)
+		throws IOException, ClientProtocolException {
+		return delegate_.execute(request, handler, context);
+	}
+	
+	@Override
+	public <T> T execute(final HttpHost target,
+                         final HttpRequest request,
+                         final ResponseHandler<? extends T> handler)
+		throws IOException, ClientProtocolException {
+		return delegate_.execute(target, request, handler);
+	}
+	
+	@Override
+	public <T> T execute(final HttpHost target,
+                         final HttpRequest request,
+                         final ResponseHandler<? extends T> handler,
+                         final HttpContext context)
+		throws IOException, ClientProtocolException {
+		return delegate_.execute(target, request, handler, context);
+	}
+
+}
@@ -0,0 +1,343 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.apache.http.conn.DnsResolver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * A {@link DnsResolver} that spreads new connections across every address
+ * a host resolves to, instead of piling them all onto whichever came back
+ * first.
+ * 
+ * Lookups are cached for a short TTL.  S3 hands back only a few of its
+ * addresses per lookup, so every address seen for a host is remembered
+ * for a while longer than that, and the pool of addresses to spread over
+ * grows with each lookup.  Each call hands the addresses back in a
+ * different order, round-robin, and the connection manager connects to
+ * the first one that answers.
+ * 
+ * Addresses that have been slow or failing are moved to the back of the
+ * line, behind every healthy one.  Being at the back means an address
+ * sees little traffic to prove it has recovered, so its error rate also
+ * decays with time, and its latency is forgotten once it has gone a while
+ * without a sample, which lets it back into the rotation to be measured
+ * again.  Feed it with
+ * {@link com.kolich.aws.transport.interceptors.AddressHealthInterceptor}.
+ */
+public final class SpreadingDnsResolver implements DnsResolver {
+	
+	private static final long DEFAULT_TTL_MS = 10000L;
+	private static final long DEFAULT_RETAIN_MS = 300000L;
+	
+	/**
+	 * Weight of the newest sample in the moving averages.
+	 */
+	private static final double ALPHA = 0.2d;
+	
+	/**
+	 * An address is unhealthy if its average latency is this many times
+	 * that of the fastest address for the same host.
+	 */
+	private static final double SLOW_FACTOR = 3.0d;
+	
+	/**
+	 * An address is unhealthy if more than this fraction of its recent
+	 * requests failed.
+	 */
+	private static final double ERROR_RATE = 0.2d;
+	
+	/**
+	 * How long it takes an address's error rate to halve on its own,
+	 * without any successful requests to bring it down.
+	 */
+	private static final long ERROR_HALF_LIFE_NANOS = SECONDS.toNanos(30L);
+	
+	/**
+	 * How long an address's latency average is trusted without a fresh
+	 * sample.
+	 */
+	private static final long LATENCY_STALE_NANOS = SECONDS.toNanos(60L);
+	
+	/**
+	 * What is known about one address, the averages are racy but only
+	 * ever used to rank addresses.
+	 */
+	private static final class AddressStats {
+		private volatile long lastSeen_;
+		private volatile double latencyMs_ = -1d;
+		private volatile long latencyAt_;
+		private volatile double errorRate_;
+		private volatile long errorRateAt_;
+		private AddressStats(final long now) {
+			lastSeen_ = now;
+			errorRateAt_ = now;
+		}
+		/**
+		 * The error rate, decayed for the time since it was last updated.
+		 */
+		private double getErrorRate(final long now) {
+			final double rate = errorRate_;
+			final long elapsed = now - errorRateAt_;
+			return (elapsed <= 0L) ? rate : rate * Math.pow(0.5d,
+				(double)elapsed / ERROR_HALF_LIFE_NANOS);
+		}
+		/**
+		 * The latency average, or -1 if there is none or it is stale.
+		 */
+		private double getLatencyMs(final long now) {
+			return (now - latencyAt_ > LATENCY_STALE_NANOS) ? -1d : latencyMs_;
+		}
+	}
+	
+	/**
+	 * The addresses of one host, and where the round-robin is at.
+	 */
+	private static final class HostEntry {
+		private final ConcurrentMap<InetAddress,AddressStats> addresses_ =
+			new ConcurrentHashMap<InetAddress,AddressStats>();
+		private final AtomicInteger next_ = new AtomicInteger();
+		private volatile long resolvedAt_;
+	}
+	
+	private final DnsResolver delegate_;
+	private final long ttlNanos_;
+	private final long retainNanos_;
+	
+	private final ConcurrentMap<String,HostEntry> hosts_;
+	private final ConcurrentMap<InetAddress,AddressStats> stats_;
+	
+	/**
+	 * @param delegate the resolver to actually look hosts up with, null
+	 * for the system resolver
+	 * @param ttlMs how long a lookup is cached
+	 * @param retainMs how long an address is kept after it was last seen
+	 * in a lookup
+	 */
+	public SpreadingDnsResolver(final DnsResolver delegate,
+                                final long ttlMs,
+                                final long retainMs) {
+		checkArgument(ttlMs >= 0L, "TTL cannot be negative.");
+		checkArgument(retainMs >= ttlMs, "Retain time cannot be less than " +
+			"the TTL.");
+		delegate_ = delegate;
+		ttlNanos_ = MILLISECONDS.toNanos(ttlMs);
+		retainNanos_ = MILLISECONDS.toNanos(retainMs);
+		hosts_ = new ConcurrentHashMap<String,HostEntry>();
+		stats_ = new ConcurrentHashMap<InetAddress,AddressStats>();
+	}
+	
+	public SpreadingDnsResolver() {
+		this(null, DEFAULT_TTL_MS, DEFAULT_RETAIN_MS);
+	}
+	
+	@Override
+	public InetAddress[] resolve(final String host)
+		throws UnknownHostException {
+		final HostEntry entry = getHostEntry(host);
+		final long now = System.nanoTime();
+		if(entry.addresses_.isEmpty() || now - entry.resolvedAt_ > ttlNanos_) {
+			refresh(host, entry, now);
+		}
+		return order(entry);
+	}
+	
+	/**
+	 * Records a request that was answered over a connection to the given
+	 * address, in the given time.
+	 */
+	public void recordSuccess(final InetAddress address, final long latencyMs) {
+		final AddressStats stats = stats_.get(address);
+		if(stats != null) {
+			final long now = System.nanoTime();
+			final double latency = stats.getLatencyMs(now);
+			stats.latencyMs_ = (latency < 0d) ? latencyMs :
+				latency + ALPHA * (latencyMs - latency);
+			stats.latencyAt_ = now;
+			stats.errorRate_ = stats.getErrorRate(now) * (1d - ALPHA);
+			stats.errorRateAt_ = now;
+		}
+	}
+	
+	/**
+	 * Records a request that failed over a connection to the given
+	 * address, with an I/O error rather than an error response: an error
+	 * response says more about the service than about the address.
+	 */
+	public void recordFailure(final InetAddress address) {
+		final AddressStats stats = stats_.get(address);
+		if(stats != null) {
+			final long now = System.nanoTime();
+			stats.errorRate_ = stats.getErrorRate(now) * (1d - ALPHA) + ALPHA;
+			stats.errorRateAt_ = now;
+		}
+	}
+	
+	/**
+	 * Every address currently known for every host, for monitoring.
+	 */
+	public Map<String,List<InetAddress>> getAddresses() {
+		final ImmutableMap.Builder<String,List<InetAddress>> addresses =
+			ImmutableMap.builder();
+		for(final Map.Entry<String,HostEntry> e : hosts_.entrySet()) {
+			addresses.put(e.getKey(), Lists.newArrayList(
+				e.getValue().addresses_.keySet()));
+		}
+		return addresses.build();
+	}
+	
+	private final void refresh(final String host, final HostEntry entry,
+		final long now) throws UnknownHostException {
+		final InetAddress[] resolved;
+		try {
+			resolved = (delegate_ != null) ? delegate_.resolve(host) :
+				InetAddress.getAllByName(host);
+		} catch (UnknownHostException e) {
+			// Keep using what we have rather than fail on a DNS blip, as
+			// long as it has not gone stale.
+			if(!entry.addresses_.isEmpty()) {
+				entry.resolvedAt_ = now;
+				return;
+			}
+			throw e;
+		}
+		for(final InetAddress address : resolved) {
+			AddressStats stats = stats_.get(address);
+			if(stats == null) {
+				final AddressStats created = new AddressStats(now);
+				stats = stats_.putIfAbsent(address, created);
+				if(stats == null) {
+					stats = created;
+				}
+			}
+			stats.lastSeen_ = now;
+			entry.addresses_.put(address, stats);
+		}
+		for(final Map.Entry<InetAddress,AddressStats> e :
+			entry.addresses_.entrySet()) {
+			if(now - e.getValue().lastSeen_ > retainNanos_) {
+				entry.addresses_.remove(e.getKey());
+				stats_.remove(e.getKey(), e.getValue());
+			}
+		}
+		entry.resolvedAt_ = now;
+	}
+	
+	/**
+	 * Healthy addresses first, rotated one place further every call, then
+	 * the unhealthy ones from least to most bad.
+	 */
+	private final InetAddress[] order(final HostEntry entry) {
+		final List<Map.Entry<InetAddress,AddressStats>> all =
+			Lists.newArrayList(entry.addresses_.entrySet());
+		// Sorted by address so that the rotation is stable between calls.
+		Collections.sort(all, new Comparator<Map.Entry<InetAddress,AddressStats>>() {
+			@Override
+			public int compare(final Map.Entry<InetAddress,AddressStats> a,
+				final Map.Entry<InetAddress,AddressStats> b) {
+				return a.getKey().getHostAddress().compareTo(
+					b.getKey().getHostAddress());
+			}
+		});
+		final long now = System.nanoTime();
+		double fastest = Double.MAX_VALUE;
+		for(final Map.Entry<InetAddress,AddressStats> e : all) {
+			final double latency = e.getValue().getLatencyMs(now);
+			if(latency >= 0d && latency < fastest) {
+				fastest = latency;
+			}
+		}
+		final List<InetAddress> healthy = Lists.newArrayList();
+		final List<Map.Entry<InetAddress,AddressStats>> unhealthy =
+			Lists.newArrayList();
+		for(final Map.Entry<InetAddress,AddressStats> e : all) {
+			final AddressStats stats = e.getValue();
+			final double latency = stats.getLatencyMs(now);
+			if(stats.getErrorRate(now) > ERROR_RATE || (latency >= 0d &&
+				latency > fastest * SLOW_FACTOR)) {
+				unhealthy.add(e);
+			} else {
+				healthy.add(e.getKey());
+			}
+		}
+		final InetAddress[] ordered = new InetAddress[all.size()];
+		int i = 0;
+		if(!healthy.isEmpty()) {
+			final int start = (entry.next_.getAndIncrement() & Integer.MAX_VALUE)
+				% healthy.size();
+			for(int j = 0; j < healthy.size(); j++) {
+				ordered[i++] = healthy.get((start + j) % healthy.size());
+			}
+		}
+		Collections.sort(unhealthy, new Comparator<Map.Entry<InetAddress,AddressStats>>() {
+			@Override
+			public int compare(final Map.Entry<InetAddress,AddressStats> a,
+				final Map.Entry<InetAddress,AddressStats> b) {
+				return Double.compare(badness(a.getValue(), now),
+					badness(b.getValue(), now));
+			}
+		});
+		for(final Map.Entry<InetAddress,AddressStats> e : unhealthy) {
+			ordered[i++] = e.getKey();
+		}
+		return ordered;
+	}
+	
+	private static final double badness(final AddressStats stats,
+		final long now) {
+		return Math.max(stats.getLatencyMs(now), 1d) *
+			(1d + 10d * stats.getErrorRate(now));
+	}
+	
+	private final HostEntry getHostEntry(final String host) {
+		HostEntry entry = hosts_.get(host);
+		if(entry == null) {
+			final HostEntry created = new HostEntry();
+			entry = hosts_.putIfAbsent(host, created);
+			if(entry == null) {
+				entry = created;
+			}
+		}
+		return entry;
+	}
+
+}
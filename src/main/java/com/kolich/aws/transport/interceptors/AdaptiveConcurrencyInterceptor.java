@@ -0,0 +1,335 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport.interceptors;
+
+import com.google.common.collect.ImmutableMap;
+import com.kolich.aws.concurrent.Deadline;
+import com.kolich.aws.transport.AwsRequestChain;
+import com.kolich.aws.transport.AwsRequestInterceptor;
+import com.kolich.aws.transport.ConcurrencyLimitExceededException;
+import com.kolich.aws.transport.DeadlineExceededException;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.http.HttpStatus.SC_SERVICE_UNAVAILABLE;
+
+/**
+ * Adapts how many requests are allowed in flight to each endpoint, AIMD
+ * style.  The limit for an endpoint grows by one every time a full limit's
+ * worth of requests come back quickly, and is cut whenever the endpoint
+ * throttles us (503 SlowDown, 429) or round trip times climb well above
+ * the fastest recently seen.
+ * 
+ * Limits are kept per endpoint authority, which for S3 includes the
+ * bucket, so one hot bucket backing off does not hold up the others.
+ * Requests over the limit wait up to a short while for a slot, and then
+ * fail with a {@link ConcurrencyLimitExceededException} without ever
+ * having been sent.
+ * 
+ * Waits are cut short by the calling thread's
+ * {@link com.kolich.aws.concurrent.Deadline}, if it has one.
+ * 
+ * Note a slot is held until the response headers come back, not until
+ * the body has been read.
+ * 
+ * Opt-in, add one to a client with
+ * {@link com.kolich.aws.services.AbstractAwsService#addInterceptor}.
+ */
+public final class AdaptiveConcurrencyInterceptor implements AwsRequestInterceptor {
+	
+	private static final int DEFAULT_INITIAL_LIMIT = 20;
+	private static final int DEFAULT_MIN_LIMIT = 1;
+	private static final int DEFAULT_MAX_LIMIT = 500;
+	private static final long DEFAULT_MAX_QUEUE_WAIT_MS = 100L;
+	
+	private static final int SC_TOO_MANY_REQUESTS = 429;
+	
+	/**
+	 * A round trip this many times slower than the fastest recently seen
+	 * counts as a sign of queueing at the endpoint.
+	 */
+	private static final double RTT_TOLERANCE = 2.0d;
+	
+	private static final double THROTTLE_BACKOFF = 0.5d;
+	private static final double LATENCY_BACKOFF = 0.9d;
+	
+	/**
+	 * How long the fastest round trip is remembered for, so that the
+	 * baseline follows the endpoint if it gets slower for good.
+	 */
+	private static final long MIN_RTT_WINDOW_NANOS = SECONDS.toNanos(30L);
+	
+	/**
+	 * The limit and in-flight count for one endpoint, guarded by its own
+	 * monitor.
+	 */
+	private static final class Limit {
+		private final int minLimit_;
+		private int maxLimit_;
+		private double limit_;
+		private int inFlight_;
+		private long minRttNanos_;
+		private long minRttSince_;
+		private long lastDecrease_;
+		private Limit(final int initialLimit,
+                      final int minLimit,
+                      final int maxLimit) {
+			minLimit_ = minLimit;
+			maxLimit_ = maxLimit;
+			limit_ = initialLimit;
+			minRttNanos_ = Long.MAX_VALUE;
+		}
+		private synchronized boolean acquire(final long waitNanos)
+			throws InterruptedException {
+			final long deadline = System.nanoTime() + waitNanos;
+			while(inFlight_ >= (int)limit_) {
+				final long remaining = deadline - System.nanoTime();
+				if(remaining <= 0L) {
+					return false;
+				}
+				NANOSECONDS.timedWait(this, remaining);
+			}
+			inFlight_++;
+			return true;
+		}
+		private synchronized void release(final long rttNanos,
+			final boolean dropped) {
+			final boolean saturated = inFlight_ >= (int)limit_ / 2;
+			inFlight_--;
+			final long now = System.nanoTime();
+			if(dropped) {
+				decrease(THROTTLE_BACKOFF, now, rttNanos);
+			} else if(rttNanos >= 0L) {
+				if(minRttNanos_ == Long.MAX_VALUE ||
+					now - minRttSince_ > MIN_RTT_WINDOW_NANOS) {
+					minRttNanos_ = rttNanos;
+					minRttSince_ = now;
+				} else if(rttNanos < minRttNanos_) {
+					minRttNanos_ = rttNanos;
+				}
+				if(rttNanos > minRttNanos_ * RTT_TOLERANCE) {
+					decrease(LATENCY_BACKOFF, now, rttNanos);
+				} else if(saturated) {
+					// Only grow when we are actually using the limit we
+					// have, otherwise it drifts up without ever being
+					// tested.
+					limit_ = Math.min(maxLimit_, limit_ + 1.0d / limit_);
+				}
+			}
+			notifyAll();
+		}
+		/**
+		 * Cuts the limit, at most once per round trip, so that one burst
+		 * of bad responses to requests sent under the old limit is not
+		 * punished over and over.
+		 */
+		private void decrease(final double backoff, final long now,
+			final long rttNanos) {
+			final long window = Math.max(rttNanos,
+				(minRttNanos_ == Long.MAX_VALUE) ? 0L : minRttNanos_);
+			if(lastDecrease_ != 0L && now - lastDecrease_ < window) {
+				return;
+			}
+			lastDecrease_ = now;
+			limit_ = Math.max(minLimit_, limit_ * backoff);
+		}
+		private synchronized void setMaxLimit(final int maxLimit) {
+			maxLimit_ = maxLimit;
+			limit_ = Math.min(limit_, maxLimit);
+			notifyAll();
+		}
+		private synchronized int getLimit() {
+			return (int)limit_;
+		}
+		private synchronized int getInFlight() {
+			return inFlight_;
+		}
+	}
+	
+	private final int initialLimit_;
+	private final int minLimit_;
+	private volatile int maxLimit_;
+	private final long maxQueueWaitNanos_;
+	
+	private final ConcurrentMap<String,Limit> limits_;
+	private final AtomicLong rejected_;
+	
+	/**
+	 * @param initialLimit the concurrency limit each endpoint starts at
+	 * @param minLimit the limit is never cut below this
+	 * @param maxLimit the limit never grows above this
+	 * @param maxQueueWaitMs how long a request over the limit waits for a
+	 * slot before failing, zero to fail right away
+	 */
+	public AdaptiveConcurrencyInterceptor(final int initialLimit,
+                                          final int minLimit,
+                                          final int maxLimit,
+                                          final long maxQueueWaitMs) {
+		checkArgument(minLimit > 0, "Min limit must be greater than zero.");
+		checkArgument(maxLimit >= minLimit, "Max limit cannot be less " +
+			"than the min limit.");
+		checkArgument(initialLimit >= minLimit && initialLimit <= maxLimit,
+			"Initial limit must be between the min and max limits.");
+		checkArgument(maxQueueWaitMs >= 0L, "Max queue wait cannot be " +
+			"negative.");
+		initialLimit_ = initialLimit;
+		minLimit_ = minLimit;
+		maxLimit_ = maxLimit;
+		maxQueueWaitNanos_ = MILLISECONDS.toNanos(maxQueueWaitMs);
+		limits_ = new ConcurrentHashMap<String,Limit>();
+		rejected_ = new AtomicLong();
+	}
+	
+	public AdaptiveConcurrencyInterceptor() {
+		this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT,
+			DEFAULT_MAX_QUEUE_WAIT_MS);
+	}
+	
+	/**
+	 * The current concurrency limit of every endpoint seen so far, keyed
+	 * by authority.
+	 */
+	public Map<String,Integer> getLimits() {
+		final ImmutableMap.Builder<String,Integer> limits =
+			ImmutableMap.builder();
+		for(final Map.Entry<String,Limit> entry : limits_.entrySet()) {
+			limits.put(entry.getKey(), entry.getValue().getLimit());
+		}
+		return limits.build();
+	}
+	
+	public int getMaxLimit() {
+		return maxLimit_;
+	}
+	
+	/**
+	 * Changes the ceiling the limit of every endpoint grows to, cutting
+	 * any limit that's over it right away.
+	 */
+	public void setMaxLimit(final int maxLimit) {
+		checkArgument(maxLimit >= minLimit_, "Max limit cannot be less " +
+			"than the min limit.");
+		maxLimit_ = maxLimit;
+		for(final Limit limit : limits_.values()) {
+			limit.setMaxLimit(maxLimit);
+		}
+	}
+	
+	/**
+	 * The number of requests currently in flight to every endpoint seen
+	 * so far, keyed by authority.
+	 */
+	public Map<String,Integer> getInFlight() {
+		final ImmutableMap.Builder<String,Integer> inFlight =
+			ImmutableMap.builder();
+		for(final Map.Entry<String,Limit> entry : limits_.entrySet()) {
+			inFlight.put(entry.getKey(), entry.getValue().getInFlight());
+		}
+		return inFlight.build();
+	}
+	
+	/**
+	 * The number of requests failed without being sent because their
+	 * endpoint was at its limit.
+	 */
+	public long getRejectedCount() {
+		return rejected_.get();
+	}
+	
+	@Override
+	public HttpResponse intercept(final AwsRequestChain chain)
+		throws IOException {
+		final String authority = chain.getContext().getAuthority();
+		final Limit limit = getLimit((authority != null) ? authority : "");
+		try {
+			if(!limit.acquire(Deadline.cap(maxQueueWaitNanos_, NANOSECONDS))) {
+				if(Deadline.isCurrentExpired()) {
+					throw new DeadlineExceededException("Deadline passed " +
+						"waiting for a request slot to " + authority + ".");
+				}
+				rejected_.incrementAndGet();
+				throw new ConcurrencyLimitExceededException("Too many " +
+					"requests in flight to " + authority + " (limit " +
+					limit.getLimit() + ").");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting " +
+				"for a request slot to " + authority + ".");
+		}
+		final long start = System.nanoTime();
+		long rtt = -1L;
+		boolean dropped = false;
+		try {
+			final HttpResponse response = chain.proceed();
+			final int status = response.getStatusLine().getStatusCode();
+			dropped = (status == SC_SERVICE_UNAVAILABLE ||
+				status == SC_TOO_MANY_REQUESTS);
+			rtt = System.nanoTime() - start;
+			return response;
+		} catch (ConnectionPoolTimeoutException e) {
+			// Waited on our own connection pool, not on the endpoint.
+			throw e;
+		} catch (SocketTimeoutException | ConnectTimeoutException e) {
+			dropped = true;
+			throw e;
+		} finally {
+			// Other failures (aborts, resets, unknown hosts) say nothing
+			// about how loaded the endpoint is, so they only give back
+			// their slot.
+			limit.release(rtt, dropped);
+		}
+	}
+	
+	private final Limit getLimit(final String authority) {
+		Limit limit = limits_.get(authority);
+		if(limit == null) {
+			final int maxLimit = maxLimit_;
+			final Limit created = new Limit(Math.min(initialLimit_,
+				maxLimit), minLimit_, maxLimit);
+			limit = limits_.putIfAbsent(authority, created);
+			if(limit == null) {
+				limit = created;
+			}
+		}
+		return limit;
+	}
+
+}
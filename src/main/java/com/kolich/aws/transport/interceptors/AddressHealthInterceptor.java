@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport.interceptors;
+
+import com.kolich.aws.transport.AwsRequestChain;
+import com.kolich.aws.transport.AwsRequestInterceptor;
+import com.kolich.aws.transport.SpreadingDnsResolver;
+import org.apache.http.HttpInetConnection;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Tells a {@link SpreadingDnsResolver} how each address it handed out is
+ * doing: how long requests over a connection to it took to answer, and
+ * whether they failed with an I/O error.  Error responses, a 503 Slow Down
+ * in particular, come from the service as a whole and are not held against
+ * the address that carried them.
+ * 
+ * <pre>
+ * final SpreadingDnsResolver dns = new SpreadingDnsResolver();
+ * final AwsConnectionPool pool = new AwsConnectionPool(dns);
+ * final KolichS3Client s3 = new KolichS3Client(pool.getHttpClient(), key, secret);
+ * s3.addInterceptor(new AddressHealthInterceptor(dns));
+ * </pre>
+ */
+public final class AddressHealthInterceptor implements AwsRequestInterceptor {
+	
+	private final SpreadingDnsResolver resolver_;
+	
+	public AddressHealthInterceptor(final SpreadingDnsResolver resolver) {
+		resolver_ = checkNotNull(resolver, "Resolver cannot be null.");
+	}
+	
+	@Override
+	public HttpResponse intercept(final AwsRequestChain chain)
+		throws IOException {
+		HttpContext context = chain.getContext().getHttpContext();
+		final long start = System.nanoTime();
+		final HttpResponse response;
+		try {
+			// The connection used is only visible through the context, so
+			// make sure there is one to look in.
+			if(context == null) {
+				context = new BasicHttpContext();
+				response = chain.proceed(chain.getRequest(), context);
+			} else {
+				response = chain.proceed();
+			}
+		} catch (IOException e) {
+			final InetAddress address = getRemoteAddress(context);
+			if(address != null && !chain.getRequest().isAborted()) {
+				resolver_.recordFailure(address);
+			}
+			throw e;
+		}
+		final InetAddress address = getRemoteAddress(context);
+		if(address != null) {
+			resolver_.recordSuccess(address,
+				NANOSECONDS.toMillis(System.nanoTime() - start));
+		}
+		return response;
+	}
+	
+	private static final InetAddress getRemoteAddress(
+		final HttpContext context) {
+		if(context == null) {
+			return null;
+		}
+		final Object connection = context.getAttribute(
+			HttpCoreContext.HTTP_CONNECTION);
+		if(!(connection instanceof HttpInetConnection)) {
+			return null;
+		}
+		try {
+			return ((HttpInetConnection)connection).getRemoteAddress();
+		} catch (IllegalStateException e) {
+			// Already handed back to the pool.
+			return null;
+		}
+	}
+
+}
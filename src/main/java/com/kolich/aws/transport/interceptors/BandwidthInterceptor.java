@@ -0,0 +1,199 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport.interceptors;
+
+import com.kolich.aws.transport.AwsRequestChain;
+import com.kolich.aws.transport.AwsRequestInterceptor;
+import com.kolich.aws.transport.BandwidthGovernor;
+import com.kolich.aws.transport.BandwidthGovernor.TransferClass;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Holds request and response bodies to the bandwidth of a shared
+ * {@link BandwidthGovernor}.  Every transfer is either interactive or
+ * bulk: the class set on the calling thread with
+ * {@link BandwidthGovernor#setCurrentTransferClass} if there is one, and
+ * the default this interceptor was created with if not.
+ * 
+ * Typically a nightly job runs with its threads set to
+ * {@link TransferClass#BULK}, and everything else in the JVM is
+ * interactive by default:
+ * 
+ * <pre>
+ * final BandwidthGovernor governor = new BandwidthGovernor(50L * 1024L * 1024L);
+ * s3.addInterceptor(new BandwidthInterceptor(governor, TransferClass.INTERACTIVE));
+ * </pre>
+ */
+public final class BandwidthInterceptor implements AwsRequestInterceptor {
+	
+	/**
+	 * Bytes are asked of the governor at most this many at a time.
+	 */
+	private static final int CHUNK_SIZE = 64 * 1024;
+	
+	private final BandwidthGovernor governor_;
+	private final TransferClass defaultClass_;
+	
+	public BandwidthInterceptor(final BandwidthGovernor governor,
+                                final TransferClass defaultClass) {
+		governor_ = checkNotNull(governor, "Governor cannot be null.");
+		defaultClass_ = checkNotNull(defaultClass, "Default transfer " +
+			"class cannot be null.");
+	}
+	
+	@Override
+	public HttpResponse intercept(final AwsRequestChain chain)
+		throws IOException {
+		final TransferClass current = BandwidthGovernor
+			.getCurrentTransferClass();
+		// Captured now, the response body may well be read on some other
+		// thread.
+		final TransferClass transferClass = (current != null) ?
+			current : defaultClass_;
+		final HttpUriRequest request = chain.getRequest();
+		if(request instanceof HttpEntityEnclosingRequest) {
+			final HttpEntityEnclosingRequest enclosing =
+				(HttpEntityEnclosingRequest)request;
+			final HttpEntity entity = enclosing.getEntity();
+			if(entity != null) {
+				enclosing.setEntity(new GovernedEntity(entity, transferClass));
+			}
+		}
+		final HttpResponse response = chain.proceed();
+		final HttpEntity entity = response.getEntity();
+		if(entity != null) {
+			response.setEntity(new GovernedEntity(entity, transferClass));
+		}
+		return response;
+	}
+	
+	private final void acquire(final TransferClass transferClass,
+		final long bytes) throws InterruptedIOException {
+		try {
+			governor_.acquire(transferClass, bytes);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting " +
+				"on bandwidth.");
+		}
+	}
+	
+	private final class GovernedEntity extends HttpEntityWrapper {
+		private final TransferClass transferClass_;
+		private GovernedEntity(final HttpEntity entity,
+			final TransferClass transferClass) {
+			super(entity);
+			transferClass_ = transferClass;
+		}
+		@Override
+		public InputStream getContent() throws IOException {
+			return new GovernedInputStream(wrappedEntity.getContent(),
+				transferClass_);
+		}
+		@Override
+		public void writeTo(final OutputStream os) throws IOException {
+			wrappedEntity.writeTo(new GovernedOutputStream(os,
+				transferClass_));
+		}
+	}
+	
+	/**
+	 * Pays for what it read once it has read it, leaving the next read
+	 * to wait.
+	 */
+	private final class GovernedInputStream extends FilterInputStream {
+		private final TransferClass transferClass_;
+		private GovernedInputStream(final InputStream is,
+			final TransferClass transferClass) {
+			super(is);
+			transferClass_ = transferClass;
+		}
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if(b != -1) {
+				acquire(transferClass_, 1L);
+			}
+			return b;
+		}
+		@Override
+		public int read(final byte[] b, final int off, final int len)
+			throws IOException {
+			final int read = super.read(b, off, Math.min(len, CHUNK_SIZE));
+			if(read > 0) {
+				acquire(transferClass_, read);
+			}
+			return read;
+		}
+		@Override
+		public long skip(final long n) throws IOException {
+			final long skipped = super.skip(Math.min(n, CHUNK_SIZE));
+			if(skipped > 0L) {
+				acquire(transferClass_, skipped);
+			}
+			return skipped;
+		}
+	}
+	
+	private final class GovernedOutputStream extends FilterOutputStream {
+		private final TransferClass transferClass_;
+		private GovernedOutputStream(final OutputStream os,
+			final TransferClass transferClass) {
+			super(os);
+			transferClass_ = transferClass;
+		}
+		@Override
+		public void write(final int b) throws IOException {
+			acquire(transferClass_, 1L);
+			out.write(b);
+		}
+		@Override
+		public void write(final byte[] b, final int off, final int len)
+			throws IOException {
+			for(int written = 0; written < len; ) {
+				final int chunk = Math.min(len - written, CHUNK_SIZE);
+				acquire(transferClass_, chunk);
+				out.write(b, off + written, chunk);
+				written += chunk;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,319 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport.interceptors;
+
+import com.google.common.collect.ImmutableMap;
+import com.kolich.aws.transport.AwsRequestChain;
+import com.kolich.aws.transport.AwsRequestContext;
+import com.kolich.aws.transport.AwsRequestInterceptor;
+import com.kolich.aws.transport.CircuitBreakerOpenException;
+import com.kolich.aws.transport.ConcurrencyLimitExceededException;
+import com.kolich.aws.transport.RateLimitExceededException;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.apache.http.HttpStatus.SC_INTERNAL_SERVER_ERROR;
+
+/**
+ * A circuit breaker per service endpoint, for example one for
+ * "s3:s3.amazonaws.com" and another for "sqs:sqs.us-west-2.amazonaws.com".
+ * 
+ * While closed, the outcome of the last so many calls is kept.  Once
+ * enough of them either failed (an I/O error or a 5xx) or were slow, the
+ * breaker opens, and every request fails right away with a
+ * {@link CircuitBreakerOpenException} instead of tying up a thread on a
+ * socket timeout.  After a while it goes half-open and lets a few probe
+ * requests through: if they all succeed it closes again, and if any of
+ * them fails it opens for another round.  Requests rejected on the client
+ * side, by a limiter or another breaker, count for nothing.
+ * 
+ * Opt-in, add one to a client with
+ * {@link com.kolich.aws.services.AbstractAwsService#addInterceptor}.
+ */
+public final class CircuitBreakerInterceptor implements AwsRequestInterceptor {
+	
+	private static final int DEFAULT_WINDOW_SIZE = 100;
+	private static final int DEFAULT_MIN_CALLS = 20;
+	private static final double DEFAULT_FAILURE_RATE = 0.5d;
+	private static final double DEFAULT_SLOW_CALL_RATE = 0.8d;
+	private static final long DEFAULT_SLOW_CALL_MS = 5000L;
+	private static final long DEFAULT_OPEN_MS = 30000L;
+	private static final int DEFAULT_PROBES = 3;
+	
+	public static enum State {
+		CLOSED, OPEN, HALF_OPEN;
+	}
+	
+	private static final byte UNKNOWN = -1, SUCCESS = 0, FAILURE = 1,
+		SLOW = 2;
+	
+	/**
+	 * One endpoint's breaker, guarded by its own monitor.
+	 */
+	private final class Breaker {
+		private final String name_;
+		private final byte[] outcomes_;
+		private State state_;
+		private int next_, calls_, failures_, slow_;
+		private long openedAt_;
+		private int probesSent_, probesSucceeded_;
+		private Breaker(final String name) {
+			name_ = name;
+			outcomes_ = new byte[windowSize_];
+			state_ = State.CLOSED;
+		}
+		/**
+		 * Throws if the call is not allowed through, otherwise returns
+		 * true if it is a half-open probe.
+		 */
+		private synchronized boolean acquire()
+			throws CircuitBreakerOpenException {
+			if(state_ == State.OPEN) {
+				final long openFor = System.nanoTime() - openedAt_;
+				if(openFor < openNanos_) {
+					throw new CircuitBreakerOpenException(name_,
+						NANOSECONDS.toMillis(openNanos_ - openFor));
+				}
+				state_ = State.HALF_OPEN;
+				probesSent_ = probesSucceeded_ = 0;
+			}
+			if(state_ == State.HALF_OPEN) {
+				if(probesSent_ >= probes_) {
+					throw new CircuitBreakerOpenException(name_, 0L);
+				}
+				probesSent_++;
+				return true;
+			}
+			return false;
+		}
+		private synchronized void release(final boolean probe,
+			final byte outcome) {
+			if(probe) {
+				// A probe that comes back after the breaker has already
+				// moved on has nothing to say.
+				if(state_ != State.HALF_OPEN) {
+					return;
+				}
+				if(outcome != SUCCESS) {
+					open();
+				} else if(++probesSucceeded_ >= probes_) {
+					close();
+				}
+				return;
+			}
+			if(state_ != State.CLOSED) {
+				return;
+			}
+			if(calls_ == windowSize_) {
+				forget(outcomes_[next_]);
+			} else {
+				calls_++;
+			}
+			outcomes_[next_] = outcome;
+			next_ = (next_ + 1) % windowSize_;
+			if(outcome == FAILURE) {
+				failures_++;
+			} else if(outcome == SLOW) {
+				slow_++;
+			}
+			if(calls_ >= minCalls_ &&
+				(failures_ >= failureRate_ * calls_ ||
+				slow_ >= slowCallRate_ * calls_)) {
+				open();
+			}
+		}
+		/**
+		 * A probe that never got an answer either way, say because it was
+		 * interrupted, gives its slot back.
+		 */
+		private synchronized void cancel(final boolean probe) {
+			if(probe && state_ == State.HALF_OPEN) {
+				probesSent_--;
+			}
+		}
+		private void forget(final byte outcome) {
+			if(outcome == FAILURE) {
+				failures_--;
+			} else if(outcome == SLOW) {
+				slow_--;
+			}
+		}
+		private void open() {
+			state_ = State.OPEN;
+			openedAt_ = System.nanoTime();
+		}
+		private void close() {
+			state_ = State.CLOSED;
+			next_ = calls_ = failures_ = slow_ = 0;
+		}
+		private synchronized State getState() {
+			return state_;
+		}
+	}
+	
+	private final int windowSize_;
+	private final int minCalls_;
+	private final double failureRate_;
+	private final double slowCallRate_;
+	private final long slowCallNanos_;
+	private final long openNanos_;
+	private final int probes_;
+	
+	private final ConcurrentMap<String,Breaker> breakers_;
+	
+	/**
+	 * @param windowSize how many of the most recent calls are considered
+	 * @param minCalls the fewest calls in the window before the breaker
+	 * can open
+	 * @param failureRate the fraction of failed calls that opens the
+	 * breaker
+	 * @param slowCallRate the fraction of slow calls that opens the
+	 * breaker
+	 * @param slowCallMs calls that take longer than this are slow
+	 * @param openMs how long the breaker stays open before probing
+	 * @param probes how many probes must succeed to close the breaker
+	 */
+	public CircuitBreakerInterceptor(final int windowSize,
+                                     final int minCalls,
+                                     final double failureRate,
+                                     final double slowCallRate,
+                                     final long slowCallMs,
+                                     final long openMs,
+                                     final int probes) {
+		checkArgument(windowSize > 0, "Window size must be greater " +
+			"than zero.");
+		checkArgument(minCalls > 0 && minCalls <= windowSize, "Min calls " +
+			"must be between one and the window size.");
+		checkArgument(failureRate > 0d && failureRate <= 1d, "Failure " +
+			"rate must be greater than 0 and at most 1.");
+		checkArgument(slowCallRate > 0d && slowCallRate <= 1d, "Slow call " +
+			"rate must be greater than 0 and at most 1.");
+		checkArgument(slowCallMs > 0L, "Slow call threshold must be " +
+			"greater than zero.");
+		checkArgument(openMs > 0L, "Open duration must be greater " +
+			"than zero.");
+		checkArgument(probes > 0, "Probes must be greater than zero.");
+		windowSize_ = windowSize;
+		minCalls_ = minCalls;
+		failureRate_ = failureRate;
+		slowCallRate_ = slowCallRate;
+		slowCallNanos_ = MILLISECONDS.toNanos(slowCallMs);
+		openNanos_ = MILLISECONDS.toNanos(openMs);
+		probes_ = probes;
+		breakers_ = new ConcurrentHashMap<String,Breaker>();
+	}
+	
+	public CircuitBreakerInterceptor() {
+		this(DEFAULT_WINDOW_SIZE, DEFAULT_MIN_CALLS, DEFAULT_FAILURE_RATE,
+			DEFAULT_SLOW_CALL_RATE, DEFAULT_SLOW_CALL_MS, DEFAULT_OPEN_MS,
+			DEFAULT_PROBES);
+	}
+	
+	/**
+	 * The state of every breaker created so far, keyed by
+	 * "service:endpoint".
+	 */
+	public Map<String,State> getStates() {
+		final ImmutableMap.Builder<String,State> states =
+			ImmutableMap.builder();
+		for(final Map.Entry<String,Breaker> entry : breakers_.entrySet()) {
+			states.put(entry.getKey(), entry.getValue().getState());
+		}
+		return states.build();
+	}
+	
+	@Override
+	public HttpResponse intercept(final AwsRequestChain chain)
+		throws IOException {
+		final Breaker breaker = getBreaker(chain.getContext());
+		final boolean probe = breaker.acquire();
+		final long start = System.nanoTime();
+		byte outcome = FAILURE;
+		try {
+			final HttpResponse response = chain.proceed();
+			if(response.getStatusLine().getStatusCode() <
+				SC_INTERNAL_SERVER_ERROR) {
+				outcome = (System.nanoTime() - start > slowCallNanos_) ?
+					SLOW : SUCCESS;
+			}
+			return response;
+		} catch (ConnectionPoolTimeoutException e) {
+			// Never got a connection out of our own pool, so never sent.
+			outcome = UNKNOWN;
+			breaker.cancel(probe);
+			throw e;
+		} catch (SocketTimeoutException | ConnectTimeoutException e) {
+			// Both extend InterruptedIOException, but are the endpoint not
+			// answering, which is exactly what this is here to notice.
+			throw e;
+		} catch (InterruptedIOException | ConcurrencyLimitExceededException
+			| RateLimitExceededException | CircuitBreakerOpenException e) {
+			// Not sent, or given up on by the caller, either way this says
+			// nothing about the health of the endpoint.
+			outcome = UNKNOWN;
+			breaker.cancel(probe);
+			throw e;
+		} catch (IOException e) {
+			// Aborted on purpose, say as the loser of a hedged request.
+			if(chain.getRequest().isAborted()) {
+				outcome = UNKNOWN;
+				breaker.cancel(probe);
+			}
+			throw e;
+		} finally {
+			if(outcome != UNKNOWN) {
+				breaker.release(probe, outcome);
+			}
+		}
+	}
+	
+	private final Breaker getBreaker(final AwsRequestContext context) {
+		final String name = context.getServiceName() + ":" +
+			context.getEndpoint();
+		Breaker breaker = breakers_.get(name);
+		if(breaker == null) {
+			final Breaker created = new Breaker(name);
+			breaker = breakers_.putIfAbsent(name, created);
+			if(breaker == null) {
+				breaker = created;
+			}
+		}
+		return breaker;
+	}
+
+}
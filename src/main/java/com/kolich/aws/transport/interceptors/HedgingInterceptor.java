@@ -0,0 +1,411 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport.interceptors;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.kolich.aws.concurrent.BoundedExecutor;
+import com.kolich.aws.concurrent.Deadline;
+import com.kolich.aws.metrics.RequestTimeline;
+import com.kolich.aws.transport.AwsRequestChain;
+import com.kolich.aws.transport.AwsRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.BasicHttpContext;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Hedges slow GET and HEAD requests.  If a request has not come back
+ * within the given percentile of recently observed latencies for the
+ * same operation, an identical copy is sent on a connection of its own.
+ * Whichever answers first is returned, and the other is aborted.
+ * 
+ * Hedges are paid for out of a budget that grows by a fixed fraction of
+ * every request sent, so the extra load on the service never exceeds
+ * that fraction (plus a small burst).  No request is hedged until enough
+ * latencies have been observed to know what slow looks like, nor once
+ * the calling thread's {@link Deadline} would pass before the hedge
+ * could be sent.
+ * 
+ * Opt-in, add one to a client with
+ * {@link com.kolich.aws.services.AbstractAwsService#addInterceptor}.
+ */
+public final class HedgingInterceptor implements AwsRequestInterceptor {
+	
+	private static final double DEFAULT_PERCENTILE = 0.95d;
+	private static final long DEFAULT_MIN_DELAY_MS = 10L;
+	private static final double DEFAULT_BUDGET = 0.05d;
+	
+	/**
+	 * Number of hedges that can be spent back-to-back when the budget is
+	 * full.
+	 */
+	private static final long MAX_BUDGET_BURST = 10L;
+	
+	/**
+	 * Budget is kept in thousandths of a hedge, so that fractional
+	 * credits can live in a long.
+	 */
+	private static final long HEDGE_COST = 1000L;
+	
+	private static final String GET = "GET";
+	private static final String HEAD = "HEAD";
+	
+	private static final String TIMER_THREAD_NAME = "kolich-aws-hedge-timer";
+	
+	/**
+	 * Lazily created, shared daemon thread that does nothing but fire
+	 * hedges once their delay has passed.  The hedged requests themselves
+	 * run on the shared {@link BoundedExecutor#getDefaultExecutor()} pool.
+	 */
+	private static final class TimerHolder {
+		private static final ScheduledExecutorService timer__ =
+			newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat(TIMER_THREAD_NAME)
+				.build());
+	}
+	
+	/**
+	 * A sliding window of the most recent latencies for one operation.
+	 * Samples are written without locking, and the hedge delay is only
+	 * recomputed from a sorted copy every so often, which is plenty
+	 * accurate for picking a threshold.
+	 */
+	private static final class LatencyWindow {
+		private static final int SIZE = 512;
+		private static final int RECOMPUTE_EVERY = 64;
+		private final double percentile_;
+		private final long[] samples_;
+		private final AtomicLong count_;
+		private volatile long delayNanos_;
+		private LatencyWindow(final double percentile) {
+			percentile_ = percentile;
+			samples_ = new long[SIZE];
+			count_ = new AtomicLong();
+			delayNanos_ = -1L;
+		}
+		private void record(final long nanos) {
+			final long n = count_.getAndIncrement();
+			samples_[(int)(n % SIZE)] = nanos;
+			if((n + 1L) % RECOMPUTE_EVERY == 0L) {
+				final int filled = (int)Math.min(n + 1L, SIZE);
+				final long[] sorted = Arrays.copyOf(samples_, filled);
+				Arrays.sort(sorted);
+				delayNanos_ = sorted[Math.min(filled - 1,
+					(int)(percentile_ * filled))];
+			}
+		}
+		/**
+		 * Negative until enough samples have been seen.
+		 */
+		private long getDelayNanos() {
+			return delayNanos_;
+		}
+	}
+	
+	/**
+	 * The state shared between a request and its hedge.
+	 */
+	private static final class Race {
+		private static final int NONE = 0, PRIMARY = 1, HEDGE = 2;
+		private final AtomicInteger winner_ = new AtomicInteger(NONE);
+		private final CountDownLatch hedgeDone_ = new CountDownLatch(1);
+		private volatile HttpRequestBase hedge_;
+		private volatile HttpResponse hedgeResponse_;
+	}
+	
+	private final double percentile_;
+	private final long minDelayNanos_;
+	private final long creditPerRequest_;
+	
+	private final ConcurrentMap<String,LatencyWindow> windows_;
+	private final AtomicLong budget_;
+	
+	private final AtomicLong hedged_;
+	private final AtomicLong hedgeWins_;
+	
+	/**
+	 * @param percentile the latency percentile, between 0 and 1, after
+	 * which a request is hedged
+	 * @param minDelayMs the least amount of time to wait before hedging,
+	 * regardless of observed latencies
+	 * @param budget the most hedges to send as a fraction of all requests,
+	 * for example 0.05 for at most 5% extra load
+	 */
+	public HedgingInterceptor(final double percentile,
+                              final long minDelayMs,
+                              final double budget) {
+		checkArgument(percentile > 0d && percentile < 1d, "Percentile " +
+			"must be between 0 and 1.");
+		checkArgument(minDelayMs >= 0L, "Min delay cannot be negative.");
+		checkArgument(budget > 0d && budget <= 1d, "Budget must be " +
+			"greater than 0 and at most 1.");
+		percentile_ = percentile;
+		minDelayNanos_ = MILLISECONDS.toNanos(minDelayMs);
+		creditPerRequest_ = Math.max(1L, Math.round(budget * HEDGE_COST));
+		windows_ = new ConcurrentHashMap<String,LatencyWindow>();
+		budget_ = new AtomicLong();
+		hedged_ = new AtomicLong();
+		hedgeWins_ = new AtomicLong();
+	}
+	
+	public HedgingInterceptor() {
+		this(DEFAULT_PERCENTILE, DEFAULT_MIN_DELAY_MS, DEFAULT_BUDGET);
+	}
+	
+	/**
+	 * The number of hedges sent.
+	 */
+	public long getHedgedCount() {
+		return hedged_.get();
+	}
+	
+	/**
+	 * The number of hedges that answered before the request they hedged.
+	 */
+	public long getHedgeWinCount() {
+		return hedgeWins_.get();
+	}
+	
+	@Override
+	public HttpResponse intercept(final AwsRequestChain chain)
+		throws IOException {
+		final HttpUriRequest request = chain.getRequest();
+		final String method = request.getMethod();
+		if(!(request instanceof HttpRequestBase) ||
+			(!GET.equals(method) && !HEAD.equals(method))) {
+			return chain.proceed();
+		}
+		final HttpRequestBase primary = (HttpRequestBase)request;
+		final LatencyWindow window = getWindow(chain.getContext()
+			.getOperation());
+		earnCredit();
+		final long delay = window.getDelayNanos();
+		if(delay < 0L) {
+			// Not enough samples yet to know what slow looks like.
+			return timed(chain, window, null);
+		}
+		// The hedge is started and sent from other threads, but is held to
+		// the same deadline as the request it hedges.
+		final Deadline deadline = Deadline.current();
+		final long hedgeAfter = Math.max(delay, minDelayNanos_);
+		if(deadline != null &&
+			deadline.remaining(NANOSECONDS) <= hedgeAfter) {
+			// Would only ever be sent after the budget is spent.
+			return timed(chain, window, null);
+		}
+		final Race race = new Race();
+		final ScheduledFuture<?> timer = TimerHolder.timer__.schedule(
+			new Runnable() {
+			@Override
+			public void run() {
+				startHedge(chain, primary, race, deadline);
+			}
+		}, hedgeAfter, NANOSECONDS);
+		final HttpResponse response;
+		try {
+			response = timed(chain, window, race);
+		} catch (IOException e) {
+			// Either the hedge won and aborted us, or we failed on our own
+			// and the hedge (if there is one) is our last chance.
+			timer.cancel(false);
+			final HttpResponse hedged = awaitHedge(race);
+			if(hedged == null) {
+				throw e;
+			}
+			return hedged;
+		}
+		timer.cancel(false);
+		if(race.winner_.compareAndSet(Race.NONE, Race.PRIMARY)) {
+			final HttpRequestBase hedge = race.hedge_;
+			if(hedge != null) {
+				hedge.abort();
+			}
+			return response;
+		}
+		// The hedge won, but we finished before its abort could land.
+		primary.abort();
+		return awaitHedge(race);
+	}
+	
+	private final void startHedge(final AwsRequestChain chain,
+		final HttpRequestBase primary, final Race race,
+		final Deadline deadline) {
+		if(race.winner_.get() != Race.NONE ||
+			(deadline != null && deadline.isExpired()) || !spendCredit()) {
+			race.hedgeDone_.countDown();
+			return;
+		}
+		final HttpRequestBase hedge;
+		try {
+			hedge = (HttpRequestBase)primary.clone();
+		} catch (CloneNotSupportedException e) {
+			race.hedgeDone_.countDown();
+			return;
+		}
+		race.hedge_ = hedge;
+		// The request may have finished while we were cloning it, in which
+		// case it may or may not have seen the hedge to abort it.
+		if(race.winner_.get() != Race.NONE) {
+			race.hedgeDone_.countDown();
+			return;
+		}
+		hedged_.incrementAndGet();
+		RequestTimeline.hedged(chain.getContext().getHttpContext());
+		try {
+			BoundedExecutor.getDefaultExecutor().execute(new Runnable() {
+				@Override
+				@SuppressWarnings("try") // The scope is only ever closed.
+				public void run() {
+					try(final Deadline.Scope scope = (deadline != null) ?
+						deadline.enter() : null) {
+						final HttpResponse response = chain.proceed(hedge,
+							new BasicHttpContext());
+						if(race.winner_.compareAndSet(Race.NONE, Race.HEDGE)) {
+							hedgeWins_.incrementAndGet();
+							race.hedgeResponse_ = response;
+							primary.abort();
+						} else {
+							hedge.abort();
+						}
+					} catch (Exception e) {
+						// Lost the race and was aborted, or just failed; the
+						// original request carries on either way.
+					} finally {
+						race.hedgeDone_.countDown();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			race.hedgeDone_.countDown();
+		}
+	}
+	
+	/**
+	 * Waits on the hedge, if one was started, returning its response if
+	 * it won the race.
+	 */
+	private static final HttpResponse awaitHedge(final Race race)
+		throws InterruptedIOException {
+		if(race.winner_.get() != Race.HEDGE) {
+			// The timer was cancelled before it fired, no hedge is coming.
+			if(race.hedge_ == null && race.hedgeDone_.getCount() > 0L &&
+				race.winner_.compareAndSet(Race.NONE, Race.PRIMARY)) {
+				return null;
+			}
+		}
+		try {
+			race.hedgeDone_.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			// Nobody is left to read the hedge's response, make sure it
+			// cannot win and abort it.
+			race.winner_.compareAndSet(Race.NONE, Race.PRIMARY);
+			final HttpRequestBase hedge = race.hedge_;
+			if(hedge != null) {
+				hedge.abort();
+			}
+			throw new InterruptedIOException("Interrupted while waiting " +
+				"on a hedged request.");
+		}
+		return (race.winner_.get() == Race.HEDGE) ? race.hedgeResponse_ : null;
+	}
+	
+	/**
+	 * Sends the request, recording how long it took.  A request aborted
+	 * by a hedge that won is recorded too, with how long it had run by
+	 * then; it would have taken at least that long, and leaving it out
+	 * would hide exactly the slow tail the hedge delay is picked from.
+	 */
+	private static final HttpResponse timed(final AwsRequestChain chain,
+		final LatencyWindow window, final Race race) throws IOException {
+		final long start = System.nanoTime();
+		final HttpResponse response;
+		try {
+			response = chain.proceed();
+		} catch (IOException e) {
+			if(race != null && race.winner_.get() == Race.HEDGE) {
+				window.record(System.nanoTime() - start);
+			}
+			throw e;
+		}
+		window.record(System.nanoTime() - start);
+		return response;
+	}
+	
+	private final LatencyWindow getWindow(final String operation) {
+		LatencyWindow window = windows_.get(operation);
+		if(window == null) {
+			final LatencyWindow created = new LatencyWindow(percentile_);
+			window = windows_.putIfAbsent(operation, created);
+			if(window == null) {
+				window = created;
+			}
+		}
+		return window;
+	}
+	
+	private final void earnCredit() {
+		final long max = MAX_BUDGET_BURST * HEDGE_COST;
+		long current;
+		do {
+			current = budget_.get();
+			if(current >= max) {
+				return;
+			}
+		} while(!budget_.compareAndSet(current,
+			Math.min(max, current + creditPerRequest_)));
+	}
+	
+	private final boolean spendCredit() {
+		long current;
+		do {
+			current = budget_.get();
+			if(current < HEDGE_COST) {
+				return false;
+			}
+		} while(!budget_.compareAndSet(current, current - HEDGE_COST));
+		return true;
+	}
+
+}
@@ -0,0 +1,277 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport.interceptors;
+
+import com.kolich.aws.concurrent.TokenBucket;
+import com.kolich.aws.concurrent.Deadline;
+import com.kolich.aws.transport.AwsRequestChain;
+import com.kolich.aws.transport.AwsRequestContext;
+import com.kolich.aws.transport.AwsRequestInterceptor;
+import com.kolich.aws.transport.DeadlineExceededException;
+import com.kolich.aws.transport.RateLimitExceededException;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Holds requests to a rate, in requests per second, bytes per second, or
+ * both.  Request bodies are paid for before they are sent, response
+ * bodies are paid for (from their Content-Length) once they arrive, and
+ * any debt is waited off by the requests that follow.
+ * 
+ * A request that cannot be let through within the max wait fails with a
+ * {@link RateLimitExceededException} without being sent.  A max wait of
+ * zero never blocks.  Waits are cut short by the calling thread's
+ * {@link com.kolich.aws.concurrent.Deadline}, if it has one.
+ * 
+ * Limits apply to every request that goes through this interceptor, so
+ * for limits per client give each client its own, and for a global limit
+ * share one across clients.  Within that, limits can be split further by
+ * {@link Scope}.  All accounting is lock-free, see {@link TokenBucket}.
+ * 
+ * Opt-in, add one to a client with
+ * {@link com.kolich.aws.services.AbstractAwsService#addInterceptor}.
+ */
+public final class RateLimitingInterceptor implements AwsRequestInterceptor {
+	
+	public static enum Scope {
+		/**
+		 * One limit for every request.
+		 */
+		GLOBAL,
+		/**
+		 * A limit per service endpoint, for example one for S3 and
+		 * another for SQS in us-west-2.
+		 */
+		ENDPOINT,
+		/**
+		 * A limit per service endpoint and API operation, for example
+		 * one for S3 PutObject and another for S3 GetObject.
+		 */
+		OPERATION;
+	}
+	
+	/**
+	 * The request and byte buckets for one scope, either may be null if
+	 * that dimension is not limited.
+	 */
+	private final class Limits {
+		private final TokenBucket requests_;
+		private final TokenBucket bytes_;
+		private Limits() {
+			requests_ = (requestsPerSecond_ > 0d) ?
+				new TokenBucket(requestsPerSecond_, requestBurst_) : null;
+			bytes_ = (bytesPerSecond_ > 0L) ?
+				new TokenBucket(bytesPerSecond_, byteBurst_) : null;
+		}
+	}
+	
+	private final Scope scope_;
+	private volatile double requestsPerSecond_;
+	private final long requestBurst_;
+	private volatile long bytesPerSecond_;
+	private final long byteBurst_;
+	private final long maxWaitMs_;
+	
+	private final ConcurrentMap<String,Limits> limits_;
+	
+	/**
+	 * @param scope how limits are split between requests
+	 * @param requestsPerSecond zero for no limit on requests
+	 * @param requestBurst the most requests let through back-to-back
+	 * @param bytesPerSecond zero for no limit on bytes
+	 * @param byteBurst the most bytes let through back-to-back
+	 * @param maxWaitMs how long a request may be held before it fails
+	 */
+	public RateLimitingInterceptor(final Scope scope,
+                                   final double requestsPerSecond,
+                                   final long requestBurst,
+                                   final long bytesPerSecond,
+                                   final long byteBurst,
+                                   final long maxWaitMs) {
+		checkArgument(requestsPerSecond >= 0d, "Requests per second cannot " +
+			"be negative.");
+		checkArgument(bytesPerSecond >= 0L, "Bytes per second cannot be " +
+			"negative.");
+		checkArgument(requestsPerSecond > 0d || bytesPerSecond > 0L,
+			"At least one of requests or bytes per second must be set.");
+		checkArgument(requestsPerSecond == 0d || requestBurst > 0L,
+			"Request burst must be greater than zero.");
+		checkArgument(bytesPerSecond == 0L || byteBurst > 0L,
+			"Byte burst must be greater than zero.");
+		checkArgument(maxWaitMs >= 0L, "Max wait cannot be negative.");
+		scope_ = checkNotNull(scope, "Scope cannot be null.");
+		requestsPerSecond_ = requestsPerSecond;
+		requestBurst_ = requestBurst;
+		bytesPerSecond_ = bytesPerSecond;
+		byteBurst_ = byteBurst;
+		maxWaitMs_ = maxWaitMs;
+		limits_ = new ConcurrentHashMap<String,Limits>();
+	}
+	
+	/**
+	 * Limits with a burst of one second's worth of requests and bytes.
+	 */
+	public RateLimitingInterceptor(final Scope scope,
+                                   final double requestsPerSecond,
+                                   final long bytesPerSecond,
+                                   final long maxWaitMs) {
+		this(scope, requestsPerSecond,
+			Math.max(1L, (long)Math.ceil(requestsPerSecond)),
+			bytesPerSecond, Math.max(1L, bytesPerSecond), maxWaitMs);
+	}
+	
+	public double getRequestsPerSecond() {
+		return requestsPerSecond_;
+	}
+	
+	/**
+	 * Changes the request rate of every scope, including those already
+	 * seen.  Only a limit set at construction can be changed, not added.
+	 */
+	public void setRequestsPerSecond(final double requestsPerSecond) {
+		checkArgument(requestsPerSecond > 0d, "Requests per second must " +
+			"be greater than zero.");
+		checkState(requestsPerSecond_ > 0d, "Requests are not limited.");
+		requestsPerSecond_ = requestsPerSecond;
+		for(final Limits limits : limits_.values()) {
+			limits.requests_.setRate(requestsPerSecond);
+		}
+	}
+	
+	public long getBytesPerSecond() {
+		return bytesPerSecond_;
+	}
+	
+	/**
+	 * Changes the byte rate of every scope, including those already
+	 * seen.  Only a limit set at construction can be changed, not added.
+	 */
+	public void setBytesPerSecond(final long bytesPerSecond) {
+		checkArgument(bytesPerSecond > 0L, "Bytes per second must be " +
+			"greater than zero.");
+		checkState(bytesPerSecond_ > 0L, "Bytes are not limited.");
+		bytesPerSecond_ = bytesPerSecond;
+		for(final Limits limits : limits_.values()) {
+			limits.bytes_.setRate(bytesPerSecond);
+		}
+	}
+	
+	@Override
+	public HttpResponse intercept(final AwsRequestChain chain)
+		throws IOException {
+		final Limits limits = getLimits(chain.getContext());
+		try {
+			if(limits.requests_ != null) {
+				acquire(limits.requests_, 1L, "requests", chain);
+			}
+			if(limits.bytes_ != null) {
+				final long length = getRequestLength(chain.getRequest());
+				if(length > 0L) {
+					acquire(limits.bytes_, length, "bytes", chain);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting " +
+				"on rate limit for " + chain.getContext() + ".");
+		}
+		final HttpResponse response = chain.proceed();
+		if(limits.bytes_ != null) {
+			final HttpEntity entity = response.getEntity();
+			if(entity != null && entity.getContentLength() > 0L) {
+				limits.bytes_.consume(entity.getContentLength());
+			}
+		}
+		return response;
+	}
+	
+	private final void acquire(final TokenBucket bucket, final long permits,
+		final String what, final AwsRequestChain chain)
+		throws InterruptedException, IOException {
+		final long maxWaitMs = Deadline.cap(maxWaitMs_, MILLISECONDS);
+		final boolean acquired = (maxWaitMs == 0L) ?
+			bucket.tryAcquire(permits) :
+			bucket.tryAcquire(permits, maxWaitMs, MILLISECONDS);
+		if(!acquired) {
+			if(Deadline.isCurrentExpired()) {
+				throw new DeadlineExceededException("Deadline passed " +
+					"waiting on rate limit for " + chain.getContext() + ".");
+			}
+			throw new RateLimitExceededException("Rate limit on " + what +
+				" exceeded for " + chain.getContext() + ".");
+		}
+	}
+	
+	private final Limits getLimits(final AwsRequestContext context) {
+		final String key;
+		switch(scope_) {
+		case ENDPOINT:
+			key = context.getServiceName() + ":" + context.getEndpoint();
+			break;
+		case OPERATION:
+			key = context.getServiceName() + ":" + context.getEndpoint() +
+				":" + context.getOperation();
+			break;
+		default:
+			key = "";
+			break;
+		}
+		Limits limits = limits_.get(key);
+		if(limits == null) {
+			final Limits created = new Limits();
+			limits = limits_.putIfAbsent(key, created);
+			if(limits == null) {
+				limits = created;
+			}
+		}
+		return limits;
+	}
+	
+	private static final long getRequestLength(final HttpUriRequest request) {
+		if(request instanceof HttpEntityEnclosingRequest) {
+			final HttpEntity entity =
+				((HttpEntityEnclosingRequest)request).getEntity();
+			if(entity != null) {
+				return entity.getContentLength();
+			}
+		}
+		return 0L;
+	}
+
+}
@@ -0,0 +1,275 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport.interceptors;
+
+import com.kolich.aws.concurrent.SingleFlight;
+import com.kolich.aws.transport.AwsRequestChain;
+import com.kolich.aws.transport.AwsRequestInterceptor;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.apache.http.HttpHeaders.AUTHORIZATION;
+import static org.apache.http.HttpHeaders.DATE;
+
+/**
+ * Collapses identical concurrent GET and HEAD requests into one.  While a
+ * request is in flight, any identical request that comes along waits for
+ * it instead of being sent, and receives a copy of the same response.  The
+ * body is buffered once and shared read-only between every caller.
+ * 
+ * Two requests are identical if they have the same method, URI and
+ * headers, ignoring the headers that are only there to sign the request
+ * but not who signed it: requests signed with different access keys are
+ * never coalesced, so one instance is safe to share between clients with
+ * different credentials.
+ * Responses with a body larger than the buffer limit are never shared: the
+ * first caller streams it as usual and everyone who waited on it sends
+ * their own request.
+ * 
+ * Opt-in, add one to a client with
+ * {@link com.kolich.aws.services.AbstractAwsService#addInterceptor}.
+ */
+public final class RequestCoalescingInterceptor implements AwsRequestInterceptor {
+	
+	private static final long DEFAULT_MAX_SHARED_BODY_BYTES = 4L * 1024L * 1024L;
+	
+	private static final String GET = "GET";
+	private static final String HEAD = "HEAD";
+	
+	private static final String AMZ_DATE = "x-amz-date";
+	
+	private static final String CREDENTIAL = "Credential=";
+	
+	private static final Comparator<Header> HEADER_ORDER = new Comparator<Header>() {
+		@Override
+		public int compare(final Header a, final Header b) {
+			final int names = a.getName().compareToIgnoreCase(b.getName());
+			return (names != 0) ? names : a.getValue().compareTo(b.getValue());
+		}
+	};
+	
+	/**
+	 * A response, as captured by the one caller that actually sent it.
+	 */
+	private static final class SharedResponse {
+		private final StatusLine statusLine_;
+		private final Header[] headers_;
+		private final byte[] body_;
+		private final boolean hasEntity_;
+		private final Header contentType_;
+		private final Header contentEncoding_;
+		private SharedResponse(final HttpResponse response,
+			final byte[] body) {
+			final HttpEntity entity = response.getEntity();
+			statusLine_ = response.getStatusLine();
+			headers_ = response.getAllHeaders();
+			body_ = body;
+			hasEntity_ = (entity != null);
+			contentType_ = hasEntity_ ? entity.getContentType() : null;
+			contentEncoding_ = hasEntity_ ? entity.getContentEncoding() : null;
+		}
+		/**
+		 * False if the body was too large to be shared.
+		 */
+		private boolean isShareable() {
+			return !hasEntity_ || body_ != null;
+		}
+		private HttpResponse newResponse() {
+			final BasicHttpResponse response = new BasicHttpResponse(statusLine_);
+			response.setHeaders(headers_);
+			if(hasEntity_) {
+				// Every caller gets its own entity, and with it its own
+				// stream, over the one shared buffer.
+				final ByteArrayEntity entity = new ByteArrayEntity(body_);
+				entity.setContentType(contentType_);
+				entity.setContentEncoding(contentEncoding_);
+				response.setEntity(entity);
+			}
+			return response;
+		}
+	}
+	
+	private final SingleFlight<String,SharedResponse> inFlight_;
+	private final long maxSharedBodyBytes_;
+	
+	private final AtomicLong coalesced_;
+	
+	public RequestCoalescingInterceptor(final long maxSharedBodyBytes) {
+		checkArgument(maxSharedBodyBytes >= 0L, "Max shared body bytes " +
+			"cannot be negative.");
+		inFlight_ = new SingleFlight<String,SharedResponse>();
+		maxSharedBodyBytes_ = maxSharedBodyBytes;
+		coalesced_ = new AtomicLong();
+	}
+	
+	public RequestCoalescingInterceptor() {
+		this(DEFAULT_MAX_SHARED_BODY_BYTES);
+	}
+	
+	/**
+	 * The number of requests that were never sent because they were
+	 * answered by an identical one already in flight.
+	 */
+	public long getCoalescedCount() {
+		return coalesced_.get();
+	}
+	
+	@Override
+	public HttpResponse intercept(final AwsRequestChain chain)
+		throws IOException {
+		final HttpUriRequest request = chain.getRequest();
+		final String method = request.getMethod();
+		if(!GET.equals(method) && !HEAD.equals(method)) {
+			return chain.proceed();
+		}
+		// The first caller for a key sends the request and holds onto its
+		// own response, in case it turns out to be too large to share.
+		final HttpResponse[] sent = new HttpResponse[1];
+		final SharedResponse shared;
+		try {
+			shared = inFlight_.execute(toKey(request),
+				new Callable<SharedResponse>() {
+				@Override
+				public SharedResponse call() throws Exception {
+					final HttpResponse response = chain.proceed();
+					sent[0] = response;
+					return new SharedResponse(response, buffer(response));
+				}
+			});
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting " +
+				"on an identical request.");
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+		if(sent[0] != null) {
+			return shared.isShareable() ? shared.newResponse() : sent[0];
+		} else if(!shared.isShareable()) {
+			return chain.proceed();
+		}
+		coalesced_.incrementAndGet();
+		return shared.newResponse();
+	}
+	
+	/**
+	 * Reads the body into memory, unless it turns out to be larger than
+	 * the limit, in which case what was read is pushed back in front of
+	 * the rest of the stream and null is returned.
+	 */
+	private final byte[] buffer(final HttpResponse response) throws IOException {
+		final HttpEntity entity = response.getEntity();
+		if(entity == null) {
+			return null;
+		}
+		final long length = entity.getContentLength();
+		if(length > maxSharedBodyBytes_) {
+			return null;
+		}
+		final InputStream is = entity.getContent();
+		final ByteArrayOutputStream os = new ByteArrayOutputStream(
+			(length > 0L) ? (int)length : 1024);
+		final byte[] chunk = new byte[8192];
+		int read;
+		while((read = is.read(chunk)) != -1) {
+			os.write(chunk, 0, read);
+			if(os.size() > maxSharedBodyBytes_) {
+				final InputStreamEntity rest = new InputStreamEntity(
+					new SequenceInputStream(new ByteArrayInputStream(
+						os.toByteArray()), is), length);
+				rest.setContentType(entity.getContentType());
+				rest.setContentEncoding(entity.getContentEncoding());
+				response.setEntity(rest);
+				return null;
+			}
+		}
+		is.close();
+		return os.toByteArray();
+	}
+	
+	private static final String toKey(final HttpUriRequest request) {
+		final Header[] headers = request.getAllHeaders();
+		Arrays.sort(headers, HEADER_ORDER);
+		final StringBuilder sb = new StringBuilder(request.getMethod())
+			.append(' ').append(request.getURI());
+		for(final Header header : headers) {
+			final String name = header.getName();
+			// Ignore the headers that differ between otherwise identical
+			// requests only because each one was signed on its own, but
+			// keep who signed them.
+			if(AUTHORIZATION.equalsIgnoreCase(name)) {
+				sb.append("\nsigner:").append(toSigner(header.getValue()));
+				continue;
+			} else if(DATE.equalsIgnoreCase(name) ||
+				AMZ_DATE.equalsIgnoreCase(name)) {
+				continue;
+			}
+			sb.append('\n').append(name.toLowerCase()).append(':')
+				.append(header.getValue());
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * The access key an Authorization header was signed with, either
+	 * "AWS AKID:signature" or "AWS4-HMAC-SHA256 Credential=AKID/scope, ...".
+	 * Anything else is returned as is, so it is only ever coalesced with a
+	 * request that carries exactly the same header.
+	 */
+	private static final String toSigner(final String authorization) {
+		final int credential = authorization.indexOf(CREDENTIAL);
+		if(credential >= 0) {
+			final int scope = authorization.indexOf('/', credential);
+			return (scope > 0) ? authorization.substring(credential +
+				CREDENTIAL.length(), scope) : authorization;
+		}
+		final int signature = authorization.lastIndexOf(':');
+		return (signature > 0) ? authorization.substring(0, signature) :
+			authorization;
+	}
+
+}
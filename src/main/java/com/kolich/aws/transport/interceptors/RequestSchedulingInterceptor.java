@@ -0,0 +1,524 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport.interceptors;
+
+import com.kolich.aws.concurrent.Deadline;
+import com.kolich.aws.transport.AwsRequestChain;
+import com.kolich.aws.transport.AwsRequestContext;
+import com.kolich.aws.transport.AwsRequestInterceptor;
+import com.kolich.aws.transport.ConcurrencyLimitExceededException;
+import com.kolich.aws.transport.DeadlineExceededException;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Schedules requests onto a fixed number of slots, usually sized to
+ * match the connection pool, instead of letting them race for
+ * connections first-come-first-served.
+ * 
+ * When a slot frees up it goes to the highest priority waiting.  Within
+ * a priority, tenants take turns, so one tenant with a deep queue cannot
+ * starve the others.  A tenant is the S3 bucket (or endpoint authority)
+ * by default, and can be set per thread.  Within a tenant, the waiter
+ * whose deadline is closest goes first.  A waiter's deadline is its
+ * priority's max wait, or the calling thread's
+ * {@link com.kolich.aws.concurrent.Deadline} if that is sooner.  A waiter that is still queued
+ * when its deadline passes fails with a
+ * {@link ConcurrencyLimitExceededException} without being sent.  A
+ * request holds its slot until its response body has been read to the
+ * end or closed, since until then it still holds a connection.
+ * 
+ * Time spent queued is reported apart from time spent on the wire, both
+ * in the totals kept here and in the {@link HttpContext} of each request
+ * under {@link #QUEUE_WAIT_NANOS}.
+ * 
+ * Opt-in, add one to a client with
+ * {@link com.kolich.aws.services.AbstractAwsService#addInterceptor}.
+ * Share one across clients to schedule them against each other.
+ */
+public final class RequestSchedulingInterceptor implements AwsRequestInterceptor {
+	
+	/**
+	 * The {@link HttpContext} attribute holding how long, in nanoseconds,
+	 * a request waited for a slot, as a {@link Long}.
+	 */
+	public static final String QUEUE_WAIT_NANOS = "com.kolich.aws.queue-wait-nanos";
+	
+	private static final int DEFAULT_MAX_CONCURRENT = 50;
+	
+	private static final long DEFAULT_HIGH_MAX_WAIT_MS = 1000L;
+	private static final long DEFAULT_NORMAL_MAX_WAIT_MS = 10000L;
+	private static final long DEFAULT_LOW_MAX_WAIT_MS = 60000L;
+	
+	public static enum Priority {
+		HIGH, NORMAL, LOW;
+	}
+	
+	private static final ThreadLocal<Priority> currentPriority__ =
+		new ThreadLocal<Priority>();
+	private static final ThreadLocal<String> currentTenant__ =
+		new ThreadLocal<String>();
+	
+	private static final Comparator<Waiter> EARLIEST_DEADLINE =
+		new Comparator<Waiter>() {
+		@Override
+		public int compare(final Waiter a, final Waiter b) {
+			final int deadlines = Long.compare(a.deadline_, b.deadline_);
+			return (deadlines != 0) ? deadlines : Long.compare(a.seq_, b.seq_);
+		}
+	};
+	
+	/**
+	 * One queued request, guarded by the scheduler's lock.
+	 */
+	private final class Waiter {
+		private final String tenant_;
+		private final long deadline_;
+		private final long seq_;
+		private final Condition granted_;
+		private boolean isGranted_;
+		private Waiter(final String tenant, final long deadline,
+			final long seq) {
+			tenant_ = tenant;
+			deadline_ = deadline;
+			seq_ = seq;
+			granted_ = lock_.newCondition();
+		}
+	}
+	
+	/**
+	 * The queues of one priority: a queue of waiters per tenant, and the
+	 * order in which tenants with waiters get their turn.
+	 */
+	private static final class Queues {
+		private final Map<String,PriorityQueue<Waiter>> byTenant_ =
+			new HashMap<String,PriorityQueue<Waiter>>();
+		private final ArrayDeque<String> turns_ = new ArrayDeque<String>();
+	}
+	
+	/**
+	 * Queue and wire time totals for one priority.
+	 */
+	private static final class Totals {
+		private final AtomicLong requests_ = new AtomicLong();
+		private final AtomicLong queueWaitNanos_ = new AtomicLong();
+		private final AtomicLong wireNanos_ = new AtomicLong();
+		private final AtomicLong expired_ = new AtomicLong();
+	}
+	
+	private final Map<Priority,Long> maxWaitNanos_;
+	
+	private final ReentrantLock lock_;
+	private final Map<Priority,Queues> queues_;
+	private int maxConcurrent_;
+	/**
+	 * Free slots, which goes negative for a while after the max is cut
+	 * below the number of requests already in flight.
+	 */
+	private int available_;
+	private int waiting_;
+	private long seq_;
+	
+	private final Map<Priority,Totals> totals_;
+	
+	/**
+	 * @param maxConcurrent how many requests may be in flight at once
+	 * @param highMaxWaitMs how long a high priority request may wait for
+	 * a slot
+	 * @param normalMaxWaitMs how long a normal priority request may wait
+	 * @param lowMaxWaitMs how long a low priority request may wait
+	 */
+	public RequestSchedulingInterceptor(final int maxConcurrent,
+                                        final long highMaxWaitMs,
+                                        final long normalMaxWaitMs,
+                                        final long lowMaxWaitMs) {
+		checkArgument(maxConcurrent > 0, "Max concurrent must be greater " +
+			"than zero.");
+		checkArgument(highMaxWaitMs >= 0L && normalMaxWaitMs >= 0L &&
+			lowMaxWaitMs >= 0L, "Max waits cannot be negative.");
+		maxWaitNanos_ = new EnumMap<Priority,Long>(Priority.class);
+		maxWaitNanos_.put(Priority.HIGH, MILLISECONDS.toNanos(highMaxWaitMs));
+		maxWaitNanos_.put(Priority.NORMAL, MILLISECONDS.toNanos(normalMaxWaitMs));
+		maxWaitNanos_.put(Priority.LOW, MILLISECONDS.toNanos(lowMaxWaitMs));
+		lock_ = new ReentrantLock();
+		queues_ = new EnumMap<Priority,Queues>(Priority.class);
+		totals_ = new EnumMap<Priority,Totals>(Priority.class);
+		for(final Priority p : Priority.values()) {
+			queues_.put(p, new Queues());
+			totals_.put(p, new Totals());
+		}
+		maxConcurrent_ = maxConcurrent;
+		available_ = maxConcurrent;
+	}
+	
+	public RequestSchedulingInterceptor(final int maxConcurrent) {
+		this(maxConcurrent, DEFAULT_HIGH_MAX_WAIT_MS,
+			DEFAULT_NORMAL_MAX_WAIT_MS, DEFAULT_LOW_MAX_WAIT_MS);
+	}
+	
+	public RequestSchedulingInterceptor() {
+		this(DEFAULT_MAX_CONCURRENT);
+	}
+	
+	@Override
+	public HttpResponse intercept(final AwsRequestChain chain)
+		throws IOException {
+		final AwsRequestContext context = chain.getContext();
+		final Priority current = currentPriority__.get();
+		final Priority priority = (current != null) ? current : Priority.NORMAL;
+		final String tenant = currentTenant__.get();
+		final Totals totals = totals_.get(priority);
+		final long queued = System.nanoTime();
+		acquire(priority, (tenant != null) ? tenant : getDefaultTenant(context),
+			queued, totals);
+		final long sent = System.nanoTime();
+		final long queueWait = sent - queued;
+		totals.requests_.incrementAndGet();
+		totals.queueWaitNanos_.addAndGet(queueWait);
+		final HttpContext httpContext = context.getHttpContext();
+		if(httpContext != null) {
+			httpContext.setAttribute(QUEUE_WAIT_NANOS, queueWait);
+		}
+		final HttpResponse response;
+		try {
+			response = chain.proceed();
+		} catch (IOException | RuntimeException e) {
+			release();
+			throw e;
+		} finally {
+			totals.wireNanos_.addAndGet(System.nanoTime() - sent);
+		}
+		final HttpEntity entity = response.getEntity();
+		if(entity == null || !entity.isStreaming()) {
+			release();
+		} else {
+			response.setEntity(new SlotHoldingEntity(entity));
+		}
+		return response;
+	}
+	
+	/**
+	 * The S3 bucket, when the request addresses one, else the authority
+	 * the request is sent to.
+	 */
+	private static final String getDefaultTenant(final AwsRequestContext context) {
+		final String resource = context.getResource();
+		return (resource != null) ? resource :
+			String.valueOf(context.getAuthority());
+	}
+	
+	private final void acquire(final Priority priority, final String tenant,
+		final long now, final Totals totals) throws IOException {
+		lock_.lock();
+		try {
+			if(waiting_ == 0 && available_ > 0) {
+				available_--;
+				return;
+			}
+			final Waiter waiter = new Waiter(tenant,
+				now + Deadline.cap(maxWaitNanos_.get(priority), NANOSECONDS),
+				seq_++);
+			enqueue(priority, waiter);
+			try {
+				while(!waiter.isGranted_) {
+					final long remaining = waiter.deadline_ - System.nanoTime();
+					if(remaining <= 0L) {
+						dequeue(priority, waiter);
+						totals.expired_.incrementAndGet();
+						if(Deadline.isCurrentExpired()) {
+							throw new DeadlineExceededException("Deadline " +
+								"passed waiting for a request slot.");
+						}
+						throw new ConcurrencyLimitExceededException("Waited " +
+							"too long for a request slot (" + priority +
+							" priority, tenant " + tenant + ").");
+					}
+					waiter.granted_.awaitNanos(remaining);
+				}
+			} catch (InterruptedException e) {
+				if(waiter.isGranted_) {
+					// Granted and interrupted at the same time, hand the
+					// slot on to the next in line.
+					dispatch();
+				} else {
+					dequeue(priority, waiter);
+				}
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while " +
+					"waiting for a request slot.");
+			}
+		} finally {
+			lock_.unlock();
+		}
+	}
+	
+	/**
+	 * A response body that gives its request's slot back once it has been
+	 * read to the end or closed, whichever comes first.
+	 */
+	private final class SlotHoldingEntity extends HttpEntityWrapper {
+		private final AtomicBoolean released_;
+		private SlotHoldingEntity(final HttpEntity entity) {
+			super(entity);
+			released_ = new AtomicBoolean();
+		}
+		private void releaseOnce() {
+			if(released_.compareAndSet(false, true)) {
+				release();
+			}
+		}
+		@Override
+		public InputStream getContent() throws IOException {
+			return new FilterInputStream(super.getContent()) {
+				@Override
+				public int read() throws IOException {
+					final int b = super.read();
+					if(b < 0) {
+						releaseOnce();
+					}
+					return b;
+				}
+				@Override
+				public int read(final byte[] b, final int off,
+					final int len) throws IOException {
+					final int read = super.read(b, off, len);
+					if(read < 0) {
+						releaseOnce();
+					}
+					return read;
+				}
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						releaseOnce();
+					}
+				}
+			};
+		}
+		@Override
+		public void writeTo(final OutputStream out) throws IOException {
+			try {
+				super.writeTo(out);
+			} finally {
+				releaseOnce();
+			}
+		}
+	}
+	
+	private final void release() {
+		lock_.lock();
+		try {
+			dispatch();
+		} finally {
+			lock_.unlock();
+		}
+	}
+	
+	/**
+	 * Gives a free slot to the next waiter in line, or puts it back in
+	 * the pool if nobody is waiting or the pool is over its max.
+	 */
+	private final void dispatch() {
+		if(available_ < 0) {
+			available_++;
+			return;
+		}
+		for(final Priority priority : Priority.values()) {
+			final Queues queues = queues_.get(priority);
+			final String tenant = queues.turns_.poll();
+			if(tenant == null) {
+				continue;
+			}
+			final PriorityQueue<Waiter> queue = queues.byTenant_.get(tenant);
+			final Waiter next = queue.poll();
+			if(queue.isEmpty()) {
+				queues.byTenant_.remove(tenant);
+			} else {
+				// Back of the line for this tenant.
+				queues.turns_.add(tenant);
+			}
+			waiting_--;
+			next.isGranted_ = true;
+			next.granted_.signal();
+			return;
+		}
+		available_++;
+	}
+	
+	private final void enqueue(final Priority priority, final Waiter waiter) {
+		final Queues queues = queues_.get(priority);
+		PriorityQueue<Waiter> queue = queues.byTenant_.get(waiter.tenant_);
+		if(queue == null) {
+			queue = new PriorityQueue<Waiter>(11, EARLIEST_DEADLINE);
+			queues.byTenant_.put(waiter.tenant_, queue);
+			queues.turns_.add(waiter.tenant_);
+		}
+		queue.add(waiter);
+		waiting_++;
+	}
+	
+	private final void dequeue(final Priority priority, final Waiter waiter) {
+		final Queues queues = queues_.get(priority);
+		final PriorityQueue<Waiter> queue = queues.byTenant_.get(waiter.tenant_);
+		if(queue != null && queue.remove(waiter)) {
+			waiting_--;
+			if(queue.isEmpty()) {
+				queues.byTenant_.remove(waiter.tenant_);
+				queues.turns_.remove(waiter.tenant_);
+			}
+		}
+	}
+	
+	public int getMaxConcurrent() {
+		lock_.lock();
+		try {
+			return maxConcurrent_;
+		} finally {
+			lock_.unlock();
+		}
+	}
+	
+	/**
+	 * Changes how many requests may be in flight at once.  Raising it
+	 * lets waiters through right away, cutting it lets requests already
+	 * in flight finish and holds back new ones until under the max.
+	 */
+	public void setMaxConcurrent(final int maxConcurrent) {
+		checkArgument(maxConcurrent > 0, "Max concurrent must be greater " +
+			"than zero.");
+		lock_.lock();
+		try {
+			available_ += maxConcurrent - maxConcurrent_;
+			maxConcurrent_ = maxConcurrent;
+			while(available_ > 0 && waiting_ > 0) {
+				available_--;
+				dispatch();
+			}
+		} finally {
+			lock_.unlock();
+		}
+	}
+	
+	/**
+	 * The number of requests sent at the given priority.
+	 */
+	public long getRequestCount(final Priority priority) {
+		return totals_.get(priority).requests_.get();
+	}
+	
+	/**
+	 * The total time, in milliseconds, requests of the given priority
+	 * spent waiting for a slot.
+	 */
+	public long getQueueWaitMs(final Priority priority) {
+		return NANOSECONDS.toMillis(totals_.get(priority).queueWaitNanos_.get());
+	}
+	
+	/**
+	 * The total time, in milliseconds, requests of the given priority
+	 * spent on the wire once they had a slot, up until their response
+	 * headers came back.
+	 */
+	public long getWireMs(final Priority priority) {
+		return NANOSECONDS.toMillis(totals_.get(priority).wireNanos_.get());
+	}
+	
+	/**
+	 * The number of requests of the given priority that failed because
+	 * their deadline passed while they were queued.
+	 */
+	public long getExpiredCount(final Priority priority) {
+		return totals_.get(priority).expired_.get();
+	}
+	
+	/**
+	 * The number of requests currently waiting for a slot.
+	 */
+	public int getQueueLength() {
+		lock_.lock();
+		try {
+			return waiting_;
+		} finally {
+			lock_.unlock();
+		}
+	}
+	
+	/**
+	 * Sets the priority of requests sent from the calling thread, null to
+	 * go back to {@link Priority#NORMAL}.  Returns the priority it
+	 * replaces, so it can be put back once done.
+	 */
+	public static final Priority setCurrentPriority(final Priority priority) {
+		final Priority previous = currentPriority__.get();
+		if(priority == null) {
+			currentPriority__.remove();
+		} else {
+			currentPriority__.set(priority);
+		}
+		return previous;
+	}
+	
+	/**
+	 * Sets the tenant that requests sent from the calling thread are
+	 * queued under, null to go back to queueing by S3 bucket or endpoint.
+	 * Returns the tenant it replaces, so it can be put back once done.
+	 */
+	public static final String setCurrentTenant(final String tenant) {
+		final String previous = currentTenant__.get();
+		if(tenant == null) {
+			currentTenant__.remove();
+		} else {
+			currentTenant__.set(tenant);
+		}
+		return previous;
+	}
+
+}
@@ -30,6 +30,8 @@ import com.amazonaws.services.s3.model.Bucket;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.PutObjectResult;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.collect.ImmutableSet;
+import com.kolich.aws.services.s3.S3BatchCallback;
 import com.kolich.aws.services.s3.S3Client;
 import com.kolich.aws.services.s3.impl.KolichS3Client;
 import com.kolich.common.functional.either.Either;
@@ -39,6 +41,7 @@ import com.kolich.http.common.response.HttpFailure;
 import org.apache.http.client.HttpClient;
 
 import java.util.List;
+import java.util.Set;
 
 import static org.apache.commons.codec.binary.StringUtils.getBytesUtf8;
 
@@ -96,6 +99,24 @@ public class S3Test {
 			System.out.println("Bogus object confirmed missing.");
 		}
 		
+		final Either<HttpFailure,Set<String>> existing = s3.objectsExist(
+			"foobar.kolich.local", ImmutableSet.of(
+				KolichS3Client.varargsToPathString("test", "foo", "bar/kewl", "test.txt"),
+				"bogus"));
+		if(existing.success()) {
+			System.out.println("Bulk exists check found: " + existing.right());
+			s3.getObjects("foobar.kolich.local", 8, existing.right(),
+				new S3BatchCallback<byte[]>() {
+				@Override
+				public void onResult(final String key,
+                                     final Either<HttpFailure,byte[]> result) {
+					System.out.println("Batch got: " + key + " -> " +
+						(result.success() ? result.right().length + "-bytes" :
+							"failed"));
+				}
+			});
+		}
+		
 		final Either<HttpFailure,ObjectListing> objList =
 			s3.listObjects("foobar.kolich.local");
 		if(objList.success()) {
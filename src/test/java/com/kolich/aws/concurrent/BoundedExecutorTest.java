@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.concurrent;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class BoundedExecutorTest {
+	
+	@Test
+	public void trySubmitGivesUpRightAwayWhenFull() throws Exception {
+		final ListeningExecutorService pool = listeningDecorator(
+			newFixedThreadPool(2));
+		try {
+			final BoundedExecutor executor = new BoundedExecutor(pool, 1);
+			final CountDownLatch release = new CountDownLatch(1);
+			final Callable<String> blocking = new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					release.await();
+					return "first";
+				}
+			};
+			final ListenableFuture<String> running = executor.trySubmit(blocking);
+			assertNotNull(running);
+			assertNull(executor.trySubmit(constant("second")));
+			release.countDown();
+			assertEquals("first", running.get(5L, SECONDS));
+			// The permit comes back once the task is done.
+			ListenableFuture<String> next = null;
+			final long giveUp = System.nanoTime() + SECONDS.toNanos(5L);
+			while(next == null && System.nanoTime() < giveUp) {
+				next = executor.trySubmit(constant("third"));
+			}
+			assertNotNull(next);
+			assertEquals("third", next.get(5L, SECONDS));
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void submitRunsUnderTheCallersDeadline() throws Exception {
+		final ListeningExecutorService pool = listeningDecorator(
+			newFixedThreadPool(1));
+		try {
+			final BoundedExecutor executor = new BoundedExecutor(pool, 1);
+			final Deadline deadline = Deadline.after(5L, SECONDS);
+			final Deadline.Scope scope = deadline.enter();
+			try {
+				assertEquals(deadline, executor.submit(new Callable<Deadline>() {
+					@Override
+					public Deadline call() {
+						return Deadline.current();
+					}
+				}).get(5L, SECONDS));
+			} finally {
+				scope.close();
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsZeroInFlight() {
+		new BoundedExecutor(BoundedExecutor.getDefaultExecutor(), 0);
+	}
+	
+	private static final Callable<String> constant(final String value) {
+		return new Callable<String>() {
+			@Override
+			public String call() {
+				return value;
+			}
+		};
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.concurrent;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@SuppressWarnings("try") // Scopes are only ever closed.
+public class DeadlineTest {
+	
+	@Test
+	public void expiresOnceItsTimeIsUp() throws Exception {
+		final Deadline deadline = Deadline.after(20L, MILLISECONDS);
+		assertFalse(deadline.isExpired());
+		assertTrue(deadline.remaining(MILLISECONDS) <= 20L);
+		MILLISECONDS.sleep(30L);
+		assertTrue(deadline.isExpired());
+		assertTrue(deadline.remaining(MILLISECONDS) <= 0L);
+	}
+	
+	@Test
+	public void aZeroDeadlineHasAlreadyPassed() {
+		assertTrue(Deadline.after(0L, SECONDS).isExpired());
+	}
+	
+	@Test
+	public void holdsTheThreadUntilTheScopeIsClosed() {
+		assertNull(Deadline.current());
+		final Deadline deadline = Deadline.after(1L, SECONDS);
+		try(final Deadline.Scope scope = deadline.enter()) {
+			assertSame(deadline, Deadline.current());
+		}
+		assertNull(Deadline.current());
+	}
+	
+	@Test
+	public void canOnlyBeTightened() {
+		final Deadline outer = Deadline.after(1L, SECONDS);
+		final Deadline sooner = Deadline.after(100L, MILLISECONDS);
+		final Deadline later = Deadline.after(10L, SECONDS);
+		try(final Deadline.Scope scope = outer.enter()) {
+			try(final Deadline.Scope inner = later.enter()) {
+				assertSame(outer, Deadline.current());
+			}
+			try(final Deadline.Scope inner = sooner.enter()) {
+				assertSame(sooner, Deadline.current());
+			}
+			assertSame(outer, Deadline.current());
+		}
+		assertNull(Deadline.current());
+	}
+	
+	@Test
+	public void closingAScopeTwiceIsHarmless() {
+		final Deadline outer = Deadline.after(1L, SECONDS);
+		try(final Deadline.Scope scope = outer.enter()) {
+			final Deadline.Scope inner = Deadline.after(1L, MILLISECONDS).enter();
+			inner.close();
+			assertSame(outer, Deadline.current());
+			inner.close();
+			assertSame(outer, Deadline.current());
+		}
+		assertNull(Deadline.current());
+	}
+	
+	@Test
+	public void capsWaitsToTheTimeLeft() {
+		assertEquals(5000L, Deadline.cap(5000L, MILLISECONDS));
+		try(final Deadline.Scope scope = Deadline.after(1L, SECONDS).enter()) {
+			assertTrue(Deadline.cap(5000L, MILLISECONDS) <= 1000L);
+			assertEquals(10L, Deadline.cap(10L, MILLISECONDS));
+		}
+		try(final Deadline.Scope scope = Deadline.after(0L, SECONDS).enter()) {
+			assertEquals(0L, Deadline.cap(5000L, MILLISECONDS));
+			assertTrue(Deadline.isCurrentExpired());
+		}
+		assertFalse(Deadline.isCurrentExpired());
+	}
+	
+	@Test
+	public void propagatesToOtherThreads() throws Exception {
+		final ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			final Callable<Deadline> current = new Callable<Deadline>() {
+				@Override
+				public Deadline call() {
+					return Deadline.current();
+				}
+			};
+			final Deadline deadline = Deadline.after(1L, SECONDS);
+			try(final Deadline.Scope scope = deadline.enter()) {
+				assertSame(deadline, pool.submit(Deadline.propagate(current))
+					.get(5L, SECONDS));
+			}
+			// And doesn't linger on the pool's thread afterwards.
+			assertNull(pool.submit(current).get(5L, SECONDS));
+			final AtomicReference<Deadline> seen = new AtomicReference<Deadline>();
+			final Runnable task = new Runnable() {
+				@Override
+				public void run() {
+					seen.set(Deadline.current());
+				}
+			};
+			try(final Deadline.Scope scope = deadline.enter()) {
+				pool.submit(Deadline.propagate(task)).get(5L, SECONDS);
+			}
+			assertSame(deadline, seen.get());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void propagateLeavesTasksAloneWithoutADeadline() {
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				// Nothing to do.
+			}
+		};
+		assertSame(task, Deadline.propagate(task));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsNegativeDurations() {
+		Deadline.after(-1L, SECONDS);
+	}
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.concurrent;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+	
+	private static final int CALLERS = 8;
+	
+	@Test
+	public void concurrentCallersShareOneExecution() throws Exception {
+		final SingleFlight<String,String> flight = new SingleFlight<String,String>();
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+		final ExecutorService pool = Executors.newFixedThreadPool(CALLERS);
+		try {
+			final Future<?>[] results = new Future<?>[CALLERS];
+			for(int i = 0; i < CALLERS; i++) {
+				results[i] = pool.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						return flight.execute("key", new Callable<String>() {
+							@Override
+							public String call() throws Exception {
+								calls.incrementAndGet();
+								release.await();
+								return "value";
+							}
+						});
+					}
+				});
+			}
+			// Give every caller the chance to join the one in flight.
+			while(calls.get() == 0) {
+				Thread.yield();
+			}
+			SECONDS.sleep(1L);
+			release.countDown();
+			for(final Future<?> result : results) {
+				assertEquals("value", result.get(5L, SECONDS));
+			}
+			assertEquals(1L, calls.get());
+			assertEquals(0L, flight.size());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void sharesTheExceptionWithEveryCaller() throws Exception {
+		final SingleFlight<String,String> flight = new SingleFlight<String,String>();
+		final IllegalStateException failure = new IllegalStateException();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			final Future<String> first = pool.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return flight.execute("key", new Callable<String>() {
+						@Override
+						public String call() throws Exception {
+							started.countDown();
+							release.await();
+							throw failure;
+						}
+					});
+				}
+			});
+			assertTrue(started.await(5L, SECONDS));
+			final Thread releaser = new Thread() {
+				@Override
+				public void run() {
+					try {
+						SECONDS.sleep(1L);
+					} catch (InterruptedException e) {
+						return;
+					}
+					release.countDown();
+				}
+			};
+			releaser.start();
+			try {
+				flight.execute("key", new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						fail("Should have shared the running task.");
+						return null;
+					}
+				});
+				fail("Should have thrown the shared exception.");
+			} catch (IllegalStateException e) {
+				assertSame(failure, e);
+			}
+			try {
+				first.get(5L, SECONDS);
+				fail("Should have thrown.");
+			} catch (ExecutionException e) {
+				assertSame(failure, e.getCause());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void forgetsTheKeyOnceTheTaskFinishes() throws Exception {
+		final SingleFlight<String,Integer> flight = new SingleFlight<String,Integer>();
+		final AtomicInteger calls = new AtomicInteger();
+		final Callable<Integer> task = new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return calls.incrementAndGet();
+			}
+		};
+		assertEquals(1, flight.execute("key", task).intValue());
+		assertEquals(2, flight.execute("key", task).intValue());
+		assertEquals(0L, flight.size());
+	}
+	
+	@Test
+	public void forgetsTheKeyWhenTheTaskFails() throws Exception {
+		final SingleFlight<String,String> flight = new SingleFlight<String,String>();
+		try {
+			flight.execute("key", new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					throw new IOException();
+				}
+			});
+			fail("Should have thrown.");
+		} catch (IOException e) {
+			// Expected.
+		}
+		assertEquals(0L, flight.size());
+		assertEquals("again", flight.execute("key", new Callable<String>() {
+			@Override
+			public String call() {
+				return "again";
+			}
+		}));
+	}
+	
+	@Test(expected=NullPointerException.class)
+	public void rejectsANullKey() throws Exception {
+		new SingleFlight<String,String>().execute(null, new Callable<String>() {
+			@Override
+			public String call() {
+				return "value";
+			}
+		});
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.concurrent;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+	
+	@Test
+	public void startsOutFull() {
+		final TokenBucket bucket = new TokenBucket(1d, 10L);
+		assertTrue(bucket.tryAcquire(10L));
+		assertFalse(bucket.tryAcquire(1L));
+	}
+	
+	@Test
+	public void refillsAtItsRate() throws Exception {
+		final TokenBucket bucket = new TokenBucket(1000d, 10L);
+		assertTrue(bucket.tryAcquire(10L));
+		assertFalse(bucket.tryAcquire(5L));
+		MILLISECONDS.sleep(20L);
+		assertTrue(bucket.tryAcquire(5L));
+	}
+	
+	@Test
+	public void neverHoldsMoreThanItsBurst() throws Exception {
+		final TokenBucket bucket = new TokenBucket(1000d, 10L);
+		MILLISECONDS.sleep(50L);
+		assertTrue(bucket.tryAcquire(10L));
+		assertFalse(bucket.tryAcquire(1L));
+	}
+	
+	@Test
+	public void letsMoreThanTheBurstThroughWhenFullAndLeavesDebt() {
+		final TokenBucket bucket = new TokenBucket(10d, 10L);
+		assertTrue(bucket.tryAcquire(50L));
+		// Four seconds in debt, nothing is available for a while.
+		assertFalse(bucket.tryAcquire(1L));
+	}
+	
+	@Test
+	public void tryAcquireWaitsOnlyWithinItsTimeout() throws Exception {
+		final TokenBucket bucket = new TokenBucket(100d, 1L);
+		assertTrue(bucket.tryAcquire(1L));
+		// The next permit is 10ms away.
+		assertFalse(bucket.tryAcquire(1L, 1L, MILLISECONDS));
+		final long start = System.nanoTime();
+		assertTrue(bucket.tryAcquire(1L, 1L, SECONDS));
+		assertTrue(System.nanoTime() - start >= MILLISECONDS.toNanos(5L));
+	}
+	
+	@Test
+	public void consumeChargesWhetherAvailableOrNot() {
+		final TokenBucket bucket = new TokenBucket(1d, 5L);
+		bucket.consume(5L);
+		assertFalse(bucket.tryAcquire(1L));
+	}
+	
+	@Test
+	public void acquireAsyncCompletesOncePermitsAreDue() throws Exception {
+		final TokenBucket bucket = new TokenBucket(20d, 1L);
+		assertTrue(bucket.acquireAsync(1L).isDone());
+		final ListenableFuture<Void> future = bucket.acquireAsync(1L);
+		assertFalse(future.isDone());
+		future.get(1L, SECONDS);
+	}
+	
+	@Test
+	public void setRateChangesTheRefill() throws Exception {
+		final TokenBucket bucket = new TokenBucket(1d, 10L);
+		assertTrue(bucket.tryAcquire(10L));
+		bucket.setRate(1000d);
+		assertEquals(1000d, bucket.getRate(), 0d);
+		MILLISECONDS.sleep(20L);
+		assertTrue(bucket.tryAcquire(5L));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsNegativePermits() {
+		new TokenBucket(1d).tryAcquire(-1L);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsZeroRate() {
+		new TokenBucket(0d);
+	}
+
+}
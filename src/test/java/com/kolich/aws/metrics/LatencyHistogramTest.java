@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+	
+	/**
+	 * How far off a percentile is allowed to be, the width of a bucket.
+	 */
+	private static final double ERROR = 1d / 16d;
+	
+	@Test
+	public void isEmptyToStartWith() {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0L, histogram.getCount());
+		assertEquals(0L, histogram.getMax());
+		assertEquals(0d, histogram.getMean(), 0d);
+		assertEquals(0L, histogram.getValueAtPercentile(99d));
+	}
+	
+	@Test
+	public void countsSmallValuesExactly() {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		for(long value = 0L; value < 32L; value++) {
+			histogram.record(value);
+		}
+		assertEquals(32L, histogram.getCount());
+		assertEquals(31L, histogram.getMax());
+		assertEquals(15.5d, histogram.getMean(), 0.0001d);
+		assertEquals(0L, histogram.getValueAtPercentile(0d));
+		assertEquals(15L, histogram.getValueAtPercentile(50d));
+		assertEquals(31L, histogram.getValueAtPercentile(100d));
+	}
+	
+	@Test
+	public void knowsLargeValuesToWithinABucket() {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		for(long value = 1L; value <= 100000L; value++) {
+			histogram.record(value);
+		}
+		assertEquals(100000L, histogram.getCount());
+		assertEquals(50000.5d, histogram.getMean(), 0.0001d);
+		assertWithin(50000L, histogram.getValueAtPercentile(50d));
+		assertWithin(90000L, histogram.getValueAtPercentile(90d));
+		assertWithin(99000L, histogram.getValueAtPercentile(99d));
+		assertWithin(99900L, histogram.getValueAtPercentile(99.9d));
+		// Never more than the largest value actually recorded.
+		assertEquals(100000L, histogram.getValueAtPercentile(100d));
+	}
+	
+	@Test
+	public void handlesTheWholeRangeOfALong() {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(Long.MAX_VALUE);
+		histogram.record(1L << 40);
+		assertEquals(Long.MAX_VALUE, histogram.getMax());
+		assertWithin(1L << 40, histogram.getValueAtPercentile(50d));
+		assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100d));
+	}
+	
+	@Test
+	public void addRollsUpAnotherHistogram() {
+		final LatencyHistogram a = new LatencyHistogram();
+		final LatencyHistogram b = new LatencyHistogram();
+		for(int i = 0; i < 100; i++) {
+			a.record(10L);
+			b.record(1000L);
+		}
+		a.add(b);
+		assertEquals(200L, a.getCount());
+		assertEquals(1000L, a.getMax());
+		assertEquals(505d, a.getMean(), 0.0001d);
+		assertEquals(10L, a.getValueAtPercentile(50d));
+		assertWithin(1000L, a.getValueAtPercentile(51d));
+		// The other one is left as it was.
+		assertEquals(100L, b.getCount());
+	}
+	
+	@Test
+	public void countsEveryValueRecordedConcurrently() throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		final ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			final Future<?>[] writers = new Future<?>[4];
+			for(int i = 0; i < writers.length; i++) {
+				final long value = (i + 1) * 1000L;
+				writers[i] = pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						for(int j = 0; j < 10000; j++) {
+							histogram.record(value);
+						}
+					}
+				});
+			}
+			for(final Future<?> writer : writers) {
+				writer.get(10L, SECONDS);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		assertEquals(40000L, histogram.getCount());
+		assertEquals(4000L, histogram.getMax());
+		assertEquals(2500d, histogram.getMean(), 0.0001d);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsNegativeValues() {
+		new LatencyHistogram().record(-1L);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsPercentilesOver100() {
+		new LatencyHistogram().getValueAtPercentile(100.1d);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsNegativePercentiles() {
+		new LatencyHistogram().getValueAtPercentile(-1d);
+	}
+	
+	private static final void assertWithin(final long expected,
+		final long actual) {
+		assertTrue("Expected about " + expected + " but was " + actual,
+			Math.abs(actual - expected) <= expected * ERROR);
+	}
+}
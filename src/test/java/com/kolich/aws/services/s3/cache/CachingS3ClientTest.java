@@ -0,0 +1,203 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.cache;
+
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.kolich.aws.services.s3.S3Client;
+import com.kolich.common.functional.either.Either;
+import com.kolich.common.functional.either.Right;
+import com.kolich.common.functional.option.Option;
+import com.kolich.common.functional.option.Some;
+import com.kolich.http.common.response.HttpFailure;
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.http.HttpHeaders.ETAG;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CachingS3ClientTest {
+	
+	private static final String BUCKET = "bucket";
+	private static final String KEY = "key";
+	
+	private static final byte[] OLD = "old".getBytes();
+	private static final byte[] NEW = "new".getBytes();
+	
+	private FakeS3 s3_;
+	private CachingS3Client client_;
+	private ExecutorService pool_;
+	
+	@Before
+	public void setUp() {
+		s3_ = new FakeS3();
+		s3_.objects_.put(KEY, OLD);
+		client_ = new CachingS3Client(s3_.newClient(), 1024L * 1024L, 60000L);
+		pool_ = Executors.newFixedThreadPool(2);
+	}
+	
+	@After
+	public void tearDown() {
+		s3_.release_.countDown();
+		pool_.shutdownNow();
+	}
+	
+	@Test
+	public void servesRepeatReadsFromTheCache() {
+		assertArrayEquals(OLD, client_.getObject(BUCKET, KEY).right());
+		assertArrayEquals(OLD, client_.getObject(BUCKET, KEY).right());
+		assertEquals(1L, s3_.gets_.get());
+		assertEquals(1L, client_.getHitCount());
+	}
+	
+	@Test
+	public void aReadInFlightDuringAWriteDoesNotCacheWhatItSaw() throws Exception {
+		s3_.slow_ = true;
+		final Future<byte[]> slow = pool_.submit(read());
+		assertTrue(s3_.started_.await(5L, SECONDS));
+		assertTrue(client_.putObject(BUCKET, NEW, KEY).success());
+		// Read after the write, this must not join the slow read.
+		assertArrayEquals(NEW, pool_.submit(read()).get(5L, SECONDS));
+		s3_.release_.countDown();
+		assertArrayEquals(OLD, slow.get(5L, SECONDS));
+		assertArrayEquals(NEW, client_.getObject(BUCKET, KEY).right());
+		assertEquals(2L, s3_.gets_.get());
+	}
+	
+	@Test
+	public void aStreamingReadInFlightDuringAWriteDoesNotCacheWhatItSaw()
+		throws Exception {
+		s3_.slow_ = true;
+		final Future<byte[]> slow = pool_.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				final ByteArrayOutputStream os = new ByteArrayOutputStream();
+				client_.getObject(BUCKET, os, KEY);
+				return os.toByteArray();
+			}
+		});
+		assertTrue(s3_.started_.await(5L, SECONDS));
+		assertTrue(client_.putObject(BUCKET, NEW, KEY).success());
+		s3_.release_.countDown();
+		assertArrayEquals(OLD, slow.get(5L, SECONDS));
+		assertArrayEquals(NEW, client_.getObject(BUCKET, KEY).right());
+		assertEquals(2L, s3_.gets_.get());
+	}
+	
+	@Test
+	public void writesInvalidateWhatIsCached() {
+		assertArrayEquals(OLD, client_.getObject(BUCKET, KEY).right());
+		assertTrue(client_.putObject(BUCKET, NEW, KEY).success());
+		assertArrayEquals(NEW, client_.getObject(BUCKET, KEY).right());
+		assertEquals(2L, s3_.gets_.get());
+	}
+	
+	private final Callable<byte[]> read() {
+		return new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return client_.getObject(BUCKET, KEY).right();
+			}
+		};
+	}
+	
+	/**
+	 * Just enough of S3 behind an {@link S3Client}: objects are kept in a
+	 * map, and when slow, the first GET blocks, having seen the object as
+	 * it was, until released.
+	 */
+	private static final class FakeS3 implements InvocationHandler {
+		private final ConcurrentMap<String,byte[]> objects_ =
+			new ConcurrentHashMap<String,byte[]>();
+		private final AtomicInteger gets_ = new AtomicInteger();
+		private final CountDownLatch started_ = new CountDownLatch(1);
+		private final CountDownLatch release_ = new CountDownLatch(1);
+		private volatile boolean slow_;
+		private S3Client newClient() {
+			return (S3Client)Proxy.newProxyInstance(
+				S3Client.class.getClassLoader(),
+				new Class<?>[]{S3Client.class}, this);
+		}
+		@Override
+		public Object invoke(final Object proxy, final Method method,
+			final Object[] args) throws Throwable {
+			if("getObjectByKeyIfNoneMatch".equals(method.getName())) {
+				return get((String)args[1], (OutputStream)args[3]);
+			} else if("getObjectIfNoneMatch".equals(method.getName())) {
+				return get(Joiner.on('/').join((String[])args[3]),
+					(OutputStream)args[2]);
+			} else if("putObject".equals(method.getName())) {
+				byte[] object = null;
+				for(final Object arg : args) {
+					if(arg instanceof byte[]) {
+						object = (byte[])arg;
+					}
+				}
+				objects_.put(Joiner.on('/').join(
+					(String[])args[args.length - 1]), object);
+				return Right.<HttpFailure,PutObjectResult>right(
+					new PutObjectResult());
+			}
+			throw new UnsupportedOperationException(method.getName());
+		}
+		private Either<HttpFailure,Option<List<Header>>> get(final String key,
+			final OutputStream destination) throws Exception {
+			final byte[] object = objects_.get(key);
+			if(gets_.incrementAndGet() == 1 && slow_) {
+				started_.countDown();
+				release_.await();
+			}
+			destination.write(object);
+			final List<Header> headers = ImmutableList.<Header>of(
+				new BasicHeader(ETAG, "\"" + new String(object) + "\""));
+			return Right.<HttpFailure,Option<List<Header>>>right(
+				Some.<List<Header>>some(headers));
+		}
+	}
+}
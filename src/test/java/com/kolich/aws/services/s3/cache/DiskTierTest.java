@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.cache;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.http.Header;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DiskTierTest {
+	
+	private static final String STALE = "0000000000000001.obj";
+	
+	private Path directory_;
+	
+	@Before
+	public void setUp() throws IOException {
+		directory_ = Files.createTempDirectory("disk-tier-test");
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		Files.walkFileTree(directory_, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(final Path file,
+				final BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+			@Override
+			public FileVisitResult postVisitDirectory(final Path dir,
+				final IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	@Test
+	public void leavesTheCallersFilesAlone() throws IOException {
+		final Path theirs = Files.createFile(directory_.resolve(STALE));
+		final Path other = Files.createFile(directory_.resolve("data.obj"));
+		new DiskTier(directory_.toFile(), 1024L);
+		assertTrue(Files.exists(theirs));
+		assertTrue(Files.exists(other));
+	}
+	
+	@Test
+	public void deletesOnlyItsOwnStaleFiles() throws IOException {
+		final File first = directory_.toFile();
+		final DiskTier tier = new DiskTier(first, 1024L);
+		tier.put("key", object("old"));
+		final Path own = onlyFileIn(ownDirectory());
+		final Path other = Files.createFile(ownDirectory().resolve(
+			"notes.obj"));
+		new DiskTier(first, 1024L);
+		assertFalse(Files.exists(own));
+		assertTrue(Files.exists(other));
+	}
+	
+	@Test
+	public void servesWhatWasPut() {
+		final DiskTier tier = new DiskTier(directory_.toFile(), 1024L);
+		tier.put("key", object("bytes"));
+		assertArrayEquals("bytes".getBytes(), tier.get("key").getBytes());
+	}
+	
+	private final Path ownDirectory() throws IOException {
+		// The one subdirectory the tier created.
+		return onlyFileIn(directory_);
+	}
+	
+	private static final Path onlyFileIn(final Path directory)
+		throws IOException {
+		final File[] files = directory.toFile().listFiles();
+		assertTrue(files != null && files.length == 1);
+		return files[0].toPath();
+	}
+	
+	private static final CachedObject object(final String body) {
+		return new CachedObject("\"etag\"", ImmutableList.<Header>of(),
+			body.getBytes(), System.currentTimeMillis());
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrequencySketchTest {
+	
+	@Test
+	public void unseenKeysHaveNoFrequency() {
+		final FrequencySketch sketch = new FrequencySketch(16);
+		assertEquals(0L, sketch.frequency("unseen"));
+	}
+	
+	@Test
+	public void countsEveryIncrement() {
+		final FrequencySketch sketch = new FrequencySketch(16);
+		for(int i = 0; i < 5; i++) {
+			sketch.increment("key");
+		}
+		assertEquals(5L, sketch.frequency("key"));
+		assertEquals(0L, sketch.frequency("other"));
+	}
+	
+	@Test
+	public void countsSaturateAtFifteen() {
+		final FrequencySketch sketch = new FrequencySketch(16);
+		for(int i = 0; i < 100; i++) {
+			sketch.increment("key");
+		}
+		assertEquals(15L, sketch.frequency("key"));
+	}
+	
+	@Test
+	public void halvesEveryCountOnceTheSampleIsFull() {
+		final FrequencySketch sketch = new FrequencySketch(16);
+		for(int i = 0; i < 15; i++) {
+			sketch.increment("hot");
+		}
+		// A sketch sized for 16 entries ages after 160 increments, watch
+		// for the moment the hot key's count is halved.
+		boolean aged = false;
+		for(int i = 0; i < 1000 && !aged; i++) {
+			sketch.increment(i);
+			aged = sketch.frequency("hot") < 15;
+		}
+		assertTrue(aged);
+		assertEquals(7L, sketch.frequency("hot"));
+	}
+}
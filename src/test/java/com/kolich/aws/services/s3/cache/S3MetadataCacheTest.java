@@ -0,0 +1,148 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.cache;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.kolich.common.functional.either.Either;
+import com.kolich.common.functional.either.Right;
+import com.kolich.http.common.response.HttpFailure;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class S3MetadataCacheTest {
+	
+	private static final String KEY = "bucket/a";
+	private static final String OTHER_KEY = "bucket/b";
+	
+	private S3MetadataCache cache_;
+	private ExecutorService pool_;
+	private CountDownLatch started_;
+	private CountDownLatch release_;
+	private AtomicInteger heads_;
+	
+	@Before
+	public void setUp() {
+		cache_ = new S3MetadataCache(100L, 60000L, 60000L);
+		pool_ = Executors.newFixedThreadPool(2);
+		started_ = new CountDownLatch(1);
+		release_ = new CountDownLatch(1);
+		heads_ = new AtomicInteger();
+	}
+	
+	@After
+	public void tearDown() {
+		release_.countDown();
+		pool_.shutdownNow();
+	}
+	
+	@Test
+	public void cachesWhatAHeadSaw() {
+		cache_.get(KEY, head(0L));
+		cache_.get(KEY, head(0L));
+		assertEquals(1, heads_.get());
+		assertEquals(1L, cache_.getHitCount());
+	}
+	
+	@Test
+	public void aWriteToAnotherKeyKeepsAHeadInFlightCacheable()
+		throws Exception {
+		final Future<Either<HttpFailure,ObjectMetadata>> inFlight =
+			pool_.submit(lookup(slowHead(1L)));
+		assertTrue(started_.await(5L, SECONDS));
+		cache_.invalidate(OTHER_KEY);
+		release_.countDown();
+		inFlight.get(5L, SECONDS);
+		assertEquals(1L, cache_.get(KEY, head(2L)).right().getContentLength());
+		assertEquals(1, heads_.get());
+	}
+	
+	@Test
+	public void aHeadInFlightDuringAWriteDoesNotCacheWhatItSaw()
+		throws Exception {
+		final Future<Either<HttpFailure,ObjectMetadata>> before =
+			pool_.submit(lookup(slowHead(1L)));
+		assertTrue(started_.await(5L, SECONDS));
+		cache_.invalidate(KEY);
+		// Started after the write, so it must not join the HEAD that was
+		// already in flight.
+		final Future<Either<HttpFailure,ObjectMetadata>> after =
+			pool_.submit(lookup(head(2L)));
+		assertEquals(2L, after.get(5L, SECONDS).right().getContentLength());
+		release_.countDown();
+		assertEquals(1L, before.get(5L, SECONDS).right().getContentLength());
+		assertEquals(2L, cache_.get(KEY, head(3L)).right().getContentLength());
+	}
+	
+	private final Callable<Either<HttpFailure,ObjectMetadata>> lookup(
+		final Callable<Either<HttpFailure,ObjectMetadata>> head) {
+		return new Callable<Either<HttpFailure,ObjectMetadata>>() {
+			@Override
+			public Either<HttpFailure,ObjectMetadata> call() {
+				return cache_.get(KEY, head);
+			}
+		};
+	}
+	
+	private final Callable<Either<HttpFailure,ObjectMetadata>> slowHead(
+		final long contentLength) {
+		final Callable<Either<HttpFailure,ObjectMetadata>> head =
+			head(contentLength);
+		return new Callable<Either<HttpFailure,ObjectMetadata>>() {
+			@Override
+			public Either<HttpFailure,ObjectMetadata> call() throws Exception {
+				started_.countDown();
+				assertTrue(release_.await(5L, SECONDS));
+				return head.call();
+			}
+		};
+	}
+	
+	private final Callable<Either<HttpFailure,ObjectMetadata>> head(
+		final long contentLength) {
+		return new Callable<Either<HttpFailure,ObjectMetadata>>() {
+			@Override
+			public Either<HttpFailure,ObjectMetadata> call() {
+				heads_.incrementAndGet();
+				final ObjectMetadata metadata = new ObjectMetadata();
+				metadata.setContentLength(contentLength);
+				return Right.<HttpFailure,ObjectMetadata>right(metadata);
+			}
+		};
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.cache;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TinyLfuPolicyTest {
+	
+	/**
+	 * Room for ten unit weight keys: one in the window, nine in the main
+	 * space.
+	 */
+	private static final long MAX_WEIGHT = 10L;
+	
+	@Test
+	public void admitsFreelyUntilFull() {
+		final TinyLfuPolicy<String> policy = newFullPolicy();
+		assertEquals(MAX_WEIGHT, policy.weight());
+	}
+	
+	@Test
+	public void aLosingCandidateEvictsNothingElse() {
+		final TinyLfuPolicy<String> policy = newFullPolicy();
+		// "k9" is pushed out of the window, and having been seen no more
+		// often than the eldest key on probation, it is the one to go.
+		assertEquals(ImmutableList.of("k9"), policy.add("a", 1L));
+		assertEquals(MAX_WEIGHT, policy.weight());
+	}
+	
+	@Test
+	public void aWinningCandidateReplacesTheVictim() {
+		final TinyLfuPolicy<String> policy = newFullPolicy();
+		for(int i = 0; i < 3; i++) {
+			policy.touch("k9");
+		}
+		assertEquals(ImmutableList.of("k0"), policy.add("a", 1L));
+		assertEquals(MAX_WEIGHT, policy.weight());
+	}
+	
+	@Test
+	public void aFrequentKeySurvivesAScan() {
+		final TinyLfuPolicy<String> policy = newFullPolicy();
+		for(int i = 0; i < 3; i++) {
+			policy.touch("k4");
+		}
+		final List<String> evicted = Lists.newArrayList();
+		for(int i = 0; i < 50; i++) {
+			evicted.addAll(policy.add("scan" + i, 1L));
+		}
+		assertFalse(evicted.contains("k4"));
+		assertEquals(MAX_WEIGHT, policy.weight());
+	}
+	
+	@Test
+	public void rejectsAKeyHeavierThanTheWholeCache() {
+		final TinyLfuPolicy<String> policy = new TinyLfuPolicy<String>(MAX_WEIGHT);
+		assertEquals(ImmutableList.of("big"), policy.add("big", MAX_WEIGHT + 1L));
+		assertEquals(0L, policy.weight());
+	}
+	
+	@Test
+	public void removeGivesBackTheKeysWeight() {
+		final TinyLfuPolicy<String> policy = newFullPolicy();
+		policy.remove("k0");
+		policy.remove("k9");
+		policy.remove("unknown");
+		assertEquals(MAX_WEIGHT - 2L, policy.weight());
+		// Room was made, nothing needs to go.
+		assertTrue(policy.add("a", 1L).isEmpty());
+	}
+	
+	/**
+	 * Keys "k0" through "k8" on probation, "k9" in the window, each seen
+	 * once.
+	 */
+	private static final TinyLfuPolicy<String> newFullPolicy() {
+		final TinyLfuPolicy<String> policy = new TinyLfuPolicy<String>(MAX_WEIGHT);
+		for(int i = 0; i < MAX_WEIGHT; i++) {
+			assertTrue(policy.add("k" + i, 1L).isEmpty());
+		}
+		return policy;
+	}
+}
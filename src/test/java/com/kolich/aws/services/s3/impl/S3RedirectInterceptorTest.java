@@ -0,0 +1,189 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.services.s3.impl;
+
+import com.google.common.collect.ImmutableList;
+import com.kolich.aws.transport.AwsEndpoint;
+import com.kolich.aws.transport.EndpointResolver;
+import com.kolich.aws.transport.interceptors.TestRequestChain;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import static org.apache.http.HttpHeaders.LOCATION;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class S3RedirectInterceptorTest {
+	
+	private static final String BUCKET = "bucket";
+	private static final String S3 = "s3.amazonaws.com";
+	private static final String EU = "s3-eu-west-1.amazonaws.com";
+	
+	@Test
+	public void followsA301ToTheRegionInItsHeader() throws Exception {
+		final S3BucketEndpointResolver resolver = byHost();
+		final HttpResponse moved = TestRequestChain.response(301);
+		moved.setHeader("x-amz-bucket-region", "eu-west-1");
+		final RedirectChain chain = new RedirectChain(BUCKET + "." + S3, "/key",
+			moved);
+		assertEquals(200, intercept(resolver, chain));
+		assertEquals(BUCKET + "." + EU, resolver.getLearned().get(BUCKET));
+		assertEquals(ImmutableList.of(
+			"http://" + BUCKET + "." + S3 + "/key",
+			"http://" + BUCKET + "." + EU + "/key"), chain.sent_);
+	}
+	
+	@Test
+	public void followsA301ToTheEndpointInItsBody() throws Exception {
+		final S3BucketEndpointResolver resolver = byHost();
+		final HttpResponse moved = TestRequestChain.response(301);
+		moved.setEntity(new StringEntity("<Error><Code>PermanentRedirect" +
+			"</Code><Endpoint>" + BUCKET + "." + EU + "</Endpoint></Error>",
+			ContentType.APPLICATION_XML));
+		final RedirectChain chain = new RedirectChain(BUCKET + "." + S3, "/key",
+			moved);
+		assertEquals(200, intercept(resolver, chain));
+		assertEquals(BUCKET + "." + EU, resolver.getLearned().get(BUCKET));
+		assertEquals("http://" + BUCKET + "." + EU + "/key", chain.sent_.get(1));
+	}
+	
+	@Test
+	public void followsA307ToItsLocationKeepingTheScheme() throws Exception {
+		final S3BucketEndpointResolver resolver = byHost();
+		final HttpResponse redirect = TestRequestChain.response(307);
+		redirect.setHeader(LOCATION, "https://" + BUCKET + "." + EU +
+			"/key?versionId=1");
+		final RedirectChain chain = new RedirectChain(BUCKET + "." + S3,
+			"/key?versionId=1", redirect);
+		assertEquals(200, intercept(resolver, chain));
+		assertEquals(BUCKET + "." + EU, resolver.getLearned().get(BUCKET));
+		assertEquals("http://" + BUCKET + "." + EU + "/key?versionId=1",
+			chain.sent_.get(1));
+	}
+	
+	@Test
+	public void learnsFromARedirectTheClientAlreadyFollowed()
+		throws Exception {
+		final S3BucketEndpointResolver resolver = byHost();
+		final RedirectChain chain = new RedirectChain(BUCKET + "." + S3, "/key",
+			TestRequestChain.response(200));
+		chain.followed_.add(URI.create("http://" + BUCKET + "." + EU + "/key"));
+		assertEquals(200, intercept(resolver, chain));
+		assertEquals(BUCKET + "." + EU, resolver.getLearned().get(BUCKET));
+		// Nothing was sent again.
+		assertEquals(1, chain.sent_.size());
+	}
+	
+	@Test
+	public void doesNotLearnFromARedirectThatSwitchedScheme() throws Exception {
+		final S3BucketEndpointResolver resolver = byHost();
+		final RedirectChain chain = new RedirectChain(BUCKET + "." + S3, "/key",
+			TestRequestChain.response(200));
+		chain.followed_.add(URI.create("https://" + BUCKET + "." + EU + "/key"));
+		assertEquals(200, intercept(resolver, chain));
+		assertTrue(resolver.getLearned().isEmpty());
+	}
+	
+	@Test
+	public void keepsTheBucketInThePathOfAPathStyleResend() throws Exception {
+		final EndpointResolver byPath = new EndpointResolver() {
+			@Override
+			public AwsEndpoint resolve(final String resource) {
+				return AwsEndpoint.byPath("http", S3, resource);
+			}
+		};
+		final S3BucketEndpointResolver resolver =
+			new S3BucketEndpointResolver(byPath);
+		final HttpResponse moved = TestRequestChain.response(301);
+		moved.setHeader("x-amz-bucket-region", "eu-west-1");
+		final RedirectChain chain = new RedirectChain(S3,
+			"/" + BUCKET + "/key?acl", moved);
+		assertEquals(200, intercept(resolver, chain));
+		assertEquals(EU, resolver.getLearned().get(BUCKET));
+		assertEquals("http://" + EU + "/" + BUCKET + "/key?acl",
+			chain.sent_.get(1));
+	}
+	
+	private static final int intercept(final S3BucketEndpointResolver resolver,
+		final RedirectChain chain) throws Exception {
+		return new S3RedirectInterceptor(resolver).intercept(chain)
+			.getStatusLine().getStatusCode();
+	}
+	
+	/**
+	 * Addresses every bucket by host, at the US standard endpoint.
+	 */
+	private static final S3BucketEndpointResolver byHost() {
+		final EndpointResolver delegate = new EndpointResolver() {
+			@Override
+			public AwsEndpoint resolve(final String resource) {
+				return AwsEndpoint.byHost("http", (resource != null) ?
+					resource + "." + S3 : S3);
+			}
+		};
+		return new S3BucketEndpointResolver(delegate);
+	}
+	
+	/**
+	 * Answers with the given responses in order and then with 200s,
+	 * remembering where each request was sent.  Redirects the client
+	 * would have followed on its own are left in the context.
+	 */
+	private static final class RedirectChain extends TestRequestChain {
+		private final Queue<HttpResponse> responses_;
+		private final List<String> sent_;
+		private final List<URI> followed_;
+		private RedirectChain(final String authority, final String path,
+			final HttpResponse... responses) {
+			super(authority, BUCKET, path);
+			responses_ = new LinkedList<HttpResponse>(
+				ImmutableList.copyOf(responses));
+			sent_ = new ArrayList<String>();
+			followed_ = new ArrayList<URI>();
+		}
+		@Override
+		protected HttpResponse respond(final HttpUriRequest request) {
+			sent_.add(request.getURI().toString());
+			if(!followed_.isEmpty()) {
+				getContext().getHttpContext().setAttribute(
+					HttpClientContext.REDIRECT_LOCATIONS, followed_);
+			}
+			final HttpResponse response = responses_.poll();
+			return (response != null) ? response : response(200);
+		}
+	}
+}
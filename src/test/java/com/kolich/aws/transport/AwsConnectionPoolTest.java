@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport;
+
+import com.kolich.aws.concurrent.Deadline;
+import com.kolich.aws.transport.AwsConnectionPool.CountingRetryHandler;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@SuppressWarnings("try") // Scopes are only ever closed.
+public class AwsConnectionPoolTest {
+	
+	private static final int TIMEOUT_MS = 60000;
+	
+	@Test
+	public void retriesWithoutADeadline() {
+		final HttpClientContext context = newContext();
+		assertTrue(new CountingRetryHandler().retryRequest(
+			new NoHttpResponseException("Dropped."), 1, context));
+		assertEquals(TIMEOUT_MS, context.getRequestConfig().getSocketTimeout());
+	}
+	
+	@Test
+	public void doesNotRetryOnceTheDeadlineHasPassed() throws Exception {
+		final Deadline deadline = Deadline.after(10L, MILLISECONDS);
+		try(final Deadline.Scope scope = deadline.enter()) {
+			MILLISECONDS.sleep(20L);
+			assertFalse(new CountingRetryHandler().retryRequest(
+				new NoHttpResponseException("Dropped."), 1, newContext()));
+		}
+	}
+	
+	@Test
+	public void capsTheTimeoutsOfEachRetryToTheDeadline() {
+		final HttpClientContext context = newContext();
+		try(final Deadline.Scope scope = Deadline.after(1L, SECONDS).enter()) {
+			assertTrue(new CountingRetryHandler().retryRequest(
+				new NoHttpResponseException("Dropped."), 1, context));
+		}
+		final RequestConfig config = context.getRequestConfig();
+		assertTrue(config.getConnectionRequestTimeout() <= 1000);
+		assertTrue(config.getConnectTimeout() <= 1000);
+		assertTrue(config.getSocketTimeout() <= 1000);
+		assertTrue(config.getSocketTimeout() > 0);
+	}
+	
+	private static final HttpClientContext newContext() {
+		final HttpClientContext context = HttpClientContext.create();
+		context.setAttribute(HttpClientContext.HTTP_REQUEST,
+			new HttpGet("http://bucket.s3.amazonaws.com/"));
+		context.setRequestConfig(RequestConfig.custom()
+			.setConnectionRequestTimeout(TIMEOUT_MS)
+			.setConnectTimeout(TIMEOUT_MS)
+			.setSocketTimeout(TIMEOUT_MS)
+			.build());
+		return context;
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport;
+
+import com.kolich.aws.transport.BandwidthGovernor.TransferClass;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BandwidthGovernorTest {
+	
+	private static final long CHUNK = 10L * 1024L;
+	
+	@Test
+	public void holdsAClassOnItsOwnToTheRate() throws Exception {
+		// A tenth of a second's worth goes right away, the rest at 1MB/s.
+		final BandwidthGovernor governor = new BandwidthGovernor(1000000L);
+		final long start = System.nanoTime();
+		for(int i = 0; i < 50; i++) {
+			governor.acquire(TransferClass.BULK, CHUNK);
+		}
+		final long elapsedMs = NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("Took " + elapsedMs + "ms", elapsedMs >= 300L &&
+			elapsedMs < 1000L);
+	}
+	
+	@Test
+	public void sharesBandwidthByWeight() throws Exception {
+		final BandwidthGovernor governor = new BandwidthGovernor(1000000L);
+		final AtomicLong interactive = new AtomicLong();
+		final AtomicLong bulk = new AtomicLong();
+		final AtomicBoolean done = new AtomicBoolean();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(2);
+		startTransfer(governor, TransferClass.INTERACTIVE, interactive,
+			start, done, finished);
+		startTransfer(governor, TransferClass.BULK, bulk, start, done,
+			finished);
+		start.countDown();
+		// Whichever class gets going first has the initial burst to
+		// itself, only measure once both are waiting on each other.
+		MILLISECONDS.sleep(200L);
+		final long interactiveBefore = interactive.get();
+		final long bulkBefore = bulk.get();
+		MILLISECONDS.sleep(500L);
+		final long interactiveBytes = interactive.get() - interactiveBefore;
+		final long bulkBytes = bulk.get() - bulkBefore;
+		done.set(true);
+		finished.await();
+		// Weighted 9 to 1, allow for scheduling noise.
+		assertTrue("Interactive " + interactiveBytes + ", bulk " + bulkBytes,
+			interactiveBytes > 5L * bulkBytes);
+		assertTrue("Bulk starved", bulkBytes > 0L);
+	}
+	
+	@Test
+	public void currentTransferClassIsPerThread() {
+		assertNull(BandwidthGovernor.getCurrentTransferClass());
+		assertNull(BandwidthGovernor.setCurrentTransferClass(
+			TransferClass.BULK));
+		assertEquals(TransferClass.BULK,
+			BandwidthGovernor.getCurrentTransferClass());
+		assertEquals(TransferClass.BULK,
+			BandwidthGovernor.setCurrentTransferClass(null));
+		assertNull(BandwidthGovernor.getCurrentTransferClass());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsNegativeBytes() throws Exception {
+		new BandwidthGovernor(1000L).acquire(TransferClass.BULK, -1L);
+	}
+	
+	private static final void startTransfer(final BandwidthGovernor governor,
+		final TransferClass transferClass, final AtomicLong transferred,
+		final CountDownLatch start, final AtomicBoolean done,
+		final CountDownLatch finished) {
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					start.await();
+					while(!done.get()) {
+						governor.acquire(transferClass, CHUNK);
+						transferred.addAndGet(CHUNK);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					finished.countDown();
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport;
+
+import com.google.common.collect.ImmutableSet;
+import org.apache.http.conn.DnsResolver;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class SpreadingDnsResolverTest {
+	
+	private static final String HOST = "bucket.s3.amazonaws.com";
+	
+	private static final InetAddress A = address(1);
+	private static final InetAddress B = address(2);
+	private static final InetAddress C = address(3);
+	
+	@Test
+	public void rotatesThroughEveryAddress() throws Exception {
+		final FakeDns dns = new FakeDns(A, B, C);
+		final SpreadingDnsResolver resolver = new SpreadingDnsResolver(dns,
+			10000L, 10000L);
+		final InetAddress[] first = resolver.resolve(HOST);
+		final InetAddress[] second = resolver.resolve(HOST);
+		final InetAddress[] third = resolver.resolve(HOST);
+		assertEquals(ImmutableSet.of(A, B, C), ImmutableSet.copyOf(first));
+		assertEquals(ImmutableSet.of(A, B, C),
+			ImmutableSet.of(first[0], second[0], third[0]));
+		// The same rotation, one place further each call.
+		assertSame(first[1], second[0]);
+		assertSame(second[1], third[0]);
+	}
+	
+	@Test
+	public void cachesLookupsForTheTtl() throws Exception {
+		final FakeDns dns = new FakeDns(A, B);
+		final SpreadingDnsResolver resolver = new SpreadingDnsResolver(dns,
+			50L, 10000L);
+		resolver.resolve(HOST);
+		resolver.resolve(HOST);
+		assertEquals(1L, dns.lookups_.get());
+		MILLISECONDS.sleep(60L);
+		resolver.resolve(HOST);
+		assertEquals(2L, dns.lookups_.get());
+	}
+	
+	@Test
+	public void remembersAddressesAcrossLookups() throws Exception {
+		final FakeDns dns = new FakeDns(A, B);
+		final SpreadingDnsResolver resolver = new SpreadingDnsResolver(dns,
+			0L, 10000L);
+		resolver.resolve(HOST);
+		dns.addresses_ = new InetAddress[]{C};
+		MILLISECONDS.sleep(1L);
+		assertEquals(ImmutableSet.of(A, B, C),
+			ImmutableSet.copyOf(resolver.resolve(HOST)));
+	}
+	
+	@Test
+	public void forgetsAddressesNotSeenForTheRetainTime() throws Exception {
+		final FakeDns dns = new FakeDns(A, B);
+		final SpreadingDnsResolver resolver = new SpreadingDnsResolver(dns,
+			0L, 20L);
+		resolver.resolve(HOST);
+		dns.addresses_ = new InetAddress[]{C};
+		MILLISECONDS.sleep(30L);
+		assertEquals(ImmutableSet.of(C),
+			ImmutableSet.copyOf(resolver.resolve(HOST)));
+	}
+	
+	@Test
+	public void movesFailingAddressesToTheBack() throws Exception {
+		final SpreadingDnsResolver resolver = new SpreadingDnsResolver(
+			new FakeDns(A, B, C), 10000L, 10000L);
+		resolver.resolve(HOST);
+		resolver.recordFailure(B);
+		resolver.recordFailure(B);
+		for(int i = 0; i < 3; i++) {
+			final InetAddress[] ordered = resolver.resolve(HOST);
+			assertEquals(3L, ordered.length);
+			assertSame(B, ordered[2]);
+		}
+	}
+	
+	@Test
+	public void letsAFailingAddressBackOnceItRecovers() throws Exception {
+		final SpreadingDnsResolver resolver = new SpreadingDnsResolver(
+			new FakeDns(A, B), 10000L, 10000L);
+		resolver.resolve(HOST);
+		resolver.recordFailure(B);
+		resolver.recordFailure(B);
+		for(int i = 0; i < 5; i++) {
+			resolver.recordSuccess(B, 10L);
+		}
+		assertEquals(ImmutableSet.of(A, B), ImmutableSet.of(
+			resolver.resolve(HOST)[0], resolver.resolve(HOST)[0]));
+	}
+	
+	@Test
+	public void movesSlowAddressesToTheBack() throws Exception {
+		final SpreadingDnsResolver resolver = new SpreadingDnsResolver(
+			new FakeDns(A, B, C), 10000L, 10000L);
+		resolver.resolve(HOST);
+		resolver.recordSuccess(A, 10L);
+		resolver.recordSuccess(B, 100L);
+		resolver.recordSuccess(C, 12L);
+		for(int i = 0; i < 3; i++) {
+			assertSame(B, resolver.resolve(HOST)[2]);
+		}
+	}
+	
+	@Test
+	public void keepsWhatItHasThroughADnsBlip() throws Exception {
+		final FakeDns dns = new FakeDns(A, B);
+		final SpreadingDnsResolver resolver = new SpreadingDnsResolver(dns,
+			0L, 10000L);
+		resolver.resolve(HOST);
+		dns.addresses_ = null;
+		MILLISECONDS.sleep(1L);
+		assertEquals(ImmutableSet.of(A, B),
+			ImmutableSet.copyOf(resolver.resolve(HOST)));
+	}
+	
+	@Test
+	public void failsAHostItHasNeverResolved() throws Exception {
+		final FakeDns dns = new FakeDns();
+		dns.addresses_ = null;
+		try {
+			new SpreadingDnsResolver(dns, 10000L, 10000L).resolve(HOST);
+			fail("Should have thrown.");
+		} catch (UnknownHostException e) {
+			// Expected.
+		}
+	}
+	
+	@Test
+	public void ignoresAddressesItDoesNotKnow() {
+		final SpreadingDnsResolver resolver = new SpreadingDnsResolver(
+			new FakeDns(A), 10000L, 10000L);
+		resolver.recordFailure(B);
+		resolver.recordSuccess(B, 10L);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsARetainTimeUnderTheTtl() {
+		new SpreadingDnsResolver(null, 1000L, 999L);
+	}
+	
+	private static final InetAddress address(final int last) {
+		try {
+			return InetAddress.getByAddress(new byte[]{10, 0, 0, (byte)last});
+		} catch (UnknownHostException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	/**
+	 * Answers every lookup with the addresses last set, or fails them
+	 * when there are none.
+	 */
+	private static final class FakeDns implements DnsResolver {
+		private final AtomicInteger lookups_;
+		private volatile InetAddress[] addresses_;
+		private FakeDns(final InetAddress... addresses) {
+			lookups_ = new AtomicInteger();
+			addresses_ = addresses;
+		}
+		@Override
+		public InetAddress[] resolve(final String host)
+			throws UnknownHostException {
+			lookups_.incrementAndGet();
+			final InetAddress[] addresses = addresses_;
+			if(addresses == null) {
+				throw new UnknownHostException(host);
+			}
+			return addresses.clone();
+		}
+	}
+}
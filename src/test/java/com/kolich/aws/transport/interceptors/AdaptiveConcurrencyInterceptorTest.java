@@ -0,0 +1,319 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport.interceptors;
+
+import com.kolich.aws.transport.ConcurrencyLimitExceededException;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AdaptiveConcurrencyInterceptorTest {
+	
+	private static final String AUTHORITY = "bucket.s3.amazonaws.com";
+	
+	@Test
+	public void growsWhileRequestsComeBackQuickly() throws Exception {
+		final AdaptiveConcurrencyInterceptor limiter =
+			new AdaptiveConcurrencyInterceptor(2, 1, 10, 0L);
+		final TestRequestChain chain = new SleepingChain(10L, 200);
+		for(int i = 0; i < 20; i++) {
+			limiter.intercept(chain);
+		}
+		assertTrue(limitOf(limiter) > 2);
+		assertEquals(0L, limiter.getInFlight().get(AUTHORITY).intValue());
+	}
+	
+	@Test
+	public void neverGrowsPastTheMaxLimit() throws Exception {
+		final AdaptiveConcurrencyInterceptor limiter =
+			new AdaptiveConcurrencyInterceptor(2, 1, 3, 0L);
+		final TestRequestChain chain = new SleepingChain(1L, 200);
+		for(int i = 0; i < 50; i++) {
+			limiter.intercept(chain);
+		}
+		assertEquals(3L, limitOf(limiter));
+	}
+	
+	@Test
+	public void halvesOnThrottling() throws Exception {
+		final AdaptiveConcurrencyInterceptor limiter =
+			new AdaptiveConcurrencyInterceptor(10, 1, 20, 0L);
+		limiter.intercept(new SleepingChain(0L, 503));
+		assertEquals(5L, limitOf(limiter));
+	}
+	
+	@Test
+	public void halvesOnSocketTimeouts() throws Exception {
+		final AdaptiveConcurrencyInterceptor limiter =
+			new AdaptiveConcurrencyInterceptor(10, 1, 20, 0L);
+		try {
+			limiter.intercept(new TestRequestChain(AUTHORITY) {
+				@Override
+				protected HttpResponse respond(final HttpUriRequest request)
+					throws IOException {
+					throw new SocketTimeoutException();
+				}
+			});
+			fail("Should have thrown.");
+		} catch (SocketTimeoutException e) {
+			// Expected.
+		}
+		assertEquals(5L, limitOf(limiter));
+	}
+	
+	@Test
+	public void halvesOnConnectTimeouts() throws Exception {
+		final AdaptiveConcurrencyInterceptor limiter =
+			new AdaptiveConcurrencyInterceptor(10, 1, 20, 0L);
+		try {
+			limiter.intercept(new TestRequestChain(AUTHORITY) {
+				@Override
+				protected HttpResponse respond(final HttpUriRequest request)
+					throws IOException {
+					throw new ConnectTimeoutException();
+				}
+			});
+			fail("Should have thrown.");
+		} catch (ConnectTimeoutException e) {
+			// Expected.
+		}
+		assertEquals(5L, limitOf(limiter));
+	}
+	
+	@Test
+	public void ignoresConnectionPoolTimeouts() throws Exception {
+		final AdaptiveConcurrencyInterceptor limiter =
+			new AdaptiveConcurrencyInterceptor(10, 1, 20, 0L);
+		try {
+			limiter.intercept(new TestRequestChain(AUTHORITY) {
+				@Override
+				protected HttpResponse respond(final HttpUriRequest request)
+					throws IOException {
+					throw new ConnectionPoolTimeoutException();
+				}
+			});
+			fail("Should have thrown.");
+		} catch (ConnectionPoolTimeoutException e) {
+			// Expected.
+		}
+		assertEquals(10L, limitOf(limiter));
+	}
+	
+	@Test
+	public void otherFailuresLeaveTheLimitAlone() throws Exception {
+		final AdaptiveConcurrencyInterceptor limiter =
+			new AdaptiveConcurrencyInterceptor(10, 1, 20, 0L);
+		try {
+			limiter.intercept(new TestRequestChain(AUTHORITY) {
+				@Override
+				protected HttpResponse respond(final HttpUriRequest request)
+					throws IOException {
+					throw new IOException("Connection reset");
+				}
+			});
+			fail("Should have thrown.");
+		} catch (IOException e) {
+			// Expected.
+		}
+		assertEquals(10L, limitOf(limiter));
+		assertEquals(0L, limiter.getInFlight().get(AUTHORITY).intValue());
+	}
+	
+	@Test
+	public void backsOffWhenRoundTripsClimb() throws Exception {
+		final AdaptiveConcurrencyInterceptor limiter =
+			new AdaptiveConcurrencyInterceptor(10, 1, 20, 0L);
+		for(int i = 0; i < 5; i++) {
+			limiter.intercept(new SleepingChain(10L, 200));
+		}
+		assertEquals(10L, limitOf(limiter));
+		limiter.intercept(new SleepingChain(100L, 200));
+		assertEquals(9L, limitOf(limiter));
+	}
+	
+	@Test
+	public void cutsOnlyOnceForABurstOfThrottling() throws Exception {
+		final AdaptiveConcurrencyInterceptor limiter =
+			new AdaptiveConcurrencyInterceptor(10, 1, 20, 0L);
+		final CountDownLatch sent = new CountDownLatch(2);
+		final CountDownLatch release = new CountDownLatch(1);
+		final TestRequestChain chain = new TestRequestChain(AUTHORITY) {
+			@Override
+			protected HttpResponse respond(final HttpUriRequest request)
+				throws IOException {
+				sent.countDown();
+				try {
+					release.await();
+					// Long enough a round trip that the second release
+					// lands well within it.
+					MILLISECONDS.sleep(50L);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				return response(503);
+			}
+		};
+		final ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			final Future<?> first = pool.submit(intercept(limiter, chain));
+			final Future<?> second = pool.submit(intercept(limiter, chain));
+			assertTrue(sent.await(5L, SECONDS));
+			release.countDown();
+			first.get(5L, SECONDS);
+			second.get(5L, SECONDS);
+		} finally {
+			pool.shutdownNow();
+		}
+		assertEquals(5L, limitOf(limiter));
+	}
+	
+	@Test
+	public void neverCutsBelowTheMinLimit() throws Exception {
+		final AdaptiveConcurrencyInterceptor limiter =
+			new AdaptiveConcurrencyInterceptor(4, 3, 20, 0L);
+		for(int i = 0; i < 3; i++) {
+			limiter.intercept(new SleepingChain(1L, 503));
+			MILLISECONDS.sleep(5L);
+		}
+		assertEquals(3L, limitOf(limiter));
+	}
+	
+	@Test
+	public void rejectsRequestsOverTheLimit() throws Exception {
+		final AdaptiveConcurrencyInterceptor limiter =
+			new AdaptiveConcurrencyInterceptor(1, 1, 1, 0L);
+		final CountDownLatch sent = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final TestRequestChain blocking = new TestRequestChain(AUTHORITY) {
+			@Override
+			protected HttpResponse respond(final HttpUriRequest request)
+				throws IOException {
+				sent.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				return response(200);
+			}
+		};
+		final ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			final Future<?> first = pool.submit(intercept(limiter, blocking));
+			assertTrue(sent.await(5L, SECONDS));
+			try {
+				limiter.intercept(new TestRequestChain(AUTHORITY));
+				fail("Should have been rejected.");
+			} catch (ConcurrencyLimitExceededException e) {
+				// Expected.
+			}
+			assertEquals(1L, limiter.getRejectedCount());
+			// Other endpoints have limits of their own.
+			limiter.intercept(new TestRequestChain("other.s3.amazonaws.com"));
+			release.countDown();
+			first.get(5L, SECONDS);
+		} finally {
+			pool.shutdownNow();
+		}
+		limiter.intercept(new TestRequestChain(AUTHORITY));
+	}
+	
+	@Test
+	public void setMaxLimitCutsExistingLimits() throws Exception {
+		final AdaptiveConcurrencyInterceptor limiter =
+			new AdaptiveConcurrencyInterceptor(10, 1, 20, 0L);
+		limiter.intercept(new TestRequestChain(AUTHORITY));
+		limiter.setMaxLimit(4);
+		assertEquals(4L, limitOf(limiter));
+		assertEquals(4L, limiter.getMaxLimit());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsAnInitialLimitOutsideTheBounds() {
+		new AdaptiveConcurrencyInterceptor(30, 1, 20, 0L);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsAMaxLimitBelowTheMin() {
+		new AdaptiveConcurrencyInterceptor(10, 5, 20, 0L).setMaxLimit(4);
+	}
+	
+	private static final int limitOf(final AdaptiveConcurrencyInterceptor limiter) {
+		return limiter.getLimits().get(AUTHORITY);
+	}
+	
+	private static final Callable<HttpResponse> intercept(
+		final AdaptiveConcurrencyInterceptor limiter,
+		final TestRequestChain chain) {
+		return new Callable<HttpResponse>() {
+			@Override
+			public HttpResponse call() throws Exception {
+				return limiter.intercept(chain);
+			}
+		};
+	}
+	
+	/**
+	 * Answers every request with the given status after the given delay.
+	 */
+	private static final class SleepingChain extends TestRequestChain {
+		private final long delayMs_;
+		private final int status_;
+		private SleepingChain(final long delayMs, final int status) {
+			super(AUTHORITY);
+			delayMs_ = delayMs;
+			status_ = status;
+		}
+		@Override
+		protected HttpResponse respond(final HttpUriRequest request)
+			throws IOException {
+			try {
+				MILLISECONDS.sleep(delayMs_);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			return response(status_);
+		}
+	}
+}
@@ -0,0 +1,340 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport.interceptors;
+
+import com.kolich.aws.transport.CircuitBreakerOpenException;
+import com.kolich.aws.transport.ConcurrencyLimitExceededException;
+import com.kolich.aws.transport.interceptors.CircuitBreakerInterceptor.State;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakerInterceptorTest {
+	
+	private static final String AUTHORITY = "bucket.s3.amazonaws.com";
+	private static final String BREAKER = "s3:http://" + AUTHORITY;
+	
+	private static final long OPEN_MS = 100L;
+	
+	@Test
+	public void staysClosedUntilTheMinCalls() throws Exception {
+		final CircuitBreakerInterceptor breaker = newBreaker(2);
+		final StatusChain chain = new StatusChain(500);
+		for(int i = 0; i < 3; i++) {
+			breaker.intercept(chain);
+		}
+		assertEquals(State.CLOSED, stateOf(breaker));
+	}
+	
+	@Test
+	public void opensOnceEnoughCallsFail() throws Exception {
+		final CircuitBreakerInterceptor breaker = newBreaker(2);
+		final StatusChain chain = new StatusChain(200);
+		breaker.intercept(chain);
+		breaker.intercept(chain);
+		chain.status_ = 500;
+		breaker.intercept(chain);
+		assertEquals(State.CLOSED, stateOf(breaker));
+		breaker.intercept(chain);
+		assertEquals(State.OPEN, stateOf(breaker));
+		// Open, the request is failed without ever being sent.
+		try {
+			breaker.intercept(chain);
+			fail("Should have been rejected.");
+		} catch (CircuitBreakerOpenException e) {
+			assertTrue(e.getRetryAfterMs() <= OPEN_MS);
+		}
+		assertEquals(4L, chain.sent_.get());
+	}
+	
+	@Test
+	public void countsIOExceptionsAsFailures() throws Exception {
+		final CircuitBreakerInterceptor breaker = newBreaker(2);
+		final TestRequestChain chain = new TestRequestChain(AUTHORITY) {
+			@Override
+			protected HttpResponse respond(final HttpUriRequest request)
+				throws IOException {
+				throw new IOException("Connection reset");
+			}
+		};
+		for(int i = 0; i < 4; i++) {
+			try {
+				breaker.intercept(chain);
+				fail("Should have thrown.");
+			} catch (IOException e) {
+				// Expected.
+			}
+		}
+		assertEquals(State.OPEN, stateOf(breaker));
+	}
+	
+	@Test
+	public void countsConnectTimeoutsAsFailures() throws Exception {
+		final CircuitBreakerInterceptor breaker = newBreaker(2);
+		final TestRequestChain chain = new TestRequestChain(AUTHORITY) {
+			@Override
+			protected HttpResponse respond(final HttpUriRequest request)
+				throws IOException {
+				throw new ConnectTimeoutException();
+			}
+		};
+		for(int i = 0; i < 4; i++) {
+			try {
+				breaker.intercept(chain);
+				fail("Should have thrown.");
+			} catch (ConnectTimeoutException e) {
+				// Expected.
+			}
+		}
+		assertEquals(State.OPEN, stateOf(breaker));
+		// A probe that can't connect either opens it again, rather than
+		// being given back as if it was never sent.
+		MILLISECONDS.sleep(OPEN_MS + 20L);
+		try {
+			breaker.intercept(chain);
+			fail("Should have thrown.");
+		} catch (ConnectTimeoutException e) {
+			// Expected.
+		}
+		assertEquals(State.OPEN, stateOf(breaker));
+	}
+	
+	@Test
+	public void connectionPoolTimeoutsCountForNothing() throws Exception {
+		final CircuitBreakerInterceptor breaker = newBreaker(2);
+		final TestRequestChain chain = new TestRequestChain(AUTHORITY) {
+			@Override
+			protected HttpResponse respond(final HttpUriRequest request)
+				throws IOException {
+				throw new ConnectionPoolTimeoutException();
+			}
+		};
+		for(int i = 0; i < 10; i++) {
+			try {
+				breaker.intercept(chain);
+				fail("Should have thrown.");
+			} catch (ConnectionPoolTimeoutException e) {
+				// Expected.
+			}
+		}
+		assertEquals(State.CLOSED, stateOf(breaker));
+	}
+	
+	@Test
+	public void opensOnceEnoughCallsAreSlow() throws Exception {
+		final CircuitBreakerInterceptor breaker = new CircuitBreakerInterceptor(
+			10, 2, 1.0d, 0.5d, 20L, OPEN_MS, 1);
+		final TestRequestChain chain = new TestRequestChain(AUTHORITY) {
+			@Override
+			protected HttpResponse respond(final HttpUriRequest request)
+				throws IOException {
+				try {
+					MILLISECONDS.sleep(30L);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				return response(200);
+			}
+		};
+		breaker.intercept(chain);
+		breaker.intercept(chain);
+		assertEquals(State.OPEN, stateOf(breaker));
+	}
+	
+	@Test
+	public void clientSideRejectionsCountForNothing() throws Exception {
+		final CircuitBreakerInterceptor breaker = newBreaker(2);
+		final TestRequestChain chain = new TestRequestChain(AUTHORITY) {
+			@Override
+			protected HttpResponse respond(final HttpUriRequest request)
+				throws IOException {
+				throw new ConcurrencyLimitExceededException("Too many.");
+			}
+		};
+		for(int i = 0; i < 10; i++) {
+			try {
+				breaker.intercept(chain);
+				fail("Should have thrown.");
+			} catch (ConcurrencyLimitExceededException e) {
+				// Expected.
+			}
+		}
+		assertEquals(State.CLOSED, stateOf(breaker));
+	}
+	
+	@Test
+	public void closesAgainOnceEveryProbeSucceeds() throws Exception {
+		final CircuitBreakerInterceptor breaker = newBreaker(2);
+		final StatusChain chain = open(breaker);
+		MILLISECONDS.sleep(OPEN_MS + 20L);
+		chain.status_ = 200;
+		breaker.intercept(chain);
+		assertEquals(State.HALF_OPEN, stateOf(breaker));
+		breaker.intercept(chain);
+		assertEquals(State.CLOSED, stateOf(breaker));
+		// And starts counting afresh.
+		chain.status_ = 500;
+		for(int i = 0; i < 3; i++) {
+			breaker.intercept(chain);
+		}
+		assertEquals(State.CLOSED, stateOf(breaker));
+	}
+	
+	@Test
+	public void opensAgainWhenAProbeFails() throws Exception {
+		final CircuitBreakerInterceptor breaker = newBreaker(2);
+		final StatusChain chain = open(breaker);
+		MILLISECONDS.sleep(OPEN_MS + 20L);
+		chain.status_ = 200;
+		breaker.intercept(chain);
+		chain.status_ = 503;
+		breaker.intercept(chain);
+		assertEquals(State.OPEN, stateOf(breaker));
+		try {
+			breaker.intercept(chain);
+			fail("Should have been rejected.");
+		} catch (CircuitBreakerOpenException e) {
+			// Expected, for another round.
+		}
+	}
+	
+	@Test
+	public void letsOnlySoManyProbesThrough() throws Exception {
+		final CircuitBreakerInterceptor breaker = newBreaker(1);
+		open(breaker);
+		MILLISECONDS.sleep(OPEN_MS + 20L);
+		final CountDownLatch sent = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final TestRequestChain probe = new TestRequestChain(AUTHORITY) {
+			@Override
+			protected HttpResponse respond(final HttpUriRequest request)
+				throws IOException {
+				sent.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				return response(200);
+			}
+		};
+		final ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			final Future<HttpResponse> first = pool.submit(new Callable<HttpResponse>() {
+				@Override
+				public HttpResponse call() throws Exception {
+					return breaker.intercept(probe);
+				}
+			});
+			assertTrue(sent.await(5L, SECONDS));
+			try {
+				breaker.intercept(new StatusChain(200));
+				fail("Should have been rejected.");
+			} catch (CircuitBreakerOpenException e) {
+				assertEquals(0L, e.getRetryAfterMs());
+			}
+			release.countDown();
+			first.get(5L, SECONDS);
+		} finally {
+			pool.shutdownNow();
+		}
+		assertEquals(State.CLOSED, stateOf(breaker));
+	}
+	
+	@Test
+	public void keepsABreakerPerEndpoint() throws Exception {
+		final CircuitBreakerInterceptor breaker = newBreaker(2);
+		open(breaker);
+		breaker.intercept(new TestRequestChain("other.s3.amazonaws.com"));
+		assertEquals(State.OPEN, stateOf(breaker));
+		assertEquals(State.CLOSED, breaker.getStates().get(
+			"s3:http://other.s3.amazonaws.com"));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsMinCallsOverTheWindowSize() {
+		new CircuitBreakerInterceptor(10, 11, 0.5d, 0.5d, 1000L, 1000L, 1);
+	}
+	
+	/**
+	 * A breaker that opens once half of at least four calls fail.
+	 */
+	private static final CircuitBreakerInterceptor newBreaker(final int probes) {
+		return new CircuitBreakerInterceptor(10, 4, 0.5d, 1.0d, 1000L,
+			OPEN_MS, probes);
+	}
+	
+	private static final StatusChain open(final CircuitBreakerInterceptor breaker)
+		throws IOException {
+		final StatusChain chain = new StatusChain(500);
+		for(int i = 0; i < 4; i++) {
+			breaker.intercept(chain);
+		}
+		assertEquals(State.OPEN, stateOf(breaker));
+		return chain;
+	}
+	
+	private static final State stateOf(final CircuitBreakerInterceptor breaker) {
+		return breaker.getStates().get(BREAKER);
+	}
+	
+	/**
+	 * Answers every request with the status last set, counting how many
+	 * were sent.
+	 */
+	private static final class StatusChain extends TestRequestChain {
+		private final AtomicInteger sent_;
+		private volatile int status_;
+		private StatusChain(final int status) {
+			super(AUTHORITY);
+			sent_ = new AtomicInteger();
+			status_ = status;
+		}
+		@Override
+		protected HttpResponse respond(final HttpUriRequest request) {
+			sent_.incrementAndGet();
+			return response(status_);
+		}
+	}
+}
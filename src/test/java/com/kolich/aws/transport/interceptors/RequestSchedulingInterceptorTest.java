@@ -0,0 +1,343 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport.interceptors;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.kolich.aws.concurrent.Deadline;
+import com.kolich.aws.transport.ConcurrencyLimitExceededException;
+import com.kolich.aws.transport.DeadlineExceededException;
+import com.kolich.aws.transport.interceptors.RequestSchedulingInterceptor.Priority;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.InputStreamEntity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestSchedulingInterceptorTest {
+	
+	private static final String AUTHORITY = "bucket.s3.amazonaws.com";
+	
+	private ExecutorService pool_;
+	private List<String> sent_;
+	private CountDownLatch release_;
+	
+	@Before
+	public void setUp() {
+		pool_ = Executors.newCachedThreadPool();
+		sent_ = Collections.synchronizedList(Lists.<String>newArrayList());
+		release_ = new CountDownLatch(1);
+	}
+	
+	@After
+	public void tearDown() {
+		release_.countDown();
+		pool_.shutdownNow();
+	}
+	
+	@Test
+	public void sendsRightAwayWhileThereAreFreeSlots() throws Exception {
+		final RequestSchedulingInterceptor scheduler =
+			new RequestSchedulingInterceptor(2);
+		scheduler.intercept(new TestRequestChain(AUTHORITY));
+		scheduler.intercept(new TestRequestChain(AUTHORITY));
+		assertEquals(2L, scheduler.getRequestCount(Priority.NORMAL));
+		assertEquals(0L, scheduler.getQueueLength());
+	}
+	
+	@Test
+	public void tenantsTakeTurns() throws Exception {
+		final RequestSchedulingInterceptor scheduler =
+			new RequestSchedulingInterceptor(1);
+		final Future<?> blocker = holdTheOnlySlot(scheduler);
+		final List<Future<?>> queued = ImmutableList.<Future<?>>of(
+			queue(scheduler, "a1", "a", Priority.NORMAL, 1),
+			queue(scheduler, "a2", "a", Priority.NORMAL, 2),
+			queue(scheduler, "a3", "a", Priority.NORMAL, 3),
+			queue(scheduler, "b1", "b", Priority.NORMAL, 4));
+		release_.countDown();
+		blocker.get(5L, SECONDS);
+		for(final Future<?> future : queued) {
+			future.get(5L, SECONDS);
+		}
+		assertEquals(ImmutableList.of("blocker", "a1", "b1", "a2", "a3"),
+			ImmutableList.copyOf(sent_));
+	}
+	
+	@Test
+	public void higherPrioritiesGoFirst() throws Exception {
+		final RequestSchedulingInterceptor scheduler =
+			new RequestSchedulingInterceptor(1);
+		final Future<?> blocker = holdTheOnlySlot(scheduler);
+		final List<Future<?>> queued = ImmutableList.<Future<?>>of(
+			queue(scheduler, "low", "a", Priority.LOW, 1),
+			queue(scheduler, "normal", "a", Priority.NORMAL, 2),
+			queue(scheduler, "high", "b", Priority.HIGH, 3));
+		release_.countDown();
+		blocker.get(5L, SECONDS);
+		for(final Future<?> future : queued) {
+			future.get(5L, SECONDS);
+		}
+		assertEquals(ImmutableList.of("blocker", "high", "normal", "low"),
+			ImmutableList.copyOf(sent_));
+	}
+	
+	@Test
+	@SuppressWarnings("try") // The scope is only ever closed.
+	public void theClosestDeadlineGoesFirstWithinATenant() throws Exception {
+		final RequestSchedulingInterceptor scheduler =
+			new RequestSchedulingInterceptor(1);
+		final Future<?> blocker = holdTheOnlySlot(scheduler);
+		final Future<?> relaxed = queue(scheduler, "relaxed", "a",
+			Priority.NORMAL, 1);
+		final Future<?> urgent;
+		try(final Deadline.Scope scope = Deadline.after(5L, SECONDS).enter()) {
+			urgent = queue(scheduler, "urgent", "a", Priority.NORMAL, 2);
+		}
+		release_.countDown();
+		blocker.get(5L, SECONDS);
+		relaxed.get(5L, SECONDS);
+		urgent.get(5L, SECONDS);
+		assertEquals(ImmutableList.of("blocker", "urgent", "relaxed"),
+			ImmutableList.copyOf(sent_));
+	}
+	
+	@Test
+	public void failsWaitersStillQueuedPastTheirMaxWait() throws Exception {
+		final RequestSchedulingInterceptor scheduler =
+			new RequestSchedulingInterceptor(1, 50L, 10000L, 10000L);
+		holdTheOnlySlot(scheduler);
+		final Priority previous = RequestSchedulingInterceptor.setCurrentPriority(
+			Priority.HIGH);
+		final long start = System.nanoTime();
+		try {
+			scheduler.intercept(new TestRequestChain(AUTHORITY));
+			fail("Should have expired.");
+		} catch (ConcurrencyLimitExceededException e) {
+			assertTrue(System.nanoTime() - start >= MILLISECONDS.toNanos(40L));
+		} finally {
+			RequestSchedulingInterceptor.setCurrentPriority(previous);
+		}
+		assertEquals(1L, scheduler.getExpiredCount(Priority.HIGH));
+		assertEquals(0L, scheduler.getQueueLength());
+	}
+	
+	@Test
+	@SuppressWarnings("try") // The scope is only ever closed.
+	public void failsWaitersStillQueuedPastTheThreadsDeadline() throws Exception {
+		final RequestSchedulingInterceptor scheduler =
+			new RequestSchedulingInterceptor(1);
+		holdTheOnlySlot(scheduler);
+		try(final Deadline.Scope scope = Deadline.after(50L, MILLISECONDS).enter()) {
+			scheduler.intercept(new TestRequestChain(AUTHORITY));
+			fail("Should have expired.");
+		} catch (DeadlineExceededException e) {
+			// Expected.
+		}
+		assertEquals(1L, scheduler.getExpiredCount(Priority.NORMAL));
+		assertEquals(0L, scheduler.getQueueLength());
+	}
+	
+	@Test
+	public void anExpiredWaiterGivesUpItsTenantsTurn() throws Exception {
+		final RequestSchedulingInterceptor scheduler =
+			new RequestSchedulingInterceptor(1, 50L, 10000L, 10000L);
+		final Future<?> blocker = holdTheOnlySlot(scheduler);
+		final Future<?> expiring = queue(scheduler, "expiring", "a",
+			Priority.HIGH, 1);
+		try {
+			expiring.get(5L, SECONDS);
+			fail("Should have expired.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ConcurrencyLimitExceededException);
+		}
+		final Future<?> next = queue(scheduler, "next", "b", Priority.NORMAL, 1);
+		release_.countDown();
+		blocker.get(5L, SECONDS);
+		next.get(5L, SECONDS);
+		assertEquals(ImmutableList.of("blocker", "next"),
+			ImmutableList.copyOf(sent_));
+	}
+	
+	@Test
+	public void holdsTheSlotUntilTheBodyIsClosed() throws Exception {
+		final RequestSchedulingInterceptor scheduler =
+			new RequestSchedulingInterceptor(1, 50L, 10000L, 10000L);
+		final TestRequestChain chain = new TestRequestChain(AUTHORITY) {
+			@Override
+			protected HttpResponse respond(final HttpUriRequest request) {
+				final HttpResponse response = response(200);
+				response.setEntity(new InputStreamEntity(
+					new ByteArrayInputStream(new byte[16]), 16L));
+				return response;
+			}
+		};
+		final HttpResponse streaming = scheduler.intercept(chain);
+		final Priority previous = RequestSchedulingInterceptor.setCurrentPriority(
+			Priority.HIGH);
+		try {
+			try {
+				scheduler.intercept(new TestRequestChain(AUTHORITY));
+				fail("Should have expired.");
+			} catch (ConcurrencyLimitExceededException e) {
+				// Expected, the body hasn't been read yet.
+			}
+			final InputStream content = streaming.getEntity().getContent();
+			while(content.read(new byte[4]) >= 0) {
+				// Read it to the end.
+			}
+			scheduler.intercept(new TestRequestChain(AUTHORITY));
+		} finally {
+			RequestSchedulingInterceptor.setCurrentPriority(previous);
+		}
+	}
+	
+	@Test
+	public void givesTheSlotBackWhenTheRequestFails() throws Exception {
+		final RequestSchedulingInterceptor scheduler =
+			new RequestSchedulingInterceptor(1, 50L, 10000L, 10000L);
+		try {
+			scheduler.intercept(new TestRequestChain(AUTHORITY) {
+				@Override
+				protected HttpResponse respond(final HttpUriRequest request)
+					throws IOException {
+					throw new IOException("Connection reset");
+				}
+			});
+			fail("Should have thrown.");
+		} catch (IOException e) {
+			// Expected.
+		}
+		scheduler.intercept(new TestRequestChain(AUTHORITY));
+	}
+	
+	@Test
+	public void raisingTheMaxLetsWaitersThrough() throws Exception {
+		final RequestSchedulingInterceptor scheduler =
+			new RequestSchedulingInterceptor(1);
+		holdTheOnlySlot(scheduler);
+		final Future<?> queued = queue(scheduler, "queued", "a",
+			Priority.NORMAL, 1);
+		scheduler.setMaxConcurrent(2);
+		queued.get(5L, SECONDS);
+		assertEquals(2L, scheduler.getMaxConcurrent());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsAZeroMax() {
+		new RequestSchedulingInterceptor(1).setMaxConcurrent(0);
+	}
+	
+	/**
+	 * Sends a request that takes the scheduler's only slot and holds it
+	 * until the test releases it.
+	 */
+	private final Future<?> holdTheOnlySlot(
+		final RequestSchedulingInterceptor scheduler) throws Exception {
+		final CountDownLatch sent = new CountDownLatch(1);
+		final Future<?> blocker = pool_.submit(new Callable<HttpResponse>() {
+			@Override
+			public HttpResponse call() throws Exception {
+				return scheduler.intercept(new TestRequestChain(AUTHORITY) {
+					@Override
+					protected HttpResponse respond(final HttpUriRequest request)
+						throws IOException {
+						sent_.add("blocker");
+						sent.countDown();
+						try {
+							release_.await();
+						} catch (InterruptedException e) {
+							throw new InterruptedIOException();
+						}
+						return response(200);
+					}
+				});
+			}
+		});
+		assertTrue(sent.await(5L, SECONDS));
+		return blocker;
+	}
+	
+	/**
+	 * Sends a request from another thread as the given tenant and
+	 * priority, and waits for it to join the queue, as its given place in
+	 * line.
+	 */
+	private final Future<?> queue(final RequestSchedulingInterceptor scheduler,
+                                  final String name,
+                                  final String tenant,
+                                  final Priority priority,
+                                  final int place) throws Exception {
+		final Callable<HttpResponse> task = new Callable<HttpResponse>() {
+			@Override
+			public HttpResponse call() throws Exception {
+				RequestSchedulingInterceptor.setCurrentTenant(tenant);
+				RequestSchedulingInterceptor.setCurrentPriority(priority);
+				try {
+					return scheduler.intercept(new TestRequestChain(AUTHORITY) {
+						@Override
+						protected HttpResponse respond(final HttpUriRequest request) {
+							sent_.add(name);
+							return response(200);
+						}
+					});
+				} finally {
+					RequestSchedulingInterceptor.setCurrentTenant(null);
+					RequestSchedulingInterceptor.setCurrentPriority(null);
+				}
+			}
+		};
+		// Sent under the calling thread's deadline, if it has one.
+		final Future<?> future = pool_.submit(Deadline.propagate(task));
+		final long giveUp = System.nanoTime() + SECONDS.toNanos(5L);
+		while(scheduler.getQueueLength() < place && System.nanoTime() < giveUp) {
+			MILLISECONDS.sleep(1L);
+		}
+		assertEquals(place, scheduler.getQueueLength());
+		return future;
+	}
+}
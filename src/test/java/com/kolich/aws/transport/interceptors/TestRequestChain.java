@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2014 Mark S. Kolich
+ * http://mark.koli.ch
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kolich.aws.transport.interceptors;
+
+import com.kolich.aws.transport.AwsRequestChain;
+import com.kolich.aws.transport.AwsRequestContext;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+
+/**
+ * The end of an interceptor chain, for testing an interceptor on its own.
+ * Answers every request with a 200 OK unless {@link #respond} is
+ * overridden.
+ */
+public class TestRequestChain implements AwsRequestChain {
+	
+	private final HttpUriRequest request_;
+	private final AwsRequestContext context_;
+	
+	/**
+	 * @param path the path and query of the request, starting with a "/"
+	 */
+	public TestRequestChain(final String authority, final String resource,
+		final String path) {
+		request_ = new HttpGet("http://" + authority + path);
+		context_ = new AwsRequestContext("s3", "GetObject",
+			"http://" + authority, authority, resource,
+			new BasicHttpContext());
+	}
+	
+	public TestRequestChain(final String authority, final String resource) {
+		this(authority, resource, "/");
+	}
+	
+	public TestRequestChain(final String authority) {
+		this(authority, null);
+	}
+	
+	protected HttpResponse respond(final HttpUriRequest request)
+		throws IOException {
+		return response(200);
+	}
+	
+	@Override
+	public final HttpUriRequest getRequest() {
+		return request_;
+	}
+	
+	@Override
+	public final AwsRequestContext getContext() {
+		return context_;
+	}
+	
+	@Override
+	public final HttpResponse proceed(final HttpUriRequest request)
+		throws IOException {
+		return respond(request);
+	}
+	
+	@Override
+	public final HttpResponse proceed(final HttpUriRequest request,
+		final HttpContext httpContext) throws IOException {
+		return respond(request);
+	}
+	
+	@Override
+	public final HttpResponse proceed() throws IOException {
+		return respond(request_);
+	}
+	
+	public static final HttpResponse response(final int status) {
+		return new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+	}
+}